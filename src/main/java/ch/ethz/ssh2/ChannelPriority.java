@@ -0,0 +1,34 @@
+package ch.ethz.ssh2;
+
+/**
+ * Contains constants that can be used to specify how the data of a channel
+ * (e.g., a {@link Session} or a forwarded connection) is scheduled when
+ * several channels of a connection are sending at the same time.
+ * <p>
+ * Control messages (e.g., window adjustments or channel requests) are always
+ * sent first, followed by the data of interactive channels. The data of the
+ * other channels shares the remaining bandwidth, a normal channel gets four
+ * times the share of a bulk channel.
+ *
+ * @see Session#setPriority(int)
+ *
+ * @version $Id$
+ */
+public abstract interface ChannelPriority
+{
+	/**
+	 * For bulk transfers (e.g., SFTP or SCP) that should not slow down other channels.
+	 */
+	public static final int BULK = 0;
+
+	/**
+	 * The default.
+	 */
+	public static final int NORMAL = 1;
+
+	/**
+	 * For latency sensitive channels (e.g., interactive shells). The data of these
+	 * channels is never delayed by the data of other channels.
+	 */
+	public static final int INTERACTIVE = 2;
+}
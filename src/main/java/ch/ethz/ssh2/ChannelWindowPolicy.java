@@ -0,0 +1,148 @@
+package ch.ethz.ssh2;
+
+/**
+ * Decides how much data the peer may send on a channel before the application
+ * has read it (the local flow control window, which is also the size of the
+ * receive buffer).
+ * <p>
+ * With a fixed window, the throughput of a single channel is limited to
+ * <code>window / round trip time</code>, e.g., about 2 MB/s with the default
+ * 192 KB window on a link with 100 ms latency. An auto-tuning window starts at
+ * the initial size and is doubled (up to the maximum) whenever the peer runs
+ * out of window while the application keeps up with reading. It is reduced
+ * again if the application reads slower than the window would allow, or if
+ * the heap is getting full.
+ * <p>
+ * The window is never smaller than twice the maximum packet size.
+ * <p>
+ * The policy also decides when window adjustments are sent. By default, a
+ * window adjust is sent once the peer has used up half of the window
+ * (see {@link #withWindowUpdateThreshold(int)}), or earlier if the application
+ * reads so fast that the rest of the window would be used up before the adjust
+ * reaches the peer (see {@link #withEarlyWindowUpdates(boolean)}). Free space
+ * is also granted along with channel data that is sent anyway.
+ *
+ * @see Connection#setChannelWindowPolicy(ChannelWindowPolicy)
+ * @see Session#setWindowPolicy(ChannelWindowPolicy)
+ *
+ * @version $Id$
+ */
+public class ChannelWindowPolicy
+{
+	/**
+	 * The largest window that can be configured (256 MB).
+	 */
+	public static final int MAX_WINDOW_SIZE = 256 * 1024 * 1024;
+
+	/**
+	 * A fixed window of 192 KB, as used by earlier versions.
+	 */
+	public static final ChannelWindowPolicy DEFAULT = fixed(32 * 1024 * 3 * 2);
+
+	private final int initialWindowSize;
+	private final int maxWindowSize;
+	private final boolean autoTuning;
+	private final int windowUpdateThreshold;
+	private final boolean earlyWindowUpdates;
+
+	private ChannelWindowPolicy(int initialWindowSize, int maxWindowSize, boolean autoTuning)
+	{
+		this(initialWindowSize, maxWindowSize, autoTuning, 50, true);
+	}
+
+	private ChannelWindowPolicy(int initialWindowSize, int maxWindowSize, boolean autoTuning,
+			int windowUpdateThreshold, boolean earlyWindowUpdates)
+	{
+		if ((initialWindowSize < 8192) || (initialWindowSize > MAX_WINDOW_SIZE))
+			throw new IllegalArgumentException("The window size must be between 8192 and " + MAX_WINDOW_SIZE
+					+ " bytes.");
+
+		if ((maxWindowSize < initialWindowSize) || (maxWindowSize > MAX_WINDOW_SIZE))
+			throw new IllegalArgumentException("The maximum window size must be between the initial size and "
+					+ MAX_WINDOW_SIZE + " bytes.");
+
+		if ((windowUpdateThreshold < 1) || (windowUpdateThreshold > 100))
+			throw new IllegalArgumentException("The window update threshold must be between 1 and 100 percent.");
+
+		this.initialWindowSize = initialWindowSize;
+		this.maxWindowSize = maxWindowSize;
+		this.autoTuning = autoTuning;
+		this.windowUpdateThreshold = windowUpdateThreshold;
+		this.earlyWindowUpdates = earlyWindowUpdates;
+	}
+
+	/**
+	 * @param windowSize the window size in bytes
+	 * @return a policy that always uses the same window size
+	 */
+	public static ChannelWindowPolicy fixed(int windowSize)
+	{
+		return new ChannelWindowPolicy(windowSize, windowSize, false);
+	}
+
+	/**
+	 * @param initialWindowSize the window size for new channels in bytes
+	 * @param maxWindowSize the ceiling for the window size in bytes
+	 * @return a policy that adapts the window to the bandwidth-delay product
+	 */
+	public static ChannelWindowPolicy autoTuning(int initialWindowSize, int maxWindowSize)
+	{
+		return new ChannelWindowPolicy(initialWindowSize, maxWindowSize, true);
+	}
+
+	public int getInitialWindowSize()
+	{
+		return initialWindowSize;
+	}
+
+	public int getMaxWindowSize()
+	{
+		return maxWindowSize;
+	}
+
+	public boolean isAutoTuning()
+	{
+		return autoTuning;
+	}
+
+	/**
+	 * @param percent a window adjust is sent as soon as the peer's remaining window
+	 *                is below this percentage of the window size (default 50). Higher
+	 *                values mean more, but smaller window adjustments.
+	 * @return a copy of this policy with the given threshold
+	 */
+	public ChannelWindowPolicy withWindowUpdateThreshold(int percent)
+	{
+		return new ChannelWindowPolicy(initialWindowSize, maxWindowSize, autoTuning, percent, earlyWindowUpdates);
+	}
+
+	/**
+	 * @param early if <code>true</code> (the default), a window adjust is also sent if the
+	 *              remaining window would be used up within about one round trip at the
+	 *              rate the application is reading, so that the peer does not have to wait
+	 * @return a copy of this policy with the given setting
+	 */
+	public ChannelWindowPolicy withEarlyWindowUpdates(boolean early)
+	{
+		return new ChannelWindowPolicy(initialWindowSize, maxWindowSize, autoTuning, windowUpdateThreshold, early);
+	}
+
+	public int getWindowUpdateThreshold()
+	{
+		return windowUpdateThreshold;
+	}
+
+	public boolean isEarlyWindowUpdates()
+	{
+		return earlyWindowUpdates;
+	}
+
+	@Override
+	public String toString()
+	{
+		if (autoTuning)
+			return "auto-tuning window (" + initialWindowSize + " .. " + maxWindowSize + " bytes)";
+
+		return "fixed window (" + initialWindowSize + " bytes)";
+	}
+}
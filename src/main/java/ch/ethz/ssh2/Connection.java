@@ -14,10 +14,12 @@ import java.net.SocketTimeoutException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadFactory;
 
 import ch.ethz.ssh2.auth.AgentProxy;
 import ch.ethz.ssh2.auth.AuthenticationManager;
 import ch.ethz.ssh2.channel.ChannelManager;
+import ch.ethz.ssh2.compression.CompressionFactory;
 import ch.ethz.ssh2.crypto.CryptoWishList;
 import ch.ethz.ssh2.crypto.cipher.BlockCipherFactory;
 import ch.ethz.ssh2.crypto.digest.MAC;
@@ -25,6 +27,8 @@ import ch.ethz.ssh2.packets.PacketIgnore;
 import ch.ethz.ssh2.transport.ClientTransportManager;
 import ch.ethz.ssh2.transport.HTTPProxyClientTransportManager;
 import ch.ethz.ssh2.transport.KexManager;
+import ch.ethz.ssh2.transport.NioTransportEngine;
+import ch.ethz.ssh2.transport.TransportManager;
 import ch.ethz.ssh2.util.TimeoutService;
 import ch.ethz.ssh2.util.TimeoutService.TimeoutToken;
 
@@ -80,6 +84,15 @@ public class Connection {
         return MAC.getMacList();
     }
 
+    /**
+     * Unless you know what you are doing, you will never need this.
+     *
+     * @return The list of supported compression algorithms by this implementation.
+     */
+    public static synchronized String[] getAvailableCompressions() {
+        return CompressionFactory.getCompressorList();
+    }
+
     /**
      * Unless you know what you are doing, you will never need this.
      *
@@ -110,6 +123,22 @@ public class Connection {
 
     private HTTPProxyData proxy;
 
+    private NioTransportEngine transportEngine;
+
+    private ThreadFactory threadFactory;
+
+    private int maxPacketSize = TransportManager.DEFAULT_MAX_PACKET_SIZE;
+
+    private long rekeyMaxBytes = 0;
+
+    private long rekeyMaxSeconds = TransportManager.DEFAULT_REKEY_INTERVAL;
+
+    private ChannelWindowPolicy windowPolicy = ChannelWindowPolicy.DEFAULT;
+
+    private RateLimiter uploadLimiter;
+
+    private RateLimiter downloadLimiter;
+
     private List<ConnectionMonitor> connectionMonitors
             = new ArrayList<ConnectionMonitor>();
 
@@ -206,6 +235,8 @@ public class Connection {
 
         if(cm == null) {
             cm = new ChannelManager(tm);
+            cm.setWindowPolicy(windowPolicy);
+            cm.setRateLimiters(uploadLimiter, downloadLimiter);
         }
 
         if(user == null) {
@@ -286,6 +317,8 @@ public class Connection {
 
         if(cm == null) {
             cm = new ChannelManager(tm);
+            cm.setWindowPolicy(windowPolicy);
+            cm.setRateLimiters(uploadLimiter, downloadLimiter);
         }
 
         if(user == null) {
@@ -312,6 +345,8 @@ public class Connection {
 
         if(cm == null) {
             cm = new ChannelManager(tm);
+            cm.setWindowPolicy(windowPolicy);
+            cm.setRateLimiters(uploadLimiter, downloadLimiter);
         }
 
         if(user == null) {
@@ -362,6 +397,8 @@ public class Connection {
 
         if(cm == null) {
             cm = new ChannelManager(tm);
+            cm.setWindowPolicy(windowPolicy);
+            cm.setRateLimiters(uploadLimiter, downloadLimiter);
         }
 
         if(user == null) {
@@ -418,6 +455,8 @@ public class Connection {
 
         if(cm == null) {
             cm = new ChannelManager(tm);
+            cm.setWindowPolicy(windowPolicy);
+            cm.setRateLimiters(uploadLimiter, downloadLimiter);
         }
 
         if(user == null) {
@@ -486,6 +525,8 @@ public class Connection {
 
         if(cm == null) {
             cm = new ChannelManager(tm);
+            cm.setWindowPolicy(windowPolicy);
+            cm.setRateLimiters(uploadLimiter, downloadLimiter);
         }
 
         if(user == null) {
@@ -721,14 +762,17 @@ public class Connection {
         final TimeoutState state = new TimeoutState();
 
         if(null == proxy) {
-            tm = new ClientTransportManager();
+            tm = new ClientTransportManager(transportEngine);
         }
         else {
-            tm = new HTTPProxyClientTransportManager(proxy);
+            tm = new HTTPProxyClientTransportManager(proxy, transportEngine);
         }
         tm.setSoTimeout(connectTimeout);
         tm.setTcpNoDelay(tcpNoDelay);
         tm.setConnectionMonitors(connectionMonitors);
+        tm.setThreadFactory(threadFactory);
+        tm.setMaxPacketSize(maxPacketSize);
+        tm.setRekeyLimits(rekeyMaxBytes, rekeyMaxSeconds);
 
         try {
             TimeoutToken token = null;
@@ -970,6 +1014,8 @@ public class Connection {
 
         if(cm == null) {
             cm = new ChannelManager(tm);
+            cm.setWindowPolicy(windowPolicy);
+            cm.setRateLimiters(uploadLimiter, downloadLimiter);
         }
 
         return am.getRemainingMethods(user);
@@ -1149,6 +1195,26 @@ public class Connection {
         cryptoWishList.c2s_mac_algos = macs;
     }
 
+    /**
+     * Define the set of allowed compression algorithms for packets from the
+     * client to the server. By default, no compression is used.
+     * <p/>
+     * <code>zlib@openssh.com</code> only starts compressing after successful
+     * authentication, <code>zlib</code> compresses right after the first
+     * key exchange. The settings take effect on the next key exchange.
+     *
+     * @param compressions An array of compression algorithms (see {@link #getAvailableCompressions()}),
+     *                     ordered after preference. You must specify at least one entry.
+     */
+    public synchronized void setClient2ServerCompressions(String[] compressions) {
+        if((compressions == null) || (compressions.length == 0)) {
+            throw new IllegalArgumentException();
+        }
+        compressions = removeDuplicates(compressions);
+        CompressionFactory.checkCompressorList(compressions);
+        cryptoWishList.c2s_comp_algos = compressions;
+    }
+
     /**
      * Sets the parameters for the diffie-hellman group exchange. Unless you
      * know what you are doing, you will never need this. Default values are
@@ -1193,6 +1259,24 @@ public class Connection {
         cryptoWishList.s2c_mac_algos = macs;
     }
 
+    /**
+     * Define the set of allowed compression algorithms for packets from the
+     * server to the client. By default, no compression is used.
+     * <p/>
+     * See {@link #setClient2ServerCompressions(String[])}.
+     *
+     * @param compressions An array of compression algorithms (see {@link #getAvailableCompressions()}),
+     *                     ordered after preference. You must specify at least one entry.
+     */
+    public synchronized void setServer2ClientCompressions(String[] compressions) {
+        if((compressions == null) || (compressions.length == 0)) {
+            throw new IllegalArgumentException();
+        }
+        compressions = removeDuplicates(compressions);
+        CompressionFactory.checkCompressorList(compressions);
+        cryptoWishList.s2c_comp_algos = compressions;
+    }
+
     /**
      * Define the set of allowed server host key algorithms to be used for
      * the following key exchange operations.
@@ -1252,6 +1336,128 @@ public class Connection {
         }
     }
 
+    /**
+     * Serve this connection with the given {@link NioTransportEngine} instead of a dedicated
+     * receive thread. Useful if an application keeps many connections open. One engine can be
+     * shared by any number of connections.
+     * <p/>
+     * Must be called before {@link #connect()}; the default is <code>null</code>
+     * (one receive thread per connection).
+     *
+     * @param engine the engine, or <code>null</code>
+     */
+    public synchronized void setTransportEngine(NioTransportEngine engine) {
+        if(tm != null) {
+            throw new IllegalStateException("Connection to " + hostname + " is already in connected state!");
+        }
+        transportEngine = engine;
+    }
+
+    /**
+     * Use the given factory for all threads that are created on behalf of this connection:
+     * the receive thread, the sender for asynchronous replies and the threads used for
+     * port forwarding. This allows, e.g., to use virtual threads or to name and monitor
+     * the threads. The factory decides on the daemon status of the threads.
+     * <p/>
+     * Must be called before {@link #connect()}; the default is <code>null</code>
+     * (plain daemon threads). The JVM wide timeout thread is configured with
+     * {@link ch.ethz.ssh2.util.TimeoutService#setThreadFactory(ThreadFactory)}.
+     *
+     * @param factory the factory, or <code>null</code>
+     */
+    public synchronized void setThreadFactory(ThreadFactory factory) {
+        if(tm != null) {
+            throw new IllegalStateException("Connection to " + hostname + " is already in connected state!");
+        }
+        threadFactory = factory;
+    }
+
+    /**
+     * Set the maximum size of the data packets that the server may send on channels
+     * opened by this connection (advertised in the channel open messages). Larger packets
+     * reduce the per-packet overhead of bulk transfers (e.g., SFTP or SCP downloads), at the
+     * cost of larger channel buffers. Whether large packets are used also depends on the
+     * server.
+     * <p/>
+     * Must be called before {@link #connect()}. The default is 32768 bytes, the maximum
+     * is 262144 bytes.
+     *
+     * @param size the maximum packet size in bytes
+     */
+    public synchronized void setMaxPacketSize(int size) {
+        if(tm != null) {
+            throw new IllegalStateException("Connection to " + hostname + " is already in connected state!");
+        }
+        if((size < 1024) || (size > TransportManager.MAX_PACKET_SIZE)) {
+            throw new IllegalArgumentException("The maximum packet size must be between 1024 and "
+                    + TransportManager.MAX_PACKET_SIZE + " bytes.");
+        }
+        maxPacketSize = size;
+    }
+
+    /**
+     * Set the limits for automatic key exchanges. New keys are negotiated once
+     * <code>maxBytes</code> have been sent or received with the current keys, or once
+     * they are <code>maxSeconds</code> old (checked when packets are sent or received).
+     * Regardless of <code>maxBytes</code>, the keys are replaced before the limits of
+     * RFC 4344 for the negotiated cipher are reached (64 GB for AES, 1 GB for ciphers
+     * with 8 byte blocks). Messages sent during a key exchange are queued, so the
+     * application does not have to wait for it.
+     * <p/>
+     * May be called at any time. The default is no traffic limit (apart from RFC 4344)
+     * and one hour.
+     *
+     * @param maxBytes the traffic limit, 0 for the RFC 4344 limit of the cipher
+     * @param maxSeconds the age limit, 0 for no limit
+     */
+    public synchronized void setRekeyLimits(long maxBytes, long maxSeconds) {
+        if((maxBytes < 0) || (maxSeconds < 0)) {
+            throw new IllegalArgumentException("Rekey limits must not be negative");
+        }
+        rekeyMaxBytes = maxBytes;
+        rekeyMaxSeconds = maxSeconds;
+
+        if(tm != null) {
+            tm.setRekeyLimits(maxBytes, maxSeconds);
+        }
+    }
+
+    /**
+     * Set the flow control window policy for channels (sessions, port forwardings, etc.)
+     * that are opened from now on. The default is a fixed window of 192 KB, which limits
+     * the throughput of a single channel on links with high latency. An auto-tuning
+     * policy lets the window grow up to the bandwidth-delay product of the link.
+     *
+     * @param policy the window policy
+     * @see Session#setWindowPolicy(ChannelWindowPolicy)
+     */
+    public synchronized void setChannelWindowPolicy(ChannelWindowPolicy policy) {
+        if(policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
+        }
+        windowPolicy = policy;
+        if(cm != null) {
+            cm.setWindowPolicy(policy);
+        }
+    }
+
+    /**
+     * Limit the bandwidth used by all channels of this connection. Sessions (see
+     * {@link Session#setRateLimiters(RateLimiter, RateLimiter)}) may be limited further.
+     * The limits apply to channel data only, not to the SSH protocol overhead. Can be
+     * changed at any time, pass <code>null</code> to remove a limit.
+     *
+     * @param upload limits the data sent to the server, may be <code>null</code>
+     * @param download limits the data received from the server, may be <code>null</code>
+     */
+    public synchronized void setRateLimiters(RateLimiter upload, RateLimiter download) {
+        uploadLimiter = upload;
+        downloadLimiter = download;
+        if(cm != null) {
+            cm.setRateLimiters(upload, download);
+        }
+    }
+
     /**
      * Request a remote port forwarding.
      * If successful, then forwarded connections will be redirected to the given target address.
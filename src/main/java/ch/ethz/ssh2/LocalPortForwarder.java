@@ -11,6 +11,7 @@ import java.net.ServerSocket;
 
 import ch.ethz.ssh2.channel.ChannelManager;
 import ch.ethz.ssh2.channel.LocalAcceptThread;
+import ch.ethz.ssh2.util.Threads;
 
 /**
  * A <code>LocalPortForwarder</code> forwards TCP/IP connections to a local
@@ -39,8 +40,7 @@ public class LocalPortForwarder
 		this.port_to_connect = port_to_connect;
 
 		lat = new LocalAcceptThread(cm, local_port, host_to_connect, port_to_connect);
-		lat.setDaemon(true);
-		lat.start();
+		Threads.start(cm.getThreadFactory(), lat, true);
 	}
 
 	LocalPortForwarder(ChannelManager cm, InetSocketAddress addr, String host_to_connect, int port_to_connect)
@@ -51,8 +51,7 @@ public class LocalPortForwarder
 		this.port_to_connect = port_to_connect;
 
 		lat = new LocalAcceptThread(cm, addr, host_to_connect, port_to_connect);
-		lat.setDaemon(true);
-		lat.start();
+		Threads.start(cm.getThreadFactory(), lat, true);
 	}
 
 	/**
@@ -64,6 +63,17 @@ public class LocalPortForwarder
 		return (InetSocketAddress) lat.getServerSocket().getLocalSocketAddress();
 	}
 
+	/**
+	 * Set the scheduling priority of the data sent through the forwarded connections
+	 * that are accepted from now on, see {@link Session#setPriority(int)}.
+	 *
+	 * @param priority one of the {@link ChannelPriority} constants
+	 */
+	public void setPriority(int priority)
+	{
+		lat.setChannelPriority(priority);
+	}
+
 	/**
 	 * Stop TCP/IP forwarding of newly arriving connections.
 	 * 
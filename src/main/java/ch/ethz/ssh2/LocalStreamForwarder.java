@@ -57,6 +57,17 @@ public class LocalStreamForwarder
 		return cn.getStdinStream();
 	}
 
+	/**
+	 * Set the scheduling priority of the data sent through this forwarding,
+	 * see {@link Session#setPriority(int)}.
+	 *
+	 * @param priority one of the {@link ChannelPriority} constants
+	 */
+	public void setPriority(int priority)
+	{
+		cn.setPriority(priority);
+	}
+
 	/**
 	 * Close the underlying SSH forwarding channel and free up resources.
 	 * You can also use this method to force the shutdown of the underlying
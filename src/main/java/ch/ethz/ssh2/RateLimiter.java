@@ -0,0 +1,153 @@
+package ch.ethz.ssh2;
+
+import java.io.InterruptedIOException;
+
+/**
+ * A token bucket that limits the rate of channel data.
+ * <p>
+ * A limiter can be attached to a {@link Connection} (all its channels), to a
+ * single {@link Session} or to a {@link SFTPv3Client}. The upload limiter is
+ * applied to outgoing channel data, the download limiter to the window
+ * adjustments that allow the peer to send more data. The same instance may be
+ * shared by several connections or sessions, they then share the rate.
+ * <p>
+ * The bucket holds up to <code>burst</code> bytes and is refilled with
+ * <code>bytesPerSecond</code>. Requests larger than the bucket wait until it
+ * is full and leave a debt, so the average rate is kept exactly. Waiting
+ * requests are served in the order they arrived.
+ *
+ * @see Connection#setRateLimiters(RateLimiter, RateLimiter)
+ * @see Session#setRateLimiters(RateLimiter, RateLimiter)
+ * @see SFTPv3Client#setRateLimiters(RateLimiter, RateLimiter)
+ *
+ * @version $Id$
+ */
+public class RateLimiter
+{
+	private long bytesPerSecond;
+	private long burst;
+
+	/* May become negative (debt, or reserved by waiting requests) */
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * Creates a limiter that allows a burst of one second worth of data.
+	 *
+	 * @param bytesPerSecond the rate
+	 */
+	public RateLimiter(long bytesPerSecond)
+	{
+		this(bytesPerSecond, bytesPerSecond);
+	}
+
+	/**
+	 * @param bytesPerSecond the rate
+	 * @param burst the size of the bucket in bytes
+	 */
+	public RateLimiter(long bytesPerSecond, long burst)
+	{
+		this.lastRefill = nanoTime();
+
+		setRate(bytesPerSecond, burst);
+
+		this.tokens = burst;
+	}
+
+	/**
+	 * Changes the rate. Threads that are currently waiting keep the waiting time
+	 * computed with the old rate.
+	 *
+	 * @param bytesPerSecond the rate
+	 * @param burst the size of the bucket in bytes
+	 */
+	public synchronized void setRate(long bytesPerSecond, long burst)
+	{
+		if (bytesPerSecond <= 0)
+			throw new IllegalArgumentException("bytesPerSecond must be positive");
+
+		if (burst <= 0)
+			throw new IllegalArgumentException("burst must be positive");
+
+		refill();
+
+		this.bytesPerSecond = bytesPerSecond;
+		this.burst = burst;
+
+		if (tokens > burst)
+			tokens = burst;
+	}
+
+	public synchronized long getBytesPerSecond()
+	{
+		return bytesPerSecond;
+	}
+
+	/* The clock and the way to wait, replaced by the tests */
+
+	long nanoTime()
+	{
+		return System.nanoTime();
+	}
+
+	void sleep(long nanos) throws InterruptedException
+	{
+		Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+	}
+
+	private void refill()
+	{
+		long now = nanoTime();
+
+		tokens = Math.min(burst, tokens + (now - lastRefill) * (bytesPerSecond / 1e9));
+		lastRefill = now;
+	}
+
+	/**
+	 * Waits until <code>len</code> bytes may pass.
+	 *
+	 * @param len number of bytes
+	 * @throws InterruptedIOException if the thread is interrupted while waiting,
+	 *                                the bytes have not been taken then
+	 */
+	public void acquire(int len) throws InterruptedIOException
+	{
+		long waitNanos;
+
+		synchronized (this)
+		{
+			refill();
+
+			/* Large requests only wait for a full bucket, the rest is paid off later */
+
+			double needed = Math.min(len, burst);
+
+			waitNanos = (tokens >= needed) ? 0 : (long) Math.ceil((needed - tokens) * 1e9 / bytesPerSecond);
+
+			/*
+			 * Taken right away, so that later requests wait behind this one. The
+			 * wait happens without the lock.
+			 */
+
+			tokens -= len;
+		}
+
+		if (waitNanos == 0)
+			return;
+
+		try
+		{
+			sleep(waitNanos);
+		}
+		catch (InterruptedException e)
+		{
+			synchronized (this)
+			{
+				refill();
+
+				tokens = Math.min(burst, tokens + len);
+			}
+			throw new InterruptedIOException(e.getMessage());
+		}
+	}
+}
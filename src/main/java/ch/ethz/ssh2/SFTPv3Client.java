@@ -185,6 +185,18 @@ public class SFTPv3Client
 		return charsetName;
 	}
 
+	/**
+	 * Limit the bandwidth of this SFTP session, e.g., to keep a background transfer
+	 * from saturating the link. See {@link Session#setRateLimiters(RateLimiter, RateLimiter)}.
+	 *
+	 * @param upload limits the data written to files, may be <code>null</code>
+	 * @param download limits the data read from files, may be <code>null</code>
+	 */
+	public void setRateLimiters(RateLimiter upload, RateLimiter download)
+	{
+		sess.setRateLimiters(upload, download);
+	}
+
 	private void checkHandleValidAndOpen(SFTPv3FileHandle handle) throws IOException
 	{
 		if (handle.client != this)
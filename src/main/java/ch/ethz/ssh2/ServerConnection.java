@@ -10,13 +10,16 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
 
 import ch.ethz.ssh2.crypto.CryptoWishList;
 import ch.ethz.ssh2.crypto.PEMDecoder;
 import ch.ethz.ssh2.server.ServerConnectionState;
 import ch.ethz.ssh2.signature.DSAPrivateKey;
 import ch.ethz.ssh2.signature.RSAPrivateKey;
+import ch.ethz.ssh2.transport.NioTransportEngine;
 import ch.ethz.ssh2.transport.ServerTransportManager;
+import ch.ethz.ssh2.transport.TransportManager;
 
 /**
  * A server-side SSH-2 connection.
@@ -126,7 +129,10 @@ public class ServerConnection
 			if ((state.next_dsa_key == null) && (state.next_rsa_key == null))
 				throw new IllegalStateException("Neither a RSA nor a DSA host key has been specified!");
 
-			state.tm = new ServerTransportManager(state.s);
+			state.tm = new ServerTransportManager(state.s, state.engine);
+			state.tm.setThreadFactory(state.threadFactory);
+			state.tm.setMaxPacketSize(state.maxPacketSize);
+			state.tm.setRekeyLimits(state.rekeyMaxBytes, state.rekeyMaxSeconds);
 		}
 
 		state.tm.connect(state);
@@ -195,6 +201,112 @@ public class ServerConnection
 		return state.tm.getConnectionInfo(1);
 	}
 
+	/**
+	 * Serve this connection with the given {@link NioTransportEngine} instead of a dedicated
+	 * receive thread. Must be called before {@link #connect()}. The socket passed to the
+	 * constructor must have been obtained from a <code>SocketChannel</code> (e.g., accepted
+	 * by a <code>ServerSocketChannel</code>).
+	 *
+	 * @param engine the engine, or <code>null</code> to use the default threading model
+	 */
+	public synchronized void setTransportEngine(NioTransportEngine engine)
+	{
+		if ((engine != null) && (state.s.getChannel() == null))
+			throw new IllegalArgumentException("The socket has no associated SocketChannel.");
+
+		synchronized (state)
+		{
+			if (state.tm != null)
+				throw new IllegalStateException("The initial handshake has already been started.");
+
+			state.engine = engine;
+		}
+	}
+
+	/**
+	 * Use the given factory for all threads that are created on behalf of this connection
+	 * (receive thread, asynchronous replies, sessions and port forwarding). The factory
+	 * decides on the daemon status of the threads. Must be called before {@link #connect()}.
+	 *
+	 * @param factory the factory, or <code>null</code> for plain threads
+	 */
+	public synchronized void setThreadFactory(ThreadFactory factory)
+	{
+		synchronized (state)
+		{
+			if (state.tm != null)
+				throw new IllegalStateException("The initial handshake has already been started.");
+
+			state.threadFactory = factory;
+		}
+	}
+
+	/**
+	 * Set the flow control window policy for the channels of this connection.
+	 * Must be called before {@link #connect()}. The default is a fixed window
+	 * of 192 KB.
+	 *
+	 * @param policy the window policy
+	 */
+	public synchronized void setChannelWindowPolicy(ChannelWindowPolicy policy)
+	{
+		if (policy == null)
+			throw new IllegalArgumentException("policy must not be null");
+
+		synchronized (state)
+		{
+			if (state.tm != null)
+				throw new IllegalStateException("The initial handshake has already been started.");
+
+			state.windowPolicy = policy;
+		}
+	}
+
+	/**
+	 * Set the maximum size of the data packets that the client may send on channels
+	 * (advertised in the channel open messages). Larger packets reduce the per-packet
+	 * overhead of bulk uploads. Must be called before {@link #connect()}. The default
+	 * is 32768 bytes, the maximum is 262144 bytes.
+	 *
+	 * @param size the maximum packet size in bytes
+	 */
+	public synchronized void setMaxPacketSize(int size)
+	{
+		if ((size < 1024) || (size > TransportManager.MAX_PACKET_SIZE))
+			throw new IllegalArgumentException("The maximum packet size must be between 1024 and "
+					+ TransportManager.MAX_PACKET_SIZE + " bytes.");
+
+		synchronized (state)
+		{
+			if (state.tm != null)
+				throw new IllegalStateException("The initial handshake has already been started.");
+
+			state.maxPacketSize = size;
+		}
+	}
+
+	/**
+	 * Set the limits for automatic key exchanges, see
+	 * {@link Connection#setRekeyLimits(long, long)}. May be called at any time.
+	 *
+	 * @param maxBytes the traffic limit, 0 for the RFC 4344 limit of the cipher
+	 * @param maxSeconds the age limit, 0 for no limit
+	 */
+	public synchronized void setRekeyLimits(long maxBytes, long maxSeconds)
+	{
+		if ((maxBytes < 0) || (maxSeconds < 0))
+			throw new IllegalArgumentException("Rekey limits must not be negative");
+
+		synchronized (state)
+		{
+			state.rekeyMaxBytes = maxBytes;
+			state.rekeyMaxSeconds = maxSeconds;
+
+			if (state.tm != null)
+				state.tm.setRekeyLimits(maxBytes, maxSeconds);
+		}
+	}
+
 	/**
 	 * Change the current DSA hostkey. Either a DSA or RSA private key must be set for a successful handshake with
 	 * the client.
@@ -336,6 +336,45 @@ public class Session
 		cm.requestSubSystem(cn, name);
 	}
 
+	/**
+	 * Change the flow control window policy of this session. By default, the policy
+	 * of the connection is used (see {@link Connection#setChannelWindowPolicy(ChannelWindowPolicy)}).
+	 * An auto-tuning policy makes sense for bulk downloads over links with high latency.
+	 *
+	 * @param policy the window policy
+	 * @throws IOException
+	 */
+	public void setWindowPolicy(ChannelWindowPolicy policy) throws IOException
+	{
+		cm.setWindowPolicy(cn, policy);
+	}
+
+	/**
+	 * Set the scheduling priority of the data sent on this session, relative to the
+	 * other channels of the connection. For example, an interactive shell should not
+	 * have to wait while a bulk upload runs on the same connection.
+	 *
+	 * @param priority one of the {@link ChannelPriority} constants, the default is
+	 *                 {@link ChannelPriority#NORMAL}
+	 */
+	public void setPriority(int priority)
+	{
+		cn.setPriority(priority);
+	}
+
+	/**
+	 * Limit the bandwidth of this session, in addition to the limits of the
+	 * connection (see {@link Connection#setRateLimiters(RateLimiter, RateLimiter)}).
+	 * Pass <code>null</code> to remove a limit.
+	 *
+	 * @param upload limits the data written to stdin, may be <code>null</code>
+	 * @param download limits the data read from stdout and stderr, may be <code>null</code>
+	 */
+	public void setRateLimiters(RateLimiter upload, RateLimiter download)
+	{
+		cn.setRateLimiters(upload, download);
+	}
+
 	public int getState()
 	{
 		return cn.getState();
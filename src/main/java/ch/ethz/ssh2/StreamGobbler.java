@@ -7,6 +7,9 @@ package ch.ethz.ssh2;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadFactory;
+
+import ch.ethz.ssh2.util.Threads;
 
 /**
  * A <code>StreamGobbler</code> is an InputStream that uses an internal worker
@@ -38,9 +41,8 @@ import java.io.InterruptedIOException;
 
 public class StreamGobbler extends InputStream
 {
-	class GobblerThread extends Thread
+	class GobblerThread implements Runnable
 	{
-		@Override
 		public void run()
 		{
 			byte[] buff = new byte[8192];
@@ -120,11 +122,18 @@ public class StreamGobbler extends InputStream
 	private int write_pos = 0;
 
 	public StreamGobbler(InputStream is)
+	{
+		this(is, null);
+	}
+
+	/**
+	 * @param is the stream to consume
+	 * @param factory used to create the worker thread, <code>null</code> for a plain daemon thread
+	 */
+	public StreamGobbler(InputStream is, ThreadFactory factory)
 	{
 		this.is = is;
-		GobblerThread t = new GobblerThread();
-		t.setDaemon(true);
-		t.start();
+		Threads.start(factory, new GobblerThread(), true);
 	}
 
 	@Override
@@ -4,6 +4,11 @@
  */
 package ch.ethz.ssh2.channel;
 
+import ch.ethz.ssh2.ChannelPriority;
+import ch.ethz.ssh2.RateLimiter;
+import ch.ethz.ssh2.ChannelWindowPolicy;
+import ch.ethz.ssh2.transport.TransportManager;
+
 /**
  * Channel.
  *
@@ -56,6 +61,13 @@ public class Channel
 	final ChannelInputStream stdoutStream;
 	final ChannelInputStream stderrStream;
 
+	// See ChannelPriority, can always be read and written
+	volatile int priority = ChannelPriority.NORMAL;
+
+	// Rate limiters of this channel (null if unlimited), can always be read and written
+	volatile RateLimiter uploadLimiter;
+	volatile RateLimiter downloadLimiter;
+
 	// In case this channel belongs to a server-side session.
 	ServerSessionImpl ss;
 
@@ -104,6 +116,14 @@ public class Channel
 
 	final byte[] msgWindowAdjust = new byte[9];
 
+	/* Header of outgoing SSH_MSG_CHANNEL_DATA messages, same rules as above */
+
+	final byte[] msgDataHeader = new byte[9];
+
+	/* Scheduling state of the data sent on this channel, see TransportManager.takeBatch() */
+
+	final TransportManager.OutboundChannel outbound = new TransportManager.OutboundChannel();
+
 	// If you access (read or write) any of the following fields, then you have
 	// to synchronize on the channel.
 
@@ -118,18 +138,30 @@ public class Channel
 	int failedCounter = 0;
 
 	int localWindow = 0; /* locally, we use a small window, < 2^31 */
+
+	/* Already added to localWindow, but not yet sent to the peer */
+	int pendingWindowAdjust = 0;
 	long remoteWindow = 0; /* long for readable  2^32 - 1 window support */
 
 	int localMaxPacketSize = -1;
 	int remoteMaxPacketSize = -1;
 
-	final byte[] stdoutBuffer = new byte[CHANNEL_BUFFER_SIZE];
-	final byte[] stderrBuffer = new byte[CHANNEL_BUFFER_SIZE];
+	/*
+	 * The current window size, i.e., the maximum amount of buffered data. At least twice the
+	 * local maximum packet size. Changed by the tuner if the window policy is auto-tuning.
+	 */
+	int bufferSize;
 
-	int stdoutReadpos = 0;
-	int stdoutWritepos = 0;
-	int stderrReadpos = 0;
-	int stderrWritepos = 0;
+	/* Never null, also measures the drain rate for early window updates */
+	WindowTuner tuner;
+
+	/* See ChannelWindowPolicy */
+	int windowUpdateThreshold;
+	boolean earlyWindowUpdates;
+
+	/* Hold at most bufferSize bytes (guaranteed by the local window) */
+	final ChannelBuffer stdoutBuffer = new ChannelBuffer();
+	final ChannelBuffer stderrBuffer = new ChannelBuffer();
 
 	boolean EOF = false;
 
@@ -153,16 +185,69 @@ public class Channel
 	{
 		this.cm = cm;
 
-		this.localWindow = CHANNEL_BUFFER_SIZE;
-		this.localMaxPacketSize = 32 * 1024;
+		this.localMaxPacketSize = cm.getLocalMaxPacketSize();
+
+		setWindowPolicy(cm.getWindowPolicy());
+
+		this.localWindow = bufferSize;
 
 		this.stdinStream = new ChannelOutputStream(this);
 		this.stdoutStream = new ChannelInputStream(this, false);
 		this.stderrStream = new ChannelInputStream(this, true);
 	}
 
+	/**
+	 * Must be called while holding the lock on the channel (or from the constructor).
+	 * The already granted window is not taken back, a smaller window size only has an
+	 * effect once the peer has used up the window.
+	 */
+	void setWindowPolicy(ChannelWindowPolicy policy)
+	{
+		/* Room for two packets, so that the peer can go on sending while one is being consumed */
+
+		int minSize = Math.max(policy.getInitialWindowSize(), 2 * localMaxPacketSize);
+
+		if (policy.isAutoTuning())
+		{
+			tuner = new WindowTuner(minSize, policy.getMaxWindowSize());
+
+			if (bufferSize < minSize)
+				bufferSize = minSize;
+			else if (bufferSize > tuner.getMaxSize())
+				bufferSize = tuner.getMaxSize();
+		}
+		else
+		{
+			tuner = new WindowTuner(minSize, minSize);
+			bufferSize = minSize;
+		}
+
+		windowUpdateThreshold = policy.getWindowUpdateThreshold();
+		earlyWindowUpdates = policy.isEarlyWindowUpdates();
+	}
+
 	/* Methods to allow access from classes outside of this package */
 
+	static void checkPriority(int priority)
+	{
+		if ((priority != ChannelPriority.BULK) && (priority != ChannelPriority.NORMAL)
+				&& (priority != ChannelPriority.INTERACTIVE))
+			throw new IllegalArgumentException("Unknown channel priority " + priority);
+	}
+
+	public void setPriority(int priority)
+	{
+		checkPriority(priority);
+
+		this.priority = priority;
+	}
+
+	public void setRateLimiters(RateLimiter upload, RateLimiter download)
+	{
+		this.uploadLimiter = upload;
+		this.downloadLimiter = download;
+	}
+
 	public ChannelInputStream getStderrStream()
 	{
 		return stderrStream;
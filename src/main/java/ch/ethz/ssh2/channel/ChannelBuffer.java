@@ -0,0 +1,244 @@
+package ch.ethz.ssh2.channel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The receive buffer of one channel stream (stdout or stderr), organized as a ring.
+ * <p>
+ * The backing array is taken from the {@link ChannelBufferPool} when data arrives,
+ * replaced by a larger one if needed, and given back as soon as all data has been
+ * consumed or the channel is closed locally (see {@link #free()}). Reading never
+ * moves the remaining data.
+ * <p>
+ * All methods must be called while holding the lock on the channel.
+ *
+ * @version $Id$
+ */
+final class ChannelBuffer
+{
+	private byte[] buf;
+	private int start = 0;
+	private int count = 0;
+
+	/* Set while a reader accesses the array without holding the channel lock */
+	private boolean pinned = false;
+
+	/* Space after the data that the receiving thread is filling without holding the channel lock */
+	private int reserved = 0;
+
+	int available()
+	{
+		return count;
+	}
+
+	/**
+	 * @return the number of bytes stored or reserved
+	 */
+	int used()
+	{
+		return count + reserved;
+	}
+
+	/**
+	 * Reserves room for <code>len</code> bytes after the data. They are written without
+	 * holding the channel lock (starting at {@link #writePosition()}, wrapping to offset
+	 * 0 after the end of {@link #array()}) and are added by {@link #commit()}.
+	 * Until then readers do not see them, so data that fails authentication after it
+	 * has been decrypted into the buffer is never read; {@link #cancel()} drops it.
+	 */
+	void reserve(int len)
+	{
+		if ((buf == null) || (buf.length - count < len))
+			grow(count + len);
+
+		reserved = len;
+	}
+
+	/**
+	 * @return offset in {@link #array()} where the next byte is written
+	 */
+	int writePosition()
+	{
+		int end = start + count;
+
+		return (end >= buf.length) ? end - buf.length : end;
+	}
+
+	void commit()
+	{
+		/* Discarded by free() while the data was being received */
+
+		if (buf != null)
+			count += reserved;
+
+		reserved = 0;
+	}
+
+	void cancel()
+	{
+		reserved = 0;
+
+		if (count == 0)
+			release();
+	}
+
+	/**
+	 * Appends data, the buffer grows if necessary. The caller is responsible for not
+	 * exceeding the channel's buffer size (this is guaranteed by the window).
+	 */
+	void write(byte[] src, int off, int len)
+	{
+		if (len == 0)
+			return;
+
+		if ((buf == null) || (buf.length - count < len))
+			grow(count + len);
+
+		int end = start + count;
+
+		if (end >= buf.length)
+			end -= buf.length;
+
+		int first = Math.min(len, buf.length - end);
+
+		System.arraycopy(src, off, buf, end, first);
+		System.arraycopy(src, off + first, buf, 0, len - first);
+
+		count += len;
+	}
+
+	private void grow(int needed)
+	{
+		/* Double the size, buffers beyond the largest pool size class are allocated exactly */
+
+		if (buf != null)
+			needed = (int) Math.max(needed, Math.min(Integer.MAX_VALUE, 2L * buf.length));
+
+		byte[] tmp = ChannelBufferPool.acquire(needed);
+
+		if (buf != null)
+		{
+			/* Unwrap the content to offset 0 of the new array */
+
+			int first = Math.min(count, buf.length - start);
+
+			System.arraycopy(buf, start, tmp, 0, first);
+			System.arraycopy(buf, 0, tmp, first, count - first);
+
+			/* A pinned array is still being read from, leave it to the GC */
+
+			if (pinned == false)
+				ChannelBufferPool.release(buf);
+		}
+
+		buf = tmp;
+		start = 0;
+	}
+
+	int read(byte[] dst, int off, int len)
+	{
+		int n = Math.min(len, count);
+		int first = Math.min(n, buf.length - start);
+
+		System.arraycopy(buf, start, dst, off, first);
+		System.arraycopy(buf, 0, dst, off + first, n - first);
+
+		skip(n);
+
+		return n;
+	}
+
+	int read(ByteBuffer dst)
+	{
+		int n = Math.min(dst.remaining(), count);
+		int first = Math.min(n, buf.length - start);
+
+		dst.put(buf, start, first);
+		dst.put(buf, 0, n - first);
+
+		skip(n);
+
+		return n;
+	}
+
+	/**
+	 * @return the backing array, only valid while there is data
+	 */
+	byte[] array()
+	{
+		return buf;
+	}
+
+	/**
+	 * @return offset of the first unread byte in {@link #array()}
+	 */
+	int readPosition()
+	{
+		return start;
+	}
+
+	/**
+	 * @return number of unread bytes that are stored contiguously starting at {@link #readPosition()}
+	 */
+	int contiguousAvailable()
+	{
+		return (count == 0) ? 0 : Math.min(count, buf.length - start);
+	}
+
+	/**
+	 * While pinned, the backing array is not returned to the pool, even if it is replaced.
+	 */
+	void setPinned(boolean pinned)
+	{
+		this.pinned = pinned;
+
+		if ((pinned == false) && (count == 0))
+			release();
+	}
+
+	/**
+	 * Consumes data.
+	 */
+	void skip(int n)
+	{
+		/* Discarded by free() while a reader was copying the data */
+
+		if (buf == null)
+			return;
+
+		count -= n;
+		start += n;
+
+		if (start >= buf.length)
+			start -= buf.length;
+
+		if (count == 0)
+			release();
+	}
+
+	/**
+	 * Discards the data that has not been read and gives the array back to the pool.
+	 * An array that is pinned by a reader or reserved by the receiving thread is left
+	 * to the GC instead, the pending {@link #skip(int)} or {@link #commit()} then has
+	 * no effect.
+	 */
+	void free()
+	{
+		if ((pinned == false) && (reserved == 0))
+			ChannelBufferPool.release(buf);
+
+		buf = null;
+		start = 0;
+		count = 0;
+	}
+
+	private void release()
+	{
+		if ((pinned == false) && (reserved == 0) && (buf != null))
+		{
+			ChannelBufferPool.release(buf);
+			buf = null;
+			start = 0;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package ch.ethz.ssh2.channel;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of channel receive buffers, shared by all connections.
+ * <p>
+ * Buffers come in power of two size classes (8 KB up to 512 KB). Channels
+ * only take a buffer once data arrives and hand it back as soon as it has
+ * been consumed, so idle channels do not hold any buffer memory. Each size
+ * class keeps at most <code>MAX_POOLED_BYTES</code> worth of free buffers,
+ * the rest is left to the garbage collector.
+ *
+ * @version $Id$
+ */
+final class ChannelBufferPool
+{
+	private static final int MIN_SHIFT = 13; /* 8 KB */
+	private static final int MAX_SHIFT = 19; /* 512 KB */
+
+	private static final int MAX_POOLED_BYTES = 4 * 1024 * 1024;
+
+	private static final SizeClass[] classes = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+
+	static
+	{
+		for (int i = 0; i < classes.length; i++)
+		{
+			classes[i] = new SizeClass(1 << (MIN_SHIFT + i));
+		}
+	}
+
+	private static final class SizeClass
+	{
+		final int size;
+		final int maxPooled;
+		final Queue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+		final AtomicInteger pooled = new AtomicInteger();
+
+		SizeClass(int size)
+		{
+			this.size = size;
+			this.maxPooled = MAX_POOLED_BYTES / size;
+		}
+	}
+
+	private ChannelBufferPool()
+	{
+	}
+
+	private static SizeClass getClass(int len)
+	{
+		if (len > (1 << MAX_SHIFT))
+			return null;
+
+		int shift = MIN_SHIFT;
+
+		while ((1 << shift) < len)
+			shift++;
+
+		return classes[shift - MIN_SHIFT];
+	}
+
+	/**
+	 * @param minSize the number of bytes needed
+	 * @return a buffer of at least <code>minSize</code> bytes
+	 */
+	static byte[] acquire(int minSize)
+	{
+		SizeClass sc = getClass(minSize);
+
+		if (sc == null)
+			return new byte[minSize];
+
+		byte[] buf = sc.free.poll();
+
+		if (buf == null)
+			return new byte[sc.size];
+
+		sc.pooled.decrementAndGet();
+
+		return buf;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The caller must not use it anymore.
+	 *
+	 * @param buf a buffer obtained from {@link #acquire(int)}, may be <code>null</code>
+	 */
+	static void release(byte[] buf)
+	{
+		if (buf == null)
+			return;
+
+		SizeClass sc = getClass(buf.length);
+
+		if ((sc == null) || (sc.size != buf.length))
+			return;
+
+		if (sc.pooled.incrementAndGet() > sc.maxPooled)
+		{
+			sc.pooled.decrementAndGet();
+			return;
+		}
+
+		sc.free.add(buf);
+	}
+}
@@ -6,6 +6,8 @@ package ch.ethz.ssh2.channel;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * ChannelInputStream.
@@ -71,6 +73,54 @@ public final class ChannelInputStream extends InputStream
 		return ret;
 	}
 
+	/**
+	 * Reads available data into a buffer, blocks if no data is available.
+	 *
+	 * @param dst the buffer to fill (from its position up to its limit)
+	 * @return number of bytes read, -1 on EOF
+	 * @throws IOException
+	 */
+	public int read(ByteBuffer dst) throws IOException
+	{
+		if (dst.remaining() == 0)
+			return 0;
+
+		if (isEOF)
+			return -1;
+
+		int ret = c.cm.getChannelData(c, extendedFlag, dst);
+
+		if (ret == -1)
+		{
+			isEOF = true;
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Reads all data up to EOF and writes it to the given stream. The data is
+	 * written directly out of the channel's receive buffer.
+	 *
+	 * @param out the destination
+	 * @return number of bytes transferred
+	 * @throws IOException
+	 */
+	public long transferTo(OutputStream out) throws IOException
+	{
+		if (out == null)
+			throw new NullPointerException();
+
+		if (isEOF)
+			return 0;
+
+		long ret = c.cm.transferChannelData(c, extendedFlag, out);
+
+		isEOF = true;
+
+		return ret;
+	}
+
 	@Override
 	public int read(byte[] b) throws IOException
 	{
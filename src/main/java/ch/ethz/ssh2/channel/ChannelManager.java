@@ -7,20 +7,29 @@ package ch.ethz.ssh2.channel;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.ThreadFactory;
 
 import ch.ethz.ssh2.ChannelCondition;
+import ch.ethz.ssh2.ChannelWindowPolicy;
 import ch.ethz.ssh2.PtySettings;
+import ch.ethz.ssh2.RateLimiter;
 import ch.ethz.ssh2.ServerConnectionCallback;
 import ch.ethz.ssh2.ServerSessionCallback;
 import ch.ethz.ssh2.log.Logger;
 import ch.ethz.ssh2.packets.*;
 import ch.ethz.ssh2.server.ServerConnectionState;
+import ch.ethz.ssh2.transport.ChannelDataSink;
 import ch.ethz.ssh2.transport.MessageHandler;
 import ch.ethz.ssh2.transport.TransportManager;
+import ch.ethz.ssh2.util.Threads;
 
 /**
  * ChannelManager. Please read the comments in Channel.java.
@@ -30,7 +39,7 @@ import ch.ethz.ssh2.transport.TransportManager;
  * @author Christian Plattner
  * @version $Id$
  */
-public class ChannelManager implements MessageHandler
+public class ChannelManager implements MessageHandler, ChannelDataSink
 {
 	private static final Logger log = Logger.getLogger(ChannelManager.class);
 
@@ -39,9 +48,31 @@ public class ChannelManager implements MessageHandler
 
 	private final Map<String, X11ServerData> x11_magic_cookies = new HashMap<String, X11ServerData>();
 
-	private final List<Channel> channels = new ArrayList<Channel>();
-	private int nextLocalChannel = 100;
+	/* Local channel IDs start here, the table slot is (ID - FIRST_LOCAL_ID) */
+	private static final int FIRST_LOCAL_ID = 100;
+
+	/* Window adjustments that are not yet due are only sent if at least 1/8 of the window is free */
+	private static final int MIN_INCREMENT_FRACTION = 8;
+
+	/*
+	 * Indexed by table slot. Modified (and replaced when it has to grow) only while
+	 * holding the channelsLock, but read without locking by the receive thread.
+	 * Slots of removed channels are reused, so that the IDs stay small.
+	 */
+	private volatile AtomicReferenceArray<Channel> channelTable = new AtomicReferenceArray<Channel>(16);
+	private final BitSet usedSlots = new BitSet();
+
+	/* Also protects the shutdown flag and the global request counters */
+	private final Object channelsLock = new Object();
+
 	private boolean shutdown = false;
+
+	private volatile ChannelWindowPolicy windowPolicy = ChannelWindowPolicy.DEFAULT;
+
+	/* Shared by all channels, null if unlimited */
+	private volatile RateLimiter uploadLimiter;
+	private volatile RateLimiter downloadLimiter;
+
 	private int globalSuccessCounter = 0;
 	private int globalFailedCounter = 0;
 
@@ -60,6 +91,7 @@ public class ChannelManager implements MessageHandler
 		this.server_state = null;
 		this.tm = tm;
 		tm.registerMessageHandler(this, 80, 100);
+		tm.setChannelDataSink(this);
 	}
 
 	/**
@@ -70,46 +102,179 @@ public class ChannelManager implements MessageHandler
 	{
 		this.server_state = state;
 		this.tm = state.tm;
+		this.windowPolicy = state.windowPolicy;
 		tm.registerMessageHandler(this, 80, 100);
+		tm.setChannelDataSink(this);
 	}
 
-	private Channel getChannel(int id)
+	/**
+	 * @return the window policy for new channels
+	 */
+	public ChannelWindowPolicy getWindowPolicy()
 	{
-		synchronized (channels)
+		return windowPolicy;
+	}
+
+	/**
+	 * @param policy the window policy for channels that are opened from now on
+	 */
+	public void setWindowPolicy(ChannelWindowPolicy policy)
+	{
+		if (policy == null)
+			throw new IllegalArgumentException("policy must not be null");
+
+		windowPolicy = policy;
+	}
+
+	/**
+	 * Limits the rate of all channels together. A channel may have its own limiters in addition.
+	 *
+	 * @param upload limits the channel data that is sent, may be <code>null</code>
+	 * @param download limits the window adjustments that are sent, may be <code>null</code>
+	 */
+	public void setRateLimiters(RateLimiter upload, RateLimiter download)
+	{
+		uploadLimiter = upload;
+		downloadLimiter = download;
+	}
+
+	/**
+	 * Waits until the channel's and the connection's limiters allow <code>len</code> bytes.
+	 */
+	private static void throttle(RateLimiter channelLimiter, RateLimiter connectionLimiter, int len)
+			throws IOException
+	{
+		if (channelLimiter != null)
+			channelLimiter.acquire(len);
+
+		if (connectionLimiter != null)
+			connectionLimiter.acquire(len);
+	}
+
+	/**
+	 * Waits until the upload limiters allow the data for which remote window has been
+	 * reserved. If the wait is interrupted, the window is given back, otherwise it would
+	 * be lost for good.
+	 */
+	private void throttleUpload(Channel c, int thislen) throws IOException
+	{
+		try
+		{
+			throttle(c.uploadLimiter, uploadLimiter, thislen);
+		}
+		catch (IOException e)
 		{
-			for (Channel c : channels)
+			synchronized (c)
 			{
-				if (c.localID == id)
-					return c;
+				c.remoteWindow += thislen;
+				c.notifyAll();
 			}
+			throw e;
 		}
-		return null;
 	}
 
-	private void removeChannel(int id)
+	/**
+	 * Changes the window policy of an existing channel.
+	 */
+	public void setWindowPolicy(Channel c, ChannelWindowPolicy policy) throws IOException
+	{
+		if (policy == null)
+			throw new IllegalArgumentException("policy must not be null");
+
+		int increment;
+
+		synchronized (c)
+		{
+			c.setWindowPolicy(policy);
+
+			/* A larger window can be granted right away */
+
+			increment = updateLocalWindow(c, 0);
+		}
+
+		if (increment > 0)
+			sendWindowAdjust(c);
+	}
+
+	/**
+	 * @return the maximum packet size that is advertised for new channels
+	 */
+	int getLocalMaxPacketSize()
+	{
+		return tm.getMaxPacketSize();
+	}
+
+	private Channel getChannel(int id)
 	{
-		synchronized (channels)
+		AtomicReferenceArray<Channel> table = channelTable;
+
+		int slot = id - FIRST_LOCAL_ID;
+
+		if ((slot < 0) || (slot >= table.length()))
+			return null;
+
+		return table.get(slot);
+	}
+
+	private void removeChannel(Channel c)
+	{
+		synchronized (channelsLock)
 		{
-			for (Channel c : channels)
+			int slot = c.localID - FIRST_LOCAL_ID;
+
+			/* The ID may already belong to another channel if this one was removed before */
+
+			if ((slot >= 0) && (slot < channelTable.length()) && (channelTable.get(slot) == c))
 			{
-				if (c.localID == id)
-				{
-					channels.remove(c);
-					break;
-				}
+				channelTable.set(slot, null);
+				usedSlots.clear(slot);
 			}
 		}
 	}
 
 	private int addChannel(Channel c)
 	{
-		synchronized (channels)
+		synchronized (channelsLock)
 		{
-			channels.add(c);
-			return nextLocalChannel++;
+			int slot = usedSlots.nextClearBit(0);
+
+			AtomicReferenceArray<Channel> table = channelTable;
+
+			if (slot >= table.length())
+			{
+				AtomicReferenceArray<Channel> bigger = new AtomicReferenceArray<Channel>(2 * table.length());
+
+				for (int i = 0; i < table.length(); i++)
+					bigger.set(i, table.get(i));
+
+				channelTable = table = bigger;
+			}
+
+			usedSlots.set(slot);
+			table.set(slot, c);
+
+			return FIRST_LOCAL_ID + slot;
 		}
 	}
 
+	/**
+	 * @return a snapshot of all channels in the table
+	 */
+	private List<Channel> getChannels()
+	{
+		List<Channel> list = new ArrayList<Channel>();
+
+		synchronized (channelsLock)
+		{
+			for (int slot = usedSlots.nextSetBit(0); slot >= 0; slot = usedSlots.nextSetBit(slot + 1))
+			{
+				list.add(channelTable.get(slot));
+			}
+		}
+
+		return list;
+	}
+
 	private void waitUntilChannelOpen(Channel c) throws IOException
 	{
 		synchronized (c)
@@ -128,7 +293,7 @@ public class ChannelManager implements MessageHandler
 
 			if (c.state != Channel.STATE_OPEN)
 			{
-				removeChannel(c.localID);
+				removeChannel(c);
 
 				String detail = c.getReasonClosed();
 
@@ -142,7 +307,7 @@ public class ChannelManager implements MessageHandler
 
 	private void waitForGlobalSuccessOrFailure() throws IOException
 	{
-        synchronized (channels)
+        synchronized (channelsLock)
         {
             while ((globalSuccessCounter == 0) && (globalFailedCounter == 0))
             {
@@ -153,7 +318,7 @@ public class ChannelManager implements MessageHandler
 
                 try
                 {
-                    channels.wait();
+                    channelsLock.wait();
                 }
                 catch (InterruptedException e)
                 {
@@ -231,12 +396,7 @@ public class ChannelManager implements MessageHandler
 
 		log.debug("Closing all X11 channels for the given fake cookie");
 
-		List<Channel> channel_copy = new ArrayList<Channel>();
-
-		synchronized (channels)
-		{
-			channel_copy.addAll(channels);
-		}
+		List<Channel> channel_copy = getChannels();
 
 		for (Channel c : channel_copy)
 		{
@@ -270,12 +430,7 @@ public class ChannelManager implements MessageHandler
 	{
 		log.debug("Closing all channels");
 
-		List<Channel> channel_copy = new ArrayList<Channel>();
-
-		synchronized (channels)
-		{
-			channel_copy.addAll(channels);
-		}
+		List<Channel> channel_copy = getChannels();
 
 		for (Channel c : channel_copy)
 		{
@@ -299,6 +454,11 @@ public class ChannelManager implements MessageHandler
 			{
 				c.state = Channel.STATE_CLOSED;
 				c.EOF = true;
+
+				/* Closed locally, nobody reads the remaining data anymore */
+
+				c.stdoutBuffer.free();
+				c.stderrBuffer.free();
 			}
 
 			c.setReasonClosed(reason);
@@ -350,6 +510,16 @@ public class ChannelManager implements MessageHandler
 		log.debug("Sent EOF (Channel " + c.localID + "/" + c.remoteID + ")");
 	}
 
+	/**
+	 * Waits until the data that was queued during a key exchange has been sent.
+	 *
+	 * @throws IOException if the connection failed before (the data is lost)
+	 */
+	public void flush() throws IOException
+	{
+		tm.flushDeferred();
+	}
+
 	public void sendOpenConfirmation(Channel c) throws IOException
 	{
 		PacketChannelOpenConfirmation pcoc = null;
@@ -372,80 +542,131 @@ public class ChannelManager implements MessageHandler
 		}
 	}
 
-	public void sendData(Channel c, byte[] buffer, int pos, int len) throws IOException
+	/**
+	 * Waits until the peer's window is open and takes as much of it as fits into one packet.
+	 *
+	 * @return the number of bytes that may be sent in the next packet
+	 */
+	private int reserveRemoteWindow(Channel c, int len) throws IOException
 	{
-        while (len > 0)
+        synchronized (c)
         {
-            int thislen = 0;
-            byte[] msg;
-
-            synchronized (c)
+            while (true)
             {
-                while (true)
-                {
-                    if (c.state == Channel.STATE_CLOSED)
-                        throw new ChannelClosedException("SSH channel is closed. (" + c.getReasonClosed() + ")");
+                if (c.state == Channel.STATE_CLOSED)
+                    throw new ChannelClosedException("SSH channel is closed. (" + c.getReasonClosed() + ")");
 
-                    if (c.state != Channel.STATE_OPEN)
-                        throw new ChannelClosedException("SSH channel in strange state. (" + c.state + ")");
+                if (c.state != Channel.STATE_OPEN)
+                    throw new ChannelClosedException("SSH channel in strange state. (" + c.state + ")");
 
-                    if (c.remoteWindow != 0)
-                        break;
+                if (c.remoteWindow != 0)
+                    break;
 
-                    try
-                    {
-                        c.wait();
-                    }
-                    catch (InterruptedException e)
-                    {
-                        throw new InterruptedIOException(e.getMessage());
-                    }
+                try
+                {
+                    c.wait();
                 }
+                catch (InterruptedException e)
+                {
+                    throw new InterruptedIOException(e.getMessage());
+                }
+            }
 
-                /* len > 0, no sign extension can happen when comparing */
+            /* len > 0, no sign extension can happen when comparing */
 
-                thislen = (c.remoteWindow >= len) ? len : (int) c.remoteWindow;
+            int thislen = (c.remoteWindow >= len) ? len : (int) c.remoteWindow;
 
-                int estimatedMaxDataLen = c.remoteMaxPacketSize - (tm.getPacketOverheadEstimate() + 9);
+            int estimatedMaxDataLen = c.remoteMaxPacketSize - (tm.getPacketOverheadEstimate(c.remoteMaxPacketSize) + 9);
 
-                /* The worst case scenario =) a true bottleneck */
+            /* The worst case scenario =) a true bottleneck */
 
-                if (estimatedMaxDataLen <= 0)
-                {
-                    estimatedMaxDataLen = 1;
-                }
+            if (estimatedMaxDataLen <= 0)
+            {
+                estimatedMaxDataLen = 1;
+            }
 
-                if (thislen > estimatedMaxDataLen)
-                    thislen = estimatedMaxDataLen;
+            if (thislen > estimatedMaxDataLen)
+                thislen = estimatedMaxDataLen;
 
-                c.remoteWindow -= thislen;
+            c.remoteWindow -= thislen;
 
-                msg = new byte[1 + 8 + thislen];
+            return thislen;
+        }
+	}
 
-                msg[0] = Packets.SSH_MSG_CHANNEL_DATA;
-                msg[1] = (byte) (c.remoteID >> 24);
-                msg[2] = (byte) (c.remoteID >> 16);
-                msg[3] = (byte) (c.remoteID >> 8);
-                msg[4] = (byte) (c.remoteID);
-                msg[5] = (byte) (thislen >> 24);
-                msg[6] = (byte) (thislen >> 16);
-                msg[7] = (byte) (thislen >> 8);
-                msg[8] = (byte) (thislen);
+	/**
+	 * Fills in the reusable SSH_MSG_CHANNEL_DATA header. Must be called while holding
+	 * the channelSendLock.
+	 */
+	private byte[] getDataHeader(Channel c, int thislen) throws IOException
+	{
+		if (c.closeMessageSent == true)
+			throw new ChannelClosedException("SSH channel is closed. (" + c.getReasonClosed() + ")");
+
+		byte[] msg = c.msgDataHeader;
+
+		msg[0] = Packets.SSH_MSG_CHANNEL_DATA;
+		msg[1] = (byte) (c.remoteID >> 24);
+		msg[2] = (byte) (c.remoteID >> 16);
+		msg[3] = (byte) (c.remoteID >> 8);
+		msg[4] = (byte) (c.remoteID);
+		msg[5] = (byte) (thislen >> 24);
+		msg[6] = (byte) (thislen >> 16);
+		msg[7] = (byte) (thislen >> 8);
+		msg[8] = (byte) (thislen);
+
+		return msg;
+	}
 
-                System.arraycopy(buffer, pos, msg, 9, thislen);
-            }
+	public void sendData(Channel c, byte[] buffer, int pos, int len) throws IOException
+	{
+		/* The data is copied from the caller's array directly into the packet */
 
-            synchronized (c.channelSendLock)
-            {
-                if (c.closeMessageSent == true)
-                    throw new ChannelClosedException("SSH channel is closed. (" + c.getReasonClosed() + ")");
+		while (len > 0)
+		{
+			int thislen = reserveRemoteWindow(c, len);
 
-                tm.sendMessage(msg);
-            }
+			throttleUpload(c, thislen);
 
-            pos += thislen;
-            len -= thislen;
-        }
+			synchronized (c.channelSendLock)
+			{
+				tm.sendMessage(getDataHeader(c, thislen), buffer, pos, thislen, c.outbound, c.priority, getPiggybackWindowAdjust(c));
+			}
+
+			pos += thislen;
+			len -= thislen;
+		}
+	}
+
+	/**
+	 * Sends all remaining bytes of the buffer, its position is advanced accordingly.
+	 */
+	public void sendData(Channel c, ByteBuffer buffer) throws IOException
+	{
+		if (buffer.hasArray())
+		{
+			int len = buffer.remaining();
+
+			sendData(c, buffer.array(), buffer.arrayOffset() + buffer.position(), len);
+
+			buffer.position(buffer.position() + len);
+
+			return;
+		}
+
+		while (buffer.hasRemaining())
+		{
+			int thislen = reserveRemoteWindow(c, buffer.remaining());
+
+			throttleUpload(c, thislen);
+
+			synchronized (c.channelSendLock)
+			{
+				tm.sendMessage(getDataHeader(c, thislen), buffer, thislen, c.outbound, c.priority, getPiggybackWindowAdjust(c));
+			}
+
+			buffer.position(buffer.position() + thislen);
+		}
 	}
 
 	public int requestGlobalForward(String bindAddress, int bindPort, String targetAddress, int targetPort)
@@ -470,7 +691,7 @@ public class ChannelManager implements MessageHandler
 			remoteForwardings.put(key, rfd);
 		}
 
-		synchronized (channels)
+		synchronized (channelsLock)
 		{
 			globalSuccessCounter = globalFailedCounter = 0;
 		}
@@ -508,7 +729,7 @@ public class ChannelManager implements MessageHandler
 				throw new IOException("Sorry, there is no known remote forwarding for remote port " + bindPort);
 		}
 
-		synchronized (channels)
+		synchronized (channelsLock)
 		{
 			globalSuccessCounter = globalFailedCounter = 0;
 		}
@@ -529,6 +750,14 @@ public class ChannelManager implements MessageHandler
 		}
 	}
 
+	/**
+	 * @return the factory for threads created on behalf of this connection, may be <code>null</code>
+	 */
+	public ThreadFactory getThreadFactory()
+	{
+		return tm.getThreadFactory();
+	}
+
 	public void registerThread(IChannelWorkerThread thr) throws IOException
 	{
 		synchronized (listenerThreads)
@@ -818,8 +1047,9 @@ public class ChannelManager implements MessageHandler
 
 			c.localWindow -= len;
 
-			System.arraycopy(msg, 13, c.stderrBuffer, c.stderrWritepos, len);
-			c.stderrWritepos += len;
+			c.stderrBuffer.write(msg, 13, len);
+
+			c.tuner.dataReceived(len, c.localWindow, c.localMaxPacketSize);
 
 			c.notifyAll();
 		}
@@ -844,8 +1074,8 @@ public class ChannelManager implements MessageHandler
             {
                 int current_cond = 0;
 
-                int stdoutAvail = c.stdoutWritepos - c.stdoutReadpos;
-                int stderrAvail = c.stderrWritepos - c.stderrReadpos;
+                int stdoutAvail = c.stdoutBuffer.available();
+                int stderrAvail = c.stderrBuffer.available();
 
                 if (stdoutAvail > 0)
                     current_cond = current_cond | ChannelCondition.STDOUT_DATA;
@@ -906,134 +1136,480 @@ public class ChannelManager implements MessageHandler
 			int avail;
 
 			if (extended)
-                avail = c.stderrWritepos - c.stderrReadpos;
+				avail = c.stderrBuffer.available();
 			else
-                avail = c.stdoutWritepos - c.stdoutReadpos;
+				avail = c.stdoutBuffer.available();
 
 			return ((avail > 0) ? avail : (c.EOF ? -1 : 0));
 		}
 	}
 
+	/**
+	 * Waits until data is available or no more data can arrive. Must be called while
+	 * holding the lock on the channel.
+	 *
+	 * @return the buffer of the requested stream, or <code>null</code> on EOF
+	 */
+	private ChannelBuffer waitForData(Channel c, boolean extended) throws IOException
+	{
+		ChannelBuffer cb = extended ? c.stderrBuffer : c.stdoutBuffer;
+
+		while (true)
+		{
+			/*
+			 * Data available? We have to return remaining data even if the
+			 * channel is already closed.
+			 */
+
+			if (cb.available() != 0)
+				return cb;
+
+			/* Do not wait if more data will never arrive (EOF or CLOSED) */
+
+			if ((c.EOF) || (c.state != Channel.STATE_OPEN))
+				return null;
+
+			try
+			{
+				c.wait();
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Opens the local window again once enough data has been consumed (see
+	 * {@link #windowUpdateDue(Channel, int)}). Must be called while holding the lock
+	 * on the channel.
+	 *
+	 * @param consumed number of bytes that have just been read
+	 * @return the increment that has been added to the pending window adjust, or 0. If
+	 *         not 0, {@link #sendWindowAdjust(Channel)} has to be called after releasing the lock.
+	 */
+	private int updateLocalWindow(Channel c, int consumed)
+	{
+		if (c.state != Channel.STATE_OPEN)
+			return 0;
+
+		int buffered = c.stdoutBuffer.available() + c.stderrBuffer.available();
+
+		c.bufferSize = c.tuner.dataConsumed(consumed, c.bufferSize, buffered);
+
+		int increment = getFreeWindow(c);
+
+		/* If the window has shrunk, the granted window cannot be taken back */
+
+		if ((increment <= 0) || (windowUpdateDue(c, increment) == false))
+			return 0;
+
+		return grantWindow(c, increment);
+	}
+
+	/**
+	 * @return the amount of buffer space that has not been granted to the peer yet
+	 */
+	private static int getFreeWindow(Channel c)
+	{
+		int minFreeSpace = Math.min(c.bufferSize - c.stdoutBuffer.used(), c.bufferSize - c.stderrBuffer.used());
+
+		return minFreeSpace - c.localWindow;
+	}
+
+	/**
+	 * A window adjust is due if the peer has used up the part of the window given by the
+	 * policy's threshold, or (early window updates) if it would run out of window within
+	 * one round trip at the rate the application reads, i.e., before the adjust arrives.
+	 * Early adjustments must be worth a message.
+	 */
+	private static boolean windowUpdateDue(Channel c, int increment)
+	{
+		if (c.localWindow * 100L < (long) c.bufferSize * c.windowUpdateThreshold)
+			return true;
+
+		if ((c.earlyWindowUpdates == false) || (increment < c.bufferSize / MIN_INCREMENT_FRACTION))
+			return false;
+
+		return c.localWindow < c.tuner.drainedPerRoundTrip() + c.localMaxPacketSize;
+	}
+
+	private static int grantWindow(Channel c, int increment)
+	{
+		c.tuner.windowAdjusted(c.localWindow, c.localMaxPacketSize);
+
+		c.localWindow += increment;
+		c.pendingWindowAdjust += increment;
+
+		return increment;
+	}
+
+	private static void fillWindowAdjust(byte[] msg, int remoteID, int increment)
+	{
+		msg[0] = Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST;
+		msg[1] = (byte) (remoteID >> 24);
+		msg[2] = (byte) (remoteID >> 16);
+		msg[3] = (byte) (remoteID >> 8);
+		msg[4] = (byte) (remoteID);
+		msg[5] = (byte) (increment >> 24);
+		msg[6] = (byte) (increment >> 16);
+		msg[7] = (byte) (increment >> 8);
+		msg[8] = (byte) (increment);
+	}
+
+	/**
+	 * Sends the pending window adjust of the channel, if it has not been sent by another
+	 * thread yet (e.g., one reading stderr while this one reads stdout, or one sending data).
+	 */
+	private void sendWindowAdjust(Channel c) throws IOException
+	{
+		int increment;
+		int remoteID;
+		int localID;
+
+		synchronized (c)
+		{
+			increment = c.pendingWindowAdjust;
+			c.pendingWindowAdjust = 0;
+			remoteID = c.remoteID;
+			localID = c.localID;
+		}
+
+		if (increment == 0)
+			return;
+
+		/*
+		 * The peer cannot send more than we allow, so delaying the window adjust
+		 * limits the download rate. The reading thread is the one that waits.
+		 */
+
+		try
+		{
+			throttle(c.downloadLimiter, downloadLimiter, increment);
+		}
+		catch (IOException e)
+		{
+			/* Interrupted: localWindow already counts it, the next read sends it */
+
+			synchronized (c)
+			{
+				c.pendingWindowAdjust += increment;
+			}
+			throw e;
+		}
+
+		log.debug("Sending SSH_MSG_CHANNEL_WINDOW_ADJUST (channel " + localID + ", " + increment + ")");
+
+		synchronized (c.channelSendLock)
+		{
+			byte[] msg = c.msgWindowAdjust;
+
+			fillWindowAdjust(msg, remoteID, increment);
+
+			try
+			{
+				if (c.closeMessageSent == false)
+					tm.sendMessage(msg);
+			}
+			catch (InterruptedIOException e)
+			{
+				/* The message has not been sent, it stays pending like above */
+
+				synchronized (c)
+				{
+					c.pendingWindowAdjust += increment;
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Sends the window adjust for data that has been consumed by a read. If waiting for
+	 * the download limiters is interrupted, the data has been read nevertheless: the
+	 * adjust stays pending and the interrupt status is set again.
+	 */
+	private void sendWindowAdjustAfterRead(Channel c) throws IOException
+	{
+		try
+		{
+			sendWindowAdjust(c);
+		}
+		catch (InterruptedIOException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Sends a window adjust that is still pending after an interrupted wait for the
+	 * download limiters. Called before a read may block, the peer may not be able to
+	 * send anything before it gets the adjust.
+	 */
+	private void sendPendingWindowAdjust(Channel c) throws IOException
+	{
+		boolean pending;
+
+		synchronized (c)
+		{
+			pending = (c.pendingWindowAdjust != 0);
+		}
+
+		if (pending)
+			sendWindowAdjust(c);
+	}
+
+	/**
+	 * Takes the pending window adjust, plus any free space worth a message, so that it can
+	 * be sent along with channel data. Must be called while holding the channelSendLock.
+	 *
+	 * @return a SSH_MSG_CHANNEL_WINDOW_ADJUST message, or <code>null</code>
+	 */
+	private byte[] getPiggybackWindowAdjust(Channel c)
+	{
+		/* A rate limited download must wait in the reading thread, not here */
+
+		if ((c.downloadLimiter != null) || (downloadLimiter != null) || c.closeMessageSent)
+			return null;
+
+		int increment;
+		int remoteID;
+
+		synchronized (c)
+		{
+			if (c.state == Channel.STATE_OPEN)
+			{
+				int free = getFreeWindow(c);
+
+				if (free >= c.bufferSize / MIN_INCREMENT_FRACTION)
+					grantWindow(c, free);
+			}
+
+			increment = c.pendingWindowAdjust;
+			c.pendingWindowAdjust = 0;
+			remoteID = c.remoteID;
+		}
+
+		if (increment == 0)
+			return null;
+
+		log.debug("Sending SSH_MSG_CHANNEL_WINDOW_ADJUST with data (channel " + c.localID + ", " + increment + ")");
+
+		/* The caller holds the channelSendLock. The transport copies the message if it is still
+		 * queued when the sending of the data is interrupted. */
+
+		fillWindowAdjust(c.msgWindowAdjust, remoteID, increment);
+
+		return c.msgWindowAdjust;
+	}
+
 	public int getChannelData(Channel c, boolean extended, byte[] target, int off, int len) throws IOException
 	{
-        int copylen = 0;
-        int increment = 0;
-        int remoteID = 0;
-        int localID = 0;
+		int copylen;
+		int increment;
 
-        synchronized (c)
-        {
-            int stdoutAvail = 0;
-            int stderrAvail = 0;
+		sendPendingWindowAdjust(c);
 
-            while (true)
-            {
-                /*
-                 * Data available? We have to return remaining data even if the
-                 * channel is already closed.
-                 */
+		synchronized (c)
+		{
+			ChannelBuffer cb = waitForData(c, extended);
 
-                stdoutAvail = c.stdoutWritepos - c.stdoutReadpos;
-                stderrAvail = c.stderrWritepos - c.stderrReadpos;
+			if (cb == null)
+				return -1;
 
-                if ((!extended) && (stdoutAvail != 0))
-                    break;
+			copylen = cb.read(target, off, len);
 
-                if ((extended) && (stderrAvail != 0))
-                    break;
+			increment = updateLocalWindow(c, copylen);
+		}
 
-                /* Do not wait if more data will never arrive (EOF or CLOSED) */
+		if (increment > 0)
+			sendWindowAdjustAfterRead(c);
 
-                if ((c.EOF) || (c.state != Channel.STATE_OPEN))
-                    return -1;
+		return copylen;
+	}
 
-                try
-                {
-                    c.wait();
-                }
-                catch (InterruptedException e)
-                {
-                    throw new InterruptedIOException(e.getMessage());
-                }
-            }
+	public int getChannelData(Channel c, boolean extended, ByteBuffer dst) throws IOException
+	{
+		int copylen;
+		int increment;
 
-            /* OK, there is some data. Return it. */
+		sendPendingWindowAdjust(c);
 
-            if (!extended)
-            {
-                copylen = (stdoutAvail > len) ? len : stdoutAvail;
-                System.arraycopy(c.stdoutBuffer, c.stdoutReadpos, target, off, copylen);
-                c.stdoutReadpos += copylen;
+		synchronized (c)
+		{
+			ChannelBuffer cb = waitForData(c, extended);
 
-                if (c.stdoutReadpos != c.stdoutWritepos)
+			if (cb == null)
+				return -1;
 
-                    System.arraycopy(c.stdoutBuffer, c.stdoutReadpos, c.stdoutBuffer, 0, c.stdoutWritepos
-                            - c.stdoutReadpos);
+			copylen = cb.read(dst);
 
-                c.stdoutWritepos -= c.stdoutReadpos;
-                c.stdoutReadpos = 0;
-            }
-            else
-            {
-                copylen = (stderrAvail > len) ? len : stderrAvail;
-                System.arraycopy(c.stderrBuffer, c.stderrReadpos, target, off, copylen);
-                c.stderrReadpos += copylen;
+			increment = updateLocalWindow(c, copylen);
+		}
 
-                if (c.stderrReadpos != c.stderrWritepos)
+		if (increment > 0)
+			sendWindowAdjustAfterRead(c);
 
-                    System.arraycopy(c.stderrBuffer, c.stderrReadpos, c.stderrBuffer, 0, c.stderrWritepos
-                            - c.stderrReadpos);
+		return copylen;
+	}
 
-                c.stderrWritepos -= c.stderrReadpos;
-                c.stderrReadpos = 0;
-            }
+	/**
+	 * Writes all data until EOF to the given stream. The data is written directly
+	 * out of the channel buffer, the channel lock is not held while writing.
+	 *
+	 * @return number of bytes transferred
+	 */
+	public long transferChannelData(Channel c, boolean extended, OutputStream out) throws IOException
+	{
+		long total = 0;
 
-            if (c.state != Channel.STATE_OPEN)
-                return copylen;
+		while (true)
+		{
+			ChannelBuffer cb;
+			byte[] buf;
+			int pos;
+			int len;
 
-            if (c.localWindow < ((Channel.CHANNEL_BUFFER_SIZE + 1) / 2))
-            {
-                int minFreeSpace = Math.min(Channel.CHANNEL_BUFFER_SIZE - c.stdoutWritepos,
-                        Channel.CHANNEL_BUFFER_SIZE - c.stderrWritepos);
+			sendPendingWindowAdjust(c);
 
-                increment = minFreeSpace - c.localWindow;
-                c.localWindow = minFreeSpace;
-            }
+			synchronized (c)
+			{
+				cb = waitForData(c, extended);
 
-            remoteID = c.remoteID; /* read while holding the lock */
-            localID = c.localID; /* read while holding the lock */
-        }
+				if (cb == null)
+					return total;
 
-        /*
-         * If a consumer reads stdout and stdin in parallel, we may end up with
-         * sending two msgWindowAdjust messages. Luckily, it
-         * does not matter in which order they arrive at the server.
-         */
+				buf = cb.array();
+				pos = cb.readPosition();
+				len = cb.contiguousAvailable();
 
-        if (increment > 0)
-        {
-            log.debug("Sending SSH_MSG_CHANNEL_WINDOW_ADJUST (channel " + localID + ", " + increment + ")");
+				cb.setPinned(true);
+			}
 
-            synchronized (c.channelSendLock)
-            {
-                byte[] msg = c.msgWindowAdjust;
-
-                msg[0] = Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST;
-                msg[1] = (byte) (remoteID >> 24);
-                msg[2] = (byte) (remoteID >> 16);
-                msg[3] = (byte) (remoteID >> 8);
-                msg[4] = (byte) (remoteID);
-                msg[5] = (byte) (increment >> 24);
-                msg[6] = (byte) (increment >> 16);
-                msg[7] = (byte) (increment >> 8);
-                msg[8] = (byte) (increment);
-
-                if (c.closeMessageSent == false)
-                    tm.sendMessage(msg);
-            }
-        }
+			int increment = 0;
+			boolean written = false;
+
+			try
+			{
+				out.write(buf, pos, len);
+				written = true;
+			}
+			finally
+			{
+				synchronized (c)
+				{
+					cb.setPinned(false);
 
-        return copylen;
+					if (written)
+					{
+						cb.skip(len);
+						increment = updateLocalWindow(c, len);
+					}
+				}
+			}
+
+			if (increment > 0)
+				sendWindowAdjustAfterRead(c);
+
+			total += len;
+		}
+	}
+
+	/* The SSH_MSG_CHANNEL_DATA message that is being received directly, only used by the receiving thread */
+
+	private Channel directDataChannel;
+	private int directDataLength;
+	private byte[] directDataArray;
+	private int directDataOffset;
+	private int directDataFirstLength;
+
+	public boolean beginData(int recipient, int len) throws IOException
+	{
+		Channel c = getChannel(recipient);
+
+		/* Anything unusual is left to msgChannelData() */
+
+		if (c == null)
+			return false;
+
+		synchronized (c)
+		{
+			if ((c.state != Channel.STATE_OPEN) || (c.localWindow < len))
+				return false;
+
+			c.localWindow -= len;
+
+			ChannelBuffer cb = c.stdoutBuffer;
+
+			cb.reserve(len);
+
+			directDataArray = cb.array();
+			directDataOffset = cb.writePosition();
+			directDataFirstLength = Math.min(len, directDataArray.length - directDataOffset);
+		}
+
+		directDataChannel = c;
+		directDataLength = len;
+
+		return true;
+	}
+
+	public byte[] getDataArray()
+	{
+		return directDataArray;
+	}
+
+	public int getDataOffset()
+	{
+		return directDataOffset;
+	}
+
+	public int getDataFirstLength()
+	{
+		return directDataFirstLength;
+	}
+
+	public void commitData() throws IOException
+	{
+		Channel c = directDataChannel;
+		int len = directDataLength;
+
+		directDataChannel = null;
+		directDataArray = null;
+
+		if (log.isDebugEnabled())
+			log.debug("Got SSH_MSG_CHANNEL_DATA (channel " + c.localID + ", " + len + ")");
+
+		synchronized (c)
+		{
+			c.stdoutBuffer.commit();
+
+			c.tuner.dataReceived(len, c.localWindow, c.localMaxPacketSize);
+
+			c.notifyAll();
+		}
+	}
+
+	public void abortData()
+	{
+		Channel c = directDataChannel;
+		int len = directDataLength;
+
+		directDataChannel = null;
+		directDataArray = null;
+
+		synchronized (c)
+		{
+			c.stdoutBuffer.cancel();
+
+			/*
+			 * The data never arrived, so the peer may still send it. beginData() did not
+			 * grant anything, the free space (and with it pendingWindowAdjust) is as before.
+			 */
+
+			c.localWindow += len;
+		}
 	}
 
 	public void msgChannelData(byte[] msg, int msglen) throws IOException
@@ -1068,8 +1644,9 @@ public class ChannelManager implements MessageHandler
 
 			c.localWindow -= len;
 
-			System.arraycopy(msg, 9, c.stdoutBuffer, c.stdoutWritepos, len);
-			c.stdoutWritepos += len;
+			c.stdoutBuffer.write(msg, 9, len);
+
+			c.tuner.dataReceived(len, c.localWindow, c.localMaxPacketSize);
 
 			c.notifyAll();
 		}
@@ -1153,8 +1730,7 @@ public class ChannelManager implements MessageHandler
 			 */
 
 			RemoteX11AcceptThread rxat = new RemoteX11AcceptThread(c, remoteOriginatorAddress, remoteOriginatorPort);
-			rxat.setDaemon(true);
-			rxat.start();
+			Threads.start(getThreadFactory(), rxat, true);
 
 			return;
 		}
@@ -1205,8 +1781,7 @@ public class ChannelManager implements MessageHandler
 			RemoteAcceptThread rat = new RemoteAcceptThread(c, remoteConnectedAddress, remoteConnectedPort,
 					remoteOriginatorAddress, remoteOriginatorPort, rfd.targetAddress, rfd.targetPort);
 
-			rat.setDaemon(true);
-			rat.start();
+			Threads.start(getThreadFactory(), rat, true);
 
 			return;
 		}
@@ -1264,8 +1839,7 @@ public class ChannelManager implements MessageHandler
 	/* Starts the given runnable in a foreground (non-daemon) thread */
 	private void runAsync(Runnable r)
 	{
-		Thread t = new Thread(r);
-		t.start();		
+		Threads.start(getThreadFactory(), r, false);
 	}
 	
 	public void msgChannelRequest(byte[] msg, int msglen) throws IOException
@@ -1499,7 +2073,7 @@ public class ChannelManager implements MessageHandler
 			c.setReasonClosed("Close requested by remote");
 			c.closeMessageRecv = true;
 
-			removeChannel(c.localID);
+			removeChannel(c);
 
 			c.notifyAll();
 		}
@@ -1663,10 +2237,10 @@ public class ChannelManager implements MessageHandler
 
 	public void msgGlobalSuccess() throws IOException
 	{
-		synchronized (channels)
+		synchronized (channelsLock)
 		{
 			globalSuccessCounter++;
-			channels.notifyAll();
+			channelsLock.notifyAll();
 		}
 
 		log.debug("Got SSH_MSG_REQUEST_SUCCESS");
@@ -1674,10 +2248,10 @@ public class ChannelManager implements MessageHandler
 
 	public void msgGlobalFailure() throws IOException
 	{
-		synchronized (channels)
+		synchronized (channelsLock)
 		{
 			globalFailedCounter++;
-			channels.notifyAll();
+			channelsLock.notifyAll();
 		}
 
 		log.debug("Got SSH_MSG_REQUEST_FAILURE");
@@ -1699,11 +2273,11 @@ public class ChannelManager implements MessageHandler
 				listenerThreadsAllowed = false;
 			}
 
-			synchronized (channels)
+			synchronized (channelsLock)
 			{
 				shutdown = true;
 
-				for (Channel c : channels)
+				for (Channel c : getChannels())
 				{
 					synchronized (c)
 					{
@@ -1720,8 +2294,9 @@ public class ChannelManager implements MessageHandler
 					}
 				}
 
-				channels.clear();
-				channels.notifyAll(); /* Notify global response waiters */
+				channelTable = new AtomicReferenceArray<Channel>(16);
+				usedSlots.clear();
+				channelsLock.notifyAll(); /* Notify global response waiters */
 				return;
 			}
 		}
@@ -6,6 +6,7 @@ package ch.ethz.ssh2.channel;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * ChannelOutputStream.
@@ -41,16 +42,24 @@ public final class ChannelOutputStream extends OutputStream
 		{
 			isClosed = true;
 			c.cm.sendEOF(c);
+			c.cm.flush();
 		}
 	}
 
+	/**
+	 * This stream is unbuffered, <code>write</code> returns once the data has been
+	 * handed to the socket. During a key exchange, the data may instead have been
+	 * copied and queued until the key exchange has finished. <code>flush</code> (and
+	 * <code>close</code>) wait for it, and throw an exception if the connection failed
+	 * before it could be sent.
+	 */
 	@Override
 	public void flush() throws IOException
 	{
 		if (isClosed)
 			throw new IOException("This OutputStream is closed.");
 
-		/* This is a no-op, since this stream is unbuffered */
+		c.cm.flush();
 	}
 
 	@Override
@@ -71,6 +80,25 @@ public final class ChannelOutputStream extends OutputStream
 		c.cm.sendData(c, b, off, len);
 	}
 
+	/**
+	 * Writes all remaining bytes of the buffer (from its position up to its limit),
+	 * the position is advanced accordingly. The data is copied directly into the
+	 * outgoing packets.
+	 *
+	 * @param src the data to send
+	 * @throws IOException
+	 */
+	public void write(ByteBuffer src) throws IOException
+	{
+		if (isClosed)
+			throw new IOException("This OutputStream is closed.");
+
+		if (src.remaining() == 0)
+			return;
+
+		c.cm.sendData(c, src);
+	}
+
 	@Override
 	public void write(byte[] b) throws IOException
 	{
@@ -9,18 +9,22 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 
+import ch.ethz.ssh2.ChannelPriority;
+
 /**
  * LocalAcceptThread.
  * 
  * @author Christian Plattner
  * @version 2.50, 03/15/10
  */
-public class LocalAcceptThread extends Thread implements IChannelWorkerThread
+public class LocalAcceptThread implements Runnable, IChannelWorkerThread
 {
 	ChannelManager cm;
 	String host_to_connect;
 	int port_to_connect;
 
+	volatile int priority = ChannelPriority.NORMAL;
+
 	final ServerSocket ss;
 
 	public LocalAcceptThread(ChannelManager cm, int local_port, String host_to_connect, int port_to_connect)
@@ -44,12 +48,22 @@ public class LocalAcceptThread extends Thread implements IChannelWorkerThread
 		ss.bind(localAddress);
 	}
 
+	/**
+	 * Sets the {@link ChannelPriority} of the channels opened for connections that are
+	 * accepted from now on (not the priority of the accepting thread).
+	 */
+	public void setChannelPriority(int priority)
+	{
+		Channel.checkPriority(priority);
+
+		this.priority = priority;
+	}
+
 	public ServerSocket getServerSocket()
 	{
 		return ss;
 	}
 	
-	@Override
 	public void run()
 	{
 		try
@@ -87,6 +101,8 @@ public class LocalAcceptThread extends Thread implements IChannelWorkerThread
 				cn = cm.openDirectTCPIPChannel(host_to_connect, port_to_connect, s.getInetAddress().getHostAddress(), s
 						.getPort());
 
+				cn.setPriority(priority);
+
 			}
 			catch (IOException e)
 			{
@@ -123,8 +139,6 @@ public class LocalAcceptThread extends Thread implements IChannelWorkerThread
 				continue;
 			}
 
-			r2l.setDaemon(true);
-			l2r.setDaemon(true);
 			r2l.start();
 			l2r.start();
 		}
@@ -15,7 +15,7 @@ import ch.ethz.ssh2.log.Logger;
  * @author Christian Plattner
  * @version $Id$
  */
-public class RemoteAcceptThread extends Thread
+public class RemoteAcceptThread implements Runnable
 {
 	private static final Logger log = Logger.getLogger(RemoteAcceptThread.class);
 
@@ -45,7 +45,6 @@ public class RemoteAcceptThread extends Thread
 				+ remoteOriginatorAddress + "/" + remoteOriginatorPort);
 	}
 
-	@Override
 	public void run()
 	{
 		try
@@ -61,20 +60,9 @@ public class RemoteAcceptThread extends Thread
 
 			/* No need to start two threads, one can be executed in the current thread */
 
-			r2l.setDaemon(true);
 			r2l.start();
 			l2r.run();
-
-			while (r2l.isAlive())
-			{
-				try
-				{
-					r2l.join();
-				}
-				catch (InterruptedException ignored)
-				{
-				}
-			}
+			r2l.join();
 
 			/* If the channel is already closed, then this is a no-op */
 
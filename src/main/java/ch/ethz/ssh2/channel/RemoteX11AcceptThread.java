@@ -18,7 +18,7 @@ import ch.ethz.ssh2.util.StringEncoder;
  * @author Christian Plattner
  * @version $Id$
  */
-public class RemoteX11AcceptThread extends Thread
+public class RemoteX11AcceptThread implements Runnable
 {
 	private static final Logger log = Logger.getLogger(RemoteX11AcceptThread.class);
 
@@ -36,7 +36,6 @@ public class RemoteX11AcceptThread extends Thread
 		this.remoteOriginatorPort = remoteOriginatorPort;
 	}
 
-	@Override
 	public void run()
 	{
 		try
@@ -202,20 +201,9 @@ public class RemoteX11AcceptThread extends Thread
 
 			/* No need to start two threads, one can be executed in the current thread */
 
-			r2l.setDaemon(true);
 			r2l.start();
 			l2r.run();
-
-			while (r2l.isAlive())
-			{
-				try
-				{
-					r2l.join();
-				}
-				catch (InterruptedException ignored)
-				{
-				}
-			}
+			r2l.join();
 
 			/* If the channel is already closed, then this is a no-op */
 
@@ -9,6 +9,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 
+import ch.ethz.ssh2.util.Threads;
+
 /**
  * A StreamForwarder forwards data between two given streams. 
  * If two StreamForwarder threads are used (one for each direction)
@@ -18,7 +20,7 @@ import java.net.Socket;
  * @author Christian Plattner
  * @version 2.50, 03/15/10
  */
-public class StreamForwarder extends Thread
+public class StreamForwarder implements Runnable
 {
 	OutputStream os;
 	InputStream is;
@@ -27,6 +29,7 @@ public class StreamForwarder extends Thread
 	StreamForwarder sibling;
 	Socket s;
 	String mode;
+	private Thread thread;
 
 	StreamForwarder(Channel c, StreamForwarder sibling, Socket s, InputStream is, OutputStream os, String mode)
 			throws IOException
@@ -39,7 +42,31 @@ public class StreamForwarder extends Thread
 		this.s = s;
 	}
 
-	@Override
+	/**
+	 * Runs this forwarder in a new thread.
+	 */
+	void start()
+	{
+		thread = Threads.start(c.cm.getThreadFactory(), this, true);
+	}
+
+	/**
+	 * Waits until a forwarder that was started with {@link #start()} has finished.
+	 */
+	void join()
+	{
+		while (thread.isAlive())
+		{
+			try
+			{
+				thread.join();
+			}
+			catch (InterruptedException ignored)
+			{
+			}
+		}
+	}
+
 	public void run()
 	{
 		try
@@ -83,16 +110,7 @@ public class StreamForwarder extends Thread
 
 			if (sibling != null)
 			{
-				while (sibling.isAlive())
-				{
-					try
-					{
-						sibling.join();
-					}
-					catch (InterruptedException ignored)
-					{
-					}
-				}
+				sibling.join();
 
 				try
 				{
@@ -0,0 +1,175 @@
+package ch.ethz.ssh2.channel;
+
+/**
+ * Adapts the local window of one channel to the bandwidth-delay product.
+ * <p>
+ * The round trip time is sampled whenever the peer had run out of window: the
+ * first byte beyond the old window can only arrive one round trip after the
+ * window adjust has been sent. The drain rate of the application is measured
+ * in epochs of (at least) one round trip.
+ * <p>
+ * At the end of an epoch, the window is doubled if the peer ran out of window
+ * while the application kept the buffer at most half full (i.e., the window was
+ * the bottleneck). It is halved if the heap is getting full, and reduced to twice
+ * the product of drain rate and round trip time if it has been much larger than
+ * that for a while (i.e., the application is the bottleneck).
+ * <p>
+ * The window size never changes if the minimum and maximum size are the same
+ * (i.e., the window policy is fixed), the measurements are also used to decide
+ * when to send window adjustments.
+ * <p>
+ * All methods must be called while holding the lock on the channel.
+ *
+ * @version $Id$
+ */
+final class WindowTuner
+{
+	private static final long MIN_EPOCH_NANOS = 10 * 1000 * 1000L;
+
+	/* Number of epochs without any stall before the window may shrink */
+	private static final int SHRINK_EPOCHS = 16;
+
+	private final int minSize;
+	private final int maxSize;
+
+	private long srtt = 0; /* smoothed round trip time in ns, 0 if unknown */
+
+	private long totalReceived = 0;
+	private long stallMarkBytes = 0;
+	private long stallMarkTime = 0;
+
+	private boolean exhausted = false;
+	private int quietEpochs = 0;
+
+	private long epochStart = System.nanoTime();
+	private long epochConsumed = 0;
+	private double drainRate = 0; /* bytes per ns */
+
+	WindowTuner(int minSize, int maxSize)
+	{
+		this.minSize = minSize;
+		this.maxSize = Math.max(minSize, maxSize);
+	}
+
+	int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * @return the number of bytes the application reads in one round trip, 0 if unknown
+	 */
+	long drainedPerRoundTrip()
+	{
+		return (long) (drainRate * srtt);
+	}
+
+	/**
+	 * Called after data has been received.
+	 *
+	 * @param len payload length
+	 * @param localWindow the remaining window
+	 * @param maxPacketSize the largest packet the peer may send
+	 */
+	void dataReceived(int len, int localWindow, int maxPacketSize)
+	{
+		totalReceived += len;
+
+		if ((stallMarkTime != 0) && (totalReceived > stallMarkBytes))
+		{
+			long sample = System.nanoTime() - stallMarkTime;
+
+			srtt = (srtt == 0) ? sample : (7 * srtt + sample) / 8;
+			stallMarkTime = 0;
+		}
+
+		if (localWindow < maxPacketSize)
+			exhausted = true;
+	}
+
+	/**
+	 * Called when a window adjust is about to be sent.
+	 *
+	 * @param oldWindow the remaining window before the adjust
+	 * @param maxPacketSize the largest packet the peer may send
+	 */
+	void windowAdjusted(int oldWindow, int maxPacketSize)
+	{
+		/* Only if the peer is stalled, otherwise the sample would include its sending time */
+
+		if ((stallMarkTime == 0) && (oldWindow < maxPacketSize))
+		{
+			stallMarkBytes = totalReceived + oldWindow;
+			stallMarkTime = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Called after the application has read data.
+	 *
+	 * @param n number of bytes consumed
+	 * @param size the current window size
+	 * @param buffered number of bytes that are still unread
+	 * @return the new window size
+	 */
+	int dataConsumed(int n, int size, int buffered)
+	{
+		epochConsumed += n;
+
+		long now = System.nanoTime();
+		long elapsed = now - epochStart;
+
+		if (elapsed < Math.max(srtt, MIN_EPOCH_NANOS))
+			return size;
+
+		double rate = (double) epochConsumed / elapsed;
+
+		drainRate = (drainRate == 0) ? rate : (3 * drainRate + rate) / 4;
+
+		epochStart = now;
+		epochConsumed = 0;
+
+		boolean stalled = exhausted;
+
+		exhausted = false;
+
+		if (memoryPressure())
+		{
+			quietEpochs = 0;
+			return Math.max(minSize, size / 2);
+		}
+
+		if (stalled)
+		{
+			quietEpochs = 0;
+
+			if ((buffered <= size / 2) && (size < maxSize))
+				return (int) Math.min(maxSize, 2L * size);
+
+			return size;
+		}
+
+		if ((++quietEpochs < SHRINK_EPOCHS) || (srtt == 0) || (size <= minSize))
+			return size;
+
+		quietEpochs = 0;
+
+		long bdp = (long) (drainRate * srtt);
+
+		if (4 * bdp < size)
+			return (int) Math.max(minSize, 2 * bdp);
+
+		return size;
+	}
+
+	private static boolean memoryPressure()
+	{
+		Runtime rt = Runtime.getRuntime();
+
+		/* Garbage counts as used, so only react when we are really close to the limit */
+
+		long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+
+		return free < rt.maxMemory() / 8;
+	}
+}
@@ -0,0 +1,100 @@
+package ch.ethz.ssh2.compression;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CompressionFactory.
+ *
+ * @version $Id$
+ */
+public class CompressionFactory
+{
+	static class CompressorEntry
+	{
+		String type;
+		boolean delayed;
+
+		public CompressorEntry(String type, boolean delayed)
+		{
+			this.type = type;
+			this.delayed = delayed;
+		}
+	}
+
+	private static final List<CompressorEntry> compressors = new ArrayList<CompressorEntry>();
+
+	static
+	{
+		/* Higher Priority First */
+		if (Zlib.isAvailable())
+		{
+			compressors.add(new CompressorEntry("zlib@openssh.com", true));
+			compressors.add(new CompressorEntry("zlib", false));
+		}
+		compressors.add(new CompressorEntry("none", false));
+	}
+
+	/**
+	 * @return all supported compression algorithms
+	 */
+	public static String[] getCompressorList()
+	{
+		List<String> list = new ArrayList<String>(compressors.size());
+		for (CompressorEntry ce : compressors)
+		{
+			list.add(ce.type);
+		}
+		return list.toArray(new String[compressors.size()]);
+	}
+
+	/**
+	 * @return the algorithms a client offers unless configured otherwise (no compression)
+	 */
+	public static String[] getDefaultCompressorList()
+	{
+		return new String[] { "none" };
+	}
+
+	public static void checkCompressorList(String[] compressorCandidates)
+	{
+		for (String compressorCandidate : compressorCandidates)
+		{
+			getEntry(compressorCandidate);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the compression must only be started
+	 *         after successful user authentication (zlib@openssh.com)
+	 */
+	public static boolean isDelayed(String type)
+	{
+		return getEntry(type).delayed;
+	}
+
+	/**
+	 * @return a new compression context, or <code>null</code> for "none"
+	 */
+	public static Compressor createCompressor(String type, boolean compress)
+	{
+		getEntry(type);
+
+		if (type.equals("none"))
+			return null;
+
+		return new Zlib(compress);
+	}
+
+	private static CompressorEntry getEntry(String type)
+	{
+		for (CompressorEntry ce : compressors)
+		{
+			if (ce.type.equals(type))
+			{
+				return ce;
+			}
+		}
+		throw new IllegalArgumentException("Unkown algorithm " + type);
+	}
+}
@@ -0,0 +1,45 @@
+package ch.ethz.ssh2.compression;
+
+import java.io.IOException;
+
+/**
+ * One direction of a transport compression stream. The context persists
+ * across packets, the output of each call is flushed so that it can be
+ * decoded on its own by the peer.
+ *
+ * @version $Id$
+ */
+public interface Compressor
+{
+	/**
+	 * Compress (or uncompress, depending on how the instance was created)
+	 * one packet payload.
+	 *
+	 * @param maxLength the maximum length of the result. Checked while the
+	 *            result is produced, so that a hostile peer cannot make the
+	 *            buffer grow beyond it.
+	 * @return the length of the result, which is stored at the beginning of {@link #getBuffer()}
+	 * @throws IOException if the result would be longer than <code>maxLength</code>
+	 *             or the input is corrupt
+	 */
+	public int transform(byte[] src, int off, int len, int maxLength) throws IOException;
+
+	/**
+	 * @return how much longer than <code>len</code> the compressed form of
+	 *         <code>len</code> bytes may be (incompressible data)
+	 */
+	public int getMaxExpansion(int len);
+
+	/**
+	 * @return the buffer holding the result of the last {@link #transform(byte[], int, int, int)}.
+	 *         Only valid until the next call.
+	 */
+	public byte[] getBuffer();
+
+	/**
+	 * Releases the (native) resources of the compression context. Called when
+	 * the context is replaced after a key exchange and when the connection is
+	 * closed. Afterwards {@link #transform(byte[], int, int, int)} fails.
+	 */
+	public void end();
+}
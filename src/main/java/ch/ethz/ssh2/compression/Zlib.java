@@ -0,0 +1,199 @@
+package ch.ethz.ssh2.compression;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib compression as defined in RFC 4253, also used for the delayed
+ * variant zlib@openssh.com. Every packet is terminated with a sync flush.
+ * <p>
+ * <code>Deflater.deflate(byte[], int, int, int)</code> (needed for the sync
+ * flush) is only available since Java 7, therefore it is looked up by
+ * reflection.
+ * <p>
+ * The native zlib memory is released by {@link #end()}, which may be called
+ * by another thread (e.g., when the connection is closed), hence the
+ * synchronization.
+ *
+ * @version $Id$
+ */
+public class Zlib implements Compressor
+{
+	private static final int SYNC_FLUSH = 2; /* Deflater.SYNC_FLUSH */
+
+	private static final Method deflateWithFlush;
+
+	static
+	{
+		Method m = null;
+
+		try
+		{
+			m = Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+		}
+		catch (Exception e)
+		{
+			m = null;
+		}
+
+		deflateWithFlush = m;
+	}
+
+	private final Deflater deflater;
+	private final Inflater inflater;
+
+	private byte[] buffer = new byte[4096];
+
+	private boolean ended = false;
+
+	/**
+	 * @return <code>true</code> if the JRE supports flushing a deflate stream
+	 */
+	public static boolean isAvailable()
+	{
+		return deflateWithFlush != null;
+	}
+
+	public Zlib(boolean compress)
+	{
+		if (compress)
+		{
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+			inflater = null;
+		}
+		else
+		{
+			deflater = null;
+			inflater = new Inflater();
+		}
+	}
+
+	/**
+	 * The bound of zlib's deflateBound(), plus the empty stored block of the
+	 * sync flush.
+	 */
+	public int getMaxExpansion(int len)
+	{
+		return (len >> 12) + (len >> 14) + (len >> 25) + 13 + 6 + 5;
+	}
+
+	public byte[] getBuffer()
+	{
+		return buffer;
+	}
+
+	private void growBuffer(int pos)
+	{
+		byte[] tmp = new byte[2 * buffer.length];
+		System.arraycopy(buffer, 0, tmp, 0, pos);
+		buffer = tmp;
+	}
+
+	public synchronized int transform(byte[] src, int off, int len, int maxLength) throws IOException
+	{
+		if (ended)
+			throw new IOException("The compression context has been released.");
+
+		int n = (deflater != null) ? compress(src, off, len, maxLength) : uncompress(src, off, len, maxLength);
+
+		if (n > maxLength)
+			throw new IOException("Transformed packet too large (more than " + maxLength + " bytes)");
+
+		return n;
+	}
+
+	public synchronized void end()
+	{
+		if (ended)
+			return;
+
+		ended = true;
+
+		if (deflater != null)
+			deflater.end();
+		else
+			inflater.end();
+	}
+
+	private int compress(byte[] src, int off, int len, int maxLength) throws IOException
+	{
+		deflater.setInput(src, off, len);
+
+		int pos = 0;
+
+		while (true)
+		{
+			int space = buffer.length - pos;
+			int n;
+
+			try
+			{
+				n = ((Integer) deflateWithFlush.invoke(deflater, buffer, pos, space, SYNC_FLUSH)).intValue();
+			}
+			catch (IllegalAccessException e)
+			{
+				throw new IOException("Cannot compress packet.", e);
+			}
+			catch (InvocationTargetException e)
+			{
+				throw new IOException("Cannot compress packet.", e.getCause());
+			}
+
+			pos += n;
+
+			/* With a sync flush, the output is complete as soon as it does not fill the buffer */
+
+			if (n < space)
+				break;
+
+			if (pos > maxLength)
+				break;
+
+			growBuffer(pos);
+		}
+
+		return pos;
+	}
+
+	private int uncompress(byte[] src, int off, int len, int maxLength) throws IOException
+	{
+		inflater.setInput(src, off, len);
+
+		int pos = 0;
+
+		try
+		{
+			while (true)
+			{
+				int space = buffer.length - pos;
+				int n = inflater.inflate(buffer, pos, space);
+
+				pos += n;
+
+				if (n < space && inflater.needsInput())
+					break;
+
+				if (n == 0 && (inflater.finished() || inflater.needsDictionary()))
+					throw new IOException("Remote sent corrupt compressed data.");
+
+				/* Stop before a hostile peer makes us allocate more (zlib bombs) */
+
+				if (pos > maxLength)
+					break;
+
+				if (pos == buffer.length)
+					growBuffer(pos);
+			}
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException("Remote sent corrupt compressed data.", e);
+		}
+
+		return pos;
+	}
+}
@@ -4,6 +4,7 @@
  */
 package ch.ethz.ssh2.crypto;
 
+import ch.ethz.ssh2.compression.CompressionFactory;
 import ch.ethz.ssh2.crypto.cipher.BlockCipherFactory;
 import ch.ethz.ssh2.crypto.digest.MAC;
 import ch.ethz.ssh2.transport.KexManager;
@@ -22,11 +23,15 @@ public class CryptoWishList
 	public String[] s2c_enc_algos = BlockCipherFactory.getDefaultCipherList();
 	public String[] c2s_mac_algos = MAC.getMacList();
 	public String[] s2c_mac_algos = MAC.getMacList();
+	public String[] c2s_comp_algos = CompressionFactory.getDefaultCompressorList();
+	public String[] s2c_comp_algos = CompressionFactory.getDefaultCompressorList();
 
 	public static CryptoWishList forServer()
 	{
 		CryptoWishList cwl = new CryptoWishList();
 		cwl.kexAlgorithms = KexManager.getDefaultServerKexAlgorithmList();
+		cwl.c2s_comp_algos = CompressionFactory.getCompressorList();
+		cwl.s2c_comp_algos = CompressionFactory.getCompressorList();
 		return cwl;
 	}
 }
@@ -0,0 +1,49 @@
+package ch.ethz.ssh2.crypto.cipher;
+
+/**
+ * A packet cipher with integrated authentication (e.g., aes128-gcm@openssh.com).
+ * No separate MAC is used together with such a cipher.
+ * <p>
+ * A packet is passed as one contiguous buffer: the 4 byte packet length
+ * (in the form that is sent on the wire), followed by the packet
+ * (padding length, payload, padding), followed by room for the tag.
+ *
+ * @version $Id$
+ */
+public interface AeadCipher
+{
+	/**
+	 * @return the block size the packet length (without the length field) must be aligned to
+	 */
+	public int getBlockSize();
+
+	/**
+	 * @return the length of the authentication tag that follows each packet
+	 */
+	public int getTagSize();
+
+	/**
+	 * Recover the packet length from the 4 bytes read from the wire.
+	 * Ciphers that send the length in clear simply copy it.
+	 */
+	public void decryptPacketLength(int seq, byte[] src, int srcoff, byte[] dst, int dstoff);
+
+	/**
+	 * Encrypt and authenticate a packet in place and append the tag
+	 * at <code>buf[off + len]</code>.
+	 *
+	 * @param seq the packet sequence number
+	 * @param len length of the packet including the 4 byte length field
+	 */
+	public void seal(int seq, byte[] buf, int off, int len);
+
+	/**
+	 * Verify the tag at <code>buf[off + len]</code> and, if it is correct,
+	 * decrypt the packet in place. The length field is left as received.
+	 *
+	 * @param seq the packet sequence number
+	 * @param len length of the packet including the 4 byte length field
+	 * @return <code>false</code> if the tag does not match
+	 */
+	public boolean open(int seq, byte[] buf, int off, int len);
+}
@@ -0,0 +1,181 @@
+package ch.ethz.ssh2.crypto.cipher;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-GCM as described in RFC 5647 and used by OpenSSH
+ * (aes128-gcm@openssh.com, aes256-gcm@openssh.com). The packet length
+ * is sent in clear and authenticated as additional data.
+ * <p>
+ * Backed by the JCE. <code>GCMParameterSpec</code> and <code>Cipher.updateAAD()</code>
+ * are only available since Java 7, therefore they are looked up by reflection.
+ *
+ * @version $Id$
+ */
+public class AesGcmCipher implements AeadCipher
+{
+	private static final int TAG_SIZE = 16;
+	private static final int NONCE_SIZE = 12;
+
+	private static final Constructor<?> gcmSpecConstructor;
+	private static final Method updateAAD;
+
+	static
+	{
+		Constructor<?> ctor = null;
+		Method aad = null;
+
+		try
+		{
+			Class<?> spec = Class.forName("javax.crypto.spec.GCMParameterSpec");
+			ctor = spec.getConstructor(int.class, byte[].class);
+			aad = Cipher.class.getMethod("updateAAD", byte[].class, int.class, int.class);
+		}
+		catch (Exception e)
+		{
+			ctor = null;
+			aad = null;
+		}
+
+		gcmSpecConstructor = ctor;
+		updateAAD = aad;
+	}
+
+	private final Cipher cipher;
+	private final SecretKeySpec key;
+	private final byte[] nonce = new byte[NONCE_SIZE];
+	private final int mode;
+
+	/**
+	 * @return <code>true</code> if the JRE provides AES-GCM with keys of the given size
+	 */
+	public static boolean isAvailable(int keySize)
+	{
+		if (gcmSpecConstructor == null)
+			return false;
+
+		try
+		{
+			AesGcmCipher c = new AesGcmCipher(true, new byte[keySize], new byte[NONCE_SIZE]);
+			byte[] buf = new byte[4 + 16 + TAG_SIZE];
+			buf[3] = 16;
+			c.seal(0, buf, 0, 20);
+			return true;
+		}
+		catch (RuntimeException e)
+		{
+			return false;
+		}
+	}
+
+	public AesGcmCipher(boolean encrypt, byte[] key, byte[] iv) throws IllegalArgumentException
+	{
+		if (iv.length != NONCE_SIZE)
+			throw new IllegalArgumentException("IV must be " + NONCE_SIZE + " bytes long! (currently " + iv.length
+					+ ")");
+
+		if (gcmSpecConstructor == null)
+			throw new IllegalArgumentException("AES-GCM is not supported by this JRE");
+
+		try
+		{
+			this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IllegalArgumentException("Cannot instantiate AES/GCM", e);
+		}
+
+		this.key = new SecretKeySpec(key, "AES");
+		this.mode = encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
+		System.arraycopy(iv, 0, nonce, 0, NONCE_SIZE);
+	}
+
+	public int getBlockSize()
+	{
+		return 16;
+	}
+
+	public int getTagSize()
+	{
+		return TAG_SIZE;
+	}
+
+	public void decryptPacketLength(int seq, byte[] src, int srcoff, byte[] dst, int dstoff)
+	{
+		System.arraycopy(src, srcoff, dst, dstoff, 4);
+	}
+
+	private void initPacket(byte[] buf, int off) throws GeneralSecurityException
+	{
+		AlgorithmParameterSpec spec;
+
+		try
+		{
+			spec = (AlgorithmParameterSpec) gcmSpecConstructor.newInstance(TAG_SIZE * 8, nonce);
+			cipher.init(mode, key, spec);
+			updateAAD.invoke(cipher, buf, off, 4);
+		}
+		catch (InstantiationException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw new IllegalStateException(e.getCause());
+		}
+
+		/* The invocation counter is the last 8 bytes of the nonce (RFC 5647, 7.1) */
+
+		for (int i = NONCE_SIZE - 1; i >= 4; i--)
+		{
+			nonce[i]++;
+			if (nonce[i] != 0)
+				break;
+		}
+	}
+
+	public void seal(int seq, byte[] buf, int off, int len)
+	{
+		try
+		{
+			initPacket(buf, off);
+			cipher.doFinal(buf, off + 4, len - 4, buf, off + 4);
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public boolean open(int seq, byte[] buf, int off, int len)
+	{
+		try
+		{
+			initPacket(buf, off);
+			cipher.doFinal(buf, off + 4, len - 4 + TAG_SIZE, buf, off + 4);
+			return true;
+		}
+		catch (BadPaddingException e)
+		{
+			/* AEADBadTagException, which is a BadPaddingException */
+			return false;
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -5,8 +5,10 @@
 package ch.ethz.ssh2.crypto.cipher;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Vector;
+
+import ch.ethz.ssh2.log.Logger;
 
 /**
  * BlockCipherFactory.
@@ -16,39 +18,113 @@ import java.util.Vector;
  */
 public class BlockCipherFactory
 {
+	private static final Logger log = Logger.getLogger(BlockCipherFactory.class);
+
 	private static final class CipherEntry
 	{
 		String type;
 		int blocksize;
 		int keysize;
+		int ivsize;
 		String cipherClass;
+		String jceAlgorithm;
+		boolean aead;
 
 		public CipherEntry(String type, int blockSize, int keySize, String cipherClass)
+		{
+			this(type, blockSize, keySize, cipherClass, null);
+		}
+
+		public CipherEntry(String type, int blockSize, int keySize, String cipherClass, String jceAlgorithm)
 		{
 			this.type = type;
 			this.blocksize = blockSize;
 			this.keysize = keySize;
+			this.ivsize = blockSize;
 			this.cipherClass = cipherClass;
+			this.jceAlgorithm = jceAlgorithm;
+		}
+
+		public CipherEntry(String type, int blockSize, int keySize, int ivSize, String cipherClass)
+		{
+			this(type, blockSize, keySize, cipherClass, null);
+			this.ivsize = ivSize;
+			this.aead = true;
 		}
 	}
 
 	private static final List<CipherEntry> ciphers = new ArrayList<CipherEntry>();
 
+	/* Set by the startup probe, see probeJce() */
+	private static final boolean useJce;
+
 	static
 	{
 		/* Higher Priority First */
-		ciphers.add(new CipherEntry("aes128-ctr", 16, 16, "ch.ethz.ssh2.crypto.cipher.AES"));
-		ciphers.add(new CipherEntry("aes192-ctr", 16, 24, "ch.ethz.ssh2.crypto.cipher.AES"));
-		ciphers.add(new CipherEntry("aes256-ctr", 16, 32, "ch.ethz.ssh2.crypto.cipher.AES"));
+		if (AesGcmCipher.isAvailable(16))
+			ciphers.add(new CipherEntry("aes128-gcm@openssh.com", 16, 16, 12, "ch.ethz.ssh2.crypto.cipher.AesGcmCipher"));
+		if (AesGcmCipher.isAvailable(32))
+			ciphers.add(new CipherEntry("aes256-gcm@openssh.com", 16, 32, 12, "ch.ethz.ssh2.crypto.cipher.AesGcmCipher"));
+		ciphers.add(new CipherEntry("chacha20-poly1305@openssh.com", 8, 64, 0,
+				"ch.ethz.ssh2.crypto.cipher.ChaCha20Poly1305"));
+
+		ciphers.add(new CipherEntry("aes128-ctr", 16, 16, "ch.ethz.ssh2.crypto.cipher.AES", "AES"));
+		ciphers.add(new CipherEntry("aes192-ctr", 16, 24, "ch.ethz.ssh2.crypto.cipher.AES", "AES"));
+		ciphers.add(new CipherEntry("aes256-ctr", 16, 32, "ch.ethz.ssh2.crypto.cipher.AES", "AES"));
 		ciphers.add(new CipherEntry("blowfish-ctr", 8, 16, "ch.ethz.ssh2.crypto.cipher.BlowFish"));
 
-		ciphers.add(new CipherEntry("aes128-cbc", 16, 16, "ch.ethz.ssh2.crypto.cipher.AES"));
-		ciphers.add(new CipherEntry("aes192-cbc", 16, 24, "ch.ethz.ssh2.crypto.cipher.AES"));
-		ciphers.add(new CipherEntry("aes256-cbc", 16, 32, "ch.ethz.ssh2.crypto.cipher.AES"));
+		ciphers.add(new CipherEntry("aes128-cbc", 16, 16, "ch.ethz.ssh2.crypto.cipher.AES", "AES"));
+		ciphers.add(new CipherEntry("aes192-cbc", 16, 24, "ch.ethz.ssh2.crypto.cipher.AES", "AES"));
+		ciphers.add(new CipherEntry("aes256-cbc", 16, 32, "ch.ethz.ssh2.crypto.cipher.AES", "AES"));
 		ciphers.add(new CipherEntry("blowfish-cbc", 8, 16, "ch.ethz.ssh2.crypto.cipher.BlowFish"));
 
 		ciphers.add(new CipherEntry("3des-ctr", 8, 24, "ch.ethz.ssh2.crypto.cipher.DESede"));
 		ciphers.add(new CipherEntry("3des-cbc", 8, 24, "ch.ethz.ssh2.crypto.cipher.DESede"));
+
+		useJce = probeJce("CTR") && probeJce("CBC");
+
+		log.info("Using " + (useJce ? "JCE" : "pure Java") + " AES implementation");
+	}
+
+	/**
+	 * Checks that the JCE provides AES in the given mode (with 256 bit keys, which
+	 * older JREs without the unlimited strength policy refuse) and that it produces
+	 * the same output as the pure Java implementation.
+	 */
+	private static boolean probeJce(String mode)
+	{
+		try
+		{
+			byte[] key = new byte[32];
+			byte[] iv = new byte[16];
+			byte[] plain = new byte[64];
+
+			for (int i = 0; i < plain.length; i++)
+				plain[i] = (byte) i;
+			for (int i = 0; i < key.length; i++)
+				key[i] = (byte) (i * 7);
+			Arrays.fill(iv, (byte) 0xff); /* CTR: exercise the counter carry */
+
+			AES aes = new AES();
+			aes.init(true, key);
+			BlockCipher ref = mode.equals("CTR") ? new CTRMode(aes, iv, true) : new CBCMode(aes, iv, true);
+
+			byte[] expected = new byte[plain.length];
+			for (int i = 0; i < plain.length; i += 16)
+				ref.transformBlock(plain, i, expected, i);
+
+			JceBlockCipher jce = new JceBlockCipher("AES", mode, 16, true, key, iv);
+			byte[] actual = new byte[plain.length];
+			jce.transformBlock(plain, 0, actual, 0);
+			jce.transformBlocks(plain, 16, actual, 16, plain.length - 16);
+
+			return Arrays.equals(expected, actual);
+		}
+		catch (RuntimeException e)
+		{
+			log.debug("JCE AES/" + mode + " is not usable: " + e.getMessage());
+			return false;
+		}
 	}
 
 	public static String[] getDefaultCipherList()
@@ -75,6 +151,18 @@ public class BlockCipherFactory
 		try
 		{
 			CipherEntry ce = getEntry(type);
+
+			if (ce.aead)
+				throw new IllegalArgumentException("AEAD cipher " + type + " is not a block cipher");
+
+			if (useJce && (ce.jceAlgorithm != null))
+			{
+				if (type.endsWith("-cbc"))
+					return new JceBlockCipher(ce.jceAlgorithm, "CBC", ce.blocksize, encrypt, key, iv);
+				if (type.endsWith("-ctr"))
+					return new JceBlockCipher(ce.jceAlgorithm, "CTR", ce.blocksize, encrypt, key, iv);
+			}
+
 			Class<?> cc = Class.forName(ce.cipherClass);
 			BlockCipher bc = (BlockCipher) cc.newInstance();
 
@@ -104,6 +192,32 @@ public class BlockCipherFactory
 		}
 	}
 
+	/**
+	 * @return <code>true</code> if the cipher has integrated authentication, i.e.,
+	 *         it must be created with {@link #createAeadCipher(String, boolean, byte[], byte[])}
+	 *         and no MAC is used
+	 */
+	public static boolean isAead(String type)
+	{
+		return getEntry(type).aead;
+	}
+
+	public static AeadCipher createAeadCipher(String type, boolean encrypt, byte[] key, byte[] iv)
+	{
+		CipherEntry ce = getEntry(type);
+
+		if (ce.aead == false)
+			throw new IllegalArgumentException("Not an AEAD cipher: " + type);
+
+		if (type.endsWith("-gcm@openssh.com"))
+			return new AesGcmCipher(encrypt, key, iv);
+
+		if (type.equals("chacha20-poly1305@openssh.com"))
+			return new ChaCha20Poly1305(key);
+
+		throw new IllegalArgumentException("Cannot instantiate " + type);
+	}
+
 	private static CipherEntry getEntry(String type)
 	{
 		for (CipherEntry ce : ciphers)
@@ -127,4 +241,10 @@ public class BlockCipherFactory
 		CipherEntry ce = getEntry(type);
 		return ce.keysize;
 	}
+
+	public static int getIvSize(String type)
+	{
+		CipherEntry ce = getEntry(type);
+		return ce.ivsize;
+	}
 }
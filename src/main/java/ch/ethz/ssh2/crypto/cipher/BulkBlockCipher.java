@@ -0,0 +1,16 @@
+package ch.ethz.ssh2.crypto.cipher;
+
+/**
+ * A {@link BlockCipher} that can transform several consecutive blocks
+ * with a single call. Source and destination may be the same array
+ * (in-place operation).
+ *
+ * @version $Id$
+ */
+public interface BulkBlockCipher extends BlockCipher
+{
+	/**
+	 * @param len number of bytes to transform, must be a multiple of the block size
+	 */
+	public void transformBlocks(byte[] src, int srcoff, byte[] dst, int dstoff, int len);
+}
@@ -0,0 +1,196 @@
+package ch.ethz.ssh2.crypto.cipher;
+
+/**
+ * The ChaCha20 stream cipher in its original form (64 bit nonce, 64 bit
+ * block counter), as it is used by chacha20-poly1305@openssh.com.
+ * <p>
+ * The block function works on local variables only, this allows the JIT
+ * to keep the whole state in registers.
+ *
+ * @version $Id$
+ */
+final class ChaCha20
+{
+	private static final int SIGMA0 = 0x61707865;
+	private static final int SIGMA1 = 0x3320646e;
+	private static final int SIGMA2 = 0x79622d32;
+	private static final int SIGMA3 = 0x6b206574;
+
+	private final int k0, k1, k2, k3, k4, k5, k6, k7;
+
+	private final int[] ks = new int[16];
+
+	ChaCha20(byte[] key, int off)
+	{
+		k0 = le32(key, off);
+		k1 = le32(key, off + 4);
+		k2 = le32(key, off + 8);
+		k3 = le32(key, off + 12);
+		k4 = le32(key, off + 16);
+		k5 = le32(key, off + 20);
+		k6 = le32(key, off + 24);
+		k7 = le32(key, off + 28);
+	}
+
+	private static int le32(byte[] b, int off)
+	{
+		return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | (b[off + 3] << 24);
+	}
+
+	/**
+	 * Computes one 64 byte key stream block into <code>ks</code>.
+	 */
+	private void block(int n0, int n1, long counter)
+	{
+		int c0 = (int) counter;
+		int c1 = (int) (counter >>> 32);
+
+		int x0 = SIGMA0, x1 = SIGMA1, x2 = SIGMA2, x3 = SIGMA3;
+		int x4 = k0, x5 = k1, x6 = k2, x7 = k3;
+		int x8 = k4, x9 = k5, x10 = k6, x11 = k7;
+		int x12 = c0, x13 = c1, x14 = n0, x15 = n1;
+
+		for (int i = 0; i < 10; i++)
+		{
+			/* Column round */
+
+			x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0, 16);
+			x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8, 12);
+			x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0, 8);
+			x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8, 7);
+
+			x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1, 16);
+			x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9, 12);
+			x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1, 8);
+			x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9, 7);
+
+			x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2, 16);
+			x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10, 12);
+			x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2, 8);
+			x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10, 7);
+
+			x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3, 16);
+			x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11, 12);
+			x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3, 8);
+			x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11, 7);
+
+			/* Diagonal round */
+
+			x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0, 16);
+			x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10, 12);
+			x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0, 8);
+			x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10, 7);
+
+			x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1, 16);
+			x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11, 12);
+			x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1, 8);
+			x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11, 7);
+
+			x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2, 16);
+			x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8, 12);
+			x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2, 8);
+			x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8, 7);
+
+			x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3, 16);
+			x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9, 12);
+			x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3, 8);
+			x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9, 7);
+		}
+
+		ks[0] = x0 + SIGMA0;
+		ks[1] = x1 + SIGMA1;
+		ks[2] = x2 + SIGMA2;
+		ks[3] = x3 + SIGMA3;
+		ks[4] = x4 + k0;
+		ks[5] = x5 + k1;
+		ks[6] = x6 + k2;
+		ks[7] = x7 + k3;
+		ks[8] = x8 + k4;
+		ks[9] = x9 + k5;
+		ks[10] = x10 + k6;
+		ks[11] = x11 + k7;
+		ks[12] = x12 + c0;
+		ks[13] = x13 + c1;
+		ks[14] = x14 + n0;
+		ks[15] = x15 + n1;
+	}
+
+	/**
+	 * XORs <code>len</code> bytes of key stream, starting at block
+	 * <code>counter</code>, into <code>src</code> and stores the result in
+	 * <code>dst</code> (which may be the same buffer).
+	 * <p>
+	 * The nonce is the SSH packet sequence number, encoded as 64 bit big
+	 * endian value (as done by OpenSSH).
+	 */
+	void crypt(int seq, long counter, byte[] src, int srcoff, byte[] dst, int dstoff, int len)
+	{
+		/* The upper four nonce bytes are zero, the lower ones are the big endian seq */
+
+		int n1 = Integer.reverseBytes(seq);
+
+		while (len > 0)
+		{
+			block(0, n1, counter++);
+
+			int n = Math.min(len, 64);
+			int words = n >> 2;
+
+			for (int i = 0; i < words; i++)
+			{
+				int w = ks[i];
+				dst[dstoff++] = (byte) (src[srcoff++] ^ w);
+				dst[dstoff++] = (byte) (src[srcoff++] ^ (w >> 8));
+				dst[dstoff++] = (byte) (src[srcoff++] ^ (w >> 16));
+				dst[dstoff++] = (byte) (src[srcoff++] ^ (w >> 24));
+			}
+
+			for (int i = words << 2; i < n; i++)
+				dst[dstoff++] = (byte) (src[srcoff++] ^ (ks[i >> 2] >> ((i & 3) << 3)));
+
+			len -= n;
+		}
+	}
+
+	/**
+	 * Same as {@link #crypt(int, long, byte[], int, byte[], int, int)}, but starts at
+	 * byte <code>pos</code> of the key stream that begins with block <code>counter</code>.
+	 */
+	void crypt(int seq, long counter, long pos, byte[] src, int srcoff, byte[] dst, int dstoff, int len)
+	{
+		counter += pos >>> 6;
+
+		int skip = (int) (pos & 63);
+
+		if (skip != 0)
+		{
+			block(0, Integer.reverseBytes(seq), counter++);
+
+			int n = Math.min(len, 64 - skip);
+
+			for (int i = skip; i < skip + n; i++)
+				dst[dstoff++] = (byte) (src[srcoff++] ^ (ks[i >> 2] >> ((i & 3) << 3)));
+
+			len -= n;
+		}
+
+		crypt(seq, counter, src, srcoff, dst, dstoff, len);
+	}
+
+	/**
+	 * Stores the key stream block <code>counter</code> in <code>dst</code> (64 bytes).
+	 */
+	void keyStream(int seq, long counter, byte[] dst, int dstoff)
+	{
+		block(0, Integer.reverseBytes(seq), counter);
+
+		for (int i = 0; i < 16; i++)
+		{
+			int w = ks[i];
+			dst[dstoff++] = (byte) w;
+			dst[dstoff++] = (byte) (w >> 8);
+			dst[dstoff++] = (byte) (w >> 16);
+			dst[dstoff++] = (byte) (w >> 24);
+		}
+	}
+}
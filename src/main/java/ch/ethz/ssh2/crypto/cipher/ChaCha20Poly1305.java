@@ -0,0 +1,89 @@
+package ch.ethz.ssh2.crypto.cipher;
+
+/**
+ * The chacha20-poly1305@openssh.com packet cipher (see PROTOCOL.chacha20poly1305
+ * in the OpenSSH distribution).
+ * <p>
+ * The 64 byte key is split into two ChaCha20 keys: the second half encrypts
+ * the packet length, the first half encrypts the packet and provides the
+ * Poly1305 key (first block of key stream). The tag covers the encrypted
+ * length and the encrypted packet. The sequence number is the nonce.
+ * <p>
+ * Pure Java, does not depend on the JCE.
+ *
+ * @version $Id$
+ */
+public class ChaCha20Poly1305 implements SplitAeadCipher
+{
+	private static final int TAG_SIZE = 16;
+
+	private final ChaCha20 main;
+	private final ChaCha20 header;
+
+	private final Poly1305 poly = new Poly1305();
+
+	private final byte[] polyKey = new byte[64];
+	private final byte[] tag = new byte[TAG_SIZE];
+
+	public ChaCha20Poly1305(byte[] key) throws IllegalArgumentException
+	{
+		if (key.length != 64)
+			throw new IllegalArgumentException("Key must be 64 bytes long! (currently " + key.length + ")");
+
+		main = new ChaCha20(key, 0);
+		header = new ChaCha20(key, 32);
+	}
+
+	public int getBlockSize()
+	{
+		return 8;
+	}
+
+	public int getTagSize()
+	{
+		return TAG_SIZE;
+	}
+
+	public void decryptPacketLength(int seq, byte[] src, int srcoff, byte[] dst, int dstoff)
+	{
+		header.crypt(seq, 0, src, srcoff, dst, dstoff, 4);
+	}
+
+	public void seal(int seq, byte[] buf, int off, int len)
+	{
+		header.crypt(seq, 0, buf, off, buf, off, 4);
+		main.crypt(seq, 1, buf, off + 4, buf, off + 4, len - 4);
+
+		main.keyStream(seq, 0, polyKey, 0);
+		poly.mac(polyKey, 0, buf, off, len, buf, off + len);
+	}
+
+	public boolean open(int seq, byte[] buf, int off, int len)
+	{
+		if (verify(seq, buf, off, len) == false)
+			return false;
+
+		main.crypt(seq, 1, buf, off + 4, buf, off + 4, len - 4);
+		return true;
+	}
+
+	public boolean verify(int seq, byte[] buf, int off, int len)
+	{
+		main.keyStream(seq, 0, polyKey, 0);
+		poly.mac(polyKey, 0, buf, off, len, tag, 0);
+
+		/* Constant time compare */
+
+		int diff = 0;
+
+		for (int i = 0; i < TAG_SIZE; i++)
+			diff |= tag[i] ^ buf[off + len + i];
+
+		return (diff == 0);
+	}
+
+	public void decrypt(int seq, int pos, byte[] src, int srcoff, byte[] dst, int dstoff, int len)
+	{
+		main.crypt(seq, 1, pos, src, srcoff, dst, dstoff, len);
+	}
+}
@@ -70,6 +70,20 @@ public class CipherInputStream
 		return thiscopy;
 	}
 
+	/**
+	 * @return the number of bytes that have been read from the underlying stream
+	 *         but not yet consumed (neither decrypted nor read plain)
+	 */
+	public int getBufferedRawBytes()
+	{
+		return (input_buffer_size > input_buffer_pos) ? (input_buffer_size - input_buffer_pos) : 0;
+	}
+
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+
 	public void changeCipher(BlockCipher bc)
 	{
 		this.currentCipher = bc;
@@ -108,6 +122,71 @@ public class CipherInputStream
 		return read(dst, 0, dst.length);
 	}
 
+	/**
+	 * Reads as many whole blocks as fit into <code>len</code> directly into
+	 * the destination and decrypts them there in place.
+	 */
+	private int readBlocksDirect(byte[] dst, int off, int len) throws IOException
+	{
+		int blocksLen = len - (len % blockSize);
+
+		int n = 0;
+		while (n < blocksLen)
+		{
+			int cnt = internal_read(dst, off + n, blocksLen - n);
+			if (cnt < 0)
+			{
+				throw new IOException("Cannot read full block, EOF reached.");
+			}
+			n += cnt;
+		}
+
+		decryptInPlace(dst, off, blocksLen);
+
+		return blocksLen;
+	}
+
+	/**
+	 * Decrypts whole blocks that were obtained with {@link #readPlain(byte[], int, int)}
+	 * in place. The cipher state advances as if the data had been read with
+	 * {@link #read(byte[], int, int)}.
+	 */
+	public void decryptInPlace(byte[] buf, int off, int len) throws IOException
+	{
+		decryptBlocks(buf, off, buf, off, len);
+	}
+
+	/**
+	 * Same as {@link #decryptInPlace(byte[], int, int)}, but stores the plain text
+	 * in <code>dst</code>.
+	 */
+	public void decryptBlocks(byte[] src, int srcoff, byte[] dst, int dstoff, int len) throws IOException
+	{
+		if ((len % blockSize) != 0)
+		{
+			throw new IOException("Cannot decrypt, length is not a multiple of the block size.");
+		}
+
+		try
+		{
+			if (currentCipher instanceof BulkBlockCipher)
+			{
+				((BulkBlockCipher) currentCipher).transformBlocks(src, srcoff, dst, dstoff, len);
+			}
+			else
+			{
+				for (int i = 0; i < len; i += blockSize)
+				{
+					currentCipher.transformBlock(src, srcoff + i, dst, dstoff + i);
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			throw new IOException("Error while decrypting block.");
+		}
+	}
+
 	public int read(byte[] dst, int off, int len) throws IOException
 	{
 		int count = 0;
@@ -116,6 +195,15 @@ public class CipherInputStream
 		{
 			if (pos >= blockSize)
 			{
+				if (len >= blockSize)
+				{
+					int direct = readBlocksDirect(dst, off, len);
+					off += direct;
+					len -= direct;
+					count += direct;
+					continue;
+				}
+
 				getBlock();
 			}
 
@@ -135,6 +135,84 @@ public class CipherOutputStream
 		}
 	}
 
+	/**
+	 * Encrypts whole blocks in place with the current cipher, without writing
+	 * anything. The cipher state advances as if the data had been written.
+	 */
+	public void encryptInPlace(byte[] buf, int off, int len) throws IOException
+	{
+		if ((len % blockSize) != 0)
+		{
+			throw new IOException("Cannot encrypt, length is not a multiple of the block size.");
+		}
+
+		try
+		{
+			if (currentCipher instanceof BulkBlockCipher)
+			{
+				((BulkBlockCipher) currentCipher).transformBlocks(buf, off, buf, off, len);
+			}
+			else
+			{
+				for (int i = 0; i < len; i += blockSize)
+				{
+					currentCipher.transformBlock(buf, off + i, buf, off + i);
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			throw new IOException("Error while encrypting frame.", e);
+		}
+	}
+
+	/**
+	 * Encrypts the first <code>cryptLen</code> bytes of a complete, block aligned
+	 * packet frame in place and appends the whole frame (including any trailing
+	 * plain bytes, e.g., the MAC) to the output buffer. Frames that do not fit
+	 * into the buffer are handed to the underlying stream with a single write.
+	 * Nothing is guaranteed to be written before {@link #flush()}.
+	 *
+	 * @param frame the frame buffer, will be overwritten with the ciphertext
+	 * @param off offset of the frame in the buffer
+	 * @param cryptLen number of bytes to encrypt, must be a multiple of the block size
+	 * @param len total number of bytes to write
+	 * @throws IOException
+	 */
+	public void writeFrame(byte[] frame, int off, int cryptLen, int len) throws IOException
+	{
+		if (pos != 0)
+		{
+			throw new IOException("Cannot write frame since crypto buffer is not aligned.");
+		}
+
+		encryptInPlace(frame, off, cryptLen);
+
+		if (len <= BUFF_SIZE - out_buffer_pos)
+		{
+			/* Small frames (window adjusts, interactive data) are coalesced */
+
+			System.arraycopy(frame, off, out_buffer, out_buffer_pos, len);
+			out_buffer_pos += len;
+			return;
+		}
+
+		if (out_buffer_pos > 0)
+		{
+			bo.write(out_buffer, 0, out_buffer_pos);
+			out_buffer_pos = 0;
+		}
+
+		if (len < BUFF_SIZE)
+		{
+			System.arraycopy(frame, off, out_buffer, 0, len);
+			out_buffer_pos = len;
+			return;
+		}
+
+		bo.write(frame, off, len);
+	}
+
 	public void writePlain(int b) throws IOException
 	{
 		if (pos != 0)
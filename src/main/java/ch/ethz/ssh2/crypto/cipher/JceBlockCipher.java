@@ -0,0 +1,74 @@
+package ch.ethz.ssh2.crypto.cipher;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A block cipher in CTR or CBC mode backed by a <code>javax.crypto.Cipher</code>.
+ * On HotSpot, the SunJCE AES implementation uses the AES-NI intrinsics, and
+ * whole packets are processed per call.
+ *
+ * @version $Id$
+ */
+public class JceBlockCipher implements BulkBlockCipher
+{
+	private final Cipher cipher;
+	private final int blockSize;
+
+	public JceBlockCipher(String algorithm, String mode, int blockSize, boolean encrypt, byte[] key, byte[] iv)
+			throws IllegalArgumentException
+	{
+		if (blockSize != iv.length)
+			throw new IllegalArgumentException("IV must be " + blockSize + " bytes long! (currently " + iv.length + ")");
+
+		this.blockSize = blockSize;
+
+		try
+		{
+			cipher = Cipher.getInstance(algorithm + "/" + mode + "/NoPadding");
+			cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, new SecretKeySpec(key, algorithm),
+					new IvParameterSpec(iv));
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IllegalArgumentException("Cannot instantiate " + algorithm + "/" + mode, e);
+		}
+	}
+
+	/**
+	 * The key is set by the constructor, a new key needs a new instance.
+	 */
+	public void init(boolean forEncryption, byte[] key)
+	{
+		throw new IllegalStateException("JceBlockCipher is initialized by its constructor");
+	}
+
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+
+	public void transformBlock(byte[] src, int srcoff, byte[] dst, int dstoff)
+	{
+		transformBlocks(src, srcoff, dst, dstoff, blockSize);
+	}
+
+	public void transformBlocks(byte[] src, int srcoff, byte[] dst, int dstoff, int len)
+	{
+		try
+		{
+			int n = cipher.update(src, srcoff, len, dst, dstoff);
+
+			if (n != len)
+				throw new IllegalStateException("Cipher returned " + n + " bytes, expected " + len);
+		}
+		catch (ShortBufferException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}
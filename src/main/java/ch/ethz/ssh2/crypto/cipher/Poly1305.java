@@ -0,0 +1,159 @@
+package ch.ethz.ssh2.crypto.cipher;
+
+/**
+ * The Poly1305 one-time authenticator (D. J. Bernstein), using the 26 bit
+ * limb representation of poly1305-donna. All intermediate products fit
+ * into a <code>long</code>, no objects are allocated per message.
+ *
+ * @version $Id$
+ */
+final class Poly1305
+{
+	private static final long M26 = 0x3ffffff;
+
+	private final byte[] last = new byte[16];
+
+	private static long le32(byte[] b, int off)
+	{
+		return ((b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | (b[off + 3] << 24))
+				& 0xffffffffL;
+	}
+
+	private static void put32(long v, byte[] b, int off)
+	{
+		b[off] = (byte) v;
+		b[off + 1] = (byte) (v >> 8);
+		b[off + 2] = (byte) (v >> 16);
+		b[off + 3] = (byte) (v >> 24);
+	}
+
+	/**
+	 * Computes the 16 byte tag of <code>msg[off, off + len)</code> with the
+	 * 32 byte one-time key at <code>key[keyoff]</code>.
+	 */
+	void mac(byte[] key, int keyoff, byte[] msg, int off, int len, byte[] out, int outoff)
+	{
+		long r0 = le32(key, keyoff) & 0x3ffffff;
+		long r1 = (le32(key, keyoff + 3) >>> 2) & 0x3ffff03;
+		long r2 = (le32(key, keyoff + 6) >>> 4) & 0x3ffc0ff;
+		long r3 = (le32(key, keyoff + 9) >>> 6) & 0x3f03fff;
+		long r4 = (le32(key, keyoff + 12) >>> 8) & 0x00fffff;
+
+		long s1 = r1 * 5;
+		long s2 = r2 * 5;
+		long s3 = r3 * 5;
+		long s4 = r4 * 5;
+
+		long h0 = 0, h1 = 0, h2 = 0, h3 = 0, h4 = 0;
+
+		while (len > 0)
+		{
+			long hibit = 1 << 24;
+
+			if (len < 16)
+			{
+				/* The final partial block is padded with a single 1 byte */
+
+				System.arraycopy(msg, off, last, 0, len);
+				last[len] = 1;
+				for (int i = len + 1; i < 16; i++)
+					last[i] = 0;
+				msg = last;
+				off = 0;
+				len = 16;
+				hibit = 0;
+			}
+
+			h0 += le32(msg, off) & M26;
+			h1 += (le32(msg, off + 3) >>> 2) & M26;
+			h2 += (le32(msg, off + 6) >>> 4) & M26;
+			h3 += (le32(msg, off + 9) >>> 6) & M26;
+			h4 += (le32(msg, off + 12) >>> 8) | hibit;
+
+			long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+			long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+			long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+			long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+			long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+			long c = d0 >>> 26;
+			h0 = d0 & M26;
+			d1 += c;
+			c = d1 >>> 26;
+			h1 = d1 & M26;
+			d2 += c;
+			c = d2 >>> 26;
+			h2 = d2 & M26;
+			d3 += c;
+			c = d3 >>> 26;
+			h3 = d3 & M26;
+			d4 += c;
+			c = d4 >>> 26;
+			h4 = d4 & M26;
+			h0 += c * 5;
+			c = h0 >>> 26;
+			h0 &= M26;
+			h1 += c;
+
+			off += 16;
+			len -= 16;
+		}
+
+		/* Full carry, then compute h + -p and select h or h - p */
+
+		long c = h1 >>> 26;
+		h1 &= M26;
+		h2 += c;
+		c = h2 >>> 26;
+		h2 &= M26;
+		h3 += c;
+		c = h3 >>> 26;
+		h3 &= M26;
+		h4 += c;
+		c = h4 >>> 26;
+		h4 &= M26;
+		h0 += c * 5;
+		c = h0 >>> 26;
+		h0 &= M26;
+		h1 += c;
+
+		long g0 = h0 + 5;
+		c = g0 >>> 26;
+		g0 &= M26;
+		long g1 = h1 + c;
+		c = g1 >>> 26;
+		g1 &= M26;
+		long g2 = h2 + c;
+		c = g2 >>> 26;
+		g2 &= M26;
+		long g3 = h3 + c;
+		c = g3 >>> 26;
+		g3 &= M26;
+		long g4 = h4 + c - (1 << 26);
+
+		/* Branch free select: mask is all ones if h >= p */
+
+		long mask = ~(g4 >> 63);
+		h0 = (h0 & ~mask) | (g0 & mask);
+		h1 = (h1 & ~mask) | (g1 & mask);
+		h2 = (h2 & ~mask) | (g2 & mask);
+		h3 = (h3 & ~mask) | (g3 & mask);
+		h4 = (h4 & ~mask) | (g4 & mask);
+
+		/* h = (h + s) % 2^128 */
+
+		long f0 = ((h0) | (h1 << 26)) & 0xffffffffL;
+		long f1 = ((h1 >>> 6) | (h2 << 20)) & 0xffffffffL;
+		long f2 = ((h2 >>> 12) | (h3 << 14)) & 0xffffffffL;
+		long f3 = ((h3 >>> 18) | (h4 << 8)) & 0xffffffffL;
+
+		long f = f0 + le32(key, keyoff + 16);
+		put32(f, out, outoff);
+		f = f1 + le32(key, keyoff + 20) + (f >>> 32);
+		put32(f, out, outoff + 4);
+		f = f2 + le32(key, keyoff + 24) + (f >>> 32);
+		put32(f, out, outoff + 8);
+		f = f3 + le32(key, keyoff + 28) + (f >>> 32);
+		put32(f, out, outoff + 12);
+	}
+}
@@ -0,0 +1,30 @@
+package ch.ethz.ssh2.crypto.cipher;
+
+/**
+ * An {@link AeadCipher} whose tag is computed over the encrypted packet, so a
+ * received packet can be verified first and then decrypted piecewise, at any
+ * position and into other buffers (e.g., chacha20-poly1305@openssh.com).
+ *
+ * @version $Id$
+ */
+public interface SplitAeadCipher extends AeadCipher
+{
+	/**
+	 * Verify the tag at <code>buf[off + len]</code> without decrypting anything.
+	 *
+	 * @param seq the packet sequence number
+	 * @param len length of the packet including the 4 byte length field
+	 * @return <code>false</code> if the tag does not match
+	 */
+	public boolean verify(int seq, byte[] buf, int off, int len);
+
+	/**
+	 * Decrypt a part of a verified packet.
+	 *
+	 * @param seq the packet sequence number
+	 * @param pos position of the part in the packet, 0 is the padding length (the first
+	 *            byte after the length field)
+	 * @param len number of bytes, any value
+	 */
+	public void decrypt(int seq, int pos, byte[] src, int srcoff, byte[] dst, int dstoff, int len);
+}
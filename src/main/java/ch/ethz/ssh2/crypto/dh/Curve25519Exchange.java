@@ -0,0 +1,139 @@
+package ch.ethz.ssh2.crypto.dh;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+import javax.crypto.KeyAgreement;
+
+import ch.ethz.ssh2.log.Logger;
+
+/**
+ * curve25519-sha256 (RFC 8731), also known as curve25519-sha256@libssh.org.
+ * <p>
+ * Uses the XDH implementation of the JDK (Java 11 and later) if there is one,
+ * otherwise {@link X25519}. The JDK's keys are only accessed through their
+ * X.509 encoding, which is the raw key after a fixed prefix.
+ *
+ * @version $Id$
+ */
+public class Curve25519Exchange extends EcdhExchange
+{
+	private static final Logger log = Logger.getLogger(Curve25519Exchange.class);
+
+	private static final byte[] X509_PREFIX = { 0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21,
+			0x00 };
+
+	private static final boolean jdkSupport = checkJdkSupport();
+
+	/* Exactly one of them is set after generateKeyPair() */
+
+	private PrivateKey jdkPrivateKey;
+	private byte[] privateKey;
+
+	public Curve25519Exchange()
+	{
+		super("SHA2-256");
+	}
+
+	private static boolean checkJdkSupport()
+	{
+		try
+		{
+			KeyPairGenerator.getInstance("X25519");
+			KeyFactory.getInstance("X25519");
+			KeyAgreement.getInstance("X25519");
+			return true;
+		}
+		catch (GeneralSecurityException e)
+		{
+			log.debug("No X25519 support in the JDK, using own implementation");
+			return false;
+		}
+	}
+
+	@Override
+	protected byte[] generateKeyPair(SecureRandom rnd)
+	{
+		if (jdkSupport)
+		{
+			try
+			{
+				KeyPairGenerator kpg = KeyPairGenerator.getInstance("X25519");
+				kpg.initialize(255, rnd);
+				KeyPair kp = kpg.generateKeyPair();
+
+				byte[] encoded = kp.getPublic().getEncoded();
+
+				if ((encoded.length == X509_PREFIX.length + X25519.KEY_SIZE)
+						&& Arrays.equals(X509_PREFIX, Arrays.copyOf(encoded, X509_PREFIX.length)))
+				{
+					jdkPrivateKey = kp.getPrivate();
+					return Arrays.copyOfRange(encoded, X509_PREFIX.length, encoded.length);
+				}
+			}
+			catch (GeneralSecurityException e)
+			{
+				log.debug("JDK X25519 key generation failed: " + e.getMessage());
+			}
+		}
+
+		privateKey = new byte[X25519.KEY_SIZE];
+		rnd.nextBytes(privateKey);
+
+		return X25519.publicKey(privateKey);
+	}
+
+	@Override
+	protected byte[] calculateSharedSecret(byte[] peerPublic)
+	{
+		if (peerPublic.length != X25519.KEY_SIZE)
+			throw new IllegalArgumentException("Invalid curve25519 public key length " + peerPublic.length);
+
+		byte[] secret;
+
+		if (jdkPrivateKey != null)
+		{
+			byte[] encoded = new byte[X509_PREFIX.length + X25519.KEY_SIZE];
+			System.arraycopy(X509_PREFIX, 0, encoded, 0, X509_PREFIX.length);
+			System.arraycopy(peerPublic, 0, encoded, X509_PREFIX.length, X25519.KEY_SIZE);
+
+			try
+			{
+				PublicKey pub = KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(encoded));
+				KeyAgreement ka = KeyAgreement.getInstance("X25519");
+				ka.init(jdkPrivateKey);
+				ka.doPhase(pub, true);
+				secret = ka.generateSecret();
+			}
+			catch (GeneralSecurityException e)
+			{
+				/* E.g., a public key of small order */
+				throw new IllegalArgumentException("Invalid curve25519 public key", e);
+			}
+		}
+		else
+		{
+			secret = X25519.scalarMult(privateKey, peerPublic);
+			Arrays.fill(privateKey, (byte) 0);
+		}
+
+		/* RFC 8731: abort if the shared secret is all zero (the peer sent a point of small order) */
+
+		int acc = 0;
+
+		for (int i = 0; i < secret.length; i++)
+			acc |= secret[i];
+
+		if (acc == 0)
+			throw new IllegalArgumentException("Invalid curve25519 public key (shared secret is zero)");
+
+		return secret;
+	}
+}
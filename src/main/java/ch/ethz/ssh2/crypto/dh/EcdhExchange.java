@@ -0,0 +1,213 @@
+package ch.ethz.ssh2.crypto.dh;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+import ch.ethz.ssh2.crypto.digest.HashForSSH2Types;
+
+/**
+ * Key exchange with elliptic curves. The public values Q_C and Q_S are sent as
+ * strings (SSH_MSG_KEX_ECDH_INIT and SSH_MSG_KEX_ECDH_REPLY), the shared secret
+ * is encoded as mpint. Used the same way as {@link DhExchange}.
+ *
+ * @version $Id$
+ */
+public abstract class EcdhExchange
+{
+	/* Client public, server public */
+
+	private byte[] e;
+	private byte[] f;
+
+	/* Shared secret */
+
+	private BigInteger k;
+
+	/* Own public key generated in advance, not yet used as e or f */
+
+	private byte[] pregenerated;
+
+	private final String hashFunction;
+
+	protected EcdhExchange(String hashFunction)
+	{
+		this.hashFunction = hashFunction;
+	}
+
+	/**
+	 * @param kexAlgorithm the name of the key exchange method
+	 * @return <code>true</code> if the method is an elliptic curve key exchange
+	 */
+	public static boolean isEcdh(String kexAlgorithm)
+	{
+		return kexAlgorithm.equals("curve25519-sha256") || kexAlgorithm.equals("curve25519-sha256@libssh.org")
+				|| NistEcdhExchange.isNistEcdh(kexAlgorithm);
+	}
+
+	/**
+	 * The NIST curves depend on the security providers of the JDK (e.g., SunEC).
+	 *
+	 * @param kexAlgorithm the name of an elliptic curve key exchange method
+	 * @return <code>true</code> if the method can be used
+	 */
+	public static boolean isSupported(String kexAlgorithm)
+	{
+		if (NistEcdhExchange.isNistEcdh(kexAlgorithm))
+			return NistEcdhExchange.isCurveSupported(kexAlgorithm);
+
+		return isEcdh(kexAlgorithm);
+	}
+
+	/**
+	 * Returns an exchange with a key pair from the {@link EphemeralKeyPool} if
+	 * there is one.
+	 *
+	 * @param kexAlgorithm the name of the key exchange method
+	 * @return a new exchange
+	 * @throws IllegalArgumentException if the method is unknown
+	 */
+	public static EcdhExchange getInstance(String kexAlgorithm)
+	{
+		EcdhExchange ecdh = EphemeralKeyPool.takeEcdh(kexAlgorithm);
+
+		return (ecdh != null) ? ecdh : create(kexAlgorithm);
+	}
+
+	static EcdhExchange create(String kexAlgorithm)
+	{
+		if (kexAlgorithm.equals("curve25519-sha256") || kexAlgorithm.equals("curve25519-sha256@libssh.org"))
+			return new Curve25519Exchange();
+
+		if (NistEcdhExchange.isNistEcdh(kexAlgorithm))
+			return new NistEcdhExchange(kexAlgorithm);
+
+		throw new IllegalArgumentException("Unknown ECDH method " + kexAlgorithm);
+	}
+
+	/**
+	 * Creates the ephemeral key pair.
+	 *
+	 * @return the encoded public key
+	 */
+	protected abstract byte[] generateKeyPair(SecureRandom rnd);
+
+	/**
+	 * @param peerPublic the encoded public key of the peer
+	 * @return the shared secret as unsigned big-endian number
+	 * @throws IllegalArgumentException if the public key is not valid
+	 */
+	protected abstract byte[] calculateSharedSecret(byte[] peerPublic);
+
+	/**
+	 * Creates the key pair in advance, it is used by the next call of
+	 * {@link #clientInit(SecureRandom)} or {@link #serverInit(SecureRandom)}.
+	 */
+	void pregenerate(SecureRandom rnd)
+	{
+		pregenerated = generateKeyPair(rnd);
+	}
+
+	private byte[] ownPublicKey(SecureRandom rnd)
+	{
+		byte[] pub = pregenerated;
+		pregenerated = null;
+
+		return (pub != null) ? pub : generateKeyPair(rnd);
+	}
+
+	public void clientInit(SecureRandom rnd)
+	{
+		k = null;
+		e = ownPublicKey(rnd);
+	}
+
+	public void serverInit(SecureRandom rnd)
+	{
+		k = null;
+		f = ownPublicKey(rnd);
+	}
+
+	/**
+	 * @return Returns Q_C.
+	 * @throws IllegalStateException
+	 */
+	public byte[] getE()
+	{
+		if (e == null)
+			throw new IllegalStateException("EcdhExchange not initialized!");
+
+		return e;
+	}
+
+	/**
+	 * @return Returns Q_S.
+	 * @throws IllegalStateException
+	 */
+	public byte[] getF()
+	{
+		if (f == null)
+			throw new IllegalStateException("EcdhExchange not initialized!");
+
+		return f;
+	}
+
+	/**
+	 * @return Returns the shared secret k.
+	 * @throws IllegalStateException
+	 */
+	public BigInteger getK()
+	{
+		if (k == null)
+			throw new IllegalStateException("Shared secret not yet known, need f first!");
+
+		return k;
+	}
+
+	/**
+	 * @param f the server's public key
+	 * @throws IllegalArgumentException if the key is not valid
+	 */
+	public void setF(byte[] f)
+	{
+		if (e == null)
+			throw new IllegalStateException("EcdhExchange not initialized!");
+
+		this.k = new BigInteger(1, calculateSharedSecret(f));
+		this.f = f;
+	}
+
+	/**
+	 * @param e the client's public key
+	 * @throws IllegalArgumentException if the key is not valid
+	 */
+	public void setE(byte[] e)
+	{
+		if (f == null)
+			throw new IllegalStateException("EcdhExchange not initialized!");
+
+		this.k = new BigInteger(1, calculateSharedSecret(e));
+		this.e = e;
+	}
+
+	public byte[] calculateH(byte[] clientversion, byte[] serverversion, byte[] clientKexPayload,
+			byte[] serverKexPayload, byte[] hostKey)
+	{
+		HashForSSH2Types hash = new HashForSSH2Types(hashFunction);
+
+		hash.updateByteString(clientversion);
+		hash.updateByteString(serverversion);
+		hash.updateByteString(clientKexPayload);
+		hash.updateByteString(serverKexPayload);
+		hash.updateByteString(hostKey);
+		hash.updateByteString(e);
+		hash.updateByteString(f);
+		hash.updateBigInt(k);
+
+		return hash.getDigest();
+	}
+
+	public String getHashFunction()
+	{
+		return hashFunction;
+	}
+}
@@ -0,0 +1,372 @@
+package ch.ethz.ssh2.crypto.dh;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+
+import ch.ethz.ssh2.log.Logger;
+import ch.ethz.ssh2.util.Threads;
+
+/**
+ * EphemeralKeyPool (optional, disabled by default). Pregenerates the ephemeral
+ * key pairs of the key exchange in the background, so that connecting and
+ * rekeying do not have to wait for them.
+ * <p>
+ * The pool is shared by all connections of the JVM and keeps up to
+ * <code>poolSize</code> key pairs for each DH group and elliptic curve. A group
+ * is added to the pool the first time a key exchange asks for it, or in advance
+ * with {@link #prepare(String)}. Every key pair is handed out exactly once and
+ * removed from the pool, it is never used for a second key exchange.
+ * <p>
+ * There is at most one (low priority) thread generating the key pairs. Once all
+ * groups are full it exits, a new thread is started when a key pair is taken.
+ * <p>
+ * With {@link #setMaxAge(long)} key pairs that were not used in time are
+ * discarded when the next key pair is taken, instead of being used.
+ *
+ * @version $Id$
+ */
+public class EphemeralKeyPool
+{
+	private static final Logger log = Logger.getLogger(EphemeralKeyPool.class);
+
+	/* The map object is also used for locking purposes */
+	private static final Map<String, LinkedList<Entry>> pools = new LinkedHashMap<String, LinkedList<Entry>>();
+
+	private static int poolSize = 0;
+
+	/* Zero means no limit */
+	private static long maxAgeNanos = 0;
+
+	private static Thread generatorThread = null;
+
+	private static ThreadFactory threadFactory = null;
+
+	private static SecureRandom rnd = null;
+
+	private static class Entry
+	{
+		final Object keyPair;
+		final long created = System.nanoTime();
+
+		Entry(Object keyPair)
+		{
+			this.keyPair = keyPair;
+		}
+	}
+
+	private static class GeneratorThread implements Runnable
+	{
+		private final boolean lowerPriority;
+
+		GeneratorThread(boolean lowerPriority)
+		{
+			this.lowerPriority = lowerPriority;
+		}
+
+		public void run()
+		{
+			if (lowerPriority)
+				Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+
+			while (true)
+			{
+				String key;
+				SecureRandom r;
+
+				synchronized (pools)
+				{
+					key = findNotFull();
+
+					if (key == null)
+					{
+						generatorThread = null;
+						return;
+					}
+
+					r = rnd;
+				}
+
+				Object keyPair;
+
+				try
+				{
+					keyPair = generate(key, r);
+				}
+				catch (RuntimeException e)
+				{
+					log.warning("Cannot pregenerate key pairs for " + key + ": " + e.getMessage());
+
+					synchronized (pools)
+					{
+						pools.remove(key);
+					}
+					continue;
+				}
+
+				synchronized (pools)
+				{
+					LinkedList<Entry> pool = pools.get(key);
+
+					if ((pool != null) && (pool.size() < poolSize))
+						pool.add(new Entry(keyPair));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets the number of key pairs kept for each group. Zero disables the pool
+	 * and discards all pregenerated key pairs.
+	 *
+	 * @param size the number of key pairs per group, the default is 0
+	 */
+	public static void setPoolSize(int size)
+	{
+		if (size < 0)
+			throw new IllegalArgumentException("The pool size must not be negative");
+
+		synchronized (pools)
+		{
+			poolSize = size;
+
+			if (size == 0)
+			{
+				pools.clear();
+				rnd = null;
+				return;
+			}
+
+			if (rnd == null)
+				rnd = new SecureRandom();
+
+			for (LinkedList<Entry> pool : pools.values())
+			{
+				while (pool.size() > size)
+					pool.removeFirst();
+			}
+		}
+	}
+
+	public static int getPoolSize()
+	{
+		synchronized (pools)
+		{
+			return poolSize;
+		}
+	}
+
+	/**
+	 * Limits how long a key pair is kept in the pool. Older key pairs are not
+	 * handed out, the pool is refilled instead.
+	 *
+	 * @param seconds the maximum age of a pregenerated key pair, 0 (the
+	 *            default) for no limit
+	 */
+	public static void setMaxAge(long seconds)
+	{
+		if (seconds < 0)
+			throw new IllegalArgumentException("The maximum age must not be negative");
+
+		synchronized (pools)
+		{
+			maxAgeNanos = seconds * 1000000000L;
+		}
+	}
+
+	/**
+	 * @return the number of key pairs in the pool of the key exchange method
+	 */
+	static int size(String kexAlgorithm)
+	{
+		synchronized (pools)
+		{
+			LinkedList<Entry> pool = pools.get(getKey(kexAlgorithm));
+
+			return (pool != null) ? pool.size() : 0;
+		}
+	}
+
+	/**
+	 * Sets the factory used to create the generator thread, and the threads
+	 * that build the fixed-base tables of the DH groups. Takes effect the next
+	 * time a thread has to be started.
+	 *
+	 * @param factory the factory, or <code>null</code> for a plain daemon thread
+	 *            with minimum priority
+	 */
+	public static void setThreadFactory(ThreadFactory factory)
+	{
+		synchronized (pools)
+		{
+			threadFactory = factory;
+		}
+	}
+
+	/**
+	 * @return the factory for background threads, also used to build the
+	 *         fixed-base tables of the DH groups
+	 */
+	static ThreadFactory getThreadFactory()
+	{
+		synchronized (pools)
+		{
+			return threadFactory;
+		}
+	}
+
+	/**
+	 * Starts to pregenerate key pairs for a key exchange method before it is
+	 * used for the first time. Has no effect if the pool is disabled or the
+	 * method does not use ephemeral keys of a fixed group (e.g.,
+	 * diffie-hellman-group-exchange-sha1).
+	 *
+	 * @param kexAlgorithm the name of the key exchange method
+	 */
+	public static void prepare(String kexAlgorithm)
+	{
+		String key = getKey(kexAlgorithm);
+
+		if (key == null)
+			return;
+
+		synchronized (pools)
+		{
+			if ((poolSize > 0) && (pools.containsKey(key) == false))
+			{
+				pools.put(key, new LinkedList<Entry>());
+				startGenerator();
+			}
+		}
+	}
+
+	/**
+	 * @return the pool key, or <code>null</code> if the method is not pooled
+	 */
+	private static String getKey(String kexAlgorithm)
+	{
+		if (EcdhExchange.isEcdh(kexAlgorithm))
+		{
+			/* Same curve, same key pairs */
+
+			if (kexAlgorithm.equals("curve25519-sha256@libssh.org"))
+				return "curve25519-sha256";
+
+			return kexAlgorithm;
+		}
+
+		if (kexAlgorithm.equals("diffie-hellman-group1-sha1"))
+			return getDhKey(1);
+		if (kexAlgorithm.equals("diffie-hellman-group14-sha1") || kexAlgorithm.equals("diffie-hellman-group14-sha256"))
+			return getDhKey(14);
+		if (kexAlgorithm.equals("diffie-hellman-group16-sha512"))
+			return getDhKey(16);
+		if (kexAlgorithm.equals("diffie-hellman-group18-sha512"))
+			return getDhKey(18);
+
+		return null;
+	}
+
+	private static String getDhKey(int group)
+	{
+		return "dh-group" + group;
+	}
+
+	private static Object generate(String key, SecureRandom r)
+	{
+		if (key.startsWith("dh-group"))
+			return DhExchange.generateKeyPair(Integer.parseInt(key.substring(8)), r);
+
+		EcdhExchange ecdh = EcdhExchange.create(key);
+		ecdh.pregenerate(r);
+
+		return ecdh;
+	}
+
+	private static String findNotFull()
+	{
+		if (poolSize == 0)
+			return null;
+
+		for (Map.Entry<String, LinkedList<Entry>> entry : pools.entrySet())
+		{
+			if (entry.getValue().size() < poolSize)
+				return entry.getKey();
+		}
+
+		return null;
+	}
+
+	private static void startGenerator()
+	{
+		if (generatorThread == null)
+			generatorThread = Threads.start(threadFactory, new GeneratorThread(threadFactory == null), true);
+	}
+
+	/**
+	 * Removes a key pair from the pool. If the pool is empty the caller has to
+	 * generate the key pair itself, the pool is refilled in the background.
+	 *
+	 * @return the key pair, or <code>null</code>
+	 */
+	private static Object take(String key)
+	{
+		if (key == null)
+			return null;
+
+		synchronized (pools)
+		{
+			if (poolSize == 0)
+				return null;
+
+			LinkedList<Entry> pool = pools.get(key);
+
+			if (pool == null)
+			{
+				pool = new LinkedList<Entry>();
+				pools.put(key, pool);
+			}
+
+			Entry entry = pool.poll();
+
+			/* The oldest come first */
+
+			if (maxAgeNanos > 0)
+			{
+				long now = System.nanoTime();
+
+				while ((entry != null) && (now - entry.created > maxAgeNanos))
+					entry = pool.poll();
+			}
+
+			startGenerator();
+
+			if (entry == null)
+			{
+				log.debug("No pregenerated key pair for " + key);
+				return null;
+			}
+
+			return entry.keyPair;
+		}
+	}
+
+	/**
+	 * @return the private exponent and g^x, or <code>null</code>
+	 */
+	static BigInteger[] takeDh(int group)
+	{
+		return (BigInteger[]) take(getDhKey(group));
+	}
+
+	/**
+	 * @return an exchange with a pregenerated key pair, or <code>null</code>
+	 */
+	static EcdhExchange takeEcdh(String kexAlgorithm)
+	{
+		return (EcdhExchange) take(getKey(kexAlgorithm));
+	}
+}
@@ -0,0 +1,112 @@
+package ch.ethz.ssh2.crypto.dh;
+
+import java.math.BigInteger;
+
+/**
+ * Exponentiation with a fixed base (Lim-Lee comb), used for the generator of the
+ * built-in DH groups.
+ * <p>
+ * The exponent is split into <code>teeth</code> pieces of <code>span</code> bits.
+ * The table holds the products of <code>g^(2^(i * span))</code> for all subsets
+ * of the pieces, so <code>g^x</code> needs only <code>span</code> squarings and
+ * multiplications instead of one squaring per exponent bit. The reduction uses
+ * Barrett's method, which needs multiplications only (BigInteger's division is
+ * much slower than its multiplication).
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ *
+ * @version $Id$
+ */
+final class FixedBaseTable
+{
+	private final BigInteger p;
+	private final int k;
+
+	/* floor(2^(2k) / p) for the Barrett reduction */
+	private final BigInteger mu;
+
+	private final int teeth;
+	private final int span;
+	private final BigInteger[] table;
+
+	/**
+	 * @param g the base
+	 * @param p the modulus
+	 * @param teeth the table has 2^teeth entries of the size of p
+	 */
+	FixedBaseTable(BigInteger g, BigInteger p, int teeth)
+	{
+		this.p = p;
+		this.k = p.bitLength();
+		this.mu = BigInteger.ONE.shiftLeft(2 * k).divide(p);
+		this.teeth = teeth;
+		this.span = (k + teeth - 1) / teeth;
+
+		BigInteger[] bases = new BigInteger[teeth];
+
+		bases[0] = g.mod(p);
+
+		for (int i = 1; i < teeth; i++)
+		{
+			BigInteger t = bases[i - 1];
+
+			for (int j = 0; j < span; j++)
+				t = reduce(t.multiply(t));
+
+			bases[i] = t;
+		}
+
+		table = new BigInteger[1 << teeth];
+		table[0] = BigInteger.ONE;
+
+		for (int i = 1; i < table.length; i++)
+		{
+			/* Add the lowest piece to the entry without it */
+
+			table[i] = reduce(table[i & (i - 1)].multiply(bases[Integer.numberOfTrailingZeros(i)]));
+		}
+	}
+
+	private BigInteger reduce(BigInteger z)
+	{
+		BigInteger q = z.shiftRight(k - 1).multiply(mu).shiftRight(k + 1);
+		BigInteger r = z.subtract(q.multiply(p));
+
+		/* q is at most two too small */
+
+		while (r.compareTo(p) >= 0)
+			r = r.subtract(p);
+
+		return r;
+	}
+
+	/**
+	 * @param x the exponent, 0 &lt;= x &lt; 2^p.bitLength()
+	 * @return g^x mod p
+	 */
+	BigInteger pow(BigInteger x)
+	{
+		if ((x.signum() < 0) || (x.bitLength() > teeth * span))
+			throw new IllegalArgumentException("Exponent out of range");
+
+		BigInteger r = BigInteger.ONE;
+
+		for (int j = span - 1; j >= 0; j--)
+		{
+			r = reduce(r.multiply(r));
+
+			int index = 0;
+
+			for (int i = 0; i < teeth; i++)
+			{
+				if (x.testBit(i * span + j))
+					index |= 1 << i;
+			}
+
+			if (index != 0)
+				r = reduce(r.multiply(table[index]));
+		}
+
+		return r;
+	}
+}
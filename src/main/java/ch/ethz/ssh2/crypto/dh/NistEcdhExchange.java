@@ -0,0 +1,228 @@
+package ch.ethz.ssh2.crypto.dh;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.EllipticCurve;
+
+import javax.crypto.KeyAgreement;
+
+import ch.ethz.ssh2.log.Logger;
+
+/**
+ * ecdh-sha2-nistp256, ecdh-sha2-nistp384 and ecdh-sha2-nistp521 (RFC 5656),
+ * using the "EC" key pair generator and the "ECDH" key agreement of the JCA.
+ * The public values are uncompressed points.
+ *
+ * @version $Id$
+ */
+public class NistEcdhExchange extends EcdhExchange
+{
+	private static final Logger log = Logger.getLogger(NistEcdhExchange.class);
+
+	private static final String[] KEX_NAMES = { "ecdh-sha2-nistp256", "ecdh-sha2-nistp384", "ecdh-sha2-nistp521" };
+	private static final String[] CURVE_NAMES = { "secp256r1", "secp384r1", "secp521r1" };
+	private static final String[] HASH_NAMES = { "SHA2-256", "SHA2-384", "SHA2-512" };
+
+	private static final boolean[] supported = new boolean[KEX_NAMES.length];
+
+	static
+	{
+		for (int i = 0; i < KEX_NAMES.length; i++)
+		{
+			try
+			{
+				KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+				kpg.initialize(new ECGenParameterSpec(CURVE_NAMES[i]));
+				KeyFactory.getInstance("EC");
+				KeyAgreement.getInstance("ECDH");
+				supported[i] = true;
+			}
+			catch (GeneralSecurityException e)
+			{
+				log.debug("No JCA support for " + CURVE_NAMES[i] + ", " + KEX_NAMES[i] + " is not available");
+			}
+		}
+	}
+
+	private final String curveName;
+
+	private PrivateKey privateKey;
+	private ECParameterSpec params;
+
+	NistEcdhExchange(String kexAlgorithm)
+	{
+		this(indexOf(kexAlgorithm));
+	}
+
+	private NistEcdhExchange(int index)
+	{
+		super(HASH_NAMES[index]);
+		this.curveName = CURVE_NAMES[index];
+	}
+
+	private static int indexOf(String kexAlgorithm)
+	{
+		for (int i = 0; i < KEX_NAMES.length; i++)
+		{
+			if (KEX_NAMES[i].equals(kexAlgorithm))
+				return i;
+		}
+		throw new IllegalArgumentException("Unknown ECDH method " + kexAlgorithm);
+	}
+
+	/**
+	 * @return <code>true</code> if the method is one of the NIST curve methods
+	 */
+	static boolean isNistEcdh(String kexAlgorithm)
+	{
+		for (int i = 0; i < KEX_NAMES.length; i++)
+		{
+			if (KEX_NAMES[i].equals(kexAlgorithm))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return <code>true</code> if the JCA provides the curve of the method
+	 */
+	static boolean isCurveSupported(String kexAlgorithm)
+	{
+		for (int i = 0; i < KEX_NAMES.length; i++)
+		{
+			if (KEX_NAMES[i].equals(kexAlgorithm))
+				return supported[i];
+		}
+		return false;
+	}
+
+	private int getFieldSize()
+	{
+		return (params.getCurve().getField().getFieldSize() + 7) / 8;
+	}
+
+	@Override
+	protected byte[] generateKeyPair(SecureRandom rnd)
+	{
+		KeyPair kp;
+
+		try
+		{
+			KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+			kpg.initialize(new ECGenParameterSpec(curveName), rnd);
+			kp = kpg.generateKeyPair();
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IllegalStateException("Cannot generate " + curveName + " key pair", e);
+		}
+
+		return setKeyPair(kp);
+	}
+
+	/**
+	 * Uses the given key pair of the curve instead of a generated one.
+	 *
+	 * @return the encoded public key
+	 */
+	byte[] setKeyPair(KeyPair kp)
+	{
+		ECPublicKey pub = (ECPublicKey) kp.getPublic();
+
+		privateKey = kp.getPrivate();
+		params = pub.getParams();
+
+		return encodePoint(pub.getW());
+	}
+
+	private byte[] encodePoint(ECPoint w)
+	{
+		int len = getFieldSize();
+
+		byte[] encoded = new byte[1 + 2 * len];
+
+		encoded[0] = 0x04;
+		copyUnsigned(w.getAffineX(), encoded, 1, len);
+		copyUnsigned(w.getAffineY(), encoded, 1 + len, len);
+
+		return encoded;
+	}
+
+	private static void copyUnsigned(BigInteger v, byte[] dst, int off, int len)
+	{
+		byte[] b = v.toByteArray();
+
+		/* Strip the sign byte, pad with leading zeros */
+
+		int n = Math.min(b.length, len);
+
+		System.arraycopy(b, b.length - n, dst, off + len - n, n);
+	}
+
+	/**
+	 * Decodes an uncompressed point and checks that it is on the curve.
+	 */
+	private ECPoint decodePoint(byte[] encoded)
+	{
+		int len = getFieldSize();
+
+		if ((encoded.length != 1 + 2 * len) || (encoded[0] != 0x04))
+			throw new IllegalArgumentException("Invalid " + curveName + " public key encoding");
+
+		byte[] xb = new byte[len];
+		byte[] yb = new byte[len];
+
+		System.arraycopy(encoded, 1, xb, 0, len);
+		System.arraycopy(encoded, 1 + len, yb, 0, len);
+
+		BigInteger x = new BigInteger(1, xb);
+		BigInteger y = new BigInteger(1, yb);
+
+		EllipticCurve curve = params.getCurve();
+		BigInteger p = ((ECFieldFp) curve.getField()).getP();
+
+		if ((x.compareTo(p) >= 0) || (y.compareTo(p) >= 0))
+			throw new IllegalArgumentException("Invalid " + curveName + " public key (coordinate out of range)");
+
+		/* y^2 = x^3 + ax + b */
+
+		BigInteger lhs = y.multiply(y).mod(p);
+		BigInteger rhs = x.multiply(x).add(curve.getA()).multiply(x).add(curve.getB()).mod(p);
+
+		if (lhs.equals(rhs) == false)
+			throw new IllegalArgumentException("Invalid " + curveName + " public key (point is not on the curve)");
+
+		return new ECPoint(x, y);
+	}
+
+	@Override
+	protected byte[] calculateSharedSecret(byte[] peerPublic)
+	{
+		ECPoint w = decodePoint(peerPublic);
+
+		try
+		{
+			PublicKey pub = KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(w, params));
+			KeyAgreement ka = KeyAgreement.getInstance("ECDH");
+			ka.init(privateKey);
+			ka.doPhase(pub, true);
+			return ka.generateSecret();
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IllegalArgumentException("Invalid " + curveName + " public key", e);
+		}
+	}
+}
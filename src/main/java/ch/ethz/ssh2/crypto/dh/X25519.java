@@ -0,0 +1,234 @@
+package ch.ethz.ssh2.crypto.dh;
+
+import java.util.Arrays;
+
+/**
+ * The X25519 function (RFC 7748) in constant time, used if the JDK does not
+ * provide it. Field elements are kept in 16 limbs of 16 bits (as in TweetNaCl),
+ * there are no secret dependent branches or memory accesses.
+ *
+ * @version $Id$
+ */
+final class X25519
+{
+	static final int KEY_SIZE = 32;
+
+	private static final long[] A24 = { 0xDB41, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+
+	private static final byte[] BASE_POINT = new byte[KEY_SIZE];
+
+	static
+	{
+		BASE_POINT[0] = 9;
+	}
+
+	/* Scratch space for mul() */
+	private final long[] t = new long[31];
+
+	private X25519()
+	{
+	}
+
+	/**
+	 * @param k the private key (32 bytes, clamped here)
+	 * @return the public key
+	 */
+	static byte[] publicKey(byte[] k)
+	{
+		return scalarMult(k, BASE_POINT);
+	}
+
+	/**
+	 * @param k the private key (32 bytes, clamped here)
+	 * @param u the peer's public key (32 bytes)
+	 * @return the shared secret
+	 */
+	static byte[] scalarMult(byte[] k, byte[] u)
+	{
+		if ((k.length != KEY_SIZE) || (u.length != KEY_SIZE))
+			throw new IllegalArgumentException("X25519 keys must be 32 bytes long");
+
+		byte[] out = new byte[KEY_SIZE];
+
+		new X25519().ladder(out, k, u);
+
+		return out;
+	}
+
+	private void ladder(byte[] out, byte[] n, byte[] p)
+	{
+		byte[] z = n.clone();
+
+		z[31] = (byte) ((n[31] & 127) | 64);
+		z[0] &= (byte) 248;
+
+		long[] x = new long[16];
+		long[] a = new long[16];
+		long[] b = new long[16];
+		long[] c = new long[16];
+		long[] d = new long[16];
+		long[] e = new long[16];
+		long[] f = new long[16];
+
+		unpack(x, p);
+
+		System.arraycopy(x, 0, b, 0, 16);
+		a[0] = 1;
+		d[0] = 1;
+
+		for (int i = 254; i >= 0; --i)
+		{
+			int r = (z[i >>> 3] >>> (i & 7)) & 1;
+
+			cswap(a, b, r);
+			cswap(c, d, r);
+			add(e, a, c);
+			sub(a, a, c);
+			add(c, b, d);
+			sub(b, b, d);
+			mul(d, e, e);
+			mul(f, a, a);
+			mul(a, c, a);
+			mul(c, b, e);
+			add(e, a, c);
+			sub(a, a, c);
+			mul(b, a, a);
+			sub(c, d, f);
+			mul(a, c, A24);
+			add(a, a, d);
+			mul(c, c, a);
+			mul(a, d, f);
+			mul(d, b, x);
+			mul(b, e, e);
+			cswap(a, b, r);
+			cswap(c, d, r);
+		}
+
+		invert(c, c);
+		mul(a, a, c);
+		pack(out, a);
+
+		Arrays.fill(z, (byte) 0);
+	}
+
+	private static void carry(long[] o)
+	{
+		for (int i = 0; i < 16; i++)
+		{
+			o[i] += (1L << 16);
+			long c = o[i] >> 16;
+
+			if (i < 15)
+				o[i + 1] += c - 1;
+			else
+				o[0] += 38 * (c - 1);
+
+			o[i] -= c << 16;
+		}
+	}
+
+	/**
+	 * Swaps p and q if b is 1, in constant time.
+	 */
+	private static void cswap(long[] p, long[] q, int b)
+	{
+		long c = ~(b - 1L);
+
+		for (int i = 0; i < 16; i++)
+		{
+			long t = c & (p[i] ^ q[i]);
+			p[i] ^= t;
+			q[i] ^= t;
+		}
+	}
+
+	private static void pack(byte[] o, long[] n)
+	{
+		long[] m = new long[16];
+		long[] t = n.clone();
+
+		carry(t);
+		carry(t);
+		carry(t);
+
+		for (int j = 0; j < 2; j++)
+		{
+			m[0] = t[0] - 0xffed;
+
+			for (int i = 1; i < 15; i++)
+			{
+				m[i] = t[i] - 0xffff - ((m[i - 1] >> 16) & 1);
+				m[i - 1] &= 0xffff;
+			}
+
+			m[15] = t[15] - 0x7fff - ((m[14] >> 16) & 1);
+			int b = (int) ((m[15] >> 16) & 1);
+			m[14] &= 0xffff;
+			cswap(t, m, 1 - b);
+		}
+
+		for (int i = 0; i < 16; i++)
+		{
+			o[2 * i] = (byte) t[i];
+			o[2 * i + 1] = (byte) (t[i] >> 8);
+		}
+	}
+
+	private static void unpack(long[] o, byte[] n)
+	{
+		for (int i = 0; i < 16; i++)
+			o[i] = (n[2 * i] & 0xff) + ((long) (n[2 * i + 1] & 0xff) << 8);
+
+		o[15] &= 0x7fff;
+	}
+
+	private static void add(long[] o, long[] a, long[] b)
+	{
+		for (int i = 0; i < 16; i++)
+			o[i] = a[i] + b[i];
+	}
+
+	private static void sub(long[] o, long[] a, long[] b)
+	{
+		for (int i = 0; i < 16; i++)
+			o[i] = a[i] - b[i];
+	}
+
+	private void mul(long[] o, long[] a, long[] b)
+	{
+		long[] t = this.t;
+
+		Arrays.fill(t, 0);
+
+		for (int i = 0; i < 16; i++)
+		{
+			long ai = a[i];
+
+			for (int j = 0; j < 16; j++)
+				t[i + j] += ai * b[j];
+		}
+
+		for (int i = 0; i < 15; i++)
+			t[i] += 38 * t[i + 16];
+
+		System.arraycopy(t, 0, o, 0, 16);
+
+		carry(o);
+		carry(o);
+	}
+
+	private void invert(long[] o, long[] i)
+	{
+		long[] c = i.clone();
+
+		for (int a = 253; a >= 0; a--)
+		{
+			mul(c, c, c);
+
+			if ((a != 2) && (a != 4))
+				mul(c, c, i);
+		}
+
+		System.arraycopy(c, 0, o, 0, 16);
+	}
+}
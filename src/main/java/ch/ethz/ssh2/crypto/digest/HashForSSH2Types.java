@@ -27,6 +27,10 @@ public class HashForSSH2Types
 		{
 			md = new SHA2(512);
 		}
+		else if (type.equals("SHA2-384"))
+		{
+			md = new SHA2(384);
+		}
 		else if (type.equals("SHA2-256"))
 		{
 			md = new SHA2(256);
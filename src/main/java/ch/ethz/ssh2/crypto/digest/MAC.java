@@ -14,12 +14,14 @@ public final class MAC
 {
 	Digest mac;
 	int size;
+	boolean etm;
 
 	public final static String[] getMacList()
 	{
 		/* Higher Priority First */
 
-		return new String[] { "hmac-sha2-256", "hmac-sha2-512", "hmac-sha1-96", "hmac-sha1", "hmac-md5-96", "hmac-md5" };
+		return new String[] { "hmac-sha2-256-etm@openssh.com", "hmac-sha2-512-etm@openssh.com", "hmac-sha2-256",
+				"hmac-sha2-512", "hmac-sha1-96", "hmac-sha1", "hmac-md5-96", "hmac-md5" };
 	}
 
 	public final static void checkMacList(String[] macs)
@@ -30,6 +32,10 @@ public final class MAC
 
 	public final static int getKeyLen(String type)
 	{
+		if (type.equals("hmac-sha2-256-etm@openssh.com"))
+			return 32;
+		if (type.equals("hmac-sha2-512-etm@openssh.com"))
+			return 64;
 	    if (type.equals("hmac-sha2-256"))
 	        return 32;
 	    if (type.equals("hmac-sha2-512"))
@@ -47,6 +53,12 @@ public final class MAC
 
 	public MAC(String type, byte[] key)
 	{
+		if (type.endsWith("-etm@openssh.com"))
+		{
+			etm = true;
+			type = type.substring(0, type.length() - "-etm@openssh.com".length());
+		}
+
 	    if (type.equals("hmac-sha2-256"))
 	    {
 	        mac = new HMAC(new SHA2(256), key, 32);
@@ -100,4 +112,14 @@ public final class MAC
 	{
 		return size;
 	}
+
+	/**
+	 * @return <code>true</code> for the encrypt-then-mac variants (*-etm@openssh.com):
+	 *         the packet length is sent in clear and the MAC is computed over
+	 *         the encrypted packet
+	 */
+	public final boolean isEncryptThenMac()
+	{
+		return etm;
+	}
 }
@@ -0,0 +1,55 @@
+package ch.ethz.ssh2.packets;
+
+import java.io.IOException;
+
+/**
+ * PacketKexECDHInit.
+ * 
+ * @version $Id$
+ */
+public class PacketKexECDHInit
+{
+	byte[] payload;
+
+	byte[] publicKey;
+
+	public PacketKexECDHInit(byte[] publicKey)
+	{
+		this.publicKey = publicKey;
+	}
+
+	public PacketKexECDHInit(byte payload[], int off, int len) throws IOException
+	{
+		this.payload = new byte[len];
+		System.arraycopy(payload, off, this.payload, 0, len);
+
+		TypesReader tr = new TypesReader(payload, off, len);
+
+		int packet_type = tr.readByte();
+
+		if (packet_type != Packets.SSH_MSG_KEX_ECDH_INIT)
+			throw new IOException("This is not a SSH_MSG_KEX_ECDH_INIT! ("
+					+ packet_type + ")");
+
+		publicKey = tr.readByteString();
+
+		if (tr.remain() != 0) throw new IOException("PADDING IN SSH_MSG_KEX_ECDH_INIT!");
+	}
+
+	public byte[] getPublicKey()
+	{
+		return publicKey;
+	}
+
+	public byte[] getPayload()
+	{
+		if (payload == null)
+		{
+			TypesWriter tw = new TypesWriter();
+			tw.writeByte(Packets.SSH_MSG_KEX_ECDH_INIT);
+			tw.writeString(publicKey, 0, publicKey.length);
+			payload = tw.getBytes();
+		}
+		return payload;
+	}
+}
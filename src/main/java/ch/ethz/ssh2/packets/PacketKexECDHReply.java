@@ -0,0 +1,73 @@
+package ch.ethz.ssh2.packets;
+
+import java.io.IOException;
+
+/**
+ * PacketKexECDHReply.
+ * 
+ * @version $Id$
+ */
+public class PacketKexECDHReply
+{
+	byte[] payload;
+
+	byte[] hostKey;
+	byte[] publicKey;
+	byte[] signature;
+
+	public PacketKexECDHReply(byte[] hostKey, byte[] publicKey, byte[] signature)
+	{
+		this.hostKey = hostKey;
+		this.publicKey = publicKey;
+		this.signature = signature;
+	}
+
+	public PacketKexECDHReply(byte payload[], int off, int len) throws IOException
+	{
+		this.payload = new byte[len];
+		System.arraycopy(payload, off, this.payload, 0, len);
+
+		TypesReader tr = new TypesReader(payload, off, len);
+
+		int packet_type = tr.readByte();
+
+		if (packet_type != Packets.SSH_MSG_KEX_ECDH_REPLY)
+			throw new IOException("This is not a SSH_MSG_KEX_ECDH_REPLY! ("
+					+ packet_type + ")");
+
+		hostKey = tr.readByteString();
+		publicKey = tr.readByteString();
+		signature = tr.readByteString();
+
+		if (tr.remain() != 0) throw new IOException("PADDING IN SSH_MSG_KEX_ECDH_REPLY!");
+	}
+
+	public byte[] getPayload()
+	{
+		if (payload == null)
+		{
+			TypesWriter tw = new TypesWriter();
+			tw.writeByte(Packets.SSH_MSG_KEX_ECDH_REPLY);
+			tw.writeString(hostKey, 0, hostKey.length);
+			tw.writeString(publicKey, 0, publicKey.length);
+			tw.writeString(signature, 0, signature.length);
+			payload = tw.getBytes();
+		}
+		return payload;
+	}
+
+	public byte[] getHostKey()
+	{
+		return hostKey;
+	}
+
+	public byte[] getPublicKey()
+	{
+		return publicKey;
+	}
+
+	public byte[] getSignature()
+	{
+		return signature;
+	}
+}
@@ -6,7 +6,9 @@ package ch.ethz.ssh2.server;
 
 import java.net.Socket;
 import java.security.SecureRandom;
+import java.util.concurrent.ThreadFactory;
 
+import ch.ethz.ssh2.ChannelWindowPolicy;
 import ch.ethz.ssh2.ServerAuthenticationCallback;
 import ch.ethz.ssh2.ServerConnection;
 import ch.ethz.ssh2.ServerConnectionCallback;
@@ -16,7 +18,9 @@ import ch.ethz.ssh2.crypto.CryptoWishList;
 import ch.ethz.ssh2.signature.DSAPrivateKey;
 import ch.ethz.ssh2.signature.RSAPrivateKey;
 import ch.ethz.ssh2.transport.ClientServerHello;
+import ch.ethz.ssh2.transport.NioTransportEngine;
 import ch.ethz.ssh2.transport.ServerTransportManager;
+import ch.ethz.ssh2.transport.TransportManager;
 
 public class ServerConnectionState
 {
@@ -36,6 +40,12 @@ public class ServerConnectionState
 	public RSAPrivateKey next_rsa_key;
 	
 	public Socket s;
+	public NioTransportEngine engine;
+	public ThreadFactory threadFactory;
+	public int maxPacketSize = TransportManager.DEFAULT_MAX_PACKET_SIZE;
+	public long rekeyMaxBytes = 0;
+	public long rekeyMaxSeconds = TransportManager.DEFAULT_REKEY_INTERVAL;
+	public ChannelWindowPolicy windowPolicy = ChannelWindowPolicy.DEFAULT;
 	
 	public ClientServerHello csh;
 	public ServerTransportManager tm;
@@ -0,0 +1,55 @@
+package ch.ethz.ssh2.transport;
+
+import java.io.IOException;
+
+/**
+ * Receives the data of SSH_MSG_CHANNEL_DATA messages directly from the
+ * {@link TransportConnection}, instead of getting the whole message through
+ * a {@link MessageHandler}. The data is decrypted straight into the region
+ * returned by the sink.
+ * <p>
+ * All methods are called on the receiving thread. After {@link #beginData(int, int)}
+ * has returned <code>true</code>, either {@link #commitData()} (the packet has been
+ * authenticated) or {@link #abortData()} (the connection is about to be closed)
+ * follows.
+ *
+ * @version $Id$
+ */
+public interface ChannelDataSink
+{
+	/**
+	 * Reserves room for the data of a message. Called after the message header
+	 * has been decrypted, but before the data has been decrypted and authenticated.
+	 *
+	 * @param recipient the recipient channel
+	 * @param len length of the data
+	 * @return <code>false</code> to receive the message through the message handler
+	 */
+	public boolean beginData(int recipient, int len) throws IOException;
+
+	/**
+	 * @return the array the data is written to
+	 */
+	public byte[] getDataArray();
+
+	/**
+	 * @return where the data starts in {@link #getDataArray()}
+	 */
+	public int getDataOffset();
+
+	/**
+	 * @return how many bytes go to {@link #getDataOffset()}, the rest continues at offset 0
+	 */
+	public int getDataFirstLength();
+
+	/**
+	 * The data has been authenticated and may be used.
+	 */
+	public void commitData() throws IOException;
+
+	/**
+	 * The reserved region will not be filled, or its content failed authentication.
+	 * It must not become readable.
+	 */
+	public void abortData();
+}
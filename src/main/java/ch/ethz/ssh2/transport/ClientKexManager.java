@@ -10,11 +10,9 @@ import java.security.SecureRandom;
 import ch.ethz.ssh2.ConnectionInfo;
 import ch.ethz.ssh2.ServerHostKeyVerifier;
 import ch.ethz.ssh2.crypto.CryptoWishList;
-import ch.ethz.ssh2.crypto.cipher.BlockCipher;
-import ch.ethz.ssh2.crypto.cipher.BlockCipherFactory;
 import ch.ethz.ssh2.crypto.dh.DhExchange;
 import ch.ethz.ssh2.crypto.dh.DhGroupExchange;
-import ch.ethz.ssh2.crypto.digest.MAC;
+import ch.ethz.ssh2.crypto.dh.EcdhExchange;
 import ch.ethz.ssh2.packets.PacketKexDHInit;
 import ch.ethz.ssh2.packets.PacketKexDHReply;
 import ch.ethz.ssh2.packets.PacketKexDhGexGroup;
@@ -22,6 +20,8 @@ import ch.ethz.ssh2.packets.PacketKexDhGexInit;
 import ch.ethz.ssh2.packets.PacketKexDhGexReply;
 import ch.ethz.ssh2.packets.PacketKexDhGexRequest;
 import ch.ethz.ssh2.packets.PacketKexDhGexRequestOld;
+import ch.ethz.ssh2.packets.PacketKexECDHInit;
+import ch.ethz.ssh2.packets.PacketKexECDHReply;
 import ch.ethz.ssh2.packets.PacketKexInit;
 import ch.ethz.ssh2.packets.Packets;
 import ch.ethz.ssh2.signature.DSAPublicKey;
@@ -72,6 +72,26 @@ public class ClientKexManager extends KexManager
 		throw new IOException("Unknown server host key algorithm '" + kxs.np.server_host_key_algo + "'");
 	}
 
+	private void verifyHostKey() throws IOException
+	{
+		if (verifier == null)
+			return;
+
+		boolean vres = false;
+
+		try
+		{
+			vres = verifier.verifyServerHostKey(hostname, port, kxs.np.server_host_key_algo, kxs.remote_hostkey);
+		}
+		catch (Exception e)
+		{
+			throw new IOException("The server hostkey was not accepted by the verifier callback.", e);
+		}
+
+		if (vres == false)
+			throw new IOException("The server hostkey was not accepted by the verifier callback");
+	}
+
 	
 	public synchronized void handleMessage(byte[] msg, int msglen) throws IOException
 	{
@@ -148,6 +168,16 @@ public class ClientKexManager extends KexManager
 				return;
 			}
 
+			if (EcdhExchange.isEcdh(kxs.np.kex_algo))
+			{
+				kxs.ecdh = EcdhExchange.getInstance(kxs.np.kex_algo);
+				kxs.ecdh.clientInit(rnd);
+				PacketKexECDHInit kp = new PacketKexECDHInit(kxs.ecdh.getE());
+				tm.sendKexMessage(kp.getPayload());
+				kxs.state = 1;
+				return;
+			}
+
 			if (kxs.np.kex_algo.equals("diffie-hellman-group1-sha1"))
 			{
 				sendKexDhInit("SHA1", 1);
@@ -186,23 +216,10 @@ public class ClientKexManager extends KexManager
 			if (km == null)
 				throw new IOException("Peer sent SSH_MSG_NEWKEYS, but I have no key material ready!");
 
-			BlockCipher cbc;
-			MAC mac;
-
-			try
-			{
-				cbc = BlockCipherFactory.createCipher(kxs.np.enc_algo_server_to_client, false,
-						km.enc_key_server_to_client, km.initial_iv_server_to_client);
+			changeCipher(kxs.np.enc_algo_server_to_client, kxs.np.mac_algo_server_to_client, false,
+					km.enc_key_server_to_client, km.initial_iv_server_to_client, km.integrity_key_server_to_client);
 
-				mac = new MAC(kxs.np.mac_algo_server_to_client, km.integrity_key_server_to_client);
-
-			}
-			catch (IllegalArgumentException e1)
-			{
-				throw new IOException("Fatal error during MAC startup!");
-			}
-
-			tm.changeRecvCipher(cbc, mac);
+			tm.changeRecvCompression(kxs.np.comp_algo_server_to_client);
 
 			ConnectionInfo sci = new ConnectionInfo();
 
@@ -214,6 +231,8 @@ public class ClientKexManager extends KexManager
 			sci.serverToClientCryptoAlgorithm = kxs.np.enc_algo_server_to_client;
 			sci.clientToServerMACAlgorithm = kxs.np.mac_algo_client_to_server;
 			sci.serverToClientMACAlgorithm = kxs.np.mac_algo_server_to_client;
+			sci.clientToServerCompressionAlgorithm = kxs.np.comp_algo_client_to_server;
+			sci.serverToClientCompressionAlgorithm = kxs.np.comp_algo_server_to_client;
 			sci.serverHostKeyAlgorithm = kxs.np.server_host_key_algo;
 			sci.serverHostKey = kxs.remote_hostkey;
 
@@ -249,23 +268,7 @@ public class ClientKexManager extends KexManager
 
 				kxs.remote_hostkey = dhgexrpl.getHostKey();
 
-				if (verifier != null)
-				{
-					boolean vres = false;
-
-					try
-					{
-						vres = verifier.verifyServerHostKey(hostname, port, kxs.np.server_host_key_algo, kxs.remote_hostkey);
-					}
-					catch (Exception e)
-					{
-						throw new IOException(
-								"The server hostkey was not accepted by the verifier callback.", e);
-					}
-
-					if (vres == false)
-						throw new IOException("The server hostkey was not accepted by the verifier callback");
-				}
+				verifyHostKey();
 
 				kxs.dhgx.setF(dhgexrpl.getF());
 
@@ -308,23 +311,7 @@ public class ClientKexManager extends KexManager
 
 				kxs.remote_hostkey = dhr.getHostKey();
 
-				if (verifier != null)
-				{
-					boolean vres = false;
-
-					try
-					{
-						vres = verifier.verifyServerHostKey(hostname, port, kxs.np.server_host_key_algo, kxs.remote_hostkey);
-					}
-					catch (Exception e)
-					{
-						throw new IOException(
-								"The server hostkey was not accepted by the verifier callback.", e);
-					}
-
-					if (vres == false)
-						throw new IOException("The server hostkey was not accepted by the verifier callback");
-				}
+				verifyHostKey();
 
 				kxs.dhx.setF(dhr.getF());
 
@@ -351,6 +338,41 @@ public class ClientKexManager extends KexManager
 			}
 		}
 
+		if (EcdhExchange.isEcdh(kxs.np.kex_algo))
+		{
+			if (kxs.state == 1)
+			{
+				PacketKexECDHReply ecr = new PacketKexECDHReply(msg, 0, msglen);
+
+				kxs.remote_hostkey = ecr.getHostKey();
+
+				verifyHostKey();
+
+				try
+				{
+					kxs.ecdh.setF(ecr.getPublicKey());
+
+					kxs.H = kxs.ecdh.calculateH(csh.getClientString(), csh.getServerString(), kxs.localKEX.getPayload(),
+							kxs.remoteKEX.getPayload(), ecr.getHostKey());
+				}
+				catch (IllegalArgumentException e)
+				{
+					throw new IOException("KEX error.", e);
+				}
+
+				boolean res = verifySignature(ecr.getSignature(), kxs.remote_hostkey);
+
+				if (res == false)
+					throw new IOException("Hostkey signature sent by remote is wrong!");
+
+				kxs.K = kxs.ecdh.getK();
+
+				finishKex(true);
+				kxs.state = -1;
+				return;
+			}
+		}
+
 		throw new IllegalStateException("Unkown KEX method! (" + kxs.np.kex_algo + ")");
 	}
 
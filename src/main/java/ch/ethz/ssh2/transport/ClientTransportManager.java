@@ -5,6 +5,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.security.SecureRandom;
 
 import ch.ethz.ssh2.DHGexParameters;
@@ -17,7 +18,24 @@ import ch.ethz.ssh2.util.Tokenizer;
  */
 public class ClientTransportManager extends TransportManager {
 
-    protected final Socket sock = new Socket();
+    protected final Socket sock;
+
+    private final NioTransportEngine engine;
+
+    public ClientTransportManager() {
+        this.sock = new Socket();
+        this.engine = null;
+    }
+
+    /**
+     * @param engine if not <code>null</code>, the connection is served by the given engine
+     *               instead of a dedicated receive thread
+     * @throws IOException
+     */
+    public ClientTransportManager(NioTransportEngine engine) throws IOException {
+        this.sock = (engine != null) ? SocketChannel.open().socket() : new Socket();
+        this.engine = engine;
+    }
 
     public void setTcpNoDelay(boolean state) throws IOException {
         sock.setTcpNoDelay(state);
@@ -40,10 +58,21 @@ public class ClientTransportManager extends TransportManager {
         ClientServerHello csh = ClientServerHello.clientHello(softwareversion, sock.getInputStream(),
                 sock.getOutputStream());
 
-        TransportConnection tc = new TransportConnection(sock.getInputStream(), sock.getOutputStream(), rnd);
+        // The version exchange is done in blocking mode, afterwards the engine takes over.
+
+        NioEndpoint endpoint = null;
+        TransportConnection tc;
+
+        if(engine != null) {
+            endpoint = engine.createEndpoint(sock.getChannel());
+            tc = new TransportConnection(endpoint.getInputStream(), endpoint.getOutputStream(), rnd);
+        }
+        else {
+            tc = new TransportConnection(sock.getInputStream(), sock.getOutputStream(), rnd);
+        }
 
         KexManager km = new ClientKexManager(this, csh, cwl, hostname, port, verifier, rnd);
-        super.init(tc, km);
+        super.init(tc, km, endpoint);
 
         km.initiateKEX(cwl, dhgex, null, null);
 
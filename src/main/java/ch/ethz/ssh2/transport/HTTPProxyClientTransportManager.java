@@ -26,6 +26,11 @@ public class HTTPProxyClientTransportManager extends ClientTransportManager {
         this.pd = pd;
     }
 
+    public HTTPProxyClientTransportManager(final HTTPProxyData pd, final NioTransportEngine engine) throws IOException {
+        super(engine);
+        this.pd = pd;
+    }
+
     @Override
     protected void connect(final String hostname, final int port, final int connectTimeout) throws IOException {
 
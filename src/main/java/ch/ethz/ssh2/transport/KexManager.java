@@ -7,14 +7,19 @@ package ch.ethz.ssh2.transport;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import ch.ethz.ssh2.ConnectionInfo;
 import ch.ethz.ssh2.DHGexParameters;
 import ch.ethz.ssh2.crypto.CryptoWishList;
 import ch.ethz.ssh2.crypto.KeyMaterial;
+import ch.ethz.ssh2.crypto.cipher.AeadCipher;
 import ch.ethz.ssh2.crypto.cipher.BlockCipher;
 import ch.ethz.ssh2.crypto.cipher.BlockCipherFactory;
+import ch.ethz.ssh2.crypto.dh.EcdhExchange;
+import ch.ethz.ssh2.crypto.dh.EphemeralKeyPool;
 import ch.ethz.ssh2.crypto.digest.MAC;
 import ch.ethz.ssh2.log.Logger;
 import ch.ethz.ssh2.packets.PacketKexInit;
@@ -167,10 +172,14 @@ public abstract class KexManager implements MessageHandler
 			log.info("enc_algo_client_to_server=" + np.enc_algo_client_to_server);
 			log.info("enc_algo_server_to_client=" + np.enc_algo_server_to_client);
 
-			np.mac_algo_client_to_server = getFirstMatch(client.mac_algorithms_client_to_server,
-					server.mac_algorithms_client_to_server);
-			np.mac_algo_server_to_client = getFirstMatch(client.mac_algorithms_server_to_client,
-					server.mac_algorithms_server_to_client);
+			/* AEAD ciphers have integrated authentication, no MAC is negotiated for them */
+
+			if (BlockCipherFactory.isAead(np.enc_algo_client_to_server) == false)
+				np.mac_algo_client_to_server = getFirstMatch(client.mac_algorithms_client_to_server,
+						server.mac_algorithms_client_to_server);
+			if (BlockCipherFactory.isAead(np.enc_algo_server_to_client) == false)
+				np.mac_algo_server_to_client = getFirstMatch(client.mac_algorithms_server_to_client,
+						server.mac_algorithms_server_to_client);
 
 			log.info("mac_algo_client_to_server=" + np.mac_algo_client_to_server);
 			log.info("mac_algo_server_to_client=" + np.mac_algo_server_to_client);
@@ -223,6 +232,11 @@ public abstract class KexManager implements MessageHandler
 		nextKEXdsakey = dsa;
 		nextKEXrsakey = rsa;
 		
+		/* Most likely negotiated, let the pool work while KEXINIT is on its way */
+
+		if (cwl.kexAlgorithms.length > 0)
+			EphemeralKeyPool.prepare(cwl.kexAlgorithms[0]);
+
 		if (kxs == null)
 		{
 			kxs = new KexState();
@@ -234,19 +248,45 @@ public abstract class KexManager implements MessageHandler
 		}
 	}
 
+	/**
+	 * Starts a key exchange with the parameters of the last one (automatic
+	 * rekeying). Nothing happens before the first key exchange has finished or
+	 * while one is running.
+	 *
+	 * @return <code>false</code> if no key exchange was started
+	 * @throws IOException
+	 */
+	public synchronized boolean initiateRekey() throws IOException
+	{
+		if ((kexCount == 0) || (kxs != null))
+			return false;
+
+		initiateKEX(nextKEXcryptoWishList, nextKEXdhgexParameters, nextKEXdsakey, nextKEXrsakey);
+
+		return true;
+	}
+
 	private boolean establishKeyMaterial()
 	{
 		try
 		{
-			int mac_cs_key_len = MAC.getKeyLen(kxs.np.mac_algo_client_to_server);
+			int mac_cs_key_len = (kxs.np.mac_algo_client_to_server != null) ? MAC
+					.getKeyLen(kxs.np.mac_algo_client_to_server) : 0;
 			int enc_cs_key_len = BlockCipherFactory.getKeySize(kxs.np.enc_algo_client_to_server);
-			int enc_cs_block_len = BlockCipherFactory.getBlockSize(kxs.np.enc_algo_client_to_server);
+			int enc_cs_block_len = BlockCipherFactory.getIvSize(kxs.np.enc_algo_client_to_server);
 
-			int mac_sc_key_len = MAC.getKeyLen(kxs.np.mac_algo_server_to_client);
+			int mac_sc_key_len = (kxs.np.mac_algo_server_to_client != null) ? MAC
+					.getKeyLen(kxs.np.mac_algo_server_to_client) : 0;
 			int enc_sc_key_len = BlockCipherFactory.getKeySize(kxs.np.enc_algo_server_to_client);
-			int enc_sc_block_len = BlockCipherFactory.getBlockSize(kxs.np.enc_algo_server_to_client);
+			int enc_sc_block_len = BlockCipherFactory.getIvSize(kxs.np.enc_algo_server_to_client);
+
+			String hash = "SHA1";
+
+			if (kxs.dhx != null)
+				hash = kxs.dhx.getHashFunction();
+			else if (kxs.ecdh != null)
+				hash = kxs.ecdh.getHashFunction();
 
-			String hash = (null != kxs.dhx) ? kxs.dhx.getHashFunction() : "SHA1";
 			km = KeyMaterial.create(hash, kxs.H, kxs.K, sessionId, enc_cs_key_len, enc_cs_block_len, mac_cs_key_len,
 					enc_sc_key_len, enc_sc_block_len, mac_sc_key_len);
 		}
@@ -269,18 +309,52 @@ public abstract class KexManager implements MessageHandler
 		PacketNewKeys ign = new PacketNewKeys();
 		tm.sendKexMessage(ign.getPayload());
 
+		changeCipher(clientMode ? kxs.np.enc_algo_client_to_server : kxs.np.enc_algo_server_to_client,
+				clientMode ? kxs.np.mac_algo_client_to_server : kxs.np.mac_algo_server_to_client, true,
+				clientMode ? km.enc_key_client_to_server : km.enc_key_server_to_client,
+				clientMode ? km.initial_iv_client_to_server : km.initial_iv_server_to_client,
+				clientMode ? km.integrity_key_client_to_server : km.integrity_key_server_to_client);
+
+		tm.changeSendCompression(clientMode ? kxs.np.comp_algo_client_to_server : kxs.np.comp_algo_server_to_client);
+
+		tm.kexFinished();
+	}
+
+	/**
+	 * Instantiates the negotiated cipher (and MAC, unless it is an AEAD cipher)
+	 * and installs it for the given direction.
+	 */
+	protected void changeCipher(String enc_algo, String mac_algo, boolean send, byte[] enc_key, byte[] iv,
+			byte[] integrity_key) throws IOException
+	{
+		if (BlockCipherFactory.isAead(enc_algo))
+		{
+			AeadCipher ac;
+
+			try
+			{
+				ac = BlockCipherFactory.createAeadCipher(enc_algo, send, enc_key, iv);
+			}
+			catch (IllegalArgumentException e1)
+			{
+				throw new IOException("Fatal error during cipher startup!");
+			}
+
+			if (send)
+				tm.changeSendCipher(ac);
+			else
+				tm.changeRecvCipher(ac);
+			return;
+		}
+
 		BlockCipher cbc;
 		MAC mac;
 
 		try
 		{
-			cbc = BlockCipherFactory.createCipher(clientMode ? kxs.np.enc_algo_client_to_server
-					: kxs.np.enc_algo_server_to_client, true, clientMode ? km.enc_key_client_to_server
-					: km.enc_key_server_to_client, clientMode ? km.initial_iv_client_to_server
-					: km.initial_iv_server_to_client);
+			cbc = BlockCipherFactory.createCipher(enc_algo, send, enc_key, iv);
 
-			mac = new MAC(clientMode ? kxs.np.mac_algo_client_to_server : kxs.np.mac_algo_server_to_client, clientMode
-					? km.integrity_key_client_to_server : km.integrity_key_server_to_client);
+			mac = new MAC(mac_algo, integrity_key);
 
 		}
 		catch (IllegalArgumentException e1)
@@ -288,8 +362,10 @@ public abstract class KexManager implements MessageHandler
 			throw new IOException("Fatal error during MAC startup!");
 		}
 
-		tm.changeSendCipher(cbc, mac);
-		tm.kexFinished();
+		if (send)
+			tm.changeSendCipher(cbc, mac);
+		else
+			tm.changeRecvCipher(cbc, mac);
 	}
 
 	public static final String[] getDefaultServerHostkeyAlgorithmList()
@@ -306,10 +382,28 @@ public abstract class KexManager implements MessageHandler
 		}
 	}
 
+	/**
+	 * Removes the elliptic curve methods that the JDK cannot do.
+	 */
+	private static String[] removeUnsupported(String[] algos)
+	{
+		List<String> l = new ArrayList<String>(algos.length);
+
+		for (String algo : algos)
+		{
+			if ((EcdhExchange.isEcdh(algo) == false) || EcdhExchange.isSupported(algo))
+				l.add(algo);
+		}
+
+		return l.toArray(new String[l.size()]);
+	}
+
 	public static final String[] getDefaultClientKexAlgorithmList()
 	{
-		return new String[] { "diffie-hellman-group14-sha256", "diffie-hellman-group16-sha512", "diffie-hellman-group18-sha512", 
-	 		"diffie-hellman-group14-sha1", "diffie-hellman-group1-sha1", "diffie-hellman-group-exchange-sha1" };
+		return removeUnsupported(new String[] { "curve25519-sha256", "curve25519-sha256@libssh.org",
+				"ecdh-sha2-nistp256", "ecdh-sha2-nistp384", "ecdh-sha2-nistp521", "diffie-hellman-group14-sha256",
+				"diffie-hellman-group16-sha512", "diffie-hellman-group18-sha512", "diffie-hellman-group14-sha1",
+				"diffie-hellman-group1-sha1", "diffie-hellman-group-exchange-sha1" });
 	}
 
 	public static final void checkClientKexAlgorithmList(String[] algos) {
@@ -324,6 +418,8 @@ public abstract class KexManager implements MessageHandler
 
 	public static final String[] getDefaultServerKexAlgorithmList()
 	{
-		return new String[] { "diffie-hellman-group14-sha1", "diffie-hellman-group1-sha1" };
+		return removeUnsupported(new String[] { "curve25519-sha256", "curve25519-sha256@libssh.org",
+				"ecdh-sha2-nistp256", "ecdh-sha2-nistp384", "ecdh-sha2-nistp521", "diffie-hellman-group14-sha1",
+				"diffie-hellman-group1-sha1" });
 	}
 }
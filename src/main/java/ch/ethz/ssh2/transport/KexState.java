@@ -7,6 +7,7 @@ package ch.ethz.ssh2.transport;
 import ch.ethz.ssh2.DHGexParameters;
 import ch.ethz.ssh2.crypto.dh.DhExchange;
 import ch.ethz.ssh2.crypto.dh.DhGroupExchange;
+import ch.ethz.ssh2.crypto.dh.EcdhExchange;
 import java.math.BigInteger;
 import ch.ethz.ssh2.packets.PacketKexInit;
 import ch.ethz.ssh2.signature.DSAPrivateKey;
@@ -32,6 +33,7 @@ public class KexState
 	
 	public DhExchange dhx;
 	public DhGroupExchange dhgx;
+	public EcdhExchange ecdh;
 	public DHGexParameters dhgexParameters;
 	
 	public DSAPrivateKey local_dsa_key;
@@ -0,0 +1,424 @@
+package ch.ethz.ssh2.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import ch.ethz.ssh2.log.Logger;
+
+/**
+ * One connection served by a {@link NioTransportEngine}.
+ * <p>
+ * Incoming bytes are collected in a buffer by the event loop. The
+ * {@link TransportConnection} reads from that buffer through a stream, but
+ * only once it is known that enough bytes are present for the next step
+ * (packet length or remainder of the packet), so it never has to block.
+ * <p>
+ * Key exchange messages are handed to the worker pool of the engine: they
+ * involve the DH/ECDH computations, the host key verification and sending
+ * the replies. Until such a message has been handled, the endpoint stops
+ * reading (the next packet may already use the new keys).
+ * <p>
+ * Outgoing packets are written directly to the channel by the sending thread.
+ * If the socket buffer is full, the sender waits on a private selector.
+ *
+ * @version $Id$
+ */
+final class NioEndpoint
+{
+	private static final Logger log = Logger.getLogger(NioEndpoint.class);
+
+	private final NioTransportEngine engine;
+	private final NioTransportEngine.EventLoop loop;
+	private final SocketChannel channel;
+
+	private TransportManager tm;
+	private TransportConnection tc;
+	private SelectionKey key;
+
+	/* Only accessed by the event loop thread */
+
+	private byte[] inbuf = new byte[8192];
+	private int inStart = 0;
+	private int inEnd = 0;
+
+	private byte[] msg;
+
+	private boolean stopped = false;
+
+	/* A key exchange message is being handled by a worker, see dispatchOnWorker() */
+	private boolean suspended = false;
+
+	/* Created by the (single) sending thread, see TransportManager */
+
+	private volatile Selector writeSelector;
+
+	private final InputStream input = new InputStream()
+	{
+		@Override
+		public int read() throws IOException
+		{
+			if (inStart == inEnd)
+				return -1;
+
+			return inbuf[inStart++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int avail = inEnd - inStart;
+
+			if (avail == 0)
+				return (len == 0) ? 0 : -1;
+
+			int copy = Math.min(avail, len);
+
+			System.arraycopy(inbuf, inStart, b, off, copy);
+			inStart += copy;
+
+			return copy;
+		}
+
+		@Override
+		public int available()
+		{
+			return inEnd - inStart;
+		}
+	};
+
+	private final OutputStream output = new OutputStream()
+	{
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+
+			try
+			{
+				while (bb.hasRemaining())
+				{
+					if (channel.write(bb) == 0)
+						awaitWritable();
+				}
+			}
+			catch (IOException e)
+			{
+				closeWriteSelector();
+				throw e;
+			}
+		}
+	};
+
+	NioEndpoint(NioTransportEngine engine, NioTransportEngine.EventLoop loop, SocketChannel channel)
+	{
+		this.engine = engine;
+		this.loop = loop;
+		this.channel = channel;
+	}
+
+	InputStream getInputStream()
+	{
+		return input;
+	}
+
+	OutputStream getOutputStream()
+	{
+		return output;
+	}
+
+	/**
+	 * @return <code>true</code> if called on the event loop thread that serves this
+	 *         connection (and others), which must not block
+	 */
+	boolean isEventLoopThread()
+	{
+		return Thread.currentThread() == loop.thread;
+	}
+
+	void executeWorker(Runnable task)
+	{
+		engine.executeWorker(task);
+	}
+
+	private void awaitWritable() throws IOException
+	{
+		Selector sel = writeSelector;
+
+		if (sel == null)
+		{
+			sel = Selector.open();
+			writeSelector = sel;
+			channel.register(sel, SelectionKey.OP_WRITE);
+		}
+
+		try
+		{
+			sel.select(1000);
+			sel.selectedKeys().clear();
+		}
+		catch (ClosedSelectorException e)
+		{
+			throw new ClosedChannelException();
+		}
+	}
+
+	private void closeWriteSelector()
+	{
+		Selector sel = writeSelector;
+
+		if (sel != null)
+		{
+			try
+			{
+				sel.close();
+			}
+			catch (IOException ignore)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Starts receiving, from now on messages are dispatched to the transport manager.
+	 */
+	void start(final TransportManager tm, final TransportConnection tc)
+	{
+		this.tm = tm;
+		this.tc = tc;
+		this.msg = new byte[tc.getMaxPacketLength()];
+
+		loop.execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					key = channel.register(loop.selector, SelectionKey.OP_READ, NioEndpoint.this);
+				}
+				catch (IOException e)
+				{
+					abort(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Called (from any thread) after the socket has been closed.
+	 */
+	void closed()
+	{
+		loop.execute(new Runnable()
+		{
+			public void run()
+			{
+				stop();
+			}
+		});
+	}
+
+	void onReadable()
+	{
+		try
+		{
+			if (inStart > 0)
+			{
+				System.arraycopy(inbuf, inStart, inbuf, 0, inEnd - inStart);
+				inEnd -= inStart;
+				inStart = 0;
+			}
+
+			if (inEnd == inbuf.length)
+			{
+				byte[] tmp = new byte[2 * inbuf.length];
+				System.arraycopy(inbuf, 0, tmp, 0, inEnd);
+				inbuf = tmp;
+			}
+
+			int n = channel.read(ByteBuffer.wrap(inbuf, inEnd, inbuf.length - inEnd));
+
+			if (n < 0)
+				throw new IOException("Peer closed the connection.");
+
+			inEnd += n;
+		}
+		catch (IOException e)
+		{
+			log.warning("Event loop: error while reading: " + e.getMessage());
+			abort(e);
+			return;
+		}
+
+		processInput();
+	}
+
+	private void processInput()
+	{
+		/* The event loop thread serves other connections in between */
+
+		tm.setDispatching(true);
+
+		try
+		{
+			while (stopped == false && suspended == false && (inEnd - inStart) >= tc.getReceiveBytesNeeded())
+			{
+				if (tc.isReceiveHeaderPending())
+				{
+					tc.receivePacketHeader();
+					continue;
+				}
+
+				int msglen = tc.receiveMessage(msg, 0, msg.length);
+
+				if ((msglen > 0) && TransportManager.isKexMessage(msg[0] & 0xff))
+				{
+					dispatchOnWorker(msglen);
+					return;
+				}
+
+				/* 0: channel data that went directly to the ChannelDataSink */
+
+				if (msglen > 0)
+					tm.dispatchMessage(msg, msglen);
+
+				tm.messageReceived();
+			}
+		}
+		catch (IOException e)
+		{
+			log.warning("Event loop: error in dispatch: " + e.getMessage());
+			abort(e);
+		}
+		catch (RuntimeException e)
+		{
+			/* E.g., a handler that does not expect the message, only this connection is affected */
+
+			log.warning("Event loop: error in dispatch: " + e);
+			abort(new IOException("Error while handling a received message.", e));
+		}
+		finally
+		{
+			tm.setDispatching(false);
+		}
+	}
+
+	/**
+	 * Hands a key exchange message to a worker thread and stops reading until it
+	 * has been handled. Only called on the event loop thread.
+	 */
+	private void dispatchOnWorker(int msglen)
+	{
+		final byte[] kexMsg = new byte[msglen];
+		System.arraycopy(msg, 0, kexMsg, 0, msglen);
+
+		suspended = true;
+
+		if (key.isValid())
+			key.interestOps(0);
+
+		engine.executeWorker(new Runnable()
+		{
+			public void run()
+			{
+				IOException failure = null;
+
+				try
+				{
+					tm.dispatchMessage(kexMsg, kexMsg.length);
+					tm.messageReceived();
+				}
+				catch (IOException e)
+				{
+					failure = e;
+				}
+				catch (RuntimeException e)
+				{
+					failure = new IOException("Error while handling a key exchange message.", e);
+				}
+
+				final IOException cause = failure;
+
+				loop.execute(new Runnable()
+				{
+					public void run()
+					{
+						if (cause != null)
+						{
+							log.warning("Event loop: error in key exchange: " + cause.getMessage());
+							abort(cause);
+							return;
+						}
+
+						resume();
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Continues reading after a key exchange message has been handled. Only
+	 * called on the event loop thread.
+	 */
+	private void resume()
+	{
+		suspended = false;
+
+		if (stopped)
+			return;
+
+		if (key.isValid())
+			key.interestOps(SelectionKey.OP_READ);
+
+		/* The packets that arrived before may be complete already */
+
+		processInput();
+	}
+
+	/**
+	 * Closes the connection and stops receiving. Only called on the event loop thread.
+	 */
+	void abort(IOException cause)
+	{
+		if (stopped)
+			return;
+
+		tm.close(cause);
+		stop();
+	}
+
+	/**
+	 * Deregisters the channel and tells all handlers that the connection is gone.
+	 * Only called on the event loop thread.
+	 */
+	void stop()
+	{
+		if (stopped)
+			return;
+
+		stopped = true;
+
+		if (key != null)
+			key.cancel();
+
+		/* Wakes up a sender that waits for the socket to become writable */
+
+		closeWriteSelector();
+
+		if (tm != null)
+			tm.receiverStopped();
+	}
+}
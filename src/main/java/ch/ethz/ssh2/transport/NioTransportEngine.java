@@ -0,0 +1,262 @@
+package ch.ethz.ssh2.transport;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.ethz.ssh2.log.Logger;
+import ch.ethz.ssh2.util.Threads;
+
+/**
+ * An optional transport engine for applications that keep many connections open.
+ * <p>
+ * Instead of a dedicated receive thread per connection, a small fixed number of
+ * event loop threads (each owning a {@link Selector}) read from all registered
+ * connections, run the packet framing and dispatch the messages (key exchange,
+ * authentication and channel messages). Asynchronous replies are sent from a
+ * shared pool instead of a per-connection thread. The blocking API
+ * (<code>Session</code>, the channel streams, etc.) is unchanged.
+ * <p>
+ * Key exchange messages are handled on the worker pool, so the DH/ECDH
+ * computations, the <code>ServerHostKeyVerifier</code> and the replies of a key
+ * exchange do not hold up the event loop. The same goes for starting an
+ * automatic rekey.
+ * <p>
+ * Note: the other callbacks that are invoked from the receiving side (e.g., the
+ * server callbacks) run on an event loop thread, and so does sending a reply
+ * from them if it has to wait for the socket or for a running key exchange.
+ * Blocking there delays all connections served by that thread.
+ * <p>
+ * One engine can be shared by any number of <code>Connection</code> and
+ * <code>ServerConnection</code> instances. Its threads are daemon threads.
+ *
+ * @version $Id$
+ */
+public class NioTransportEngine
+{
+	private static final Logger log = Logger.getLogger(NioTransportEngine.class);
+
+	private static final AtomicInteger engineCounter = new AtomicInteger();
+
+	private final EventLoop[] loops;
+
+	private final AtomicInteger nextLoop = new AtomicInteger();
+
+	private final ExecutorService workers;
+
+	private volatile boolean shutdown = false;
+
+	final class EventLoop implements Runnable
+	{
+		final Selector selector;
+
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		volatile Thread thread;
+
+		EventLoop() throws IOException
+		{
+			this.selector = Selector.open();
+		}
+
+		private void abort(NioEndpoint ep, IOException cause)
+		{
+			try
+			{
+				ep.abort(cause);
+			}
+			catch (RuntimeException e)
+			{
+				log.warning("Event loop: cannot abort connection: " + e);
+			}
+		}
+
+		void execute(Runnable task)
+		{
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		public void run()
+		{
+			while (shutdown == false)
+			{
+				try
+				{
+					selector.select();
+				}
+				catch (IOException e)
+				{
+					log.warning("Event loop: select() failed: " + e.getMessage());
+					break;
+				}
+
+				Runnable task;
+
+				while ((task = tasks.poll()) != null)
+				{
+					try
+					{
+						task.run();
+					}
+					catch (RuntimeException e)
+					{
+						log.warning("Event loop: task failed: " + e);
+					}
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+				while (it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+
+					NioEndpoint ep = (NioEndpoint) key.attachment();
+
+					if (key.isValid() == false)
+					{
+						abort(ep, new IOException("The connection has been closed."));
+						continue;
+					}
+
+					try
+					{
+						ep.onReadable();
+					}
+					catch (RuntimeException e)
+					{
+						/* Never let one connection stop the loop for all others */
+
+						log.warning("Event loop: unexpected error: " + e);
+						abort(ep, new IOException("Unexpected error in the event loop.", e));
+					}
+				}
+			}
+
+			/* Shutdown: tell everybody that is still registered */
+
+			for (SelectionKey key : selector.keys())
+			{
+				abort((NioEndpoint) key.attachment(), new IOException("The transport engine has been shut down."));
+			}
+
+			try
+			{
+				selector.close();
+			}
+			catch (IOException ignore)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Creates an engine and starts its event loop threads.
+	 *
+	 * @param threads number of event loop threads, e.g., the number of CPUs
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public NioTransportEngine(int threads) throws IOException
+	{
+		this(threads, null);
+	}
+
+	/**
+	 * Creates an engine and starts its event loop threads.
+	 *
+	 * @param threads number of event loop threads, e.g., the number of CPUs
+	 * @param factory creates the event loop and worker threads, <code>null</code>
+	 *                for named daemon threads
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public NioTransportEngine(int threads, ThreadFactory factory) throws IOException
+	{
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be at least 1");
+
+		if (factory == null)
+			factory = new EngineThreadFactory(engineCounter.incrementAndGet());
+
+		loops = new EventLoop[threads];
+
+		for (int i = 0; i < threads; i++)
+		{
+			loops[i] = new EventLoop();
+		}
+
+		workers = Executors.newCachedThreadPool(factory);
+
+		for (EventLoop loop : loops)
+		{
+			loop.thread = Threads.start(factory, loop, true);
+		}
+	}
+
+	private static final class EngineThreadFactory implements ThreadFactory
+	{
+		private final int id;
+		private final AtomicInteger counter = new AtomicInteger();
+
+		EngineThreadFactory(int id)
+		{
+			this.id = id;
+		}
+
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, "Ganymed NIO engine " + id + " thread " + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/**
+	 * Stops the event loop threads. All connections that are still using this
+	 * engine are closed.
+	 */
+	public void shutdown()
+	{
+		shutdown = true;
+
+		for (EventLoop loop : loops)
+		{
+			loop.selector.wakeup();
+		}
+
+		workers.shutdown();
+	}
+
+	/**
+	 * Switches the (connected) channel to non-blocking mode and assigns it
+	 * to one of the event loops.
+	 */
+	NioEndpoint createEndpoint(SocketChannel channel) throws IOException
+	{
+		if (shutdown)
+			throw new IOException("The transport engine has been shut down.");
+
+		channel.configureBlocking(false);
+
+		EventLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+
+		return new NioEndpoint(this, loop, channel);
+	}
+
+	/**
+	 * Runs short lived tasks (e.g., sending asynchronous replies) that must not
+	 * be executed on an event loop thread.
+	 */
+	void executeWorker(Runnable task)
+	{
+		workers.execute(task);
+	}
+}
@@ -8,12 +8,12 @@ import java.io.IOException;
 
 import ch.ethz.ssh2.ConnectionInfo;
 import ch.ethz.ssh2.auth.ServerAuthenticationManager;
-import ch.ethz.ssh2.crypto.cipher.BlockCipher;
-import ch.ethz.ssh2.crypto.cipher.BlockCipherFactory;
 import ch.ethz.ssh2.crypto.dh.DhExchange;
-import ch.ethz.ssh2.crypto.digest.MAC;
+import ch.ethz.ssh2.crypto.dh.EcdhExchange;
 import ch.ethz.ssh2.packets.PacketKexDHInit;
 import ch.ethz.ssh2.packets.PacketKexDHReply;
+import ch.ethz.ssh2.packets.PacketKexECDHInit;
+import ch.ethz.ssh2.packets.PacketKexECDHReply;
 import ch.ethz.ssh2.packets.PacketKexInit;
 import ch.ethz.ssh2.packets.Packets;
 import ch.ethz.ssh2.server.ServerConnectionState;
@@ -33,7 +33,44 @@ public class ServerKexManager extends KexManager
 		this.state = state;
 	}
 
-	public void handleMessage(byte[] msg, int msglen) throws IOException
+	private byte[] getHostKey() throws IOException
+	{
+		if (kxs.np.server_host_key_algo.equals("ssh-rsa"))
+			return RSASHA1Verify.encodeSSHRSAPublicKey(kxs.local_rsa_key.getPublicKey());
+
+		if (kxs.np.server_host_key_algo.equals("ssh-dss"))
+			return DSASHA1Verify.encodeSSHDSAPublicKey(kxs.local_dsa_key.getPublicKey());
+
+		return null;
+	}
+
+	private byte[] signH() throws IOException
+	{
+		if (kxs.np.server_host_key_algo.equals("ssh-rsa"))
+		{
+			RSASignature rs = RSASHA1Verify.generateSignature(kxs.H, kxs.local_rsa_key);
+			return RSASHA1Verify.encodeSSHRSASignature(rs);
+		}
+
+		if (kxs.np.server_host_key_algo.equals("ssh-dss"))
+		{
+			DSASignature ds = DSASHA1Verify.generateSignature(kxs.H, kxs.local_dsa_key, rnd);
+			return DSASHA1Verify.encodeSSHDSASignature(ds);
+		}
+
+		return null;
+	}
+
+	private void startAuthentication()
+	{
+		if (authenticationStarted == false)
+		{
+			authenticationStarted = true;
+			state.am = new ServerAuthenticationManager(state);
+		}
+	}
+
+	public synchronized void handleMessage(byte[] msg, int msglen) throws IOException
 	{
 		PacketKexInit kip;
 
@@ -93,6 +130,14 @@ public class ServerKexManager extends KexManager
 				ignore_next_kex_packet = true;
 			}
 
+			if (EcdhExchange.isEcdh(kxs.np.kex_algo))
+			{
+				kxs.ecdh = EcdhExchange.getInstance(kxs.np.kex_algo);
+				kxs.ecdh.serverInit(rnd);
+				kxs.state = 1;
+				return;
+			}
+
 			if (kxs.np.kex_algo.equals("diffie-hellman-group1-sha1")
 					|| kxs.np.kex_algo.equals("diffie-hellman-group14-sha1"))
 			{
@@ -115,23 +160,10 @@ public class ServerKexManager extends KexManager
 			if (km == null)
 				throw new IOException("Peer sent SSH_MSG_NEWKEYS, but I have no key material ready!");
 
-			BlockCipher cbc;
-			MAC mac;
+			changeCipher(kxs.np.enc_algo_client_to_server, kxs.np.mac_algo_client_to_server, false,
+					km.enc_key_client_to_server, km.initial_iv_client_to_server, km.integrity_key_client_to_server);
 
-			try
-			{
-				cbc = BlockCipherFactory.createCipher(kxs.np.enc_algo_client_to_server, false,
-						km.enc_key_client_to_server, km.initial_iv_client_to_server);
-
-				mac = new MAC(kxs.np.mac_algo_client_to_server, km.integrity_key_client_to_server);
-
-			}
-			catch (IllegalArgumentException e1)
-			{
-				throw new IOException("Fatal error during MAC startup!");
-			}
-
-			tm.changeRecvCipher(cbc, mac);
+			tm.changeRecvCompression(kxs.np.comp_algo_client_to_server);
 
 			ConnectionInfo sci = new ConnectionInfo();
 
@@ -143,6 +175,8 @@ public class ServerKexManager extends KexManager
 			sci.serverToClientCryptoAlgorithm = kxs.np.enc_algo_server_to_client;
 			sci.clientToServerMACAlgorithm = kxs.np.mac_algo_client_to_server;
 			sci.serverToClientMACAlgorithm = kxs.np.mac_algo_server_to_client;
+			sci.clientToServerCompressionAlgorithm = kxs.np.comp_algo_client_to_server;
+			sci.serverToClientCompressionAlgorithm = kxs.np.comp_algo_server_to_client;
 			sci.serverHostKeyAlgorithm = kxs.np.server_host_key_algo;
 			sci.serverHostKey = kxs.remote_hostkey;
 
@@ -168,17 +202,7 @@ public class ServerKexManager extends KexManager
 
 				kxs.dhx.setE(dhi.getE());
 
-				byte[] hostKey = null;
-
-				if (kxs.np.server_host_key_algo.equals("ssh-rsa"))
-				{
-					hostKey = RSASHA1Verify.encodeSSHRSAPublicKey(kxs.local_rsa_key.getPublicKey());
-				}
-
-				if (kxs.np.server_host_key_algo.equals("ssh-dss"))
-				{
-					hostKey = DSASHA1Verify.encodeSSHDSAPublicKey(kxs.local_dsa_key.getPublicKey());
-				}
+				byte[] hostKey = getHostKey();
 
 				try
 				{
@@ -192,31 +216,49 @@ public class ServerKexManager extends KexManager
 
 				kxs.K = kxs.dhx.getK();
 
-				byte[] signature = null;
+				byte[] signature = signH();
+
+				PacketKexDHReply dhr = new PacketKexDHReply(hostKey, kxs.dhx.getF(), signature);
+				tm.sendKexMessage(dhr.getPayload());
+
+				finishKex(false);
+				kxs.state = -1;
+
+				startAuthentication();
+
+				return;
+			}
+		}
+
+		if (EcdhExchange.isEcdh(kxs.np.kex_algo))
+		{
+			if (kxs.state == 1)
+			{
+				PacketKexECDHInit eci = new PacketKexECDHInit(msg, 0, msglen);
+
+				byte[] hostKey = getHostKey();
 
-				if (kxs.np.server_host_key_algo.equals("ssh-rsa"))
+				try
 				{
-					RSASignature rs = RSASHA1Verify.generateSignature(kxs.H, kxs.local_rsa_key);
-					signature = RSASHA1Verify.encodeSSHRSASignature(rs);
-				}
+					kxs.ecdh.setE(eci.getPublicKey());
 
-				if (kxs.np.server_host_key_algo.equals("ssh-dss"))
+					kxs.H = kxs.ecdh.calculateH(csh.getClientString(), csh.getServerString(),
+							kxs.remoteKEX.getPayload(), kxs.localKEX.getPayload(), hostKey);
+				}
+				catch (IllegalArgumentException e)
 				{
-					DSASignature ds = DSASHA1Verify.generateSignature(kxs.H, kxs.local_dsa_key, rnd);
-					signature = DSASHA1Verify.encodeSSHDSASignature(ds);
+					throw new IOException("KEX error.", e);
 				}
 
-				PacketKexDHReply dhr = new PacketKexDHReply(hostKey, kxs.dhx.getF(), signature);
-				tm.sendKexMessage(dhr.getPayload());
+				kxs.K = kxs.ecdh.getK();
+
+				PacketKexECDHReply ecr = new PacketKexECDHReply(hostKey, kxs.ecdh.getF(), signH());
+				tm.sendKexMessage(ecr.getPayload());
 
 				finishKex(false);
 				kxs.state = -1;
 
-				if (authenticationStarted == false)
-				{
-					authenticationStarted = true;
-					state.am = new ServerAuthenticationManager(state);
-				}
+				startAuthentication();
 
 				return;
 			}
@@ -12,9 +12,21 @@ public class ServerTransportManager extends TransportManager {
 
     private final Socket sock;
 
+    private final NioTransportEngine engine;
+
     public ServerTransportManager(final Socket socket) {
+        this(socket, null);
+    }
+
+    /**
+     * @param socket must have been obtained from a <code>SocketChannel</code> if an engine is given
+     * @param engine if not <code>null</code>, the connection is served by the given engine
+     *               instead of a dedicated receive thread
+     */
+    public ServerTransportManager(final Socket socket, final NioTransportEngine engine) {
         // TCP connection is already established
         this.sock = socket;
+        this.engine = engine;
     }
 
     public void connect(ServerConnectionState state) throws IOException {
@@ -25,10 +37,23 @@ public class ServerTransportManager extends TransportManager {
 
         state.csh = ClientServerHello.serverHello(state.softwareversion, sock.getInputStream(), sock.getOutputStream());
 
-        TransportConnection tc = new TransportConnection(sock.getInputStream(), sock.getOutputStream(), state.generator);
+        NioEndpoint endpoint = null;
+        TransportConnection tc;
+
+        if(engine != null) {
+            if(sock.getChannel() == null) {
+                throw new IOException("The socket has no associated SocketChannel, cannot use the NIO engine.");
+            }
+            endpoint = engine.createEndpoint(sock.getChannel());
+            tc = new TransportConnection(endpoint.getInputStream(), endpoint.getOutputStream(), state.generator);
+        }
+        else {
+            tc = new TransportConnection(sock.getInputStream(), sock.getOutputStream(), state.generator);
+        }
+
         KexManager km = new ServerKexManager(state);
 
-        super.init(tc, km);
+        super.init(tc, km, endpoint);
 
         km.initiateKEX(state.next_cryptoWishList, null, state.next_dsa_key, state.next_rsa_key);
 
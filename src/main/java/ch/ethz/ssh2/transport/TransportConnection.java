@@ -7,12 +7,17 @@ package ch.ethz.ssh2.transport;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 
+import ch.ethz.ssh2.compression.CompressionFactory;
+import ch.ethz.ssh2.compression.Compressor;
+import ch.ethz.ssh2.crypto.cipher.AeadCipher;
 import ch.ethz.ssh2.crypto.cipher.BlockCipher;
 import ch.ethz.ssh2.crypto.cipher.CipherInputStream;
 import ch.ethz.ssh2.crypto.cipher.CipherOutputStream;
 import ch.ethz.ssh2.crypto.cipher.NullCipher;
+import ch.ethz.ssh2.crypto.cipher.SplitAeadCipher;
 import ch.ethz.ssh2.crypto.digest.MAC;
 import ch.ethz.ssh2.log.Logger;
 import ch.ethz.ssh2.packets.Packets;
@@ -27,10 +32,30 @@ public class TransportConnection
 {
 	private static final Logger log = Logger.getLogger(TransportConnection.class);
 
+	/* Enough for a channel packet of 32768 bytes, see RFC 4253 6.1 */
+	public static final int DEFAULT_MAX_PACKET_LENGTH = 35000;
+
 	int send_seq_number = 0;
 
 	int recv_seq_number = 0;
 
+	/*
+	 * Traffic since the last change of keys, for automatic rekeying. The send
+	 * counters are protected by the lock that serializes sendMessage(), the
+	 * receive counters are only used by the receiver.
+	 */
+
+	long send_bytes_with_key = 0;
+
+	long send_packets_with_key = 0;
+
+	long recv_bytes_with_key = 0;
+
+	long recv_packets_with_key = 0;
+
+	/* RFC 4344 3.1: rekey at the latest after 2^31 packets */
+	private static final long REKEY_PACKET_LIMIT = 1L << 31;
+
 	CipherInputStream cis;
 
 	CipherOutputStream cos;
@@ -41,7 +66,9 @@ public class TransportConnection
 
 	MAC send_mac;
 
-	byte[] send_mac_buffer;
+	int send_mac_size = 0;
+
+	boolean send_etm = false;
 
 	int send_padd_blocksize = 8;
 
@@ -51,20 +78,86 @@ public class TransportConnection
 
 	byte[] recv_mac_buffer_cmp;
 
+	boolean recv_etm = false;
+
 	int recv_padd_blocksize = 8;
 
-	/* won't change */
+	/* Set instead of CIPHER and MAC if an AEAD cipher is in use */
+
+	AeadCipher send_aead;
+
+	AeadCipher recv_aead;
+
+	/*
+	 * Compression contexts persist across packets and key exchanges. Delayed
+	 * compression (zlib@openssh.com) only starts after SSH_MSG_USERAUTH_SUCCESS
+	 * has been sent or received.
+	 */
+
+	String send_comp_algo = "none";
+
+	Compressor send_comp;
+
+	boolean send_comp_delayed;
+
+	String recv_comp_algo = "none";
+
+	Compressor recv_comp;
+
+	boolean recv_comp_delayed;
+
+	volatile boolean authenticated = false;
+
+	/* Takes channel data directly, see ChannelDataSink */
+
+	volatile ChannelDataSink channelDataSink;
+
+	/*
+	 * The frame buffer holds a complete outgoing packet (length, padding length,
+	 * payload, padding and MAC). It is encrypted in place and grows on demand.
+	 * May only be used while holding the lock that serializes sendMessage().
+	 */
 
-	final byte[] send_padding_buffer = new byte[256];
+	byte[] send_frame_buffer = new byte[1024];
 
-	final byte[] send_packet_header_buffer = new byte[5];
+	/* Only used to assemble two part messages for the compressor, same rules as above */
+
+	byte[] send_gather_buffer = new byte[1024];
+
+	/* Complete incoming packet, only used with AEAD ciphers and encrypt-then-mac */
+
+	byte[] recv_frame_buffer = new byte[1024];
+
+	int recv_frame_packet_length;
+
+	/*
+	 * How much of the packet in recv_frame_buffer (counted from the padding length) has
+	 * been decrypted, in place or straight into a channel buffer (see decryptFrameToSink)
+	 */
+
+	int recv_frame_decrypted;
+
+	/* Position of the data of a SSH_MSG_CHANNEL_DATA packet, counted from the padding length */
+
+	private static final int CHANNEL_DATA_POS = 10;
+
+	/* won't change */
 
 	final byte[] recv_padding_buffer = new byte[256];
 
 	final byte[] recv_packet_header_buffer = new byte[5];
 
+	/* Upper limit for the packet_length field of received packets */
+	int max_packet_length = DEFAULT_MAX_PACKET_LENGTH;
+
+	final byte[] recv_packet_length_buffer = new byte[4];
+
 	boolean recv_packet_header_present = false;
 
+	/* Only the length of the next frame has been read (AEAD and encrypt-then-mac) */
+
+	boolean recv_frame_header_present = false;
+
 	ClientServerHello csh;
 
 	final SecureRandom rnd;
@@ -78,10 +171,15 @@ public class TransportConnection
 
 	public void changeRecvCipher(BlockCipher bc, MAC mac)
 	{
+		recv_bytes_with_key = 0;
+		recv_packets_with_key = 0;
+
+		recv_aead = null;
 		cis.changeCipher(bc);
 		recv_mac = mac;
 		recv_mac_buffer = (mac != null) ? new byte[mac.size()] : null;
 		recv_mac_buffer_cmp = (mac != null) ? new byte[mac.size()] : null;
+		recv_etm = (mac != null) && mac.isEncryptThenMac();
 		recv_padd_blocksize = bc.getBlockSize();
 		if (recv_padd_blocksize < 8)
 			recv_padd_blocksize = 8;
@@ -96,14 +194,95 @@ public class TransportConnection
 			/* Once we start encrypting, there is no way back */
 		}
 
+		send_bytes_with_key = 0;
+		send_packets_with_key = 0;
+
+		send_aead = null;
 		cos.changeCipher(bc);
 		send_mac = mac;
-		send_mac_buffer = (mac != null) ? new byte[mac.size()] : null;
+		send_mac_size = (mac != null) ? mac.size() : 0;
+		send_etm = (mac != null) && mac.isEncryptThenMac();
 		send_padd_blocksize = bc.getBlockSize();
 		if (send_padd_blocksize < 8)
 			send_padd_blocksize = 8;
 	}
 
+	public void changeRecvCipher(AeadCipher ac)
+	{
+		recv_bytes_with_key = 0;
+		recv_packets_with_key = 0;
+
+		/* The stream only delivers raw bytes, the AEAD cipher works on whole packets */
+		cis.changeCipher(new NullCipher());
+		recv_aead = ac;
+		recv_mac = null;
+		recv_mac_buffer = null;
+		recv_mac_buffer_cmp = null;
+		recv_etm = false;
+		recv_padd_blocksize = ac.getBlockSize();
+		if (recv_padd_blocksize < 8)
+			recv_padd_blocksize = 8;
+	}
+
+	public void changeSendCipher(AeadCipher ac)
+	{
+		useRandomPadding = true;
+
+		send_bytes_with_key = 0;
+		send_packets_with_key = 0;
+
+		cos.changeCipher(new NullCipher());
+		send_aead = ac;
+		send_mac = null;
+		send_mac_size = ac.getTagSize();
+		send_etm = false;
+		send_padd_blocksize = ac.getBlockSize();
+		if (send_padd_blocksize < 8)
+			send_padd_blocksize = 8;
+	}
+
+	public void changeSendCompression(String algo)
+	{
+		if (algo.equals(send_comp_algo))
+			return;
+
+		if (send_comp != null)
+			send_comp.end();
+
+		send_comp = CompressionFactory.createCompressor(algo, true);
+		send_comp_delayed = CompressionFactory.isDelayed(algo);
+		send_comp_algo = algo;
+	}
+
+	public void changeRecvCompression(String algo)
+	{
+		if (algo.equals(recv_comp_algo))
+			return;
+
+		if (recv_comp != null)
+			recv_comp.end();
+
+		recv_comp = CompressionFactory.createCompressor(algo, false);
+		recv_comp_delayed = CompressionFactory.isDelayed(algo);
+		recv_comp_algo = algo;
+	}
+
+	/**
+	 * Releases the compression contexts once the connection is closed.
+	 */
+	public void endCompression()
+	{
+		Compressor c = send_comp;
+
+		if (c != null)
+			c.end();
+
+		c = recv_comp;
+
+		if (c != null)
+			c.end();
+	}
+
 	public void sendMessage(byte[] message) throws IOException
 	{
 		sendMessage(message, 0, message.length, 0);
@@ -114,96 +293,525 @@ public class TransportConnection
 		sendMessage(message, off, len, 0);
 	}
 
-	public int getPacketOverheadEstimate()
+	/**
+	 * Sets the largest packet that will be accepted from the peer. Received payloads
+	 * (also after decompression) are never longer than this.
+	 */
+	public void setMaxPacketLength(int max_packet_length)
+	{
+		this.max_packet_length = max_packet_length;
+	}
+
+	public int getMaxPacketLength()
+	{
+		return max_packet_length;
+	}
+
+	/**
+	 * @param payloadLength the length of the (uncompressed) payload
+	 */
+	public int getPacketOverheadEstimate(int payloadLength)
 	{
 		// return an estimate for the paket overhead (for send operations)
-		return 5 + 4 + (send_padd_blocksize - 1) + send_mac_buffer.length;
+		int overhead = 5 + 4 + (send_padd_blocksize - 1) + send_mac_size;
+
+		/* Incompressible data gets longer */
+
+		Compressor c = send_comp;
+
+		if (c != null)
+			overhead += c.getMaxExpansion(payloadLength);
+
+		return overhead;
 	}
 
 	public void sendMessage(byte[] message, int off, int len, int padd) throws IOException
+	{
+		writeMessage(message, off, len, padd);
+		flush();
+	}
+
+	/**
+	 * Encodes a packet into the output buffer without flushing it, so that
+	 * several packets can be handed to the socket with one write.
+	 * Must be followed by {@link #flush()}.
+	 */
+	public void writeMessage(byte[] message, int off, int len, int padd) throws IOException
+	{
+		writeMessage(message, off, len, null, 0, null, 0, padd);
+	}
+
+	/**
+	 * Like {@link #writeMessage(byte[], int, int, int)}, but the payload consists of
+	 * two parts: the message header and the data that follows it (given either as
+	 * array or as buffer). Both are copied directly into the frame buffer, so the caller
+	 * does not have to assemble the message first. The position of <code>dbuf</code>
+	 * is not changed.
+	 */
+	void writeMessage(byte[] message, int off, int len, byte[] data, int doff, ByteBuffer dbuf, int dlen, int padd)
+			throws IOException
 	{
 		if (padd < 4)
 			padd = 4;
 		else if (padd > 64)
 			padd = 64;
 
+		int type = message[off] & 0xff;
+
+		if (send_comp != null && (send_comp_delayed == false || authenticated))
+		{
+			if (dlen > 0)
+			{
+				/* The compressor needs the payload in one piece */
+
+				if (send_gather_buffer.length < len + dlen)
+					send_gather_buffer = new byte[Math.max(len + dlen, 2 * send_gather_buffer.length)];
+
+				System.arraycopy(message, off, send_gather_buffer, 0, len);
+				copyData(data, doff, dbuf, send_gather_buffer, len, dlen);
+
+				message = send_gather_buffer;
+				off = 0;
+				len += dlen;
+				dlen = 0;
+			}
+
+			len = send_comp.transform(message, off, len, Integer.MAX_VALUE);
+			message = send_comp.getBuffer();
+			off = 0;
+		}
+
+		int hlen = len;
+
+		len += dlen;
+
 		int packet_len = 5 + len + padd; /* Minimum allowed padding is 4 */
 
-		int slack = packet_len % send_padd_blocksize;
+		/*
+		 * With AEAD ciphers and encrypt-then-mac, the length field is not part
+		 * of the encrypted (aligned) data
+		 */
+
+		int unaligned_len = (send_aead != null || send_etm) ? 4 : 0;
+
+		int slack = (packet_len - unaligned_len) % send_padd_blocksize;
 
 		if (slack != 0)
 		{
 			packet_len += (send_padd_blocksize - slack);
 		}
 
-		if (packet_len < 16)
-			packet_len = 16;
+		while (packet_len < 16)
+			packet_len += send_padd_blocksize;
 
 		int padd_len = packet_len - (5 + len);
 
+		int frame_len = packet_len + send_mac_size;
+
+		if (send_frame_buffer.length < frame_len)
+		{
+			send_frame_buffer = new byte[Math.max(frame_len, 2 * send_frame_buffer.length)];
+		}
+
+		byte[] frame = send_frame_buffer;
+
+		frame[0] = (byte) ((packet_len - 4) >> 24);
+		frame[1] = (byte) ((packet_len - 4) >> 16);
+		frame[2] = (byte) ((packet_len - 4) >> 8);
+		frame[3] = (byte) ((packet_len - 4));
+		frame[4] = (byte) padd_len;
+
+		System.arraycopy(message, off, frame, 5, hlen);
+
+		if (dlen > 0)
+			copyData(data, doff, dbuf, frame, 5 + hlen, dlen);
+
+		int padd_off = 5 + len;
+
 		if (useRandomPadding)
 		{
 			for (int i = 0; i < padd_len; i = i + 4)
 			{
 				/*
 				 * don't waste calls to rnd.nextInt() (by using only 8bit of the
-				 * output). just believe me: even though we may write here up to 3
-				 * bytes which won't be used, there is no "buffer overflow" (i.e.,
-				 * arrayindexoutofbounds). the padding buffer is big enough =) (256
-				 * bytes, and that is bigger than any current cipher block size + 64).
+				 * output). Unlike the old separate padding buffer, the frame has
+				 * no slack after the padding, so stop at padd_len.
 				 */
 
 				int r = rnd.nextInt();
-				send_padding_buffer[i] = (byte) r;
-				send_padding_buffer[i + 1] = (byte) (r >> 8);
-				send_padding_buffer[i + 2] = (byte) (r >> 16);
-				send_padding_buffer[i + 3] = (byte) (r >> 24);
+				for (int j = 0; (j < 4) && (i + j < padd_len); j++)
+				{
+					frame[padd_off + i + j] = (byte) (r >> (8 * j));
+				}
 			}
 		}
 		else
 		{
-			/* use zero padding for unencrypted traffic */
+			/* use zero padding for unencrypted traffic (the frame buffer is reused) */
 			for (int i = 0; i < padd_len; i++)
-				send_padding_buffer[i] = 0;
-			/* Actually this code is paranoid: we never filled any
-			 * bytes into the padding buffer so far, therefore it should
-			 * consist of zeros only.
-			 */
+				frame[padd_off + i] = 0;
 		}
 
-		send_packet_header_buffer[0] = (byte) ((packet_len - 4) >> 24);
-		send_packet_header_buffer[1] = (byte) ((packet_len - 4) >> 16);
-		send_packet_header_buffer[2] = (byte) ((packet_len - 4) >> 8);
-		send_packet_header_buffer[3] = (byte) ((packet_len - 4));
-		send_packet_header_buffer[4] = (byte) padd_len;
-
-		cos.write(send_packet_header_buffer, 0, 5);
-		cos.write(message, off, len);
-		cos.write(send_padding_buffer, 0, padd_len);
+		if (send_aead != null)
+		{
+			send_aead.seal(send_seq_number, frame, 0, packet_len);
 
-		if (send_mac != null)
+			cos.writeFrame(frame, 0, 0, frame_len);
+		}
+		else if (send_etm)
 		{
+			/* The length stays in clear, the MAC covers the encrypted packet */
+
+			cos.encryptInPlace(frame, 4, packet_len - 4);
+
 			send_mac.initMac(send_seq_number);
-			send_mac.update(send_packet_header_buffer, 0, 5);
-			send_mac.update(message, off, len);
-			send_mac.update(send_padding_buffer, 0, padd_len);
+			send_mac.update(frame, 0, packet_len);
+			send_mac.getMac(frame, packet_len);
 
-			send_mac.getMac(send_mac_buffer, 0);
-			cos.writePlain(send_mac_buffer, 0, send_mac_buffer.length);
+			cos.writeFrame(frame, 0, 0, frame_len);
 		}
+		else
+		{
+			if (send_mac != null)
+			{
+				send_mac.initMac(send_seq_number);
+				send_mac.update(frame, 0, packet_len);
+				send_mac.getMac(frame, packet_len);
+			}
 
-		cos.flush();
+			/* Encrypt everything but the MAC in place and hand the frame to the socket in one go */
+
+			cos.writeFrame(frame, 0, packet_len, frame_len);
+		}
 
 		if (log.isDebugEnabled())
 		{
-			log.debug("Sent " + Packets.getMessageName(message[off] & 0xff) + " " + len + " bytes payload");
+			log.debug("Sent " + Packets.getMessageName(type) + " " + len + " bytes payload");
 		}
 
 		send_seq_number++;
+		send_packets_with_key++;
+		send_bytes_with_key += packet_len;
+
+		if (type == Packets.SSH_MSG_USERAUTH_SUCCESS)
+			authenticated = true;
+	}
+
+	private static void copyData(byte[] data, int doff, ByteBuffer dbuf, byte[] dst, int dstoff, int dlen)
+	{
+		if (data != null)
+		{
+			System.arraycopy(data, doff, dst, dstoff, dlen);
+		}
+		else
+		{
+			int pos = dbuf.position();
+			dbuf.get(dst, dstoff, dlen);
+			dbuf.position(pos);
+		}
+	}
+
+	/**
+	 * Writes all packets buffered by {@link #writeMessage(byte[], int, int, int)}.
+	 */
+	public void flush() throws IOException
+	{
+		cos.flush();
+	}
+
+	private boolean isFrameMode()
+	{
+		return (recv_aead != null) || recv_etm;
+	}
+
+	/**
+	 * Reads a complete packet into the receive frame buffer, authenticates it
+	 * and only then decrypts it (only its header, if the cipher allows, see
+	 * {@link #decryptFrameToSink(ChannelDataSink, int)}). Used with AEAD ciphers
+	 * and encrypt-then-mac.
+	 */
+	private void receiveFramePacket() throws IOException
+	{
+		if (recv_frame_header_present == false)
+			receiveFrameHeader();
+
+		receiveFrameBody();
+	}
+
+	private void receiveFrameHeader() throws IOException
+	{
+		cis.readPlain(recv_packet_header_buffer, 0, 4);
+
+		if (recv_aead != null)
+			recv_aead.decryptPacketLength(recv_seq_number, recv_packet_header_buffer, 0, recv_packet_length_buffer, 0);
+		else
+			System.arraycopy(recv_packet_header_buffer, 0, recv_packet_length_buffer, 0, 4);
+
+		int packet_length = ((recv_packet_length_buffer[0] & 0xff) << 24)
+				| ((recv_packet_length_buffer[1] & 0xff) << 16) | ((recv_packet_length_buffer[2] & 0xff) << 8)
+				| ((recv_packet_length_buffer[3] & 0xff));
+
+		/*
+		 * The length field is not part of the padded data here, so a short packet
+		 * (e.g., SSH_MSG_NEWKEYS from OpenSSH during a rekey) has a packet_length of 8
+		 */
+
+		if (packet_length > max_packet_length || packet_length < 5)
+			throw new IOException("Illegal packet size! (" + packet_length + ")");
+
+		if ((packet_length % recv_padd_blocksize) != 0)
+			throw new IOException("Packet size is not a multiple of the block size (" + packet_length + ")");
+
+		int tag_size = (recv_aead != null) ? recv_aead.getTagSize() : recv_mac_buffer.length;
+
+		int frame_len = 4 + packet_length + tag_size;
+
+		if (recv_frame_buffer.length < frame_len)
+		{
+			recv_frame_buffer = new byte[Math.max(frame_len, 2 * recv_frame_buffer.length)];
+		}
+
+		System.arraycopy(recv_packet_header_buffer, 0, recv_frame_buffer, 0, 4);
+
+		recv_frame_packet_length = packet_length;
+		recv_frame_header_present = true;
+	}
+
+	private void receiveFrameBody() throws IOException
+	{
+		int packet_length = recv_frame_packet_length;
+
+		int tag_size = (recv_aead != null) ? recv_aead.getTagSize() : recv_mac_buffer.length;
+
+		cis.readPlain(recv_frame_buffer, 4, packet_length + tag_size);
+
+		if (recv_aead instanceof SplitAeadCipher)
+		{
+			if (((SplitAeadCipher) recv_aead).verify(recv_seq_number, recv_frame_buffer, 0, 4 + packet_length) == false)
+				throw new IOException("Remote sent corrupt MAC.");
+
+			recv_frame_decrypted = 0;
+		}
+		else if (recv_aead != null)
+		{
+			if (recv_aead.open(recv_seq_number, recv_frame_buffer, 0, 4 + packet_length) == false)
+				throw new IOException("Remote sent corrupt MAC.");
+
+			recv_frame_decrypted = packet_length;
+		}
+		else
+		{
+			recv_mac.initMac(recv_seq_number);
+			recv_mac.update(recv_frame_buffer, 0, 4 + packet_length);
+			recv_mac.getMac(recv_mac_buffer_cmp, 0);
+
+			for (int i = 0; i < tag_size; i++)
+			{
+				if (recv_frame_buffer[4 + packet_length + i] != recv_mac_buffer_cmp[i])
+					throw new IOException("Remote sent corrupt MAC.");
+			}
+
+			recv_frame_decrypted = 0;
+		}
+
+		/* Only the header for now, channel data may be decrypted straight into the channel buffer */
+
+		int bs = getFrameBlockSize();
+
+		decryptFrame(Math.min(packet_length, ((CHANNEL_DATA_POS + bs - 1) / bs) * bs));
+
+		recv_frame_header_present = false;
+	}
+
+	/**
+	 * @return the granularity of the piecewise decryption of an authenticated frame
+	 */
+	private int getFrameBlockSize()
+	{
+		return (recv_aead != null) ? 1 : cis.getBlockSize();
+	}
+
+	/**
+	 * Decrypts <code>len</code> bytes of the authenticated packet in the frame buffer,
+	 * starting at <code>pos</code> (counted from the padding length), into <code>dst</code>.
+	 * Must be called in packet order, the CTR and CBC states carry over.
+	 */
+	private void decryptFramePart(int pos, byte[] dst, int dstoff, int len) throws IOException
+	{
+		if (recv_aead != null)
+			((SplitAeadCipher) recv_aead).decrypt(recv_seq_number, pos, recv_frame_buffer, 4 + pos, dst, dstoff, len);
+		else
+			cis.decryptBlocks(recv_frame_buffer, 4 + pos, dst, dstoff, len);
+	}
+
+	/**
+	 * Decrypts the packet in the frame buffer in place, up to <code>end</code>.
+	 */
+	private void decryptFrame(int end) throws IOException
+	{
+		if (end > recv_frame_decrypted)
+		{
+			decryptFramePart(recv_frame_decrypted, recv_frame_buffer, 4 + recv_frame_decrypted, end
+					- recv_frame_decrypted);
+			recv_frame_decrypted = end;
+		}
+	}
+
+	/**
+	 * Decrypts the rest of the SSH_MSG_CHANNEL_DATA packet in the frame buffer, the data goes
+	 * straight to the region reserved by the sink. A block that is split by the end of the
+	 * region (or by the end of the data) is decrypted in place and copied.
+	 */
+	private void decryptFrameToSink(ChannelDataSink sink, int dlen) throws IOException
+	{
+		byte[] target = sink.getDataArray();
+		int offset = sink.getDataOffset();
+		int first = sink.getDataFirstLength();
+
+		int bs = getFrameBlockSize();
+		int end = CHANNEL_DATA_POS + dlen;
+
+		/* The start of the data may have been decrypted together with the header */
+
+		copyFrameToSink(target, offset, first, CHANNEL_DATA_POS, Math.min(recv_frame_decrypted, end));
+
+		while (recv_frame_decrypted < end)
+		{
+			int pos = recv_frame_decrypted;
+			int i = pos - CHANNEL_DATA_POS;
+
+			int room = (i < first) ? first - i : end - pos;
+			int n = room - (room % bs);
+
+			if (n > 0)
+			{
+				decryptFramePart(pos, target, (i < first) ? offset + i : i - first, n);
+				recv_frame_decrypted += n;
+			}
+			else
+			{
+				decryptFrame(pos + bs);
+				copyFrameToSink(target, offset, first, pos, Math.min(pos + bs, end));
+			}
+		}
+
+		/* The padding, this keeps the cipher state in step */
+
+		decryptFrame(recv_frame_packet_length);
+	}
+
+	/**
+	 * Copies decrypted bytes of a SSH_MSG_CHANNEL_DATA packet from the frame buffer to the
+	 * region reserved by the sink.
+	 *
+	 * @param from position in the packet (counted from the padding length)
+	 * @param to end position in the packet
+	 */
+	private void copyFrameToSink(byte[] target, int offset, int first, int from, int to)
+	{
+		while (from < to)
+		{
+			int i = from - CHANNEL_DATA_POS;
+			int n;
+
+			if (i < first)
+			{
+				n = Math.min(to - from, first - i);
+				System.arraycopy(recv_frame_buffer, 4 + from, target, offset + i, n);
+			}
+			else
+			{
+				n = to - from;
+				System.arraycopy(recv_frame_buffer, 4 + from, target, i - first, n);
+			}
+
+			from += n;
+		}
+	}
+
+	/**
+	 * For non-blocking operation: the number of raw bytes that must be available from
+	 * the underlying input stream before the next call to {@link #receivePacketHeader()}
+	 * (if {@link #isReceiveHeaderPending()}) or {@link #receiveMessage(byte[], int, int)}
+	 * completes without blocking.
+	 */
+	public int getReceiveBytesNeeded()
+	{
+		int needed;
+
+		if (recv_packet_header_present)
+		{
+			if (isFrameMode())
+				return 0;
+
+			int packet_length = ((recv_packet_header_buffer[0] & 0xff) << 24)
+					| ((recv_packet_header_buffer[1] & 0xff) << 16) | ((recv_packet_header_buffer[2] & 0xff) << 8)
+					| ((recv_packet_header_buffer[3] & 0xff));
+
+			/* The first block has already been consumed */
+
+			needed = 4 + packet_length - cis.getBlockSize();
+
+			if (recv_mac != null)
+				needed += recv_mac_buffer.length;
+		}
+		else if (isFrameMode())
+		{
+			if (recv_frame_header_present)
+				needed = recv_frame_packet_length + ((recv_aead != null) ? recv_aead.getTagSize() : recv_mac_buffer.length);
+			else
+				needed = 4;
+		}
+		else
+		{
+			needed = cis.getBlockSize();
+		}
+
+		return needed - cis.getBufferedRawBytes();
+	}
+
+	/**
+	 * @return <code>true</code> if the next receive step only reads the packet length
+	 */
+	public boolean isReceiveHeaderPending()
+	{
+		if (recv_packet_header_present)
+			return false;
+
+		return (isFrameMode() == false) || (recv_frame_header_present == false);
+	}
+
+	/**
+	 * Reads (and validates) only the length of the next packet, the remainder is
+	 * read by {@link #receiveMessage(byte[], int, int)}.
+	 */
+	public void receivePacketHeader() throws IOException
+	{
+		if (isFrameMode())
+			receiveFrameHeader();
+		else
+			peekNextMessageLength();
 	}
 
 	public int peekNextMessageLength() throws IOException
 	{
+		if (isFrameMode())
+		{
+			if (recv_packet_header_present == false)
+			{
+				receiveFramePacket();
+				recv_packet_header_present = true;
+			}
+
+			int payload_length = recv_frame_packet_length - (recv_frame_buffer[4] & 0xff) - 1;
+
+			if (payload_length < 0)
+				throw new IOException("Illegal padding_length in packet from remote (" + (recv_frame_buffer[4] & 0xff)
+						+ ")");
+
+			return payload_length;
+		}
+
 		if (recv_packet_header_present == false)
 		{
 			cis.read(recv_packet_header_buffer, 0, 5);
@@ -216,7 +824,7 @@ public class TransportConnection
 
 		int padding_length = recv_packet_header_buffer[4] & 0xff;
 
-		if (packet_length > 35000 || packet_length < 12)
+		if (packet_length > max_packet_length || packet_length < 12)
 			throw new IOException("Illegal packet size! (" + packet_length + ")");
 
 		int payload_length = packet_length - padding_length - 1;
@@ -227,8 +835,69 @@ public class TransportConnection
 		return payload_length;
 	}
 
+	/**
+	 * @param sink receives channel data directly, may be <code>null</code>
+	 */
+	public void setChannelDataSink(ChannelDataSink sink)
+	{
+		channelDataSink = sink;
+	}
+
+	private void packetReceived(int packet_length)
+	{
+		recv_seq_number++;
+		recv_packets_with_key++;
+		recv_bytes_with_key += 4 + packet_length;
+	}
+
+	/**
+	 * RFC 4344 3.2 recommends to rekey after 2^(L/4) cipher blocks of L bits. That is
+	 * used for ciphers with 16 byte blocks (64 GB); for the smaller blocks (3DES,
+	 * Blowfish, ChaCha20-Poly1305) the limit is 1 GB, as in OpenSSH, instead of the
+	 * 512 KB that the formula would give.
+	 */
+	private static long getRekeyByteLimit(int blocksize, long maxBytes)
+	{
+		long limit = (blocksize >= 16) ? (1L << 36) : (1L << 30);
+
+		return ((maxBytes > 0) && (maxBytes < limit)) ? maxBytes : limit;
+	}
+
+	/**
+	 * May only be called while holding the lock that serializes sendMessage().
+	 *
+	 * @param maxBytes the configured limit, 0 for the limit of the cipher
+	 * @return <code>true</code> if the keys for sending have been used for enough traffic
+	 *         that they should be replaced
+	 */
+	public boolean isSendRekeyDue(long maxBytes)
+	{
+		return (send_packets_with_key >= REKEY_PACKET_LIMIT)
+				|| (send_bytes_with_key >= getRekeyByteLimit(send_padd_blocksize, maxBytes));
+	}
+
+	/**
+	 * May only be called by the receiver.
+	 *
+	 * @param maxBytes the configured limit, 0 for the limit of the cipher
+	 * @return <code>true</code> if the keys for receiving have been used for enough
+	 *         traffic that they should be replaced
+	 */
+	public boolean isReceiveRekeyDue(long maxBytes)
+	{
+		return (recv_packets_with_key >= REKEY_PACKET_LIMIT)
+				|| (recv_bytes_with_key >= getRekeyByteLimit(recv_padd_blocksize, maxBytes));
+	}
+
+	/**
+	 * Receives the next message. Returns 0 if the message was channel data that has
+	 * been delivered to the {@link ChannelDataSink}.
+	 */
 	public int receiveMessage(byte buffer[], int off, int len) throws IOException
 	{
+		if (isFrameMode())
+			return receiveFrameMessage(buffer, off, len);
+
 		if (recv_packet_header_present == false)
 		{
 			cis.read(recv_packet_header_buffer, 0, 5);
@@ -242,7 +911,7 @@ public class TransportConnection
 
 		int padding_length = recv_packet_header_buffer[4] & 0xff;
 
-		if (packet_length > 35000 || packet_length < 12)
+		if (packet_length > max_packet_length || packet_length < 12)
 			throw new IOException("Illegal packet size! (" + packet_length + ")");
 
 		int payload_length = packet_length - padding_length - 1;
@@ -253,7 +922,23 @@ public class TransportConnection
 		if (payload_length >= len)
 			throw new IOException("Receive buffer too small (" + len + ", need " + payload_length + ")");
 
-		cis.read(buffer, off, payload_length);
+		int head = 0;
+
+		ChannelDataSink sink = channelDataSink;
+
+		if ((sink != null) && (payload_length > 9) && (isReceiveCompressionActive() == false))
+		{
+			/* Decrypt only the header, the data may go directly to the channel */
+
+			head = 9;
+
+			cis.read(buffer, off, head);
+
+			if (receiveChannelData(sink, buffer, off, payload_length, padding_length))
+				return 0;
+		}
+
+		cis.read(buffer, off + head, payload_length - head);
 		cis.read(recv_padding_buffer, 0, padding_length);
 
 		if (recv_mac != null)
@@ -273,7 +958,73 @@ public class TransportConnection
 			}
 		}
 
-		recv_seq_number++;
+		packetReceived(packet_length);
+
+		payload_length = uncompressPayload(buffer, off, len, payload_length);
+
+		if (log.isDebugEnabled())
+		{
+			log.debug("Received " + Packets.getMessageName(buffer[off] & 0xff) + " " + payload_length
+					+ " bytes payload");
+		}
+
+		return payload_length;
+	}
+
+	private int receiveFrameMessage(byte buffer[], int off, int len) throws IOException
+	{
+		if (recv_packet_header_present == false)
+		{
+			receiveFramePacket();
+		}
+		else
+			recv_packet_header_present = false;
+
+		int padding_length = recv_frame_buffer[4] & 0xff;
+
+		int payload_length = recv_frame_packet_length - padding_length - 1;
+
+		if (payload_length < 0)
+			throw new IOException("Illegal padding_length in packet from remote (" + padding_length + ")");
+
+		if (payload_length >= len)
+			throw new IOException("Receive buffer too small (" + len + ", need " + payload_length + ")");
+
+		ChannelDataSink sink = channelDataSink;
+
+		if ((sink != null) && (payload_length > 9) && (isReceiveCompressionActive() == false))
+		{
+			/* The packet has already been authenticated, decrypt the data straight into the channel */
+
+			int dlen = getChannelDataLength(recv_frame_buffer, 5, payload_length);
+
+			if ((dlen > 0) && sink.beginData(getInt(recv_frame_buffer, 6), dlen))
+			{
+				try
+				{
+					decryptFrameToSink(sink, dlen);
+				}
+				catch (IOException e)
+				{
+					sink.abortData();
+					throw e;
+				}
+
+				packetReceived(recv_frame_packet_length);
+
+				sink.commitData();
+
+				return 0;
+			}
+		}
+
+		decryptFrame(recv_frame_packet_length);
+
+		System.arraycopy(recv_frame_buffer, 5, buffer, off, payload_length);
+
+		packetReceived(recv_frame_packet_length);
+
+		payload_length = uncompressPayload(buffer, off, len, payload_length);
 
 		if (log.isDebugEnabled())
 		{
@@ -283,4 +1034,110 @@ public class TransportConnection
 
 		return payload_length;
 	}
+
+	private boolean isReceiveCompressionActive()
+	{
+		return recv_comp != null && (recv_comp_delayed == false || authenticated);
+	}
+
+	private static int getInt(byte[] b, int off)
+	{
+		return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+	}
+
+	/**
+	 * @return the data length if the payload is a well-formed SSH_MSG_CHANNEL_DATA message,
+	 *         otherwise 0 (the message handler will deal with it)
+	 */
+	private static int getChannelDataLength(byte[] payload, int off, int payload_length)
+	{
+		if ((payload[off] & 0xff) != Packets.SSH_MSG_CHANNEL_DATA)
+			return 0;
+
+		int dlen = getInt(payload, off + 5);
+
+		return (dlen == payload_length - 9) ? dlen : 0;
+	}
+
+	/**
+	 * Receives the rest of a SSH_MSG_CHANNEL_DATA packet directly into the channel
+	 * buffer, if the sink accepts it. The first 9 bytes of the payload have already been
+	 * decrypted into <code>buffer</code>.
+	 *
+	 * @return <code>false</code> if nothing has been read
+	 */
+	private boolean receiveChannelData(ChannelDataSink sink, byte[] buffer, int off, int payload_length,
+			int padding_length) throws IOException
+	{
+		int dlen = getChannelDataLength(buffer, off, payload_length);
+
+		if ((dlen == 0) || (sink.beginData(getInt(buffer, off + 1), dlen) == false))
+			return false;
+
+		byte[] target = sink.getDataArray();
+		int pos = sink.getDataOffset();
+		int first = sink.getDataFirstLength();
+
+		try
+		{
+			cis.read(target, pos, first);
+
+			if (dlen > first)
+				cis.read(target, 0, dlen - first);
+
+			cis.read(recv_padding_buffer, 0, padding_length);
+
+			if (recv_mac != null)
+			{
+				cis.readPlain(recv_mac_buffer, 0, recv_mac_buffer.length);
+
+				recv_mac.initMac(recv_seq_number);
+				recv_mac.update(recv_packet_header_buffer, 0, 5);
+				recv_mac.update(buffer, off, 9);
+				recv_mac.update(target, pos, first);
+				recv_mac.update(target, 0, dlen - first);
+				recv_mac.update(recv_padding_buffer, 0, padding_length);
+				recv_mac.getMac(recv_mac_buffer_cmp, 0);
+
+				for (int i = 0; i < recv_mac_buffer.length; i++)
+				{
+					if (recv_mac_buffer[i] != recv_mac_buffer_cmp[i])
+						throw new IOException("Remote sent corrupt MAC.");
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			sink.abortData();
+			throw e;
+		}
+
+		packetReceived(1 + payload_length + padding_length);
+
+		sink.commitData();
+
+		if (log.isDebugEnabled())
+		{
+			log.debug("Received SSH_MSG_CHANNEL_DATA " + payload_length + " bytes payload (direct)");
+		}
+
+		return true;
+	}
+
+	private int uncompressPayload(byte buffer[], int off, int len, int payload_length) throws IOException
+	{
+		if (recv_comp != null && (recv_comp_delayed == false || authenticated))
+		{
+			/* Fails as soon as the output does not fit, not after inflating all of it */
+
+			payload_length = recv_comp.transform(buffer, off, payload_length, len - 1);
+
+			System.arraycopy(recv_comp.getBuffer(), 0, buffer, off, payload_length);
+		}
+
+		if ((buffer[off] & 0xff) == Packets.SSH_MSG_USERAUTH_SUCCESS)
+			authenticated = true;
+
+		return payload_length;
+	}
 }
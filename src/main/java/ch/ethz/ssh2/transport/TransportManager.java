@@ -9,13 +9,19 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ThreadFactory;
 
+import ch.ethz.ssh2.ChannelPriority;
 import ch.ethz.ssh2.ConnectionInfo;
 import ch.ethz.ssh2.ConnectionMonitor;
 import ch.ethz.ssh2.DHGexParameters;
 import ch.ethz.ssh2.crypto.CryptoWishList;
+import ch.ethz.ssh2.crypto.cipher.AeadCipher;
 import ch.ethz.ssh2.crypto.cipher.BlockCipher;
 import ch.ethz.ssh2.crypto.digest.MAC;
 import ch.ethz.ssh2.log.Logger;
@@ -24,6 +30,7 @@ import ch.ethz.ssh2.packets.Packets;
 import ch.ethz.ssh2.packets.TypesReader;
 import ch.ethz.ssh2.signature.DSAPrivateKey;
 import ch.ethz.ssh2.signature.RSAPrivateKey;
+import ch.ethz.ssh2.util.Threads;
 
 /*
  * Yes, the "standard" is a big mess. On one side, the say that arbitary channel
@@ -48,6 +55,21 @@ import ch.ethz.ssh2.signature.RSAPrivateKey;
  * @version $Id$
  */
 public abstract class TransportManager {
+    /**
+     * Channel packet size that is used unless configured otherwise.
+     */
+    public static final int DEFAULT_MAX_PACKET_SIZE = 32 * 1024;
+
+    /**
+     * Largest configurable channel packet size (the limit used by OpenSSH).
+     */
+    public static final int MAX_PACKET_SIZE = 256 * 1024;
+
+    /**
+     * Time after which the keys are replaced unless configured otherwise (one hour).
+     */
+    public static final long DEFAULT_REKEY_INTERVAL = 3600;
+
     private static final Logger log = Logger.getLogger(TransportManager.class);
 
     private static final class HandlerEntry {
@@ -56,63 +78,119 @@ public abstract class TransportManager {
         int high;
     }
 
-    private final List<AsynchronousEntry> asynchronousQueue = new ArrayList<AsynchronousEntry>();
-    private Thread asynchronousThread = null;
-    private boolean asynchronousPending = false;
+    /* All messages except the KEX messages pass through this queue. Whoever holds
+     * the connectionSemaphore writes what takeBatch() selects and flushes once,
+     * so that messages from concurrent senders share socket writes. */
+    private final LinkedList<OutboundEntry> outboundQueue = new LinkedList<OutboundEntry>();
+    private boolean outboundWriterActive = false;
+    private int asynchronousQueued = 0;
+    private boolean asynchronousWorkerRunning = false;
 
-    private static final class AsynchronousEntry {
-        public byte[] msg;
-        public Runnable run;
+    /* Messages (payload bytes) that may be queued without blocking their senders
+     * during a key exchange, see deferQueued() */
+    private static final int DEFERRED_LIMIT = 4 * 1024 * 1024;
+    private int deferredBytes = 0;
 
-        public AsynchronousEntry(byte[] msg, Runnable run) {
-            this.msg = msg;
-            this.run = run;
-        }
+    /* Set by close(), protected by the outboundQueue, see flushDeferred() */
+    private boolean outboundClosed = false;
+
+    /* Maximum amount of (non-interactive) channel data per write, see takeBatch() */
+    private static final int BATCH_DATA_LIMIT = 64 * 1024;
+    private static final int DRR_QUANTUM = 8 * 1024;
+
+    /* Deficit round robin: the channels with held back data in the order they are served
+     * (linked through OutboundChannel.next), protected by the outboundQueue */
+    private OutboundChannel drrFirst;
+    private OutboundChannel drrLast;
+
+    /* The messages selected by takeBatch(), only used by the active writer */
+    private final List<OutboundEntry> batch = new ArrayList<OutboundEntry>();
+
+    /**
+     * The scheduling state of the data sent on one channel (see takeBatch()). The channel
+     * layer keeps one per channel and passes it along with the data. A channel is only
+     * known to the scheduler while some of its data is queued, so there is nothing to
+     * remove when a channel is closed.
+     */
+    public static final class OutboundChannel {
+        /* All fields are protected by the outboundQueue */
+        private int deficit;
+        private int priority;
+
+        /* Part of the round robin list */
+        private boolean listed;
+        private OutboundChannel next;
+
+        /* The recipient and the messages of the channel that are held back in the current takeBatch() */
+        private int recipient;
+        private OutboundEntry heldFirst;
+        private OutboundEntry heldLast;
     }
 
-    private final class AsynchronousWorker extends Thread {
-        @Override
-        public void run() {
-            while(true) {
-                AsynchronousEntry item;
+    private static final class OutboundEntry {
+        byte[] msg;
+        final Runnable run;
+        final boolean asynchronous;
 
-                synchronized(asynchronousQueue) {
-                    if(asynchronousQueue.size() == 0) {
-                        /* Only now we may reset the flag, since we are sure that all queued items
-						 * have been sent (there is a slight delay between de-queuing and sending,
-						 * this is why we need this flag! See code below. Sending takes place outside
-						 * of this lock, this is why a test for size()==0 (from another thread) does not ensure
-						 * that all messages have been sent.
-						 */
+        /* Optional data following msg (see sendMessage(byte[], byte[], int, int, int, byte[])) */
+        byte[] data;
+        int dataOff;
+        ByteBuffer dataBuffer;
+        int dataLen;
 
-                        asynchronousPending = false;
+        /* For channel data: the recipient channel, its scheduling state and its ChannelPriority */
+        int channel;
+        OutboundChannel outbound;
+        int priority;
 
-						/* Notify any senders that they can proceed, all async messages have been delivered */
+        /* The message queued along with this one (see sendMessage(byte[], byte[], int, int, OutboundChannel, int, byte[])) */
+        OutboundEntry control;
 
-                        asynchronousQueue.notifyAll();
+        /* Next held back message of the same channel, see takeBatch() */
+        OutboundEntry nextHeld;
 
-						/* After the queue is empty for about 2 seconds, stop this thread */
+        /* Protected by the outboundQueue */
+        boolean sent;
+        boolean scheduled;
 
-                        try {
-                            asynchronousQueue.wait(2000);
-                        }
-                        catch(InterruptedException ignore) {
+        /* The message has been copied, its sender no longer waits for it (see deferQueued()) */
+        boolean deferred;
+
+        OutboundEntry(byte[] msg, Runnable run, boolean asynchronous) {
+            this.msg = msg;
+            this.run = run;
+            this.asynchronous = asynchronous;
+        }
+    }
+
+    private final class AsynchronousWorker implements Runnable {
+        public void run() {
+            while(true) {
+                synchronized(outboundQueue) {
+                    if(outboundQueue.size() == 0) {
+						/* After the queue is empty for about 2 seconds, stop this thread.
+						 * Pooled workers (NIO engine) return the thread to the pool right away. */
+
+                        if(endpoint == null) {
+                            try {
+                                outboundQueue.wait(2000);
+                            }
+                            catch(InterruptedException ignore) {
+                            }
                         }
 
-                        if(asynchronousQueue.size() == 0) {
-                            asynchronousThread = null;
+                        if(outboundQueue.size() == 0) {
+                            asynchronousWorkerRunning = false;
                             return;
                         }
                     }
-
-                    item = asynchronousQueue.remove(0);
                 }
 
 				/* The following invocation may throw an IOException.
 				 * There is no point in handling it - it simply means
 				 * that the connection has a problem and we should stop
 				 * sending asynchronously messages. We do not need to signal that
-				 * we have exited (asynchronousThread = null): further
+				 * we have exited (asynchronousWorkerRunning = false): further
 				 * messages in the queue cannot be sent by this or any
 				 * other thread.
 				 * Other threads will sooner or later (when receiving or
@@ -121,20 +199,13 @@ public abstract class TransportManager {
 				 */
 
                 try {
-                    sendMessageImmediate(item.msg);
+                    if(writeOutbound(null) == false) {
+                        return;
+                    }
                 }
                 catch(IOException e) {
                     return;
                 }
-
-                if(item.run != null) {
-                    try {
-                        item.run.run();
-                    }
-                    catch(Exception ignore) {
-                    }
-
-                }
             }
         }
     }
@@ -144,25 +215,124 @@ public abstract class TransportManager {
     private boolean flagKexOngoing = false;
     private boolean connectionClosed = false;
 
+    /* Automatic rekeying, see setRekeyLimits() */
+    private volatile long rekeyMaxBytes = 0;
+    private volatile long rekeyIntervalNanos = DEFAULT_REKEY_INTERVAL * 1000000000L;
+    private volatile long keysChangedAt = System.nanoTime();
+    private volatile boolean rekeyRequested = false;
+
     private Throwable reasonClosedCause = null;
 
     private TransportConnection tc;
+
+    private ChannelDataSink channelDataSink;
     private KexManager km;
 
     private final List<HandlerEntry> messageHandlers = new ArrayList<HandlerEntry>();
 
-    private Thread receiveThread;
+    /* Handler per message type, rebuilt (copy-on-write) whenever the registrations change,
+     * so that the receiver can dispatch without locking. Transport layer messages
+     * (DISCONNECT, IGNORE, UNIMPLEMENTED, DEBUG) have no entry, they are handled internally. */
+    private volatile MessageHandler[] handlerTable = new MessageHandler[256];
+
+    /* The thread that is dispatching received messages of this connection right now: the
+     * receive thread, or the event loop thread of a NioTransportEngine while it serves this
+     * connection (it serves others in between) */
+    private volatile Thread dispatchThread;
+
+    /* Set if the connection is served by a NioTransportEngine instead of a receive thread */
+    private NioEndpoint endpoint;
+
+    /* Supplied by the application, null means plain daemon threads */
+    private ThreadFactory threadFactory;
+
+    private int maxPacketSize = DEFAULT_MAX_PACKET_SIZE;
 
     private List<ConnectionMonitor> connectionMonitors = new ArrayList<ConnectionMonitor>();
     private boolean monitorsWereInformed = false;
 
     protected void init(TransportConnection tc, KexManager km) {
+        init(tc, km, null);
+    }
+
+    protected void init(TransportConnection tc, KexManager km, NioEndpoint endpoint) {
         this.tc = tc;
         this.km = km;
+        this.endpoint = endpoint;
+
+		/* Room for the channel message header, padding, MAC and compression overhead */
+
+        tc.setMaxPacketLength(Math.max(TransportConnection.DEFAULT_MAX_PACKET_LENGTH, maxPacketSize + 2232));
+        tc.setChannelDataSink(channelDataSink);
+
+        synchronized(messageHandlers) {
+            rebuildHandlerTable();
+        }
     }
 
-    public int getPacketOverheadEstimate() {
-        return tc.getPacketOverheadEstimate();
+    /**
+     * Sets the factory used for all threads created on behalf of this connection
+     * (receive thread, asynchronous sender, port forwarding, server sessions).
+     * Must be set before the connection is established.
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    public ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
+
+    /**
+     * Sets the maximum size of the channel data packets the peer may send (advertised
+     * when opening channels); larger transport packets are accepted accordingly.
+     * Must be set before the connection is established.
+     */
+    public void setMaxPacketSize(int maxPacketSize) {
+        if((maxPacketSize < 1024) || (maxPacketSize > MAX_PACKET_SIZE)) {
+            throw new IllegalArgumentException("Illegal maximum packet size (" + maxPacketSize + ")");
+        }
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    /**
+     * Sets the limits for automatic rekeying. A new key exchange is started once the
+     * keys of one direction have been used for <code>maxBytes</code> or once they are
+     * <code>maxSeconds</code> old (checked whenever a packet is sent or received).
+     * Independent of <code>maxBytes</code>, the keys are replaced before reaching the
+     * limits of RFC 4344 for the negotiated cipher.
+     *
+     * @param maxBytes the traffic limit, 0 for the limit of RFC 4344
+     * @param maxSeconds the age limit, 0 for no limit
+     */
+    public void setRekeyLimits(long maxBytes, long maxSeconds) {
+        if((maxBytes < 0) || (maxSeconds < 0)) {
+            throw new IllegalArgumentException("Rekey limits must not be negative");
+        }
+        rekeyMaxBytes = maxBytes;
+        rekeyIntervalNanos = maxSeconds * 1000000000L;
+    }
+
+    /**
+     * Lets the sink (the channel manager) take the data of SSH_MSG_CHANNEL_DATA messages
+     * directly from the transport, so that it is decrypted straight into the channel buffer.
+     *
+     * @param sink the sink, or <code>null</code>
+     */
+    public void setChannelDataSink(ChannelDataSink sink) {
+        channelDataSink = sink;
+
+        if(tc != null) {
+            tc.setChannelDataSink(sink);
+        }
+    }
+
+    public int getMaxPacketSize() {
+        return maxPacketSize;
+    }
+
+    public int getPacketOverheadEstimate(int payloadLength) {
+        return tc.getPacketOverheadEstimate(payloadLength);
     }
 
     public ConnectionInfo getConnectionInfo(int kexNumber) throws IOException {
@@ -229,6 +399,19 @@ public abstract class TransportManager {
             connectionSemaphore.notifyAll();
         }
 
+        synchronized(outboundQueue) {
+            outboundClosed = true;
+            outboundQueue.notifyAll();
+        }
+
+        if(endpoint != null) {
+            endpoint.closed();
+        }
+
+        if(tc != null) {
+            tc.endCompression();
+        }
+
 		/* No check if we need to inform the monitors */
 
         List<ConnectionMonitor> monitors = new ArrayList<ConnectionMonitor>();
@@ -255,7 +438,12 @@ public abstract class TransportManager {
     }
 
     protected void startReceiver() throws IOException {
-        receiveThread = new Thread(new Runnable() {
+        if(endpoint != null) {
+            endpoint.start(this, tc);
+            return;
+        }
+
+        Threads.start(threadFactory, new Runnable() {
             public void run() {
                 try {
                     receiveLoop();
@@ -269,28 +457,38 @@ public abstract class TransportManager {
                     log.debug("Receive thread: back from receiveLoop");
                 }
 
-				/* Tell all handlers that it is time to say goodbye */
+                receiverStopped();
+            }
+        }, true);
+    }
 
-                if(km != null) {
-                    try {
-                        km.handleMessage(null, 0);
-                    }
-                    catch(IOException ignored) {
-                    }
-                }
+    /**
+     * Called once the receiving side has stopped.
+     */
+    void receiverStopped() {
+		/* Tell all handlers that it is time to say goodbye */
 
-                for(HandlerEntry he : messageHandlers) {
-                    try {
-                        he.mh.handleMessage(null, 0);
-                    }
-                    catch(IOException ignored) {
-                    }
-                }
+        if(km != null) {
+            try {
+                km.handleMessage(null, 0);
             }
-        });
+            catch(IOException ignored) {
+            }
+        }
+
+        List<HandlerEntry> handlers;
+
+        synchronized(messageHandlers) {
+            handlers = new ArrayList<HandlerEntry>(messageHandlers);
+        }
 
-        receiveThread.setDaemon(true);
-        receiveThread.start();
+        for(HandlerEntry he : handlers) {
+            try {
+                he.mh.handleMessage(null, 0);
+            }
+            catch(IOException ignored) {
+            }
+        }
     }
 
     public void registerMessageHandler(MessageHandler mh, int low, int high) {
@@ -301,6 +499,7 @@ public abstract class TransportManager {
 
         synchronized(messageHandlers) {
             messageHandlers.add(he);
+            rebuildHandlerTable();
         }
     }
 
@@ -313,7 +512,41 @@ public abstract class TransportManager {
                     break;
                 }
             }
+            rebuildHandlerTable();
+        }
+    }
+
+    /**
+     * Must be called while holding the messageHandlers lock.
+     */
+    private void rebuildHandlerTable() {
+        MessageHandler[] table = new MessageHandler[256];
+
+		/* Walk backwards, for overlapping ranges the handler registered first wins */
+
+        for(int i = messageHandlers.size() - 1; i >= 0; i--) {
+            HandlerEntry he = messageHandlers.get(i);
+
+            for(int type = Math.max(he.low, 0); type <= Math.min(he.high, 255); type++) {
+                table[type] = he.mh;
+            }
         }
+
+		/* KEX Packets always go to the KexManager */
+
+        table[Packets.SSH_MSG_KEXINIT] = km;
+        table[Packets.SSH_MSG_NEWKEYS] = km;
+
+        for(int type = 30; type <= 49; type++) {
+            table[type] = km;
+        }
+
+        table[Packets.SSH_MSG_DISCONNECT] = null;
+        table[Packets.SSH_MSG_IGNORE] = null;
+        table[Packets.SSH_MSG_UNIMPLEMENTED] = null;
+        table[Packets.SSH_MSG_DEBUG] = null;
+
+        handlerTable = table;
     }
 
     public void sendKexMessage(byte[] msg) throws IOException {
@@ -335,10 +568,86 @@ public abstract class TransportManager {
     }
 
     public void kexFinished() throws IOException {
+        keysChangedAt = System.nanoTime();
+        rekeyRequested = false;
+
         synchronized(connectionSemaphore) {
             flagKexOngoing = false;
             connectionSemaphore.notifyAll();
+
+            /* Write what has been queued during the key exchange */
+
+            synchronized(outboundQueue) {
+                if((outboundQueue.size() > 0) && (asynchronousWorkerRunning == false)) {
+                    startAsynchronousWorker();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a key exchange if the keys have been used for enough traffic (as
+     * determined by the caller) or for too long. Must not be called while holding
+     * the connectionSemaphore.
+     */
+    private void checkRekey(boolean trafficLimitReached) throws IOException {
+        if(rekeyRequested) {
+            return;
+        }
+
+        if(trafficLimitReached == false) {
+            long interval = rekeyIntervalNanos;
+
+            if((interval == 0) || ((System.nanoTime() - keysChangedAt) < interval)) {
+                return;
+            }
+        }
+
+        rekeyRequested = true;
+
+        if(log.isDebugEnabled()) {
+            log.debug("Starting automatic key exchange");
+        }
+
+        if((endpoint != null) && endpoint.isEventLoopThread()) {
+            /* Sending the KEXINIT may wait for the socket, not on an event loop thread */
+
+            endpoint.executeWorker(new Runnable() {
+                public void run() {
+                    try {
+                        initiateRekey();
+                    }
+                    catch(IOException e) {
+                        close(e);
+                    }
+                }
+            });
+            return;
         }
+
+        initiateRekey();
+    }
+
+    private void initiateRekey() throws IOException {
+        /* Not started if one is running or the first one has not finished, try again later */
+
+        if(km.initiateRekey() == false) {
+            rekeyRequested = false;
+        }
+    }
+
+    /**
+     * @return <code>true</code> for the messages that are handled by the KexManager
+     */
+    static boolean isKexMessage(int type) {
+        return (type == Packets.SSH_MSG_KEXINIT) || (type == Packets.SSH_MSG_NEWKEYS) || ((type >= 30) && (type <= 49));
+    }
+
+    /**
+     * Called by the receiver after each received message.
+     */
+    void messageReceived() throws IOException {
+        checkRekey(tc.isReceiveRekeyDue(rekeyMaxBytes));
     }
 
     /**
@@ -368,14 +677,30 @@ public abstract class TransportManager {
         tc.changeSendCipher(bc, mac);
     }
 
+    public void changeRecvCipher(AeadCipher ac) {
+        tc.changeRecvCipher(ac);
+    }
+
+    public void changeSendCipher(AeadCipher ac) {
+        tc.changeSendCipher(ac);
+    }
+
+    public void changeRecvCompression(String algo) {
+        tc.changeRecvCompression(algo);
+    }
+
+    public void changeSendCompression(String algo) {
+        tc.changeSendCompression(algo);
+    }
+
     public void sendAsynchronousMessage(byte[] msg) throws IOException {
         sendAsynchronousMessage(msg, null);
     }
 
     public void sendAsynchronousMessage(byte[] msg, Runnable run) throws IOException {
-        synchronized(asynchronousQueue) {
-            asynchronousQueue.add(new AsynchronousEntry(msg, run));
-            asynchronousPending = true;
+        synchronized(outboundQueue) {
+            outboundQueue.add(new OutboundEntry(msg, run, true));
+            asynchronousQueued++;
 
 			/* This limit should be flexible enough. We need this, otherwise the peer
 			 * can flood us with global requests (and other stuff where we have to reply
@@ -383,24 +708,36 @@ public abstract class TransportManager {
 			 * read what we send) this will probably put us in a low memory situation
 			 * (our send queue would grow and grow and...) */
 
-            if(asynchronousQueue.size() > 100) {
+            if(asynchronousQueued > 100) {
                 throw new IOException("Error: the peer is not consuming our asynchronous replies.");
             }
 
 			/* Check if we have an asynchronous sending thread */
 
-            if(asynchronousThread == null) {
-                asynchronousThread = new AsynchronousWorker();
-                asynchronousThread.setDaemon(true);
-                asynchronousThread.start();
-
-				/* The thread will stop after 2 seconds of inactivity (i.e., empty queue) */
+            if(asynchronousWorkerRunning == false) {
+                startAsynchronousWorker();
             }
 
-            asynchronousQueue.notifyAll();
+            outboundQueue.notifyAll();
         }
     }
 
+    /**
+     * Called while holding the outboundQueue lock.
+     */
+    private void startAsynchronousWorker() {
+        asynchronousWorkerRunning = true;
+
+        if(endpoint != null) {
+            endpoint.executeWorker(new AsynchronousWorker());
+        }
+        else {
+            Threads.start(threadFactory, new AsynchronousWorker(), true);
+        }
+
+		/* The thread will stop after 2 seconds of inactivity (i.e., empty queue) */
+    }
+
     public void setConnectionMonitors(List<ConnectionMonitor> monitors) {
         synchronized(this) {
             connectionMonitors = new ArrayList<ConnectionMonitor>();
@@ -415,67 +752,545 @@ public abstract class TransportManager {
 
     /**
      * Send a message but ensure that all queued messages are being sent first.
+     * Returns once the message has been handed to the socket, either by this
+     * thread or by another sender that wrote it together with its own.
+     * <p>
+     * During a key exchange, it may return earlier: the message is copied and stays
+     * queued until the key exchange has finished (up to 4 MB of messages of all
+     * senders, see deferQueued()). If the connection fails before it is sent, the
+     * message is lost without an exception from this call; {@link #flushDeferred()}
+     * reports it, later calls fail.
      *
      * @param msg
      * @throws IOException
      */
     public void sendMessage(byte[] msg) throws IOException {
-        synchronized(asynchronousQueue) {
-            while(asynchronousPending) {
+        if(Thread.currentThread() == dispatchThread) {
+            throw new IOException("Assertion error: sendMessage may never be invoked by the receiver thread!");
+        }
+
+        OutboundEntry oe = new OutboundEntry(msg, null, false);
+
+        synchronized(outboundQueue) {
+            outboundQueue.add(oe);
+        }
+
+        writeOutbound(oe);
+    }
+
+    /**
+     * Waits until the messages that were queued during a key exchange without blocking
+     * their senders (see {@link #sendMessage(byte[])}) have been handed to the socket.
+     * This includes the messages of all senders, not only those of the caller.
+     *
+     * @throws IOException if the connection has been closed before all of them could be sent
+     */
+    public void flushDeferred() throws IOException {
+        synchronized(outboundQueue) {
+            while(deferredBytes > 0) {
+                if(outboundClosed) {
+                    throw new IOException("The connection was closed before all queued data could be sent.",
+                            reasonClosedCause);
+                }
+
                 try {
-                    asynchronousQueue.wait(1000);
+                    outboundQueue.wait();
                 }
                 catch(InterruptedException e) {
                     throw new InterruptedIOException(e.getMessage());
                 }
             }
         }
-
-        sendMessageImmediate(msg);
     }
 
     /**
-     * Send message, ignore queued async messages that have not been delivered yet.
-     * Will be called directly from the asynchronousThread thread.
+     * Send a message that consists of a header and the data following it, without
+     * assembling it first (used for channel data). Like {@link #sendMessage(byte[])},
+     * this returns once the message has been handed to the socket or, during a key
+     * exchange, has been copied to be sent later (a failure to send it is then not
+     * reported by this call). Either way the caller may reuse both arrays afterwards.
      *
-     * @param msg
+     * @param header the start of the message, bytes 1-4 must be the recipient channel
+     * @param data array containing the rest of the message
+     * @param off offset in <code>data</code>
+     * @param len number of bytes from <code>data</code>
+     * @param channel the scheduling state of the channel
+     * @param priority the <code>ChannelPriority</code> of the channel
+     * @param control a message without data (e.g., a window adjust) that is queued just before
+     *                this one and therefore shares its write, or <code>null</code>. It is not
+     *                delayed by the scheduling of the channel data. The caller may reuse this
+     *                array as well, even if the call is interrupted.
      * @throws IOException
      */
-    public void sendMessageImmediate(byte[] msg) throws IOException {
-        if(Thread.currentThread() == receiveThread) {
+    public void sendMessage(byte[] header, byte[] data, int off, int len, OutboundChannel channel, int priority,
+                            byte[] control) throws IOException {
+        OutboundEntry oe = new OutboundEntry(header, null, false);
+        oe.data = data;
+        oe.dataOff = off;
+        oe.dataLen = len;
+
+        sendData(oe, channel, priority, control);
+    }
+
+    /**
+     * Same as {@link #sendMessage(byte[], byte[], int, int, OutboundChannel, int, byte[])}, the rest
+     * of the message is taken from the buffer (starting at its position, which is not changed). As
+     * there, the message may still be queued (as a copy) when this returns during a key exchange.
+     */
+    public void sendMessage(byte[] header, ByteBuffer data, int len, OutboundChannel channel, int priority,
+                            byte[] control) throws IOException {
+        OutboundEntry oe = new OutboundEntry(header, null, false);
+        oe.dataBuffer = data;
+        oe.dataLen = len;
+
+        sendData(oe, channel, priority, control);
+    }
+
+    private void sendData(OutboundEntry oe, OutboundChannel channel, int priority, byte[] control)
+            throws IOException {
+        if(Thread.currentThread() == dispatchThread) {
             throw new IOException("Assertion error: sendMessage may never be invoked by the receiver thread!");
         }
-        synchronized(connectionSemaphore) {
-            while(true) {
-                if(connectionClosed) {
-                    throw new IOException("Sorry, this connection is closed.", reasonClosedCause);
+
+        oe.channel = getRecipient(oe.msg);
+        oe.outbound = channel;
+        oe.priority = priority;
+
+        synchronized(outboundQueue) {
+            if(control != null) {
+                oe.control = new OutboundEntry(control, null, false);
+                outboundQueue.add(oe.control);
+            }
+            outboundQueue.add(oe);
+        }
+
+        writeOutbound(oe);
+    }
+
+    /**
+     * Selects the messages for the next write, called while holding the outboundQueue lock.
+     * <p>
+     * All messages without channel data (control messages) and the data of interactive
+     * channels are taken in FIFO order. The data of the other channels is added with
+     * deficit round robin (a normal channel gets four times the quantum of a bulk channel)
+     * until BATCH_DATA_LIMIT is reached, the rest stays queued for the next round.
+     * The order of the messages of one channel is never changed: EOF, CLOSE, the
+     * channel requests and replies, and interactive data (the priority may have been
+     * changed while data was queued) stay behind the queued data of their channel.
+     */
+    private void takeBatch() {
+        batch.clear();
+
+        /* The held back messages are collected anew, channels keep their deficit */
+
+        for(OutboundChannel oc = drrFirst; oc != null; oc = oc.next) {
+            oc.heldFirst = null;
+            oc.heldLast = null;
+        }
+
+        for(OutboundEntry oe : outboundQueue) {
+            OutboundChannel oc;
+
+            if(oe.dataLen == 0) {
+                oc = findHeld(getControlRecipient(oe.msg));
+            }
+            else {
+                oc = oe.outbound;
+
+                if((oc.heldFirst == null) && (oe.priority == ChannelPriority.INTERACTIVE)) {
+                    oc = null;
                 }
+            }
 
-                if(flagKexOngoing == false) {
-                    break;
+            if(oc == null) {
+                schedule(oe);
+                continue;
+            }
+
+            oe.nextHeld = null;
+
+            if(oc.heldFirst == null) {
+                oc.heldFirst = oe;
+                oc.recipient = oe.channel;
+            }
+            else {
+                oc.heldLast.nextHeld = oe;
+            }
+            oc.heldLast = oe;
+
+            if(oe.dataLen > 0) {
+                oc.priority = oe.priority;
+            }
+
+            if(oc.listed == false) {
+                oc.listed = true;
+                oc.deficit = 0;
+                appendToRound(oc);
+            }
+        }
+
+        int taken = 0;
+
+        while((taken < BATCH_DATA_LIMIT) && (drrFirst != null)) {
+            OutboundChannel oc = drrFirst;
+            drrFirst = oc.next;
+            oc.next = null;
+
+            if(drrFirst == null) {
+                drrLast = null;
+            }
+
+            if(oc.heldFirst != null) {
+                oc.deficit += (oc.priority == ChannelPriority.BULK) ? DRR_QUANTUM : 4 * DRR_QUANTUM;
+
+                while((oc.heldFirst != null) && (oc.heldFirst.dataLen <= oc.deficit)) {
+                    OutboundEntry oe = oc.heldFirst;
+                    oc.heldFirst = oe.nextHeld;
+                    schedule(oe);
+                    oc.deficit -= oe.dataLen;
+                    taken += oe.dataLen;
                 }
+            }
+
+            /* Served channels go to the end, so that the next batch starts with the others */
+
+            if(oc.heldFirst != null) {
+                appendToRound(oc);
+            }
+            else {
+                oc.heldLast = null;
+                oc.listed = false;
+            }
+        }
+
+        /* Drop the channels that have nothing queued any more (their senders gave up) */
+
+        OutboundChannel prev = null;
+
+        for(OutboundChannel oc = drrFirst; oc != null; oc = oc.next) {
+            if(oc.heldFirst != null) {
+                prev = oc;
+                continue;
+            }
+
+            oc.listed = false;
+
+            if(prev == null) {
+                drrFirst = oc.next;
+            }
+            else {
+                prev.next = oc.next;
+            }
+
+            if(drrLast == oc) {
+                drrLast = prev;
+            }
+        }
+
+        for(Iterator<OutboundEntry> it = outboundQueue.iterator(); it.hasNext(); ) {
+            if(it.next().scheduled) {
+                it.remove();
+            }
+        }
+    }
+
+    private void schedule(OutboundEntry oe) {
+        batch.add(oe);
+        oe.scheduled = true;
+    }
+
+    private void appendToRound(OutboundChannel oc) {
+        oc.next = null;
+
+        if(drrLast == null) {
+            drrFirst = oc;
+        }
+        else {
+            drrLast.next = oc;
+        }
+        drrLast = oc;
+    }
+
+    /**
+     * @return the channel with the given recipient that has data held back in the current
+     *         takeBatch(), or <code>null</code>
+     */
+    private OutboundChannel findHeld(int recipient) {
+        if(recipient == -1) {
+            return null;
+        }
+
+        for(OutboundChannel oc = drrFirst; oc != null; oc = oc.next) {
+            if((oc.heldFirst != null) && (oc.recipient == recipient)) {
+                return oc;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Releases the senders of the queued messages during a key exchange: the messages are
+     * copied (the senders may reuse their arrays once they return) and stay queued in their
+     * order until the key exchange has finished. Called while holding the outboundQueue lock.
+     * Once DEFERRED_LIMIT is reached, the remaining senders wait as before.
+     *
+     * @param own the entry of the calling writer, may be <code>null</code>
+     * @return <code>true</code> if the caller does not have to wait for the key exchange
+     */
+    private boolean deferQueued(OutboundEntry own) {
+        for(OutboundEntry oe : outboundQueue) {
+            if(oe.deferred || oe.asynchronous) {
+                continue;
+            }
+
+            int size = oe.msg.length + oe.dataLen;
+
+            if(deferredBytes + size > DEFERRED_LIMIT) {
+                break;
+            }
+
+            oe.msg = oe.msg.clone();
+
+            if(oe.dataLen > 0) {
+                byte[] copy = new byte[oe.dataLen];
+
+                if(oe.dataBuffer != null) {
+                    oe.dataBuffer.duplicate().get(copy);
+                }
+                else {
+                    System.arraycopy(oe.data, oe.dataOff, copy, 0, oe.dataLen);
+                }
+
+                oe.data = copy;
+                oe.dataOff = 0;
+                oe.dataBuffer = null;
+            }
+
+            oe.deferred = true;
+            deferredBytes += size;
+        }
+
+        outboundQueue.notifyAll();
+
+        return (own == null) || own.deferred || own.asynchronous;
+    }
+
+    /**
+     * Removes the entry of a sender that gives up (it has been interrupted), called while
+     * holding the outboundQueue lock. A control message queued along with it is still sent
+     * (by the asynchronous worker if nobody else is writing), as a copy, since the sender
+     * may reuse the array once it returns.
+     *
+     * @return <code>false</code> if the entry or its control message is being written right now
+     */
+    private boolean withdraw(OutboundEntry own) {
+        OutboundEntry control = own.control;
+
+        if((control != null) && control.scheduled && (control.sent == false)) {
+            return false;
+        }
+
+        if(outboundQueue.remove(own) == false) {
+            return false;
+        }
+
+        if((control != null) && (control.scheduled == false)) {
+            if(control.deferred == false) {
+                control.msg = control.msg.clone();
+            }
+
+            if(asynchronousWorkerRunning == false) {
+                startAsynchronousWorker();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the recipient channel of messages that have to be ordered with the channel
+     *         data (SSH_MSG_CHANNEL_EOF to SSH_MSG_CHANNEL_FAILURE), otherwise -1
+     */
+    private static int getControlRecipient(byte[] msg) {
+        int type = msg[0] & 0xff;
+
+        if((type < Packets.SSH_MSG_CHANNEL_EOF) || (type > Packets.SSH_MSG_CHANNEL_FAILURE) || (msg.length < 5)) {
+            return -1;
+        }
+
+        return getRecipient(msg);
+    }
+
+    private static int getRecipient(byte[] header) {
+        return ((header[1] & 0xff) << 24) | ((header[2] & 0xff) << 16) | ((header[3] & 0xff) << 8) | (header[4] & 0xff);
+    }
+
+    /**
+     * Writes the queued messages selected by {@link #takeBatch()} and flushes them at the
+     * end, so that the messages of concurrent senders share socket writes. Only one thread
+     * writes at a time; senders that arrive meanwhile queue their messages and wait, the
+     * next writer takes them. There is no waiting for further messages: since the amount of
+     * channel data per write is bounded, a message that arrives while channel data is queued
+     * gets into one of the next writes (control messages and interactive data into the very next).
+     *
+     * @param own if not <code>null</code>, return as soon as this entry has
+     *            been sent (possibly by another thread), otherwise return after one write
+     * @return <code>false</code> if <code>own</code> is <code>null</code> and nothing could be
+     *         written because of a key exchange; the caller (the asynchronous worker) has
+     *         to stop, {@link #kexFinished()} starts a new one
+     * @throws IOException
+     */
+    private boolean writeOutbound(OutboundEntry own) throws IOException {
+        while(true) {
+            synchronized(outboundQueue) {
+                boolean interrupted = false;
 
                 try {
-                    connectionSemaphore.wait();
+                    while(true) {
+                        if((own != null) && (own.sent || own.deferred)) {
+                            return true;
+                        }
+
+                        if(outboundWriterActive == false) {
+                            break;
+                        }
+
+                        try {
+                            outboundQueue.wait();
+                        }
+                        catch(InterruptedException e) {
+                            /* Give up only if nobody is writing our message right now */
+
+                            if((own != null) && withdraw(own)) {
+                                throw new InterruptedIOException(e.getMessage());
+                            }
+                            interrupted = true;
+                        }
+                    }
                 }
-                catch(InterruptedException e) {
-                    throw new InterruptedIOException(e.getMessage());
+                finally {
+                    if(interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
                 }
+
+                outboundWriterActive = true;
             }
 
+            List<Runnable> callbacks = null;
+            boolean success = false;
+            boolean rekeyDue = false;
+
             try {
-                tc.sendMessage(msg);
-                idle = false;
+                synchronized(connectionSemaphore) {
+                    while(true) {
+                        if(connectionClosed) {
+                            throw new IOException("Sorry, this connection is closed.", reasonClosedCause);
+                        }
+
+                        if(flagKexOngoing == false) {
+                            break;
+                        }
+
+                        synchronized(outboundQueue) {
+                            if(deferQueued(own)) {
+                                if(own == null) {
+                                    asynchronousWorkerRunning = false;
+                                    return false;
+                                }
+                                return true;
+                            }
+                        }
+
+                        try {
+                            connectionSemaphore.wait();
+                        }
+                        catch(InterruptedException e) {
+                            if(own != null) {
+                                synchronized(outboundQueue) {
+                                    withdraw(own);
+                                }
+                            }
+                            throw new InterruptedIOException(e.getMessage());
+                        }
+                    }
+
+                    synchronized(outboundQueue) {
+                        takeBatch();
+                    }
+
+                    if(batch.size() == 0) {
+                        return true;
+                    }
+
+                    try {
+                        for(OutboundEntry oe : batch) {
+                            tc.writeMessage(oe.msg, 0, oe.msg.length, oe.data, oe.dataOff, oe.dataBuffer, oe.dataLen, 0);
+                        }
+                        tc.flush();
+                        idle = false;
+                        rekeyDue = tc.isSendRekeyDue(rekeyMaxBytes);
+                    }
+                    catch(IOException e) {
+                        close(e);
+                        throw e;
+                    }
+
+                    success = true;
+                }
             }
-            catch(IOException e) {
-                close(e);
-                throw e;
+            finally {
+                synchronized(outboundQueue) {
+                    outboundWriterActive = false;
+
+                    if(success) {
+                        for(OutboundEntry oe : batch) {
+                            oe.sent = true;
+
+                            if(oe.asynchronous) {
+                                asynchronousQueued--;
+                            }
+
+                            if(oe.deferred) {
+                                deferredBytes -= oe.msg.length + oe.dataLen;
+                            }
+
+                            /* The batch is reused by the next writer, which may start right away */
+
+                            if(oe.run != null) {
+                                if(callbacks == null) {
+                                    callbacks = new ArrayList<Runnable>();
+                                }
+                                callbacks.add(oe.run);
+                            }
+                        }
+                    }
+
+                    outboundQueue.notifyAll();
+                }
+            }
+
+            if(callbacks != null) {
+                for(Runnable run : callbacks) {
+                    try {
+                        run.run();
+                    }
+                    catch(Exception ignore) {
+                    }
+                }
+            }
+
+            checkRekey(rekeyDue);
+
+            if(own == null) {
+                return true;
             }
         }
     }
 
     public void receiveLoop() throws IOException {
-        byte[] msg = new byte[35000];
+        byte[] msg = new byte[tc.getMaxPacketLength()];
+
+        setDispatching(true);
 
         while(true) {
             int msglen;
@@ -492,101 +1307,108 @@ public abstract class TransportManager {
             }
             idle = true;
 
-            int type = msg[0] & 0xff;
+            /* 0: channel data that went directly to the ChannelDataSink */
 
-            if(type == Packets.SSH_MSG_IGNORE) {
-                continue;
+            if(msglen > 0) {
+                dispatchMessage(msg, msglen);
             }
 
-            if(type == Packets.SSH_MSG_DEBUG) {
-                if(log.isDebugEnabled()) {
-                    TypesReader tr = new TypesReader(msg, 0, msglen);
-                    tr.readByte();
-                    tr.readBoolean();
-                    StringBuilder debugMessageBuffer = new StringBuilder();
-                    debugMessageBuffer.append(tr.readString("UTF-8"));
+            messageReceived();
+        }
+    }
 
-                    for(int i = 0; i < debugMessageBuffer.length(); i++) {
-                        char c = debugMessageBuffer.charAt(i);
+    /**
+     * Marks the calling thread as the one that dispatches the received messages of this
+     * connection (or not any more), handlers must not call {@link #sendMessage(byte[])}
+     * on it.
+     */
+    void setDispatching(boolean dispatching) {
+        dispatchThread = dispatching ? Thread.currentThread() : null;
+    }
 
-                        if((c >= 32) && (c <= 126)) {
-                            continue;
-                        }
-                        debugMessageBuffer.setCharAt(i, '\uFFFD');
-                    }
+    /**
+     * Handles one received message, either internally or by passing it to the
+     * registered handler.
+     */
+    void dispatchMessage(byte[] msg, int msglen) throws IOException {
+        int type = msg[0] & 0xff;
 
-                    log.debug("DEBUG Message from remote: '" + debugMessageBuffer.toString() + "'");
-                }
-                continue;
-            }
+        MessageHandler mh = handlerTable[type];
 
-            if(type == Packets.SSH_MSG_UNIMPLEMENTED) {
-                throw new IOException("Peer sent UNIMPLEMENTED message, that should not happen.");
-            }
+        if(mh != null) {
+            mh.handleMessage(msg, msglen);
+            return;
+        }
 
-            if(type == Packets.SSH_MSG_DISCONNECT) {
+        if(type == Packets.SSH_MSG_IGNORE) {
+            return;
+        }
+
+        if(type == Packets.SSH_MSG_DEBUG) {
+            if(log.isDebugEnabled()) {
                 TypesReader tr = new TypesReader(msg, 0, msglen);
                 tr.readByte();
-                int reason_code = tr.readUINT32();
-                StringBuilder reasonBuffer = new StringBuilder();
-                reasonBuffer.append(tr.readString("UTF-8"));
+                tr.readBoolean();
+                StringBuilder debugMessageBuffer = new StringBuilder();
+                debugMessageBuffer.append(tr.readString("UTF-8"));
 
-				/*
-				 * Do not get fooled by servers that send abnormal long error
-				 * messages
-				 */
-
-                if(reasonBuffer.length() > 255) {
-                    reasonBuffer.setLength(255);
-                    reasonBuffer.setCharAt(254, '.');
-                    reasonBuffer.setCharAt(253, '.');
-                    reasonBuffer.setCharAt(252, '.');
-                }
-
-				/*
-				 * Also, check that the server did not send characters that may
-				 * screw up the receiver -> restrict to reasonable US-ASCII
-				 * subset -> "printable characters" (ASCII 32 - 126). Replace
-				 * all others with 0xFFFD (UNICODE replacement character).
-				 */
-
-                for(int i = 0; i < reasonBuffer.length(); i++) {
-                    char c = reasonBuffer.charAt(i);
+                for(int i = 0; i < debugMessageBuffer.length(); i++) {
+                    char c = debugMessageBuffer.charAt(i);
 
                     if((c >= 32) && (c <= 126)) {
                         continue;
                     }
-                    reasonBuffer.setCharAt(i, '\uFFFD');
+                    debugMessageBuffer.setCharAt(i, '\uFFFD');
                 }
 
-                throw new IOException("Peer sent DISCONNECT message (reason code " + reason_code + "): "
-                        + reasonBuffer.toString());
+                log.debug("DEBUG Message from remote: '" + debugMessageBuffer.toString() + "'");
             }
+            return;
+        }
+
+        if(type == Packets.SSH_MSG_UNIMPLEMENTED) {
+            throw new IOException("Peer sent UNIMPLEMENTED message, that should not happen.");
+        }
+
+        if(type == Packets.SSH_MSG_DISCONNECT) {
+            TypesReader tr = new TypesReader(msg, 0, msglen);
+            tr.readByte();
+            int reason_code = tr.readUINT32();
+            StringBuilder reasonBuffer = new StringBuilder();
+            reasonBuffer.append(tr.readString("UTF-8"));
 
 			/*
-			 * Is it a KEX Packet?
+			 * Do not get fooled by servers that send abnormal long error
+			 * messages
 			 */
 
-            if((type == Packets.SSH_MSG_KEXINIT) || (type == Packets.SSH_MSG_NEWKEYS)
-                    || ((type >= 30) && (type <= 49))) {
-                km.handleMessage(msg, msglen);
-                continue;
+            if(reasonBuffer.length() > 255) {
+                reasonBuffer.setLength(255);
+                reasonBuffer.setCharAt(254, '.');
+                reasonBuffer.setCharAt(253, '.');
+                reasonBuffer.setCharAt(252, '.');
             }
 
-            MessageHandler mh = null;
+			/*
+			 * Also, check that the server did not send characters that may
+			 * screw up the receiver -> restrict to reasonable US-ASCII
+			 * subset -> "printable characters" (ASCII 32 - 126). Replace
+			 * all others with 0xFFFD (UNICODE replacement character).
+			 */
 
-            for(HandlerEntry he : messageHandlers) {
-                if((he.low <= type) && (type <= he.high)) {
-                    mh = he.mh;
-                    break;
-                }
-            }
+            for(int i = 0; i < reasonBuffer.length(); i++) {
+                char c = reasonBuffer.charAt(i);
 
-            if(mh == null) {
-                throw new IOException("Unexpected SSH message (type " + type + ")");
+                if((c >= 32) && (c <= 126)) {
+                    continue;
+                }
+                reasonBuffer.setCharAt(i, '\uFFFD');
             }
 
-            mh.handleMessage(msg, msglen);
+            throw new IOException("Peer sent DISCONNECT message (reason code " + reason_code + "): "
+                    + reasonBuffer.toString());
         }
+
+        throw new IOException("Unexpected SSH message (type " + type + ")");
     }
 }
@@ -0,0 +1,43 @@
+package ch.ethz.ssh2.util;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Starts the threads used internally by the library.
+ * <p>
+ * If the application has supplied a <code>ThreadFactory</code>, then it is used
+ * to create the thread (and decides on name, priority and daemon status).
+ * Otherwise a plain thread is created, as in earlier versions.
+ *
+ * @version $Id$
+ */
+public class Threads
+{
+	/**
+	 * @param factory the factory supplied by the application, may be <code>null</code>
+	 * @param r the code to run
+	 * @param daemon daemon status, only used if no factory is given
+	 * @return the started thread
+	 */
+	public static Thread start(ThreadFactory factory, Runnable r, boolean daemon)
+	{
+		Thread t;
+
+		if (factory != null)
+		{
+			t = factory.newThread(r);
+
+			if (t == null)
+				throw new IllegalStateException("The ThreadFactory refused to create a thread.");
+		}
+		else
+		{
+			t = new Thread(r);
+			t.setDaemon(daemon);
+		}
+
+		t.start();
+
+		return t;
+	}
+}
@@ -10,6 +10,7 @@ import java.io.StringWriter;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.LinkedList;
+import java.util.concurrent.ThreadFactory;
 
 import ch.ethz.ssh2.log.Logger;
 
@@ -40,9 +41,8 @@ public class TimeoutService
 		}
 	}
 
-	private static class TimeoutThread extends Thread
+	private static class TimeoutThread implements Runnable
 	{
-		@Override
 		public void run()
 		{
 			synchronized (todolist)
@@ -101,6 +101,22 @@ public class TimeoutService
 
 	private static Thread timeoutThread = null;
 
+	private static ThreadFactory threadFactory = null;
+
+	/**
+	 * Sets the factory used to create the (single, JVM wide) timeout thread.
+	 * Takes effect the next time the thread has to be started.
+	 *
+	 * @param factory the factory, or <code>null</code> for a plain daemon thread
+	 */
+	public static void setThreadFactory(ThreadFactory factory)
+	{
+		synchronized (todolist)
+		{
+			threadFactory = factory;
+		}
+	}
+
 	/**
 	 * It is assumed that the passed handler will not execute for a long time.
 	 * 
@@ -132,9 +148,7 @@ public class TimeoutService
 				timeoutThread.interrupt();
 			else
 			{
-				timeoutThread = new TimeoutThread();
-				timeoutThread.setDaemon(true);
-				timeoutThread.start();
+				timeoutThread = Threads.start(threadFactory, new TimeoutThread(), true);
 			}
 		}
 
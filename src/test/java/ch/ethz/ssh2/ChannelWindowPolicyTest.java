@@ -0,0 +1,85 @@
+package ch.ethz.ssh2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ */
+public class ChannelWindowPolicyTest
+{
+	private static void assertInvalid(int initial, int max, int threshold)
+	{
+		try
+		{
+			ChannelWindowPolicy.autoTuning(initial, max).withWindowUpdateThreshold(threshold);
+			fail();
+		}
+		catch (IllegalArgumentException expected)
+		{
+		}
+	}
+
+	@Test
+	public void testDefaults()
+	{
+		ChannelWindowPolicy p = ChannelWindowPolicy.DEFAULT;
+
+		assertEquals(196608, p.getInitialWindowSize());
+		assertEquals(196608, p.getMaxWindowSize());
+		assertFalse(p.isAutoTuning());
+		assertEquals(50, p.getWindowUpdateThreshold());
+		assertTrue(p.isEarlyWindowUpdates());
+
+		p = ChannelWindowPolicy.autoTuning(65536, 1 << 24);
+
+		assertEquals(65536, p.getInitialWindowSize());
+		assertEquals(1 << 24, p.getMaxWindowSize());
+		assertTrue(p.isAutoTuning());
+	}
+
+	@Test
+	public void testCopies()
+	{
+		ChannelWindowPolicy p = ChannelWindowPolicy.autoTuning(65536, 1 << 24);
+		ChannelWindowPolicy q = p.withWindowUpdateThreshold(75).withEarlyWindowUpdates(false);
+
+		/* The original is not changed */
+
+		assertEquals(50, p.getWindowUpdateThreshold());
+		assertTrue(p.isEarlyWindowUpdates());
+
+		assertEquals(75, q.getWindowUpdateThreshold());
+		assertFalse(q.isEarlyWindowUpdates());
+		assertEquals(65536, q.getInitialWindowSize());
+		assertEquals(1 << 24, q.getMaxWindowSize());
+		assertTrue(q.isAutoTuning());
+	}
+
+	@Test
+	public void testLimits()
+	{
+		ChannelWindowPolicy.fixed(8192);
+		ChannelWindowPolicy.fixed(ChannelWindowPolicy.MAX_WINDOW_SIZE);
+		ChannelWindowPolicy.autoTuning(8192, 8192).withWindowUpdateThreshold(1).withWindowUpdateThreshold(100);
+
+		assertInvalid(8191, 65536, 50);
+		assertInvalid(65536, 65535, 50);
+		assertInvalid(65536, ChannelWindowPolicy.MAX_WINDOW_SIZE + 1, 50);
+		assertInvalid(65536, 65536, 0);
+		assertInvalid(65536, 65536, 101);
+
+		try
+		{
+			ChannelWindowPolicy.fixed(ChannelWindowPolicy.MAX_WINDOW_SIZE + 1);
+			fail();
+		}
+		catch (IllegalArgumentException expected)
+		{
+		}
+	}
+}
@@ -0,0 +1,320 @@
+package ch.ethz.ssh2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ch.ethz.ssh2.signature.RSAPrivateKey;
+
+/**
+ * An SSH server on a loopback port for tests. Accepts the password "pw" for any user.
+ * Sessions support two commands: "echo" copies stdin to stdout until EOF, "gen N"
+ * writes N bytes of {@link #pattern(long)}.
+ *
+ * @version $Id$
+ */
+public class LoopbackServer implements ServerAuthenticationCallback, ServerConnectionCallback
+{
+	private static RSAPrivateKey hostKey;
+
+	/* A channel, so that the accepted sockets can be used with a NioTransportEngine */
+	private final ServerSocketChannel ssc;
+
+	private final List<ServerConnection> connections = new ArrayList<ServerConnection>();
+
+	private static synchronized RSAPrivateKey getHostKey()
+	{
+		if (hostKey == null)
+		{
+			SecureRandom rnd = new SecureRandom();
+
+			BigInteger p = BigInteger.probablePrime(1024, rnd);
+			BigInteger q = BigInteger.probablePrime(1024, rnd);
+			BigInteger phi = p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE));
+			BigInteger e = BigInteger.valueOf(65537);
+
+			hostKey = new RSAPrivateKey(e.modInverse(phi), e, p.multiply(q));
+		}
+
+		return hostKey;
+	}
+
+	public LoopbackServer() throws IOException
+	{
+		ssc = ServerSocketChannel.open();
+		ssc.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+
+		Thread t = new Thread("LoopbackServer")
+		{
+			@Override
+			public void run()
+			{
+				acceptLoop();
+			}
+		};
+
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Called for each accepted connection before the key exchange.
+	 */
+	protected void configure(ServerConnection sc) throws IOException
+	{
+	}
+
+	private void acceptLoop()
+	{
+		while (true)
+		{
+			final Socket s;
+
+			try
+			{
+				s = ssc.accept().socket();
+			}
+			catch (IOException e)
+			{
+				return;
+			}
+
+			Thread t = new Thread("LoopbackServer connection")
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						ServerConnection sc = new ServerConnection(s);
+
+						sc.setRsaHostKey(getHostKey());
+						sc.setAuthenticationCallback(LoopbackServer.this);
+						sc.setServerConnectionCallback(LoopbackServer.this);
+
+						configure(sc);
+
+						synchronized (connections)
+						{
+							connections.add(sc);
+						}
+
+						sc.connect();
+					}
+					catch (IOException ignore)
+					{
+					}
+				}
+			};
+
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	public int getPort()
+	{
+		return ssc.socket().getLocalPort();
+	}
+
+	/**
+	 * @return a connection to this server, not connected yet
+	 */
+	public Connection newConnection()
+	{
+		return new Connection("127.0.0.1", getPort());
+	}
+
+	/**
+	 * Connects and authenticates the connection.
+	 */
+	public static Connection login(Connection c) throws IOException
+	{
+		c.connect();
+
+		if (c.authenticateWithPassword("test", "pw") == false)
+			throw new IOException("Authentication failed");
+
+		return c;
+	}
+
+	/**
+	 * @return the server side of the connections, in the order they were accepted
+	 */
+	public List<ServerConnection> getConnections()
+	{
+		synchronized (connections)
+		{
+			return new ArrayList<ServerConnection>(connections);
+		}
+	}
+
+	public void close() throws IOException
+	{
+		ssc.close();
+
+		for (ServerConnection sc : getConnections())
+			sc.close();
+	}
+
+	/**
+	 * @return the byte at position <code>pos</code> of the data sent by "gen"
+	 */
+	public static byte pattern(long pos)
+	{
+		return (byte) (pos * 31 + 7);
+	}
+
+	/**
+	 * Sends <code>data</code> to "echo" and checks that it comes back.
+	 */
+	public static void echo(Connection c, final byte[] data) throws IOException
+	{
+		final Session s = c.openSession();
+
+		s.execCommand("echo");
+
+		final IOException[] failure = new IOException[1];
+
+		Thread writer = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					OutputStream out = s.getStdin();
+					out.write(data);
+					out.close();
+				}
+				catch (IOException e)
+				{
+					failure[0] = e;
+				}
+			}
+		};
+
+		writer.start();
+
+		byte[] received = readFully(s.getStdout());
+
+		try
+		{
+			writer.join();
+		}
+		catch (InterruptedException e)
+		{
+			throw new IOException(e.getMessage());
+		}
+
+		s.close();
+
+		if (failure[0] != null)
+			throw failure[0];
+
+		if (Arrays.equals(data, received) == false)
+			throw new IOException("Echo returned " + received.length + " different bytes (sent " + data.length + ")");
+	}
+
+	public static byte[] readFully(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+		byte[] buf = new byte[8192];
+		int n;
+
+		while ((n = in.read(buf)) > 0)
+			bos.write(buf, 0, n);
+
+		return bos.toByteArray();
+	}
+
+	public ServerSessionCallback acceptSession(ServerSession session)
+	{
+		return new SimpleServerSessionCallback()
+		{
+			@Override
+			public Runnable requestExec(final ServerSession ss, final String command) throws IOException
+			{
+				return new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							OutputStream out = ss.getStdin();
+
+							if (command.startsWith("gen "))
+							{
+								long n = Long.parseLong(command.substring(4).trim());
+								byte[] buf = new byte[32768];
+
+								for (long pos = 0; pos < n;)
+								{
+									int len = (int) Math.min(n - pos, buf.length);
+
+									for (int i = 0; i < len; i++)
+										buf[i] = pattern(pos + i);
+
+									out.write(buf, 0, len);
+									pos += len;
+								}
+							}
+							else
+							{
+								InputStream in = ss.getStdout();
+								byte[] buf = new byte[32768];
+								int n;
+
+								while ((n = in.read(buf)) > 0)
+									out.write(buf, 0, n);
+							}
+
+							out.flush();
+							ss.close();
+						}
+						catch (IOException ignore)
+						{
+						}
+					}
+				};
+			}
+		};
+	}
+
+	public String initAuthentication(ServerConnection sc)
+	{
+		return null;
+	}
+
+	public String[] getRemainingAuthMethods(ServerConnection sc)
+	{
+		return new String[] { METHOD_PASSWORD };
+	}
+
+	public AuthenticationResult authenticateWithNone(ServerConnection sc, String username)
+	{
+		return AuthenticationResult.FAILURE;
+	}
+
+	public AuthenticationResult authenticateWithPassword(ServerConnection sc, String username, String password)
+	{
+		return "pw".equals(password) ? AuthenticationResult.SUCCESS : AuthenticationResult.FAILURE;
+	}
+
+	public AuthenticationResult authenticateWithPublicKey(ServerConnection sc, String username, String algorithm,
+			byte[] publickey, byte[] signature)
+	{
+		return AuthenticationResult.FAILURE;
+	}
+}
@@ -0,0 +1,263 @@
+package ch.ethz.ssh2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * {@link RateLimiter} with a clock that only moves when the test (or a waiting
+ * request) says so.
+ *
+ * @version $Id$
+ */
+public class RateLimiterTest
+{
+	private static final long SECOND = 1000000000L;
+
+	private static class TestLimiter extends RateLimiter
+	{
+		/* Not the monitor of the limiter, which must not be held while waiting */
+		private final Object lock = new Object();
+
+		/* Read by the constructor of the limiter, before lock is set */
+		private volatile long now;
+
+		/* The requested waiting times, in the order the requests waited */
+		private final List<Long> sleeps = new ArrayList<Long>();
+
+		/* If set, waiting requests block until release() instead of advancing the clock */
+		private boolean blocking;
+		private boolean released;
+
+		TestLimiter(long bytesPerSecond, long burst)
+		{
+			super(bytesPerSecond, burst);
+		}
+
+		@Override
+		long nanoTime()
+		{
+			return now;
+		}
+
+		@Override
+		void sleep(long nanos) throws InterruptedException
+		{
+			synchronized (lock)
+			{
+				sleeps.add(nanos);
+				lock.notifyAll();
+
+				if (blocking == false)
+				{
+					now += nanos;
+					return;
+				}
+
+				while (released == false)
+					lock.wait();
+			}
+		}
+
+		void advance(long nanos)
+		{
+			now += nanos;
+		}
+
+		List<Long> awaitSleeps(int n) throws InterruptedException
+		{
+			synchronized (lock)
+			{
+				while (sleeps.size() < n)
+					lock.wait();
+
+				return new ArrayList<Long>(sleeps);
+			}
+		}
+
+		void release()
+		{
+			synchronized (lock)
+			{
+				released = true;
+				lock.notifyAll();
+			}
+		}
+	}
+
+	private static class Acquirer extends Thread
+	{
+		private final RateLimiter limiter;
+		private final int len;
+
+		Throwable failure;
+
+		Acquirer(RateLimiter limiter, int len)
+		{
+			this.limiter = limiter;
+			this.len = len;
+
+			start();
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				limiter.acquire(len);
+			}
+			catch (Throwable t)
+			{
+				failure = t;
+			}
+		}
+	}
+
+	@Test
+	public void testBurstThenRate() throws Exception
+	{
+		TestLimiter l = new TestLimiter(1000, 1000);
+
+		l.acquire(1000);
+
+		assertEquals(0, l.sleeps.size());
+
+		/* The bucket is empty, half a second for 500 bytes */
+
+		l.acquire(500);
+
+		assertEquals(SECOND / 2, l.sleeps.get(0).longValue());
+
+		/* Refilled in the meantime */
+
+		l.advance(SECOND / 4);
+		l.acquire(250);
+
+		assertEquals(1, l.sleeps.size());
+	}
+
+	@Test
+	public void testBucketSizeLimit() throws Exception
+	{
+		TestLimiter l = new TestLimiter(1000, 1000);
+
+		/* An idle period does not allow more than a burst */
+
+		l.advance(10 * SECOND);
+
+		l.acquire(1000);
+		l.acquire(1000);
+
+		assertEquals(1, l.sleeps.size());
+		assertEquals(SECOND, l.sleeps.get(0).longValue());
+	}
+
+	@Test
+	public void testDebtOfLargeRequests() throws Exception
+	{
+		TestLimiter l = new TestLimiter(1000, 1000);
+
+		/* Only waits for a full bucket, the other 4000 bytes are paid off by the next requests */
+
+		l.acquire(5000);
+
+		assertEquals(0, l.sleeps.size());
+
+		l.acquire(1);
+
+		assertEquals(4001 * SECOND / 1000, l.sleeps.get(0).longValue());
+
+		/* The burst, 5.001 s at the rate and the debt of 4000 bytes of the last request */
+
+		l.acquire(5000);
+
+		assertEquals(5001 * SECOND / 1000, l.nanoTime());
+	}
+
+	@Test
+	public void testSetRate() throws Exception
+	{
+		TestLimiter l = new TestLimiter(1000, 1000);
+
+		l.acquire(1000);
+
+		l.setRate(2000, 500);
+
+		assertEquals(2000, l.getBytesPerSecond());
+
+		l.acquire(500);
+
+		assertEquals(SECOND / 4, l.sleeps.get(0).longValue());
+
+		try
+		{
+			l.setRate(0, 100);
+			fail();
+		}
+		catch (IllegalArgumentException expected)
+		{
+		}
+	}
+
+	@Test
+	public void testWaitersInOrder() throws Exception
+	{
+		TestLimiter l = new TestLimiter(1000, 1000);
+
+		l.acquire(1000);
+		l.blocking = true;
+
+		Acquirer first = new Acquirer(l, 1000);
+		l.awaitSleeps(1);
+
+		Acquirer second = new Acquirer(l, 100);
+		List<Long> sleeps = l.awaitSleeps(2);
+
+		/* The small request queues behind the large one */
+
+		assertEquals(SECOND, sleeps.get(0).longValue());
+		assertEquals(SECOND + SECOND / 10, sleeps.get(1).longValue());
+
+		/* Nothing is locked while they wait */
+
+		l.setRate(1000, 1000);
+
+		l.release();
+		first.join();
+		second.join();
+
+		assertTrue((first.failure == null) && (second.failure == null));
+	}
+
+	@Test
+	public void testInterruptReturnsReservation() throws Exception
+	{
+		TestLimiter l = new TestLimiter(1000, 1000);
+
+		l.acquire(1000);
+		l.blocking = true;
+
+		Acquirer a = new Acquirer(l, 1000);
+		l.awaitSleeps(1);
+
+		a.interrupt();
+		a.join();
+
+		assertTrue(a.failure instanceof InterruptedIOException);
+
+		/* The next request does not wait for the bytes that were not taken */
+
+		new Acquirer(l, 1000);
+
+		assertEquals(SECOND, l.awaitSleeps(2).get(1).longValue());
+
+		l.release();
+	}
+}
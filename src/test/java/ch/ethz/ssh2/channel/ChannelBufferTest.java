@@ -0,0 +1,201 @@
+package ch.ethz.ssh2.channel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ */
+public class ChannelBufferTest
+{
+	private static byte[] data(int from, int len)
+	{
+		byte[] b = new byte[len];
+
+		for (int i = 0; i < len; i++)
+			b[i] = (byte) (from + i);
+
+		return b;
+	}
+
+	/**
+	 * Takes all pooled arrays of the size class of <code>a</code> (at most 4 MB worth).
+	 */
+	private static void assertNotPooled(byte[] a)
+	{
+		for (int i = 0; i <= (4 * 1024 * 1024) / a.length; i++)
+			assertNotSame(a, ChannelBufferPool.acquire(a.length));
+	}
+
+	private static byte[] read(ChannelBuffer cb, int len)
+	{
+		byte[] b = new byte[len];
+
+		assertEquals(len, cb.read(b, 0, len));
+
+		return b;
+	}
+
+	@Test
+	public void testWrap()
+	{
+		ChannelBuffer cb = new ChannelBuffer();
+
+		cb.write(data(0, 6000), 0, 6000);
+		int size = cb.array().length;
+
+		assertArrayEquals(data(0, 5000), read(cb, 5000));
+
+		/* Wraps around the end of the array, no copy */
+
+		cb.write(data(6000, size - 1000), 0, size - 1000);
+		assertEquals(size, cb.array().length);
+		assertEquals(size, cb.available());
+		assertEquals(size - 5000, cb.contiguousAvailable());
+
+		ByteBuffer dst = ByteBuffer.allocate(size);
+		assertEquals(size, cb.read(dst));
+		assertArrayEquals(data(5000, size), dst.array());
+
+		/* Empty, the array has been given back */
+
+		assertNull(cb.array());
+	}
+
+	@Test
+	public void testGrow()
+	{
+		ChannelBuffer cb = new ChannelBuffer();
+
+		cb.write(data(0, 8192), 0, 8192);
+		assertArrayEquals(data(0, 3000), read(cb, 3000));
+		cb.write(data(8192, 2000), 0, 2000);
+
+		byte[] old = cb.array();
+
+		/* Does not fit, the wrapped content is moved to the start of a larger array */
+
+		cb.write(data(10192, 5000), 0, 5000);
+
+		assertNotSame(old, cb.array());
+		assertEquals(0, cb.readPosition());
+		assertEquals(12192, cb.contiguousAvailable());
+		assertArrayEquals(data(3000, 12192), read(cb, 12192));
+	}
+
+	@Test
+	public void testReserveAndCommit()
+	{
+		ChannelBuffer cb = new ChannelBuffer();
+
+		cb.write(data(0, 8000), 0, 8000);
+		assertArrayEquals(data(0, 7000), read(cb, 7000));
+
+		cb.reserve(1000);
+		assertEquals(1000, cb.available());
+		assertEquals(2000, cb.used());
+
+		/* The reserved room wraps, as seen by the receiving thread */
+
+		byte[] a = cb.array();
+		int pos = cb.writePosition();
+		byte[] d = data(8000, 1000);
+
+		int first = Math.min(1000, a.length - pos);
+		System.arraycopy(d, 0, a, pos, first);
+		System.arraycopy(d, first, a, 0, 1000 - first);
+
+		cb.commit();
+
+		assertEquals(2000, cb.available());
+		assertArrayEquals(data(7000, 2000), read(cb, 2000));
+	}
+
+	@Test
+	public void testCancelReleasesEmptyBuffer()
+	{
+		ChannelBuffer cb = new ChannelBuffer();
+
+		cb.reserve(100);
+		cb.cancel();
+
+		assertEquals(0, cb.used());
+		assertNull(cb.array());
+	}
+
+	@Test
+	public void testPinnedArrayIsKept()
+	{
+		ChannelBuffer cb = new ChannelBuffer();
+
+		cb.write(data(0, 100), 0, 100);
+
+		byte[] a = cb.array();
+		int pos = cb.readPosition();
+		int len = cb.contiguousAvailable();
+
+		cb.setPinned(true);
+
+		/* Growing while pinned must not give the array to the pool */
+
+		cb.write(data(100, 20000), 0, 20000);
+		assertNotSame(a, cb.array());
+		assertNotPooled(a);
+
+		byte[] seen = new byte[len];
+		System.arraycopy(a, pos, seen, 0, len);
+		assertArrayEquals(data(0, 100), seen);
+
+		cb.setPinned(false);
+		cb.skip(len);
+
+		assertEquals(20000, cb.available());
+		assertArrayEquals(data(100, 20000), read(cb, 20000));
+	}
+
+	@Test
+	public void testFreeWhilePinned()
+	{
+		ChannelBuffer cb = new ChannelBuffer();
+
+		cb.write(data(0, 100), 0, 100);
+
+		byte[] a = cb.array();
+		cb.setPinned(true);
+
+		cb.free();
+		assertNull(cb.array());
+		assertEquals(0, cb.available());
+		assertNotPooled(a);
+
+		/* The reader finishes, its skip is ignored */
+
+		cb.setPinned(false);
+		cb.skip(100);
+		assertEquals(0, cb.available());
+
+		/* A new array is taken on the next write */
+
+		cb.write(data(0, 10), 0, 10);
+		assertArrayEquals(data(0, 10), read(cb, 10));
+	}
+
+	@Test
+	public void testFreeWhileReserved()
+	{
+		ChannelBuffer cb = new ChannelBuffer();
+
+		cb.reserve(100);
+		cb.free();
+		cb.commit();
+
+		assertEquals(0, cb.used());
+		assertNull(cb.array());
+	}
+}
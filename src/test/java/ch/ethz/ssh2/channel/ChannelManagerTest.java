@@ -0,0 +1,477 @@
+package ch.ethz.ssh2.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.ssh2.ChannelWindowPolicy;
+import ch.ethz.ssh2.RateLimiter;
+import ch.ethz.ssh2.packets.PacketChannelOpenConfirmation;
+import ch.ethz.ssh2.packets.Packets;
+import ch.ethz.ssh2.packets.TypesReader;
+import ch.ethz.ssh2.packets.TypesWriter;
+import ch.ethz.ssh2.transport.TransportManager;
+
+/**
+ * {@link ChannelManager} on top of a transport that records the sent messages and
+ * confirms channel openings right away.
+ *
+ * @version $Id$
+ */
+public class ChannelManagerTest
+{
+	private static final int PACKET = TransportManager.DEFAULT_MAX_PACKET_SIZE;
+
+	private static class RecordingTransport extends TransportManager
+	{
+		ChannelManager cm;
+
+		/* In the order they were sent, for channel data only the header */
+		final List<byte[]> sent = new ArrayList<byte[]>();
+
+		int nextRemoteID = 100;
+
+		/* Makes the next window adjust fail as if the sender had been interrupted */
+		boolean interruptAdjust;
+
+		@Override
+		public void close(Throwable cause, boolean useDisconnectPacket)
+		{
+		}
+
+		@Override
+		public int getPacketOverheadEstimate(int payloadLength)
+		{
+			return 64;
+		}
+
+		@Override
+		public synchronized void sendMessage(byte[] msg) throws IOException
+		{
+			if (interruptAdjust && (msg[0] == Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST))
+			{
+				interruptAdjust = false;
+				throw new InterruptedIOException();
+			}
+
+			sent.add(msg.clone());
+
+			if (msg[0] == Packets.SSH_MSG_CHANNEL_OPEN)
+			{
+				TypesReader tr = new TypesReader(msg);
+
+				tr.readByte();
+				tr.readString();
+
+				int localID = tr.readUINT32();
+
+				byte[] reply = new PacketChannelOpenConfirmation(localID, nextRemoteID++, 1 << 20, PACKET).getPayload();
+
+				cm.handleMessage(reply, reply.length);
+			}
+		}
+
+		@Override
+		public synchronized void sendMessage(byte[] header, byte[] data, int off, int len, OutboundChannel channel,
+				int priority, byte[] control) throws IOException
+		{
+			if (control != null)
+				sent.add(control.clone());
+
+			sent.add(header.clone());
+		}
+
+		synchronized List<byte[]> take(int type)
+		{
+			List<byte[]> l = new ArrayList<byte[]>();
+
+			for (byte[] msg : sent)
+			{
+				if (msg[0] == type)
+					l.add(msg);
+			}
+
+			sent.clear();
+
+			return l;
+		}
+	}
+
+	private RecordingTransport tm;
+	private ChannelManager cm;
+
+	@Before
+	public void setUp()
+	{
+		tm = new RecordingTransport();
+		cm = new ChannelManager(tm);
+		tm.cm = cm;
+	}
+
+	private Channel open(ChannelWindowPolicy policy) throws IOException
+	{
+		cm.setWindowPolicy(policy);
+
+		Channel c = cm.openSessionChannel();
+
+		tm.take(0);
+
+		return c;
+	}
+
+	private void receive(Channel c, int len) throws IOException
+	{
+		TypesWriter tw = new TypesWriter();
+
+		tw.writeByte(Packets.SSH_MSG_CHANNEL_DATA);
+		tw.writeUINT32(c.localID);
+		tw.writeString(new byte[len], 0, len);
+
+		byte[] msg = tw.getBytes();
+
+		cm.handleMessage(msg, msg.length);
+	}
+
+	private void peerCloses(Channel c) throws IOException
+	{
+		byte[] msg = new byte[] { (byte) Packets.SSH_MSG_CHANNEL_CLOSE, 0, 0, (byte) (c.localID >> 8), (byte) c.localID };
+
+		cm.handleMessage(msg, msg.length);
+	}
+
+	private void read(Channel c, int len) throws IOException
+	{
+		byte[] buf = new byte[len];
+
+		for (int n = 0; n < len;)
+			n += cm.getChannelData(c, false, buf, n, len - n);
+	}
+
+	private static int increment(byte[] adjust) throws IOException
+	{
+		TypesReader tr = new TypesReader(adjust);
+
+		tr.readByte();
+		tr.readUINT32();
+
+		return tr.readUINT32();
+	}
+
+	@Test
+	public void testChannelIdReused() throws IOException
+	{
+		Channel a = open(ChannelWindowPolicy.DEFAULT);
+		Channel b = open(ChannelWindowPolicy.DEFAULT);
+		Channel c = open(ChannelWindowPolicy.DEFAULT);
+
+		assertEquals(a.localID + 1, b.localID);
+		assertEquals(a.localID + 2, c.localID);
+
+		cm.closeChannel(b, "Test", true);
+		peerCloses(b);
+
+		/* The lowest free ID is used again */
+
+		assertEquals(b.localID, open(ChannelWindowPolicy.DEFAULT).localID);
+		assertEquals(c.localID + 1, open(ChannelWindowPolicy.DEFAULT).localID);
+	}
+
+	@Test
+	public void testUnknownChannel() throws IOException
+	{
+		Channel c = open(ChannelWindowPolicy.DEFAULT);
+
+		cm.closeChannel(c, "Test", true);
+		peerCloses(c);
+
+		for (int id : new int[] { c.localID, 0, 1 << 20 })
+		{
+			byte[] msg = new byte[] { (byte) Packets.SSH_MSG_CHANNEL_DATA, 0, (byte) (id >> 16), (byte) (id >> 8),
+					(byte) id, 0, 0, 0, 1, 0 };
+
+			try
+			{
+				cm.handleMessage(msg, msg.length);
+				fail();
+			}
+			catch (IOException expected)
+			{
+			}
+		}
+	}
+
+	@Test
+	public void testManyChannels() throws IOException
+	{
+		/* More than the initial size of the table */
+
+		Channel[] channels = new Channel[40];
+
+		for (int i = 0; i < channels.length; i++)
+			channels[i] = open(ChannelWindowPolicy.DEFAULT);
+
+		for (int i = 0; i < channels.length; i++)
+			receive(channels[i], i + 1);
+
+		for (int i = 0; i < channels.length; i++)
+			assertEquals(i + 1, channels[i].stdoutBuffer.used());
+	}
+
+	@Test
+	public void testLookupWithoutLock() throws Exception
+	{
+		final Channel c = open(ChannelWindowPolicy.DEFAULT);
+
+		Field f = ChannelManager.class.getDeclaredField("channelsLock");
+		f.setAccessible(true);
+
+		final Throwable[] failure = new Throwable[1];
+
+		Thread receiver = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					receive(c, 10);
+				}
+				catch (Throwable t)
+				{
+					failure[0] = t;
+				}
+			}
+		};
+
+		/* Opening or closing another channel does not hold up the receiver */
+
+		synchronized (f.get(cm))
+		{
+			receiver.start();
+			receiver.join(5000);
+
+			assertFalse(receiver.isAlive());
+		}
+
+		assertNull(failure[0]);
+		assertEquals(10, c.stdoutBuffer.used());
+	}
+
+	@Test
+	public void testWindowAdjustAtThreshold() throws IOException
+	{
+		Channel c = open(ChannelWindowPolicy.fixed(4 * PACKET).withEarlyWindowUpdates(false));
+
+		/* Half of the window is left, no adjust yet */
+
+		receive(c, PACKET);
+		receive(c, PACKET);
+		read(c, 2 * PACKET);
+
+		assertEquals(0, tm.take(Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST).size());
+
+		receive(c, PACKET);
+		read(c, PACKET);
+
+		List<byte[]> adjusts = tm.take(Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST);
+
+		assertEquals(1, adjusts.size());
+		assertEquals(3 * PACKET, increment(adjusts.get(0)));
+	}
+
+	@Test
+	public void testInterruptedWindowAdjustKept() throws IOException
+	{
+		Channel c = open(ChannelWindowPolicy.fixed(4 * PACKET).withEarlyWindowUpdates(false));
+
+		receive(c, 3 * PACKET);
+
+		tm.interruptAdjust = true;
+		read(c, 3 * PACKET);
+
+		/* The data has been read nevertheless, the interrupt status is set again */
+
+		assertTrue(Thread.interrupted());
+		assertEquals(0, tm.take(Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST).size());
+
+		/* The adjust is still pending and goes out before the next read may block */
+
+		receive(c, 100);
+		read(c, 100);
+
+		List<byte[]> adjusts = tm.take(Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST);
+
+		assertEquals(1, adjusts.size());
+		assertEquals(3 * PACKET, increment(adjusts.get(0)));
+	}
+
+	@Test
+	public void testEarlyWindowAdjust() throws Exception
+	{
+		for (boolean early : new boolean[] { false, true })
+		{
+			Channel c = open(ChannelWindowPolicy.fixed(2 * PACKET).withWindowUpdateThreshold(1)
+					.withEarlyWindowUpdates(early));
+
+			/* The peer runs out of window, the adjust starts a round trip measurement */
+
+			receive(c, PACKET);
+			receive(c, PACKET);
+			read(c, 2 * PACKET);
+
+			assertEquals(1, tm.take(Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST).size());
+
+			Thread.sleep(20);
+
+			receive(c, PACKET);
+			read(c, PACKET);
+
+			/*
+			 * Half of the window is left, far above the threshold. At the rate the
+			 * application reads, it is used up within a round trip, though.
+			 */
+
+			assertEquals(early ? 1 : 0, tm.take(Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST).size());
+		}
+	}
+
+	@Test
+	public void testWindowAdjustWithData() throws IOException
+	{
+		Channel c = open(ChannelWindowPolicy.fixed(4 * PACKET).withEarlyWindowUpdates(false));
+
+		receive(c, PACKET);
+		read(c, PACKET);
+
+		assertEquals(0, tm.take(Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST).size());
+
+		/* The free space is granted along with the data that is sent anyway */
+
+		cm.sendData(c, new byte[100], 0, 100);
+
+		List<byte[]> adjusts = tm.take(Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST);
+
+		assertEquals(1, adjusts.size());
+		assertEquals(PACKET, increment(adjusts.get(0)));
+
+		/* Nothing left to grant */
+
+		cm.sendData(c, new byte[100], 0, 100);
+
+		assertEquals(0, tm.take(Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST).size());
+	}
+
+	@Test
+	public void testNoWindowAdjustWithRateLimit() throws IOException
+	{
+		Channel c = open(ChannelWindowPolicy.fixed(4 * PACKET).withEarlyWindowUpdates(false));
+
+		c.setRateLimiters(null, new RateLimiter(1 << 30));
+
+		receive(c, PACKET);
+		read(c, PACKET);
+
+		/* A rate limited download is throttled by the reading thread, never by a sender */
+
+		cm.sendData(c, new byte[100], 0, 100);
+
+		assertEquals(0, tm.take(Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST).size());
+	}
+
+	@Test
+	public void testInterruptedUploadReturnsWindow() throws Exception
+	{
+		final Channel c = open(ChannelWindowPolicy.DEFAULT);
+
+		c.setRateLimiters(new RateLimiter(1, 1), null);
+
+		/* Passes with the initial token, leaves a debt of 99 bytes */
+
+		cm.sendData(c, new byte[100], 0, 100);
+
+		long window = c.remoteWindow;
+
+		final Throwable[] failure = new Throwable[1];
+
+		Thread t = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					cm.sendData(c, new byte[100], 0, 100);
+				}
+				catch (Throwable e)
+				{
+					failure[0] = e;
+				}
+			}
+		};
+
+		t.start();
+
+		while (t.getState() != Thread.State.TIMED_WAITING)
+			Thread.sleep(1);
+
+		t.interrupt();
+		t.join();
+
+		/* Nothing has been sent, the reserved window is available again */
+
+		assertTrue(failure[0] instanceof InterruptedIOException);
+		assertEquals(window, c.remoteWindow);
+	}
+
+	@Test
+	public void testSetWindowPolicyClamped() throws IOException
+	{
+		/* Room for two packets at least */
+
+		Channel c = open(ChannelWindowPolicy.fixed(8192));
+
+		assertEquals(2 * PACKET, c.bufferSize);
+
+		cm.setWindowPolicy(c, ChannelWindowPolicy.fixed(4 * PACKET));
+
+		assertEquals(4 * PACKET, c.bufferSize);
+
+		/* An auto-tuning policy keeps the current size if it is within its limits */
+
+		cm.setWindowPolicy(c, ChannelWindowPolicy.autoTuning(8192, 16 * PACKET));
+
+		assertEquals(4 * PACKET, c.bufferSize);
+
+		cm.setWindowPolicy(c, ChannelWindowPolicy.autoTuning(8192, 3 * PACKET));
+
+		assertEquals(3 * PACKET, c.bufferSize);
+
+		cm.setWindowPolicy(c, ChannelWindowPolicy.autoTuning(8 * PACKET, 16 * PACKET));
+
+		assertEquals(8 * PACKET, c.bufferSize);
+
+		cm.setWindowPolicy(c, ChannelWindowPolicy.autoTuning(8192, 8192));
+
+		assertEquals(2 * PACKET, c.bufferSize);
+
+		try
+		{
+			cm.setWindowPolicy(c, null);
+			fail();
+		}
+		catch (IllegalArgumentException expected)
+		{
+		}
+	}
+}
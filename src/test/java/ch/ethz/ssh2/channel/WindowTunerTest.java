@@ -0,0 +1,135 @@
+package ch.ethz.ssh2.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * {@link WindowTuner} with real time, the epochs last at least 10 ms.
+ *
+ * @version $Id$
+ */
+public class WindowTunerTest
+{
+	private static final int PACKET = 32768;
+
+	private static final int MIN = 2 * PACKET;
+
+	/**
+	 * Lets the peer run out of window and answers with a window adjust after some time,
+	 * which gives a round trip sample.
+	 */
+	private static void stall(WindowTuner t, int size, long roundTripMillis) throws InterruptedException
+	{
+		t.dataReceived(size, 0, PACKET);
+		t.windowAdjusted(0, PACKET);
+
+		Thread.sleep(roundTripMillis);
+
+		t.dataReceived(1, size - 1, PACKET);
+	}
+
+	@Test
+	public void testUnknownRate()
+	{
+		WindowTuner t = new WindowTuner(MIN, 16 * MIN);
+
+		assertEquals(0, t.drainedPerRoundTrip());
+		assertEquals(16 * MIN, t.getMaxSize());
+
+		/* A maximum below the minimum is raised */
+
+		assertEquals(MIN, new WindowTuner(MIN, 1).getMaxSize());
+	}
+
+	@Test
+	public void testGrowsWhenStalled() throws Exception
+	{
+		WindowTuner t = new WindowTuner(MIN, 4 * MIN);
+
+		int size = MIN;
+
+		for (int i = 0; i < 4; i++)
+		{
+			/* The peer ran out of window while the application read everything */
+
+			t.dataReceived(size, 0, PACKET);
+
+			Thread.sleep(15);
+
+			size = t.dataConsumed(size, size, 0);
+		}
+
+		assertEquals(4 * MIN, size);
+	}
+
+	@Test
+	public void testNoGrowthWhenApplicationIsSlow() throws Exception
+	{
+		WindowTuner t = new WindowTuner(MIN, 4 * MIN);
+
+		t.dataReceived(MIN, 0, PACKET);
+
+		Thread.sleep(15);
+
+		/* More than half of the buffer is still unread, a larger window would not help */
+
+		assertEquals(MIN, t.dataConsumed(100, MIN, MIN - 100));
+	}
+
+	@Test
+	public void testFixedSize() throws Exception
+	{
+		WindowTuner t = new WindowTuner(MIN, MIN);
+
+		t.dataReceived(MIN, 0, PACKET);
+
+		Thread.sleep(15);
+
+		assertEquals(MIN, t.dataConsumed(MIN, MIN, 0));
+	}
+
+	@Test
+	public void testRoundTripAndDrainRate() throws Exception
+	{
+		WindowTuner t = new WindowTuner(MIN, MIN);
+
+		stall(t, MIN, 20);
+
+		Thread.sleep(20);
+
+		t.dataConsumed(MIN, MIN, 0);
+
+		/* About MIN bytes per 40 ms, the round trip is about 20 ms */
+
+		long drained = t.drainedPerRoundTrip();
+
+		assertTrue(drained > 0);
+		assertTrue(drained <= MIN);
+	}
+
+	@Test
+	public void testShrinksWhenApplicationIsTheBottleneck() throws Exception
+	{
+		WindowTuner t = new WindowTuner(MIN, 64 * MIN);
+
+		int size = 32 * MIN;
+
+		stall(t, size, 5);
+
+		/*
+		 * The application reads a few bytes per epoch, far less than the window allows.
+		 * After the stall (the window may grow once), the epochs are quiet.
+		 */
+
+		for (int i = 0; (i < 40) && (size > MIN); i++)
+		{
+			Thread.sleep(12);
+
+			size = t.dataConsumed(10, size, 0);
+		}
+
+		assertEquals(MIN, size);
+	}
+}
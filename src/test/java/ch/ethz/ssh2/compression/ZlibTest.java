@@ -0,0 +1,141 @@
+package ch.ethz.ssh2.compression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ */
+public class ZlibTest
+{
+	private Zlib deflater;
+	private Zlib inflater;
+
+	@Before
+	public void setUp()
+	{
+		assumeTrue(Zlib.isAvailable());
+
+		deflater = new Zlib(true);
+		inflater = new Zlib(false);
+	}
+
+	@After
+	public void tearDown()
+	{
+		if (deflater != null)
+		{
+			deflater.end();
+			inflater.end();
+		}
+	}
+
+	private byte[] compress(byte[] data)
+	{
+		try
+		{
+			int n = deflater.transform(data, 0, data.length, Integer.MAX_VALUE);
+
+			return Arrays.copyOf(deflater.getBuffer(), n);
+		}
+		catch (IOException e)
+		{
+			throw new AssertionError(e);
+		}
+	}
+
+	private byte[] uncompress(byte[] data, int maxLength) throws IOException
+	{
+		int n = inflater.transform(data, 0, data.length, maxLength);
+
+		return Arrays.copyOf(inflater.getBuffer(), n);
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		Random r = new Random(1);
+
+		/* The context persists across packets, each packet is decoded on its own */
+
+		for (int i = 0; i < 50; i++)
+		{
+			byte[] data = new byte[r.nextInt(70000) + 1];
+
+			for (int j = 0; j < data.length; j++)
+				data[j] = (byte) ('a' + r.nextInt(4));
+
+			assertArrayEquals(data, uncompress(compress(data), data.length));
+		}
+	}
+
+	@Test
+	public void testExpansionBound() throws IOException
+	{
+		Random r = new Random(2);
+
+		for (int len : new int[] { 1, 100, 16384, 32768, 65536, 262144 })
+		{
+			byte[] data = new byte[len];
+			r.nextBytes(data);
+
+			byte[] c = compress(data);
+
+			assertTrue(len + ": " + c.length, c.length - len <= deflater.getMaxExpansion(len));
+			assertArrayEquals(data, uncompress(c, len));
+		}
+	}
+
+	@Test
+	public void testInflateBound() throws IOException
+	{
+		/* 1 MB of zeros is about 1 KB compressed */
+
+		byte[] bomb = compress(new byte[1024 * 1024]);
+
+		try
+		{
+			uncompress(bomb, 35000);
+			fail();
+		}
+		catch (IOException expected)
+		{
+		}
+
+		/* Stopped early: the buffer did not grow to the full size */
+
+		assertTrue(inflater.getBuffer().length < 2 * 65536);
+	}
+
+	@Test
+	public void testInflateExactLimit() throws IOException
+	{
+		byte[] data = new byte[5000];
+
+		assertEquals(5000, uncompress(compress(data), 5000).length);
+	}
+
+	@Test(expected = IOException.class)
+	public void testCorruptInput() throws IOException
+	{
+		uncompress(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }, 1000);
+	}
+
+	@Test(expected = IOException.class)
+	public void testTransformAfterEnd() throws IOException
+	{
+		deflater.end();
+		deflater.transform(new byte[10], 0, 10, 100);
+	}
+}
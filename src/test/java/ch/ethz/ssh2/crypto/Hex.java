@@ -0,0 +1,26 @@
+package ch.ethz.ssh2.crypto;
+
+/**
+ * Hex strings for the test vectors.
+ *
+ * @version $Id$
+ */
+public final class Hex
+{
+	private Hex()
+	{
+	}
+
+	public static byte[] decode(String hex)
+	{
+		if ((hex.length() % 2) != 0)
+			throw new IllegalArgumentException("Odd number of hex digits");
+
+		byte[] b = new byte[hex.length() / 2];
+
+		for (int i = 0; i < b.length; i++)
+			b[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+
+		return b;
+	}
+}
@@ -0,0 +1,90 @@
+package ch.ethz.ssh2.crypto.cipher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.ssh2.crypto.Hex;
+
+/**
+ * aes128-gcm@openssh.com (RFC 5647). Key, IV and plaintext are those of test case 3
+ * of the GCM specification (McGrew and Viega); the packet length is the additional
+ * authenticated data here, so the expected output was computed with an independent
+ * AES-GCM implementation.
+ *
+ * @version $Id$
+ */
+public class AesGcmCipherTest
+{
+	private static final byte[] KEY = Hex.decode("feffe9928665731c6d6a8f9467308308");
+	private static final byte[] IV = Hex.decode("cafebabefacedbaddecaf888");
+
+	private static final String PACKET = "00000020"
+			+ "d9313225f88406e5a55909c5aff5269a86a7a9531534f7da2e4c303d8a318a72";
+
+	/* The invocation counter in the IV is incremented for the second packet */
+
+	private static final String SEALED1 = "00000020"
+			+ "42831ec2217774244b7221b784d0d49ce3aa212f2c02a4e035c17e2329aca12e"
+			+ "c3f4d203e920db4ba3a020048d030104";
+
+	private static final String SEALED2 = "00000020"
+			+ "5c21c68aa9787c7294b2d7a47a6e8e4d8adafeea894bf504323d55f62afe5ba1"
+			+ "99ecc7118888fadc068b87a3b47398ba";
+
+	@Before
+	public void checkAvailable()
+	{
+		assumeTrue(AesGcmCipher.isAvailable(16));
+	}
+
+	@Test
+	public void testSeal()
+	{
+		AesGcmCipher c = new AesGcmCipher(true, KEY, IV);
+
+		byte[] buf = Arrays.copyOf(Hex.decode(PACKET), 36 + 16);
+		c.seal(0, buf, 0, 36);
+		assertArrayEquals(Hex.decode(SEALED1), buf);
+
+		buf = Arrays.copyOf(Hex.decode(PACKET), 36 + 16);
+		c.seal(1, buf, 0, 36);
+		assertArrayEquals(Hex.decode(SEALED2), buf);
+	}
+
+	@Test
+	public void testOpen()
+	{
+		AesGcmCipher c = new AesGcmCipher(false, KEY, IV);
+
+		byte[] buf = Hex.decode(SEALED1);
+		assertTrue(c.open(0, buf, 0, 36));
+		assertArrayEquals(Hex.decode(PACKET), Arrays.copyOf(buf, 36));
+
+		buf = Hex.decode(SEALED2);
+		assertTrue(c.open(1, buf, 0, 36));
+		assertArrayEquals(Hex.decode(PACKET), Arrays.copyOf(buf, 36));
+	}
+
+	@Test
+	public void testOpenRejectsModifiedPacket()
+	{
+		/* The length is authenticated, too */
+
+		for (int i : new int[] { 3, 4, 35, 36, 51 })
+		{
+			AesGcmCipher c = new AesGcmCipher(false, KEY, IV);
+
+			byte[] buf = Hex.decode(SEALED1);
+			buf[i] ^= 1;
+
+			assertFalse("byte " + i, c.open(0, buf, 0, 36));
+		}
+	}
+}
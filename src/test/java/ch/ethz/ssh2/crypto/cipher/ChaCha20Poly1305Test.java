@@ -0,0 +1,109 @@
+package ch.ethz.ssh2.crypto.cipher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import ch.ethz.ssh2.crypto.Hex;
+
+/**
+ * chacha20-poly1305@openssh.com. There are no published vectors for the OpenSSH
+ * construction, the expected packet was computed with an independent
+ * implementation from the RFC 8439 primitives (tested in {@link ChaCha20Test}
+ * and {@link Poly1305Test}).
+ *
+ * @version $Id$
+ */
+public class ChaCha20Poly1305Test
+{
+	private static final int SEQ = 7;
+
+	/* Length 28, padding length 6, 21 bytes payload, 6 bytes padding */
+	private static final String PACKET = "0000001c065e5f606162636465666768696a6b6c6d6e6f707172000000000000";
+
+	private static final String SEALED = "a39afcb62e184a232fe1493a090bdc98bee5b84059dc5f460f913d83406a1bdf"
+			+ "fb89e268ff77e32a1a5ee007f0899e5f";
+
+	private static byte[] key()
+	{
+		byte[] key = new byte[64];
+
+		for (int i = 0; i < key.length; i++)
+			key[i] = (byte) i;
+
+		return key;
+	}
+
+	private static byte[] sealed()
+	{
+		return Hex.decode(SEALED);
+	}
+
+	@Test
+	public void testSeal()
+	{
+		byte[] buf = Arrays.copyOf(Hex.decode(PACKET), 32 + 16);
+
+		new ChaCha20Poly1305(key()).seal(SEQ, buf, 0, 32);
+
+		assertArrayEquals(sealed(), buf);
+	}
+
+	@Test
+	public void testOpen()
+	{
+		ChaCha20Poly1305 c = new ChaCha20Poly1305(key());
+		byte[] buf = sealed();
+
+		byte[] length = new byte[4];
+		c.decryptPacketLength(SEQ, buf, 0, length, 0);
+		assertArrayEquals(Hex.decode("0000001c"), length);
+
+		assertTrue(c.open(SEQ, buf, 0, 32));
+
+		byte[] expected = Hex.decode(PACKET);
+		System.arraycopy(buf, 0, expected, 0, 4);
+
+		assertArrayEquals(expected, Arrays.copyOf(buf, 32));
+	}
+
+	@Test
+	public void testOpenRejectsModifiedPacket()
+	{
+		ChaCha20Poly1305 c = new ChaCha20Poly1305(key());
+
+		for (int i = 0; i < 32 + 16; i++)
+		{
+			byte[] buf = sealed();
+			buf[i] ^= 1;
+
+			assertFalse("byte " + i, c.open(SEQ, buf, 0, 32));
+		}
+
+		assertFalse(c.open(SEQ + 1, sealed(), 0, 32));
+	}
+
+	@Test
+	public void testVerifyAndDecryptParts()
+	{
+		ChaCha20Poly1305 c = new ChaCha20Poly1305(key());
+		byte[] buf = sealed();
+
+		assertTrue(c.verify(SEQ, buf, 0, 32));
+
+		/* The payload in two parts into another buffer, as done for channel data */
+
+		byte[] payload = new byte[21];
+		c.decrypt(SEQ, 1, buf, 5, payload, 0, 10);
+		c.decrypt(SEQ, 11, buf, 15, payload, 10, 11);
+
+		assertArrayEquals(Arrays.copyOfRange(Hex.decode(PACKET), 5, 26), payload);
+
+		buf[20] ^= 1;
+		assertFalse(c.verify(SEQ, buf, 0, 32));
+	}
+}
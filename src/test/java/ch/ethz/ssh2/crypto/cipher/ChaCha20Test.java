@@ -0,0 +1,102 @@
+package ch.ethz.ssh2.crypto.cipher;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.ethz.ssh2.crypto.Hex;
+
+/**
+ * Key stream test vectors from RFC 8439, appendix A.1. The RFC uses a 96 bit
+ * nonce, the vectors with a zero first nonce word are also valid for the
+ * original 64 bit nonce variant implemented here.
+ *
+ * @version $Id$
+ */
+public class ChaCha20Test
+{
+	private static byte[] keyStream(byte[] key, long counter, int seq)
+	{
+		byte[] ks = new byte[64];
+
+		new ChaCha20(key, 0).crypt(seq, counter, new byte[64], 0, ks, 0, 64);
+
+		return ks;
+	}
+
+	@Test
+	public void testVector1()
+	{
+		assertArrayEquals(Hex.decode("76b8e0ada0f13d90405d6ae55386bd28bdd219b8a08ded1aa836efcc8b770dc7"
+				+ "da41597c5157488d7724e03fb8d84a376a43b8f41518a11cc387b669b2ee6586"), keyStream(new byte[32], 0, 0));
+	}
+
+	@Test
+	public void testVector2()
+	{
+		assertArrayEquals(Hex.decode("9f07e7be5551387a98ba977c732d080dcb0f29a048e3656912c6533e32ee7aed"
+				+ "29b721769ce64e43d57133b074d839d531ed1f28510afb45ace10a1f4b794d6f"), keyStream(new byte[32], 1, 0));
+	}
+
+	@Test
+	public void testVector3()
+	{
+		byte[] key = new byte[32];
+		key[31] = 1;
+
+		assertArrayEquals(Hex.decode("3aeb5224ecf849929b9d828db1ced4dd832025e8018b8160b82284f3c949aa5a"
+				+ "8eca00bbb4a73bdad192b5c42f73f2fd4e273644c8b36125a64addeb006c13a0"), keyStream(key, 1, 0));
+	}
+
+	@Test
+	public void testVector4()
+	{
+		byte[] key = new byte[32];
+		key[1] = (byte) 0xff;
+
+		assertArrayEquals(Hex.decode("72d54dfbf12ec44b362692df94137f328fea8da73990265ec1bbbea1ae9af0ca"
+				+ "13b25aa26cb4a648cb9b9d1be65b2c0924a66c54d545ec1b7374f4872e99f096"), keyStream(key, 2, 0));
+	}
+
+	@Test
+	public void testVector5()
+	{
+		/* Nonce 00 00 00 00 00 00 00 02, the big endian sequence number 2 */
+
+		assertArrayEquals(Hex.decode("c2c64d378cd536374ae204b9ef933fcd1a8b2288b3dfa49672ab765b54ee27c7"
+				+ "8a970e0e955c14f3a88e741b97c286f75f8fc299e8148362fa198a39531bed6d"), keyStream(new byte[32], 0, 2));
+	}
+
+	@Test
+	public void testCryptAtPosition()
+	{
+		Random r = new Random(1);
+
+		byte[] key = new byte[32];
+		r.nextBytes(key);
+
+		ChaCha20 c = new ChaCha20(key, 0);
+
+		byte[] src = new byte[300];
+		r.nextBytes(src);
+
+		byte[] expected = new byte[src.length];
+		c.crypt(5, 1, src, 0, expected, 0, src.length);
+
+		for (int pos = 0; pos < src.length; pos += 7)
+		{
+			for (int len = 0; pos + len <= src.length; len += 13)
+			{
+				byte[] dst = new byte[len];
+				c.crypt(5, 1, pos, src, pos, dst, 0, len);
+
+				byte[] exp = new byte[len];
+				System.arraycopy(expected, pos, exp, 0, len);
+
+				assertArrayEquals("pos " + pos + " len " + len, exp, dst);
+			}
+		}
+	}
+}
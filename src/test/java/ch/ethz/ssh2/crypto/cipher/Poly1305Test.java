@@ -0,0 +1,73 @@
+package ch.ethz.ssh2.crypto.cipher;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+import ch.ethz.ssh2.crypto.Hex;
+import ch.ethz.ssh2.util.StringEncoder;
+
+/**
+ * Test vectors from RFC 8439, section 2.5.2 and appendix A.3.
+ *
+ * @version $Id$
+ */
+public class Poly1305Test
+{
+	private static byte[] mac(byte[] key, byte[] msg)
+	{
+		byte[] tag = new byte[16];
+
+		new Poly1305().mac(key, 0, msg, 0, msg.length, tag, 0);
+
+		return tag;
+	}
+
+	@Test
+	public void testSection252()
+	{
+		byte[] key = Hex.decode("85d6be7857556d337f4452fe42d506a80103808afb0db2fd4abff6af4149f51b");
+		byte[] msg = StringEncoder.GetBytes("Cryptographic Forum Research Group");
+
+		assertArrayEquals(Hex.decode("a8061dc1305136c6c22b8baf0c0127a9"), mac(key, msg));
+	}
+
+	@Test
+	public void testVector1()
+	{
+		assertArrayEquals(new byte[16], mac(new byte[32], new byte[64]));
+	}
+
+	@Test
+	public void testVector2()
+	{
+		/* r is zero, the tag is s */
+
+		byte[] key = Hex.decode("0000000000000000000000000000000036e5f6b5c5e06070f0efca96227a863e");
+		byte[] msg = StringEncoder.GetBytes("Any submission to the IETF intended by the Contributor for publication as "
+				+ "all or part of an IETF Internet-Draft or RFC and any statement made within the context of an "
+				+ "IETF activity is considered an \"IETF Contribution\". Such statements include oral statements "
+				+ "in IETF sessions, as well as written and electronic communications made at any time or place, "
+				+ "which are addressed to");
+
+		assertArrayEquals(Hex.decode("36e5f6b5c5e06070f0efca96227a863e"), mac(key, msg));
+	}
+
+	@Test
+	public void testOffsets()
+	{
+		byte[] key = Hex.decode("85d6be7857556d337f4452fe42d506a80103808afb0db2fd4abff6af4149f51b");
+		byte[] msg = StringEncoder.GetBytes("xxCryptographic Forum Research Groupxx");
+
+		byte[] keyBuf = new byte[40];
+		System.arraycopy(key, 0, keyBuf, 5, 32);
+
+		byte[] out = new byte[20];
+		new Poly1305().mac(keyBuf, 5, msg, 2, msg.length - 4, out, 3);
+
+		byte[] tag = new byte[16];
+		System.arraycopy(out, 3, tag, 0, 16);
+
+		assertArrayEquals(Hex.decode("a8061dc1305136c6c22b8baf0c0127a9"), tag);
+	}
+}
@@ -0,0 +1,145 @@
+package ch.ethz.ssh2.crypto.dh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * The pool is shared by the JVM, every test disables it again.
+ *
+ * @version $Id$
+ */
+public class EphemeralKeyPoolTest
+{
+	private static final String KEX = "curve25519-sha256";
+
+	@After
+	public void tearDown()
+	{
+		EphemeralKeyPool.setPoolSize(0);
+		EphemeralKeyPool.setMaxAge(0);
+	}
+
+	/**
+	 * Waits up to 10 seconds for the generator thread.
+	 */
+	private static void awaitSize(String kex, int size) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+
+		while ((EphemeralKeyPool.size(kex) != size) && (System.currentTimeMillis() < deadline))
+			Thread.sleep(5);
+
+		assertEquals(size, EphemeralKeyPool.size(kex));
+	}
+
+	private static byte[] publicKey(EcdhExchange ecdh)
+	{
+		ecdh.clientInit(new SecureRandom());
+		return ecdh.getE();
+	}
+
+	@Test
+	public void testDisabled()
+	{
+		assertEquals(0, EphemeralKeyPool.getPoolSize());
+
+		EphemeralKeyPool.prepare(KEX);
+
+		assertNull(EphemeralKeyPool.takeEcdh(KEX));
+		assertEquals(0, EphemeralKeyPool.size(KEX));
+	}
+
+	@Test
+	public void testRefill() throws Exception
+	{
+		EphemeralKeyPool.setPoolSize(3);
+		EphemeralKeyPool.prepare(KEX);
+
+		awaitSize(KEX, 3);
+
+		/* The other name of the method uses the same key pairs */
+
+		EcdhExchange a = EphemeralKeyPool.takeEcdh("curve25519-sha256@libssh.org");
+		EcdhExchange b = EphemeralKeyPool.takeEcdh(KEX);
+
+		assertNotNull(a);
+		assertNotNull(b);
+
+		/* Every key pair is handed out once */
+
+		assertFalse(Arrays.equals(publicKey(a), publicKey(b)));
+
+		awaitSize(KEX, 3);
+
+		/* Smaller pools are trimmed at once */
+
+		EphemeralKeyPool.setPoolSize(1);
+
+		assertEquals(1, EphemeralKeyPool.size(KEX));
+	}
+
+	@Test
+	public void testFirstUseAddsGroup() throws Exception
+	{
+		EphemeralKeyPool.setPoolSize(2);
+
+		/* Nothing pregenerated yet, the caller generates its own key pair */
+
+		assertNull(EphemeralKeyPool.takeEcdh(KEX));
+
+		awaitSize(KEX, 2);
+
+		assertNotNull(EphemeralKeyPool.takeEcdh(KEX));
+	}
+
+	@Test
+	public void testExpiry() throws Exception
+	{
+		EphemeralKeyPool.setPoolSize(2);
+		EphemeralKeyPool.setMaxAge(1);
+		EphemeralKeyPool.prepare(KEX);
+
+		awaitSize(KEX, 2);
+
+		Thread.sleep(1100);
+
+		/* Both key pairs are too old and discarded */
+
+		assertNull(EphemeralKeyPool.takeEcdh(KEX));
+
+		awaitSize(KEX, 2);
+
+		assertNotNull(EphemeralKeyPool.takeEcdh(KEX));
+	}
+
+	@Test
+	public void testInvalidSettings()
+	{
+		try
+		{
+			EphemeralKeyPool.setPoolSize(-1);
+			fail();
+		}
+		catch (IllegalArgumentException expected)
+		{
+		}
+
+		try
+		{
+			EphemeralKeyPool.setMaxAge(-1);
+			fail();
+		}
+		catch (IllegalArgumentException expected)
+		{
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package ch.ethz.ssh2.crypto.dh;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the comb exponentiation with <code>BigInteger.modPow</code>.
+ *
+ * @version $Id$
+ */
+public class FixedBaseTableTest
+{
+	private static void check(BigInteger p, int teeth, Random r)
+	{
+		FixedBaseTable t = new FixedBaseTable(DhExchange.g, p, teeth);
+
+		int bits = p.bitLength();
+
+		BigInteger[] exponents = { BigInteger.ZERO, BigInteger.ONE, BigInteger.valueOf(2),
+				BigInteger.ONE.shiftLeft(bits - 1), BigInteger.ONE.shiftLeft(bits).subtract(BigInteger.ONE),
+				p.subtract(BigInteger.ONE) };
+
+		for (BigInteger x : exponents)
+			assertEquals(x.toString(16), DhExchange.g.modPow(x, p), t.pow(x));
+
+		for (int i = 0; i < 20; i++)
+		{
+			BigInteger x = new BigInteger(bits - 1, r);
+
+			assertEquals(x.toString(16), DhExchange.g.modPow(x, p), t.pow(x));
+		}
+	}
+
+	@Test
+	public void testGroup1()
+	{
+		check(DhExchange.p1, 8, new Random(1));
+	}
+
+	@Test
+	public void testGroup14()
+	{
+		check(DhExchange.p14, 8, new Random(14));
+	}
+
+	@Test
+	public void testGroup14OddSpan()
+	{
+		/* The exponent length is not a multiple of the number of teeth */
+
+		check(DhExchange.p14, 7, new Random(7));
+	}
+
+	@Test
+	public void testGroup16()
+	{
+		check(DhExchange.p16, 10, new Random(16));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeExponent()
+	{
+		new FixedBaseTable(DhExchange.g, DhExchange.p1, 8).pow(BigInteger.valueOf(-1));
+	}
+}
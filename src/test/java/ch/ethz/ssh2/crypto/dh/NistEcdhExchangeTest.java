@@ -0,0 +1,178 @@
+package ch.ethz.ssh2.crypto.dh;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPrivateKeySpec;
+import java.security.spec.ECPublicKeySpec;
+
+import org.junit.Test;
+
+import ch.ethz.ssh2.crypto.Hex;
+
+/**
+ * The P-256 vector is the first ECC CDH vector of NIST CAVS 14.1, the P-384
+ * and P-521 vectors were computed with a second, independent implementation.
+ *
+ * @version $Id$
+ */
+public class NistEcdhExchangeTest
+{
+	private static NistEcdhExchange exchange(String kex, String curve, String d, String qx, String qy)
+			throws Exception
+	{
+		assumeTrue(EcdhExchange.isSupported(kex));
+
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+		kpg.initialize(new ECGenParameterSpec(curve));
+		ECParameterSpec params = ((ECPublicKey) kpg.generateKeyPair().getPublic()).getParams();
+
+		KeyFactory kf = KeyFactory.getInstance("EC");
+
+		ECPoint q = new ECPoint(new BigInteger(qx, 16), new BigInteger(qy, 16));
+		KeyPair kp = new KeyPair(kf.generatePublic(new ECPublicKeySpec(q, params)), kf.generatePrivate(new ECPrivateKeySpec(
+				new BigInteger(d, 16), params)));
+
+		NistEcdhExchange ecdh = new NistEcdhExchange(kex);
+
+		/* The own public key is encoded as uncompressed point */
+
+		assertArrayEquals(Hex.decode("04" + qx + qy), ecdh.setKeyPair(kp));
+
+		return ecdh;
+	}
+
+	@Test
+	public void testP256() throws Exception
+	{
+		NistEcdhExchange ecdh = exchange("ecdh-sha2-nistp256", "secp256r1",
+				"7d7dc5f71eb29ddaf80d6214632eeae03d9058af1fb6d22ed80badb62bc1a534",
+				"ead218590119e8876b29146ff89ca61770c4edbbf97d38ce385ed281d8a6b230",
+				"28af61281fd35e2fa7002523acc85a429cb06ee6648325389f59edfce1405141");
+
+		byte[] peer = Hex.decode("04" + "700c48f77f56584c5cc632ca65640db91b6bacce3a4df6b42ce7cc838833d287"
+				+ "db71e509e3fd9b060ddb20ba5c51dcc5948d46fbf640dfe0441782cab85fa4ac");
+
+		assertArrayEquals(Hex.decode("46fc62106420ff012e54a434fbdd2d25ccc5852060561e68040dd7778997bd7b"),
+				ecdh.calculateSharedSecret(peer));
+	}
+
+	@Test
+	public void testP384() throws Exception
+	{
+		NistEcdhExchange ecdh = exchange("ecdh-sha2-nistp384", "secp384r1",
+				"933475b18d4f6f92f8b4c3d9605c16b1bdec5f713fb0dfa6c4b6be6ce7eae8ce362f6004e5370d808520daba6c658a1f",
+				"278a94c0b831b1e4e8055896fc86009064a1e2b39fe13e4c09cc277b76e7cba19d3a526e9196443826b86bdc55e6ce06",
+				"deec34fde8ab402af6e7dcd01842708eabcb16ba7fe7027f0957d1f9cd6db9daddf635535833382a8e0ed267423c22eb");
+
+		byte[] peer = Hex.decode("04"
+				+ "283972e26b49494220f2e372ed9a3d0819e041e6d3d5b925c55d6755821245d085b2279a0e5f7622c73a188ac999ad84"
+				+ "b3a36221476a68f486d02609d0950f7c211030e77d6a1ce88edec08ed32c79d44f23ea184d0c6eb844ffe62987a2422f");
+
+		assertArrayEquals(
+				Hex.decode("f22249ec338c6c119b18b925608d4eea00f96c9f508a7982643ada9a385d1075d03f62923456c2102105aacda4ddd3d3"),
+				ecdh.calculateSharedSecret(peer));
+	}
+
+	@Test
+	public void testP521() throws Exception
+	{
+		/* The coordinates have leading zero bytes, the encoding keeps the full field size */
+
+		NistEcdhExchange ecdh = exchange("ecdh-sha2-nistp521", "secp521r1",
+				"009e807949f7aa1ca1246e0d7a9684401572652a0743b1edd670bd75eb7cb90edff734258fb159cd4563741ddc6c809954f0160a6f88d75485bd390e69b5b4e0b250",
+				"00d6c0ac422cdcbe25816f5c86042b1714150b1cc145a2a8489585f278b64ad4b67b8b813a2489dd411cbfcc5622b42a74fe0e51ade27f60f531accddca8a601b277",
+				"00d3cc4f1e22273db93dbbe14d5636ed72fe4dc2ab101c8d70e3416b2bd53fe812341b2755f8797108ec021fada6500c2626527a3dc3048fbb548add9887bbe3051d");
+
+		byte[] peer = Hex.decode("04"
+				+ "018733711c32b44a690b30237f4254804eb34f2391671a24abfae6452e8cb51a0c95425ca89af9fa18d0f134b153046deda10f7d45d7f8bd1e5b59826a6606e77efb"
+				+ "006d5358313a898f4478f58e1464a6ea45c36c5d4da404eb88c2768fe70682c9ec90a19f144c028cc9a1afdf34084495f69dbf6e480c3ecffdc45dda5c6425d03ee8");
+
+		assertArrayEquals(
+				Hex.decode("01ad45351861c6f15a6e5a2e058a1a7ffeda0f4b7e2158da5d68aeaf8ccd753effc7903da38bb190706345c308a9a7ac7762eea003f0f3fed76c870d28ab010a3c72"),
+				ecdh.calculateSharedSecret(peer));
+	}
+
+	@Test
+	public void testClientServer() throws Exception
+	{
+		String[] kex = { "ecdh-sha2-nistp256", "ecdh-sha2-nistp384", "ecdh-sha2-nistp521" };
+
+		for (int i = 0; i < kex.length; i++)
+		{
+			if (EcdhExchange.isSupported(kex[i]) == false)
+				continue;
+
+			EcdhExchange client = EcdhExchange.create(kex[i]);
+			EcdhExchange server = EcdhExchange.create(kex[i]);
+
+			client.clientInit(new SecureRandom());
+			server.serverInit(new SecureRandom());
+
+			server.setE(client.getE());
+			client.setF(server.getF());
+
+			assertEquals(client.getK(), server.getK());
+		}
+	}
+
+	private static void assertRejected(EcdhExchange ecdh, byte[] peer)
+	{
+		try
+		{
+			ecdh.setF(peer);
+			fail();
+		}
+		catch (IllegalArgumentException expected)
+		{
+		}
+	}
+
+	@Test
+	public void testInvalidPoints() throws Exception
+	{
+		assumeTrue(EcdhExchange.isSupported("ecdh-sha2-nistp256"));
+
+		EcdhExchange ecdh = EcdhExchange.create("ecdh-sha2-nistp256");
+		ecdh.clientInit(new SecureRandom());
+
+		String x = "700c48f77f56584c5cc632ca65640db91b6bacce3a4df6b42ce7cc838833d287";
+		String y = "db71e509e3fd9b060ddb20ba5c51dcc5948d46fbf640dfe0441782cab85fa4ac";
+
+		/* Not on the curve */
+
+		assertRejected(ecdh, Hex.decode("04" + x + "db71e509e3fd9b060ddb20ba5c51dcc5948d46fbf640dfe0441782cab85fa4ad"));
+
+		/* x = p */
+
+		assertRejected(ecdh, Hex.decode("04" + "ffffffff00000001000000000000000000000000ffffffffffffffffffffffff" + y));
+
+		/* Compressed point, truncated point, point at infinity */
+
+		assertRejected(ecdh, Hex.decode("02" + x + y));
+		assertRejected(ecdh, Hex.decode("04" + x));
+		assertRejected(ecdh, Hex.decode("00"));
+
+		/* Nothing was accepted */
+
+		try
+		{
+			ecdh.getK();
+			fail();
+		}
+		catch (IllegalStateException expected)
+		{
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package ch.ethz.ssh2.crypto.dh;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+import ch.ethz.ssh2.crypto.Hex;
+
+/**
+ * Test vectors from RFC 7748, sections 5.2 and 6.1.
+ *
+ * @version $Id$
+ */
+public class X25519Test
+{
+	@Test
+	public void testVector1()
+	{
+		byte[] k = Hex.decode("a546e36bf0527c9d3b16154b82465edd62144c0ac1fc5a18506a2244ba449ac4");
+		byte[] u = Hex.decode("e6db6867583030db3594c1a424b15f7c726624ec26b3353b10a903a6d0ab1c4c");
+
+		assertArrayEquals(Hex.decode("c3da55379de9c6908e94ea4df28d084f32eccf03491c71f754b4075577a28552"),
+				X25519.scalarMult(k, u));
+	}
+
+	@Test
+	public void testVector2()
+	{
+		/* The most significant bit of u is set and has to be ignored */
+
+		byte[] k = Hex.decode("4b66e9d4d1b4673c5ad22691957d6af5c11b6421e0ea01d42ca4169e7918ba0d");
+		byte[] u = Hex.decode("e5210f12786811d3f4b7959d0538ae2c31dbe7106fc03c3efc4cd549c715a493");
+
+		assertArrayEquals(Hex.decode("95cbde9476e8907d7aade45cb4b873f88b595a68799fa152e6f8f7647aac7957"),
+				X25519.scalarMult(k, u));
+	}
+
+	@Test
+	public void testIterated()
+	{
+		byte[] k = new byte[32];
+		k[0] = 9;
+		byte[] u = k.clone();
+
+		for (int i = 1; i <= 1000; i++)
+		{
+			byte[] r = X25519.scalarMult(k, u);
+			u = k;
+			k = r;
+
+			if (i == 1)
+				assertArrayEquals(Hex.decode("422c8e7a6227d7bca1350b3e2bb7279f7897b87bb6854b783c60e80311ae3079"), k);
+		}
+
+		assertArrayEquals(Hex.decode("684cf59ba83309552800ef566f2f4d3c1c3887c49360e3875f2eb94d99532c51"), k);
+	}
+
+	@Test
+	public void testDiffieHellman()
+	{
+		byte[] a = Hex.decode("77076d0a7318a57d3c16c17251b26645df4c2f87ebc0992ab177fba51db92c2a");
+		byte[] b = Hex.decode("5dab087e624a8a4b79e17f8b83800ee66f3bb1292618b6fd1c2f8b27ff88e0eb");
+
+		byte[] pubA = X25519.publicKey(a);
+		byte[] pubB = X25519.publicKey(b);
+
+		assertArrayEquals(Hex.decode("8520f0098930a754748b7ddcb43ef75a0dbf3a0d26381af4eba4a98eaa9b4e6a"), pubA);
+		assertArrayEquals(Hex.decode("de9edb7d7b7dc1b4d35b61c2ece435373f8343c85b78674dadfc7e146f882b4f"), pubB);
+
+		byte[] shared = Hex.decode("4a5d9d5ba4ce2de1728e3bf480350f25e07e21c947d19e3376f09b3c1e161742");
+
+		assertArrayEquals(shared, X25519.scalarMult(a, pubB));
+		assertArrayEquals(shared, X25519.scalarMult(b, pubA));
+	}
+}
@@ -0,0 +1,189 @@
+package ch.ethz.ssh2.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.ssh2.Connection;
+import ch.ethz.ssh2.LoopbackServer;
+import ch.ethz.ssh2.ServerConnection;
+import ch.ethz.ssh2.Session;
+
+/**
+ * Client and server connections served by {@link NioTransportEngine}s.
+ *
+ * @version $Id$
+ */
+public class NioTransportEngineTest
+{
+	private NioTransportEngine clientEngine;
+	private NioTransportEngine serverEngine;
+	private LoopbackServer server;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		/* One event loop each, so that all connections share it */
+
+		clientEngine = new NioTransportEngine(1);
+		serverEngine = new NioTransportEngine(1);
+
+		server = new LoopbackServer()
+		{
+			@Override
+			protected void configure(ServerConnection sc)
+			{
+				sc.setTransportEngine(serverEngine);
+			}
+		};
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		server.close();
+		clientEngine.shutdown();
+		serverEngine.shutdown();
+	}
+
+	private Connection connect() throws IOException
+	{
+		Connection c = server.newConnection();
+		c.setTransportEngine(clientEngine);
+		return LoopbackServer.login(c);
+	}
+
+	private static byte[] data(int len)
+	{
+		byte[] b = new byte[len];
+		new Random(len).nextBytes(b);
+		return b;
+	}
+
+	@Test
+	public void testConnectExchangeClose() throws IOException
+	{
+		Connection c = connect();
+
+		LoopbackServer.echo(c, data(1));
+		LoopbackServer.echo(c, data(500000));
+
+		/* A key exchange in the middle of the connection, handled on the worker pool */
+
+		c.forceKeyExchange();
+
+		LoopbackServer.echo(c, data(100000));
+
+		assertTrue(c.getConnectionInfo().keyExchangeCounter >= 2);
+
+		c.close();
+
+		try
+		{
+			c.openSession();
+			fail();
+		}
+		catch (IllegalStateException expected)
+		{
+		}
+	}
+
+	@Test
+	public void testManyConnections() throws Exception
+	{
+		final Connection[] conns = new Connection[8];
+		final Throwable[] failures = new Throwable[conns.length];
+
+		for (int i = 0; i < conns.length; i++)
+			conns[i] = connect();
+
+		Thread[] threads = new Thread[conns.length];
+
+		for (int i = 0; i < conns.length; i++)
+		{
+			final int n = i;
+
+			threads[i] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						LoopbackServer.echo(conns[n], data(200000 + n));
+					}
+					catch (Throwable t)
+					{
+						failures[n] = t;
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		for (int i = 0; i < conns.length; i++)
+		{
+			threads[i].join();
+
+			if (failures[i] != null)
+				throw new AssertionError(failures[i]);
+
+			conns[i].close();
+		}
+	}
+
+	@Test
+	public void testEndpointFailureIsolated() throws Exception
+	{
+		Connection a = connect();
+		Connection b = connect();
+
+		Session s = a.openSession();
+		s.execCommand("echo");
+
+		/* The peer of a goes away without a disconnect message, the shared event loop sees the failure */
+
+		List<ServerConnection> sc = server.getConnections();
+		assertEquals(2, sc.size());
+
+		sc.get(0).close(new Throwable("Test"), true);
+
+		try
+		{
+			byte[] buf = new byte[10];
+
+			while (s.getStdout().read(buf) >= 0)
+				;
+		}
+		catch (IOException expected)
+		{
+		}
+
+		try
+		{
+			a.openSession();
+			fail();
+		}
+		catch (IOException expected)
+		{
+		}
+
+		/* The other connection on the same event loop is not affected */
+
+		LoopbackServer.echo(b, data(300000));
+
+		b.forceKeyExchange();
+
+		LoopbackServer.echo(b, data(1000));
+
+		b.close();
+	}
+}
@@ -0,0 +1,126 @@
+package ch.ethz.ssh2.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.ssh2.Connection;
+import ch.ethz.ssh2.LoopbackServer;
+
+/**
+ * Automatic key exchanges triggered by the limits of
+ * {@link Connection#setRekeyLimits(long, long)}, while data is flowing.
+ *
+ * @version $Id$
+ */
+public class RekeyTest
+{
+	private LoopbackServer server;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server = new LoopbackServer();
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		server.close();
+	}
+
+	private static byte[] data(int len)
+	{
+		byte[] b = new byte[len];
+		new Random(len).nextBytes(b);
+		return b;
+	}
+
+	/**
+	 * Waits up to 10 seconds for the given number of key exchanges (they run in the
+	 * background).
+	 *
+	 * @return the number of key exchanges so far
+	 */
+	private static int keyExchanges(Connection c, int atLeast) throws Exception
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+
+		int n;
+
+		while (((n = c.getConnectionInfo().keyExchangeCounter) < atLeast) && (System.currentTimeMillis() < deadline))
+			Thread.sleep(10);
+
+		return n;
+	}
+
+	@Test
+	public void testRekeyByBytes() throws Exception
+	{
+		Connection c = server.newConnection();
+
+		c.setRekeyLimits(256 * 1024, 0);
+
+		LoopbackServer.login(c);
+
+		/* The data goes both ways, both directions count */
+
+		LoopbackServer.echo(c, data(2 * 1024 * 1024));
+
+		assertTrue(keyExchanges(c, 5) >= 5);
+
+		/* Everything still works with the new keys */
+
+		LoopbackServer.echo(c, data(1000));
+
+		c.close();
+	}
+
+	@Test
+	public void testRekeyByTime() throws Exception
+	{
+		Connection c = server.newConnection();
+
+		c.setRekeyLimits(0, 1);
+
+		LoopbackServer.login(c);
+
+		LoopbackServer.echo(c, data(1000));
+
+		int before = c.getConnectionInfo().keyExchangeCounter;
+
+		/* The age of the keys is checked when the next packet is sent or received */
+
+		Thread.sleep(1100);
+
+		LoopbackServer.echo(c, data(1000));
+
+		assertTrue(keyExchanges(c, before + 1) > before);
+
+		LoopbackServer.echo(c, data(1000));
+
+		c.close();
+	}
+
+	@Test
+	public void testNoRekeyBelowLimits() throws Exception
+	{
+		Connection c = server.newConnection();
+
+		c.setRekeyLimits(64 * 1024 * 1024, 3600);
+
+		LoopbackServer.login(c);
+
+		LoopbackServer.echo(c, data(1024 * 1024));
+
+		assertEquals(1, c.getConnectionInfo().keyExchangeCounter);
+
+		c.close();
+	}
+}
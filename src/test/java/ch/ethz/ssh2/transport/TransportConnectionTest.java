@@ -0,0 +1,469 @@
+package ch.ethz.ssh2.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.ethz.ssh2.compression.Zlib;
+import ch.ethz.ssh2.crypto.cipher.BlockCipherFactory;
+import ch.ethz.ssh2.crypto.digest.MAC;
+import ch.ethz.ssh2.packets.Packets;
+
+/**
+ * Packets sent by one {@link TransportConnection} and received by another.
+ *
+ * @version $Id$
+ */
+public class TransportConnectionTest
+{
+	private static final SecureRandom rnd = new SecureRandom();
+
+	private final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+
+	private final TransportConnection sender = new TransportConnection(new ByteArrayInputStream(new byte[0]), wire,
+			rnd);
+
+	private static byte[] key(int len, int seed)
+	{
+		byte[] k = new byte[len];
+		new Random(seed).nextBytes(k);
+		return k;
+	}
+
+	private void setCipher(TransportConnection tc, boolean encrypt, String cipher, String mac)
+	{
+		byte[] key = key(BlockCipherFactory.getKeySize(cipher), 1);
+		byte[] iv = key(BlockCipherFactory.getIvSize(cipher), 2);
+
+		if (BlockCipherFactory.isAead(cipher))
+		{
+			if (encrypt)
+				tc.changeSendCipher(BlockCipherFactory.createAeadCipher(cipher, true, key, iv));
+			else
+				tc.changeRecvCipher(BlockCipherFactory.createAeadCipher(cipher, false, key, iv));
+		}
+		else
+		{
+			MAC m = new MAC(mac, key(MAC.getKeyLen(mac), 3));
+
+			if (encrypt)
+				tc.changeSendCipher(BlockCipherFactory.createCipher(cipher, true, key, iv), m);
+			else
+				tc.changeRecvCipher(BlockCipherFactory.createCipher(cipher, false, key, iv), m);
+		}
+	}
+
+	private TransportConnection receiver(byte[] bytes, String cipher, String mac)
+	{
+		TransportConnection tc = new TransportConnection(new ByteArrayInputStream(bytes), new ByteArrayOutputStream(),
+				rnd);
+
+		if (cipher != null)
+			setCipher(tc, false, cipher, mac);
+
+		return tc;
+	}
+
+	private static byte[] message(int len, int seed)
+	{
+		byte[] msg = key(len, seed);
+		msg[0] = (byte) Packets.SSH_MSG_IGNORE;
+		return msg;
+	}
+
+	private static byte[] channelData(int recipient, byte[] data)
+	{
+		byte[] msg = new byte[9 + data.length];
+
+		msg[0] = (byte) Packets.SSH_MSG_CHANNEL_DATA;
+		msg[4] = (byte) recipient;
+		msg[5] = (byte) (data.length >> 24);
+		msg[6] = (byte) (data.length >> 16);
+		msg[7] = (byte) (data.length >> 8);
+		msg[8] = (byte) data.length;
+
+		System.arraycopy(data, 0, msg, 9, data.length);
+
+		return msg;
+	}
+
+	private void roundTrip(String cipher, String mac) throws IOException
+	{
+		if (cipher != null)
+			setCipher(sender, true, cipher, mac);
+
+		int[] lengths = { 1, 15, 16, 17, 100, 1000, 32768 };
+
+		for (int i = 0; i < lengths.length; i++)
+			sender.sendMessage(message(lengths[i], i));
+
+		TransportConnection receiver = receiver(wire.toByteArray(), cipher, mac);
+
+		byte[] buf = new byte[35000];
+
+		for (int i = 0; i < lengths.length; i++)
+		{
+			int n = receiver.receiveMessage(buf, 0, buf.length);
+
+			assertEquals(lengths[i], n);
+			assertArrayEquals(message(lengths[i], i), Arrays.copyOf(buf, n));
+		}
+	}
+
+	@Test
+	public void testRoundTripPlain() throws IOException
+	{
+		roundTrip(null, null);
+	}
+
+	@Test
+	public void testRoundTripMac() throws IOException
+	{
+		roundTrip("aes128-ctr", "hmac-sha2-256");
+	}
+
+	@Test
+	public void testRoundTripMacCbc() throws IOException
+	{
+		roundTrip("aes128-cbc", "hmac-sha1");
+	}
+
+	@Test
+	public void testRoundTripEncryptThenMac() throws IOException
+	{
+		roundTrip("aes128-ctr", "hmac-sha2-256-etm@openssh.com");
+	}
+
+	@Test
+	public void testRoundTripEncryptThenMacCbc() throws IOException
+	{
+		roundTrip("aes256-cbc", "hmac-sha2-512-etm@openssh.com");
+	}
+
+	@Test
+	public void testRoundTripEncryptThenMacSmallBlocks() throws IOException
+	{
+		roundTrip("3des-cbc", "hmac-sha2-256-etm@openssh.com");
+	}
+
+	@Test
+	public void testRoundTripAead() throws IOException
+	{
+		roundTrip("chacha20-poly1305@openssh.com", null);
+	}
+
+	@Test
+	public void testEncryptThenMacLengthInClear() throws IOException
+	{
+		setCipher(sender, true, "aes128-ctr", "hmac-sha2-256-etm@openssh.com");
+
+		sender.sendMessage(message(100, 0));
+
+		byte[] frame = wire.toByteArray();
+
+		int packet_length = ((frame[0] & 0xff) << 24) | ((frame[1] & 0xff) << 16) | ((frame[2] & 0xff) << 8)
+				| (frame[3] & 0xff);
+
+		/* Only the part after the length is padded to the block size, the MAC follows */
+
+		assertEquals(0, packet_length % 16);
+		assertEquals(4 + packet_length + 32, frame.length);
+	}
+
+	@Test
+	public void testCompressionRoundTrip() throws IOException
+	{
+		assumeTrue(Zlib.isAvailable());
+
+		sender.changeSendCompression("zlib");
+		setCipher(sender, true, "aes128-ctr", "hmac-sha2-256-etm@openssh.com");
+
+		byte[] text = new byte[30000];
+
+		for (int i = 0; i < text.length; i++)
+			text[i] = (byte) ("abcd".charAt(i % 4));
+
+		text[0] = (byte) Packets.SSH_MSG_IGNORE;
+
+		sender.sendMessage(text);
+		sender.sendMessage(message(20000, 1));
+
+		/* Compressible data gets shorter, random data not much longer than estimated */
+
+		assertTrue(wire.size() < 20000 + sender.getPacketOverheadEstimate(20000) + 1000);
+
+		TransportConnection receiver = receiver(wire.toByteArray(), "aes128-ctr", "hmac-sha2-256-etm@openssh.com");
+		receiver.changeRecvCompression("zlib");
+
+		byte[] buf = new byte[35000];
+
+		assertEquals(text.length, receiver.receiveMessage(buf, 0, buf.length));
+		assertArrayEquals(text, Arrays.copyOf(buf, text.length));
+
+		assertEquals(20000, receiver.receiveMessage(buf, 0, buf.length));
+		assertArrayEquals(message(20000, 1), Arrays.copyOf(buf, 20000));
+
+		sender.endCompression();
+		receiver.endCompression();
+	}
+
+	@Test
+	public void testDelayedCompression() throws IOException
+	{
+		assumeTrue(Zlib.isAvailable());
+
+		sender.changeSendCompression("zlib@openssh.com");
+
+		byte[] success = { (byte) Packets.SSH_MSG_USERAUTH_SUCCESS };
+
+		sender.sendMessage(message(500, 1));
+		sender.sendMessage(success);
+		sender.sendMessage(message(500, 2));
+
+		TransportConnection receiver = receiver(wire.toByteArray(), null, null);
+		receiver.changeRecvCompression("zlib@openssh.com");
+
+		byte[] buf = new byte[1000];
+
+		assertEquals(500, receiver.receiveMessage(buf, 0, buf.length));
+		assertEquals(1, receiver.receiveMessage(buf, 0, buf.length));
+		assertEquals(500, receiver.receiveMessage(buf, 0, buf.length));
+		assertArrayEquals(message(500, 2), Arrays.copyOf(buf, 500));
+	}
+
+	@Test
+	public void testInflateBound() throws IOException
+	{
+		assumeTrue(Zlib.isAvailable());
+
+		sender.changeSendCompression("zlib");
+
+		byte[] zeros = new byte[100000];
+		zeros[0] = (byte) Packets.SSH_MSG_IGNORE;
+
+		sender.sendMessage(zeros);
+
+		/* A small packet on the wire that would inflate beyond the receive buffer */
+
+		assertTrue(wire.size() < 1000);
+
+		TransportConnection receiver = receiver(wire.toByteArray(), null, null);
+		receiver.changeRecvCompression("zlib");
+
+		try
+		{
+			receiver.receiveMessage(new byte[35000], 0, 35000);
+			fail();
+		}
+		catch (IOException expected)
+		{
+		}
+	}
+
+	@Test
+	public void testOverheadEstimate()
+	{
+		assumeTrue(Zlib.isAvailable());
+
+		setCipher(sender, true, "aes128-ctr", "hmac-sha2-256");
+
+		int plain = sender.getPacketOverheadEstimate(32768);
+
+		sender.changeSendCompression("zlib");
+
+		assertTrue(sender.getPacketOverheadEstimate(32768) > plain);
+
+		sender.endCompression();
+	}
+
+	/**
+	 * Records what the transport does with channel data. The reserved region wraps after 27 bytes.
+	 */
+	private static class RecordingSink implements ChannelDataSink
+	{
+		byte[] array;
+		int offset;
+		int first;
+		int len;
+
+		int begun;
+		int committed;
+		int aborted;
+
+		byte[] data;
+
+		public boolean beginData(int recipient, int len) throws IOException
+		{
+			assertEquals(7, recipient);
+
+			this.len = len;
+
+			first = Math.min(len, 27);
+			array = new byte[len + 16];
+			offset = array.length - first;
+
+			begun++;
+
+			return true;
+		}
+
+		public byte[] getDataArray()
+		{
+			return array;
+		}
+
+		public int getDataOffset()
+		{
+			return offset;
+		}
+
+		public int getDataFirstLength()
+		{
+			return first;
+		}
+
+		public void commitData() throws IOException
+		{
+			data = new byte[len];
+
+			System.arraycopy(array, offset, data, 0, first);
+			System.arraycopy(array, 0, data, first, len - first);
+
+			committed++;
+		}
+
+		public void abortData()
+		{
+			aborted++;
+		}
+	}
+
+	private void sinkRoundTrip(String cipher, String mac) throws IOException
+	{
+		setCipher(sender, true, cipher, mac);
+
+		int[] lengths = { 1, 26, 27, 28, 33, 100, 1000, 30000 };
+
+		for (int i = 0; i < lengths.length; i++)
+			sender.sendMessage(channelData(7, key(lengths[i], i)));
+
+		TransportConnection receiver = receiver(wire.toByteArray(), cipher, mac);
+
+		RecordingSink sink = new RecordingSink();
+
+		receiver.setChannelDataSink(sink);
+
+		byte[] buf = new byte[35000];
+
+		for (int i = 0; i < lengths.length; i++)
+		{
+			assertEquals(0, receiver.receiveMessage(buf, 0, buf.length));
+			assertArrayEquals(cipher + " " + lengths[i], key(lengths[i], i), sink.data);
+		}
+
+		assertEquals(lengths.length, sink.committed);
+		assertEquals(0, sink.aborted);
+	}
+
+	@Test
+	public void testChannelDataToSink() throws IOException
+	{
+		sinkRoundTrip("aes128-ctr", "hmac-sha2-256");
+	}
+
+	@Test
+	public void testChannelDataToSinkEncryptThenMac() throws IOException
+	{
+		sinkRoundTrip("aes128-cbc", "hmac-sha2-256-etm@openssh.com");
+	}
+
+	@Test
+	public void testChannelDataToSinkChaCha20() throws IOException
+	{
+		sinkRoundTrip("chacha20-poly1305@openssh.com", null);
+	}
+
+	@Test
+	public void testChannelDataToSinkGcm() throws IOException
+	{
+		assumeTrue(Arrays.asList(BlockCipherFactory.getDefaultCipherList()).contains("aes128-gcm@openssh.com"));
+
+		sinkRoundTrip("aes128-gcm@openssh.com", null);
+	}
+
+	/**
+	 * Flips one bit of the MAC of a SSH_MSG_CHANNEL_DATA packet.
+	 *
+	 * @param authenticatedFirst the MAC is checked before any data is decrypted
+	 */
+	private void tamper(String cipher, String mac, boolean authenticatedFirst) throws IOException
+	{
+		setCipher(sender, true, cipher, mac);
+
+		sender.sendMessage(channelData(7, key(1000, 1)));
+
+		byte[] bytes = wire.toByteArray();
+
+		bytes[bytes.length - 1] ^= 1;
+
+		TransportConnection receiver = receiver(bytes, cipher, mac);
+
+		RecordingSink sink = new RecordingSink();
+
+		receiver.setChannelDataSink(sink);
+
+		try
+		{
+			receiver.receiveMessage(new byte[35000], 0, 35000);
+			fail();
+		}
+		catch (IOException expected)
+		{
+		}
+
+		/* The data has never been handed out, a reserved region has been given back */
+
+		assertEquals(0, sink.committed);
+		assertEquals(sink.begun, sink.aborted);
+		assertEquals(authenticatedFirst ? 0 : 1, sink.begun);
+		assertNull(sink.data);
+	}
+
+	@Test
+	public void testTamperedMac() throws IOException
+	{
+		tamper("aes128-ctr", "hmac-sha2-256", false);
+	}
+
+	@Test
+	public void testTamperedMacEncryptThenMac() throws IOException
+	{
+		tamper("aes128-ctr", "hmac-sha2-256-etm@openssh.com", true);
+	}
+
+	@Test
+	public void testTamperedMacChaCha20() throws IOException
+	{
+		tamper("chacha20-poly1305@openssh.com", null, true);
+	}
+
+	@Test
+	public void testTamperedMacGcm() throws IOException
+	{
+		assumeTrue(Arrays.asList(BlockCipherFactory.getDefaultCipherList()).contains("aes128-gcm@openssh.com"));
+
+		tamper("aes128-gcm@openssh.com", null, true);
+	}
+}
@@ -0,0 +1,494 @@
+package ch.ethz.ssh2.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.ssh2.ChannelPriority;
+import ch.ethz.ssh2.packets.Packets;
+
+/**
+ * The order in which {@link TransportManager} writes the messages of concurrent senders.
+ * A first message blocks in the socket while the others are queued, the next write then
+ * takes them all.
+ *
+ * @version $Id$
+ */
+public class TransportManagerTest
+{
+	private static final int CONTROL = -1;
+
+	/**
+	 * Once shut, blocks all writes until {@link #open()} is called. What has been written
+	 * since can be read from {@link #input()}.
+	 */
+	private static class GateOutputStream extends OutputStream
+	{
+		private byte[] wire;
+		private int count;
+
+		private boolean open = true;
+		private boolean blocked;
+
+		int flushes;
+
+		@Override
+		public synchronized void write(int b) throws IOException
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException
+		{
+			while (open == false)
+			{
+				blocked = true;
+				notifyAll();
+
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException e)
+				{
+					throw new IOException(e.getMessage());
+				}
+			}
+
+			if (count + len > wire.length)
+				wire = Arrays.copyOf(wire, Math.max(2 * wire.length, count + len));
+
+			System.arraycopy(b, off, wire, count, len);
+			count += len;
+
+			notifyAll();
+		}
+
+		/**
+		 * @return the written bytes, waits for them (some messages are written by a
+		 *         background thread)
+		 */
+		InputStream input()
+		{
+			return new InputStream()
+			{
+				private int pos = 0;
+
+				@Override
+				public int read() throws IOException
+				{
+					byte[] b = new byte[1];
+					return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException
+				{
+					synchronized (GateOutputStream.this)
+					{
+						long deadline = System.currentTimeMillis() + 10000;
+
+						while (count == pos)
+						{
+							long timeout = deadline - System.currentTimeMillis();
+
+							if (timeout <= 0)
+								return -1;
+
+							try
+							{
+								GateOutputStream.this.wait(timeout);
+							}
+							catch (InterruptedException e)
+							{
+								throw new IOException(e.getMessage());
+							}
+						}
+
+						int n = Math.min(len, count - pos);
+						System.arraycopy(wire, pos, b, off, n);
+						pos += n;
+						return n;
+					}
+				}
+			};
+		}
+
+		synchronized void awaitBlocked() throws InterruptedException
+		{
+			while (blocked == false)
+				wait();
+		}
+
+		@Override
+		public synchronized void flush()
+		{
+			flushes++;
+		}
+
+		synchronized void shut()
+		{
+			wire = new byte[1024];
+			count = 0;
+			flushes = 0;
+			open = false;
+			blocked = false;
+		}
+
+		synchronized void open()
+		{
+			open = true;
+			notifyAll();
+		}
+	}
+
+	private final GateOutputStream out = new GateOutputStream();
+	private TransportManager tm;
+
+	private final List<Sender> senders = new ArrayList<Sender>();
+
+	/* The messages after the first one, see release() */
+	private final List<byte[]> received = new ArrayList<byte[]>();
+
+	@Before
+	public void setUp() throws Exception
+	{
+		tm = new TransportManager()
+		{
+			@Override
+			public void close(Throwable cause, boolean useDisconnectPacket)
+			{
+			}
+		};
+
+		tm.init(new TransportConnection(new ByteArrayInputStream(new byte[0]), out, new SecureRandom()), null);
+
+		block();
+	}
+
+	/**
+	 * Sends a message that blocks in the socket, the following ones are queued.
+	 */
+	private void block() throws InterruptedException
+	{
+		senders.clear();
+		out.shut();
+
+		start(new Sender()
+		{
+			void send() throws IOException
+			{
+				tm.sendMessage(new byte[] { (byte) Packets.SSH_MSG_IGNORE, 0, 0, 0, 0 });
+			}
+		});
+
+		out.awaitBlocked();
+	}
+
+	private abstract class Sender extends Thread
+	{
+		Throwable failure;
+
+		abstract void send() throws IOException;
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				send();
+			}
+			catch (Throwable t)
+			{
+				failure = t;
+			}
+		}
+	}
+
+	private void start(Sender s) throws InterruptedException
+	{
+		senders.add(s);
+		s.start();
+
+		/* Wait until the message is queued, so that the queue order is known */
+
+		while (s.getState() != Thread.State.WAITING)
+			Thread.sleep(1);
+	}
+
+	private Sender queueData(final TransportManager.OutboundChannel channel, final int recipient, final int priority,
+			final int len) throws InterruptedException
+	{
+		return queueData(channel, recipient, priority, len, null);
+	}
+
+	private Sender queueData(final TransportManager.OutboundChannel channel, final int recipient, final int priority,
+			final int len, final byte[] control) throws InterruptedException
+	{
+		final byte[] header = new byte[9];
+
+		header[0] = (byte) Packets.SSH_MSG_CHANNEL_DATA;
+		header[4] = (byte) recipient;
+		header[7] = (byte) (len >> 8);
+		header[8] = (byte) len;
+
+		Sender s = new Sender()
+		{
+			void send() throws IOException
+			{
+				tm.sendMessage(header, new byte[len], 0, len, channel, priority, control);
+			}
+		};
+
+		start(s);
+
+		return s;
+	}
+
+	private void queueControl(final int recipient) throws InterruptedException
+	{
+		start(new Sender()
+		{
+			void send() throws IOException
+			{
+				tm.sendMessage(new byte[] { (byte) Packets.SSH_MSG_CHANNEL_EOF, 0, 0, 0, (byte) recipient });
+			}
+		});
+	}
+
+	/**
+	 * Lets the queued messages go out.
+	 *
+	 * @return the recipient of each message after the first one in the order they were
+	 *         written, CONTROL for messages without data
+	 */
+	private List<Integer> release() throws Exception
+	{
+		out.open();
+
+		for (Sender s : senders)
+		{
+			s.join(10000);
+
+			if (s.failure != null)
+				throw new AssertionError(s.failure);
+		}
+
+		TransportConnection receiver = new TransportConnection(out.input(),
+				new ByteArrayOutputStream(), new SecureRandom());
+
+		byte[] buf = new byte[70000];
+
+		List<Integer> order = new ArrayList<Integer>();
+
+		receiver.receiveMessage(buf, 0, buf.length);
+
+		received.clear();
+
+		for (int i = 1; i < senders.size(); i++)
+		{
+			int n = receiver.receiveMessage(buf, 0, buf.length);
+			received.add(Arrays.copyOf(buf, n));
+			order.add((buf[0] == Packets.SSH_MSG_CHANNEL_DATA) ? Integer.valueOf(buf[4]) : CONTROL);
+		}
+
+		return order;
+	}
+
+	@Test
+	public void testQueuedMessagesShareWrite() throws Exception
+	{
+		for (int i = 0; i < 20; i++)
+			queueControl(i);
+
+		assertEquals(20, release().size());
+
+		/* The blocked message, then one write for everything queued meanwhile */
+
+		assertEquals(2, out.flushes);
+	}
+
+	@Test
+	public void testInteractiveAndControlFirst() throws Exception
+	{
+		TransportManager.OutboundChannel bulk = new TransportManager.OutboundChannel();
+		TransportManager.OutboundChannel interactive = new TransportManager.OutboundChannel();
+
+		for (int i = 0; i < 6; i++)
+			queueData(bulk, 1, ChannelPriority.BULK, 16384);
+
+		queueData(interactive, 2, ChannelPriority.INTERACTIVE, 100);
+		queueControl(3);
+
+		List<Integer> order = release();
+
+		assertEquals(8, order.size());
+		assertEquals(2, order.get(0).intValue());
+		assertEquals(CONTROL, order.get(1).intValue());
+	}
+
+	@Test
+	public void testChannelOrderKept() throws Exception
+	{
+		TransportManager.OutboundChannel bulk = new TransportManager.OutboundChannel();
+
+		/* The EOF of a channel stays behind its data, even if it is held back */
+
+		for (int i = 0; i < 6; i++)
+			queueData(bulk, 1, ChannelPriority.BULK, 16384);
+
+		queueControl(1);
+
+		List<Integer> order = release();
+
+		assertEquals(7, order.size());
+		assertEquals(CONTROL, order.get(6).intValue());
+	}
+
+	@Test
+	public void testNormalBeforeBulk() throws Exception
+	{
+		TransportManager.OutboundChannel bulk = new TransportManager.OutboundChannel();
+		TransportManager.OutboundChannel normal = new TransportManager.OutboundChannel();
+
+		for (int i = 0; i < 4; i++)
+			queueData(bulk, 1, ChannelPriority.BULK, 16384);
+
+		for (int i = 0; i < 4; i++)
+			queueData(normal, 2, ChannelPriority.NORMAL, 16384);
+
+		/* A normal channel gets four times the share of a bulk channel */
+
+		assertEquals(Arrays.asList(2, 2, 1, 2, 2, 1, 1, 1), release());
+	}
+
+	@Test
+	public void testFairness() throws Exception
+	{
+		TransportManager.OutboundChannel a = new TransportManager.OutboundChannel();
+		TransportManager.OutboundChannel b = new TransportManager.OutboundChannel();
+
+		/* b queues its data after all of a's, but does not have to wait for it */
+
+		for (int i = 0; i < 8; i++)
+			queueData(a, 1, ChannelPriority.BULK, 8192);
+
+		for (int i = 0; i < 2; i++)
+			queueData(b, 2, ChannelPriority.BULK, 8192);
+
+		assertEquals(Arrays.asList(1, 2, 1, 2, 1, 1, 1, 1, 1, 1), release());
+	}
+
+	@Test
+	public void testChannelReused() throws Exception
+	{
+		TransportManager.OutboundChannel a = new TransportManager.OutboundChannel();
+		TransportManager.OutboundChannel b = new TransportManager.OutboundChannel();
+
+		for (int i = 0; i < 10; i++)
+			queueData(a, 1, ChannelPriority.BULK, 16384);
+
+		queueData(b, 2, ChannelPriority.BULK, 16384);
+
+		assertEquals(11, release().size());
+
+		/* Channels without queued data are forgotten, the next round starts afresh */
+
+		block();
+
+		queueData(b, 2, ChannelPriority.BULK, 8192);
+		queueData(a, 1, ChannelPriority.BULK, 8192);
+
+		assertEquals(Arrays.asList(2, 1), release());
+	}
+
+	@Test
+	public void testInterruptedSenderControlCopied() throws Exception
+	{
+		byte[] adjust = new byte[] { (byte) Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST, 0, 0, 0, 1, 0, 0, 0, 100 };
+
+		Sender s = queueData(new TransportManager.OutboundChannel(), 1, ChannelPriority.NORMAL, 1000, adjust);
+
+		/* The data is withdrawn, the window adjust still goes out */
+
+		s.interrupt();
+		s.join();
+
+		assertTrue(s.failure instanceof InterruptedIOException);
+		s.failure = null;
+
+		/* The sender may reuse its array now */
+
+		adjust[8] = 0;
+
+		assertEquals(Arrays.asList(CONTROL), release());
+		assertEquals(100, received.get(0)[8]);
+	}
+
+	@Test
+	public void testDeferredDuringKeyExchange() throws Exception
+	{
+		release();
+
+		tm.sendKexMessage(new byte[] { (byte) Packets.SSH_MSG_IGNORE, 1 });
+
+		/* Returns although nothing may be sent before the key exchange has finished */
+
+		byte[] msg = new byte[] { (byte) Packets.SSH_MSG_IGNORE, 2 };
+
+		tm.sendMessage(msg);
+		msg[1] = 3;
+
+		tm.kexFinished();
+		tm.flushDeferred();
+
+		TransportConnection receiver = new TransportConnection(out.input(), new ByteArrayOutputStream(),
+				new SecureRandom());
+
+		byte[] buf = new byte[100];
+
+		receiver.receiveMessage(buf, 0, buf.length);
+		receiver.receiveMessage(buf, 0, buf.length);
+
+		assertEquals(2, receiver.receiveMessage(buf, 0, buf.length));
+		assertEquals(2, buf[1]);
+	}
+
+	@Test
+	public void testDeferredLostReported() throws Exception
+	{
+		release();
+
+		tm.sendKexMessage(new byte[] { (byte) Packets.SSH_MSG_IGNORE, 1 });
+		tm.sendMessage(new byte[] { (byte) Packets.SSH_MSG_IGNORE, 2 });
+
+		/* The connection fails during the key exchange */
+
+		tm.close(new Socket(), new Throwable("Test"), false);
+
+		try
+		{
+			tm.flushDeferred();
+			fail();
+		}
+		catch (IOException expected)
+		{
+		}
+	}
+}